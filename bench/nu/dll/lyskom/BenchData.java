@@ -0,0 +1,128 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recorded server replies for the benchmarks.
+ * 
+ * Each method returns the data of a reply as sent by the server after the
+ * reply reference number ("=4711"), including the terminating newline.
+ */
+class BenchData {
+    final static String CHARSET = "iso-8859-1";
+
+    final static String TIME = " 17 42 13 19 9 105 3 291 1";
+
+    /**
+     * Reply to get-membership: <tt>confs</tt> memberships, each with
+     * <tt>ranges</tt> read ranges.
+     */
+    static byte[] membershipList(int confs, int ranges) {
+        StringBuffer b = new StringBuffer();
+        b.append(' ').append(confs).append(" {");
+        for (int i = 0; i < confs; i++) {
+            b.append(' ').append(i).append(TIME).append(' ').append(1000 + i)
+                    .append(" 100 ").append(ranges).append(" {");
+            for (int r = 0; r < ranges; r++)
+                b.append(' ').append(r * 10 + 1).append(' ').append(r * 10 + 7);
+            b.append(" } 6").append(TIME).append(" 00000000");
+        }
+        return bytes(b.append(" }\n"));
+    }
+
+    /**
+     * Reply to local-to-global with a dense block of <tt>texts</tt> texts.
+     */
+    static byte[] localToGlobalDense(int texts) {
+        StringBuffer b = new StringBuffer();
+        b.append(" 1 ").append(texts + 1).append(" 1 1 1 ").append(texts)
+                .append(" {");
+        for (int i = 0; i < texts; i++)
+            b.append(' ').append(i % 7 == 3 ? 0 : 3000000 + i * 3);
+        return bytes(b.append(" }\n"));
+    }
+
+    /**
+     * Reply to local-to-global with a sparse block of <tt>texts</tt> texts,
+     * spread over three times as many local numbers.
+     */
+    static byte[] localToGlobalSparse(int texts) {
+        StringBuffer b = new StringBuffer();
+        b.append(" 1 ").append(texts * 3 + 1).append(" 1 0 ").append(texts)
+                .append(" {");
+        for (int i = 0; i < texts; i++)
+            b.append(' ').append(i * 3 + 1).append(' ').append(3000000 + i * 9);
+        return bytes(b.append(" }\n"));
+    }
+
+    /**
+     * Reply to who-is-on-dynamic with <tt>sessions</tt> sessions.
+     */
+    static byte[] whoIsOnDynamic(int sessions) {
+        StringBuffer b = new StringBuffer();
+        b.append(' ').append(sessions).append(" {");
+        for (int i = 0; i < sessions; i++) {
+            String doing = "L\u00e4ser m\u00f6te " + i;
+            b.append(' ').append(i + 1).append(' ').append(100 + i).append(' ')
+                    .append(2000 + i % 50).append(' ').append(i * 13)
+                    .append(" 00000000 ").append(doing.length()).append('H')
+                    .append(doing);
+        }
+        return bytes(b.append(" }\n"));
+    }
+
+    /**
+     * Reply to get-text-stat for a text with <tt>recipients</tt> recipients,
+     * each with a local number and receive time, one comment-to and one aux
+     * item.
+     */
+    static byte[] textStat(int recipients) {
+        StringBuffer b = new StringBuffer();
+        b.append(TIME).append(" 6 12 640 0 ").append(recipients * 3 + 2)
+                .append(" {");
+        for (int i = 0; i < recipients; i++)
+            b.append(" 0 ").append(1000 + i).append(" 6 ").append(40 + i)
+                    .append(" 7").append(TIME);
+        b.append(" 2 3000000 3 3000042 } 1 { 1 1 6").append(TIME)
+                .append(" 00000000 0 10Htext/plain }\n");
+        return bytes(b);
+    }
+
+    static byte[] bytes(StringBuffer b) {
+        try {
+            return b.toString().getBytes(CHARSET);
+        } catch (IOException ex1) {
+            throw new RuntimeException(ex1);
+        }
+    }
+
+    /**
+     * Parses reply data into KomTokens the way MessageListener does when
+     * there is no ReplyDecoder for the call.
+     */
+    static KomToken[] tokenize(byte[] data) throws IOException {
+        List<KomToken> tokens = new ArrayList<KomToken>();
+        InputStream is = new ByteArrayInputStream(data);
+        KomToken token = null;
+        do {
+            token = KomTokenReader.readToken(token, -1, is, CHARSET);
+            tokens.add(token);
+        } while (!token.isEol());
+        return tokens.toArray(new KomToken[tokens.size()]);
+    }
+
+    static KomTokenReader reader(byte[] data) {
+        return new KomTokenReader(new ByteArrayInputStream(data), SESSION);
+    }
+
+    final static Session SESSION = new Session();
+}
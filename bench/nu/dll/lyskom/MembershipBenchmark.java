@@ -0,0 +1,81 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Marking texts as read in, and listing the read texts of, a Membership.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MembershipBenchmark {
+
+    @Param( { "1000" })
+    int texts;
+
+    byte[] start;
+    int[] order;
+    Membership marked;
+
+    @Setup
+    public void setup() throws IOException {
+        // a membership where only the first text has been read
+        start = BenchData.bytes(new StringBuffer(" 0" + BenchData.TIME
+                + " 1000 100 1 { 1 1 } 6" + BenchData.TIME + " 00000000\n"));
+
+        // read the other texts in a random order, the way a user jumping
+        // between comment chains would, leaving every fifth text unread
+        order = new int[texts - 1];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i + 2;
+        Random random = new Random(4711);
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        marked = markAsRead();
+    }
+
+    @Benchmark
+    public Membership markAsRead() throws IOException {
+        Membership m = Membership.readFrom(BenchData.reader(start), false);
+        for (int i = 0; i < order.length; i++)
+            if (order[i] % 5 != 0)
+                m.markAsRead(order[i]);
+        return m;
+    }
+
+    @Benchmark
+    public int[] getReadTexts() {
+        return marked.getReadTexts();
+    }
+
+    @Benchmark
+    public boolean isRead() {
+        return marked.isRead(texts - 1);
+    }
+}
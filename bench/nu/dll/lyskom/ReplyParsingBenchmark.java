@@ -0,0 +1,93 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of recorded replies: generic tokenizing with
+ * KomTokenReader.readToken()/readArray(), as done for calls without a
+ * ReplyDecoder, against direct decoding with the call's ReplyDecoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyParsingBenchmark {
+
+    @Param( { "get-membership", "local-to-global-dense",
+            "local-to-global-sparse", "who-is-on-dynamic" })
+    String reply;
+
+    byte[] data;
+    RpcCall call;
+    int arrayOffset;
+    KomToken arrayLength;
+
+    @Setup
+    public void setup() throws IOException {
+        if (reply.equals("get-membership")) {
+            data = BenchData.membershipList(200, 8);
+            call = new RpcCall(1, Rpc.C_get_membership);
+        } else if (reply.equals("local-to-global-dense")) {
+            data = BenchData.localToGlobalDense(255);
+            call = new RpcCall(1, Rpc.C_local_to_global);
+        } else if (reply.equals("local-to-global-sparse")) {
+            data = BenchData.localToGlobalSparse(255);
+            call = new RpcCall(1, Rpc.C_local_to_global);
+        } else if (reply.equals("who-is-on-dynamic")) {
+            data = BenchData.whoIsOnDynamic(500);
+            call = new RpcCall(1, Rpc.C_who_is_on_dynamic);
+        } else {
+            throw new IllegalArgumentException(reply);
+        }
+
+        // readArray() starts after the "{ " of the first (outermost) array
+        int brace = 0;
+        while (data[brace] != '{')
+            brace++;
+        int start = brace - 1;
+        while (data[start - 1] != ' ')
+            start--;
+        arrayLength = new KomToken(new String(data, start, brace - start - 1,
+                BenchData.CHARSET));
+        arrayOffset = brace + 2;
+    }
+
+    @Benchmark
+    public KomToken[] readToken() throws IOException {
+        return BenchData.tokenize(data);
+    }
+
+    @Benchmark
+    public KomTokenArray readArray() throws IOException {
+        InputStream is = new ByteArrayInputStream(data, arrayOffset,
+                data.length - arrayOffset);
+        return KomTokenReader.readArray(arrayLength, is, BenchData.CHARSET);
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        return ReplyDecoders.get(call).decode(BenchData.reader(data), call);
+    }
+}
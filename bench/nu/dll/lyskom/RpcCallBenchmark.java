@@ -0,0 +1,87 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing RPC calls to their network representation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RpcCallBenchmark {
+
+    @Param( { "mark-as-read", "create-text", "get-text" })
+    String call;
+
+    int[] localNos;
+    Text text;
+    KomOutputBuffer buffer = new KomOutputBuffer();
+
+    @Setup
+    public void setup() {
+        localNos = new int[64];
+        for (int i = 0; i < localNos.length; i++)
+            localNos[i] = 100000 + i * 3;
+        text = new Text("\u00c4rende", "Text med \u00e5\u00e4\u00f6\n");
+        text.addRecipients(new int[] { 4711, 4712 });
+        text.addCommented(3000000);
+        text.getStat().addAuxItem(
+                new AuxItem(AuxItem.tagContentType, "text/x-kom-basic"));
+    }
+
+    /**
+     * Builds the call the way the corresponding Session.doXxx() method does.
+     */
+    RpcCall build(int id) {
+        if (call.equals("mark-as-read")) {
+            return new RpcCall(id, Rpc.C_mark_as_read).add(new KomToken(4711))
+                    .add(new KomTokenArray(localNos.length, localNos));
+        } else if (call.equals("create-text")) {
+            TextStat s = text.getStat();
+            AuxItem[] auxItems = s.getAuxItems();
+            KomToken[] aux = new KomToken[auxItems.length];
+            for (int i = 0; i < auxItems.length; i++)
+                aux[i] = auxItems[i].toToken();
+            return new RpcCall(id, Rpc.C_create_text).add(
+                    new Hollerith(text.getContents())).add(
+                    (KomToken) new KomTokenArray(s.getMiscInfo().size(), s
+                            .getMiscInfo())).add(
+                    (KomToken) new KomTokenArray(aux.length, aux));
+        } else {
+            return new RpcCall(id, Rpc.C_get_text).add(new KomToken(3000000))
+                    .add("0").add(new KomToken(2000));
+        }
+    }
+
+    @Benchmark
+    public byte[] toNetwork() {
+        return build(4711).toNetwork();
+    }
+
+    @Benchmark
+    public int writeTo() {
+        buffer.reset();
+        build(4711).writeTo(buffer);
+        return buffer.size();
+    }
+}
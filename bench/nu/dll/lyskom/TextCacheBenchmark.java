@@ -0,0 +1,90 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TextCache lookups and additions with more distinct texts than the cache
+ * holds, so that additions evict older texts. The "mixed" group has readers
+ * and a writer working on the same cache concurrently.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextCacheBenchmark {
+
+    // number of distinct texts, in multiples of the cache size
+    @Param( { "2" })
+    int pressure;
+
+    TextCache cache;
+    Text[] texts;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 0;
+    }
+
+    @Setup
+    public void setup() {
+        cache = new TextCache();
+        texts = new Text[cache.maxSize * pressure];
+        for (int i = 0; i < texts.length; i++)
+            texts[i] = new Text(3000000 + i);
+        for (int i = 0; i < cache.maxSize; i++)
+            cache.add(texts[i]);
+    }
+
+    Text next(Cursor c) {
+        Text t = texts[c.next];
+        c.next = (c.next + 7) % texts.length;
+        return t;
+    }
+
+    @Benchmark
+    @Group("get")
+    public Text get(Cursor c) {
+        return cache.get(next(c).getNo());
+    }
+
+    @Benchmark
+    @Group("add")
+    public void add(Cursor c) {
+        cache.add(next(c));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Text mixedGet(Cursor c) {
+        return cache.get(next(c).getNo());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedAdd(Cursor c) {
+        cache.add(next(c));
+    }
+}
@@ -0,0 +1,71 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Updating a TextMapping from a local-to-global reply and enumerating the
+ * global text numbers in it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextMappingBenchmark {
+
+    @Param( { "dense", "sparse" })
+    String block;
+
+    KomToken[] tokens;
+    TextMapping mapping;
+
+    @Setup
+    public void setup() throws IOException {
+        tokens = BenchData.tokenize(block.equals("dense") ? BenchData
+                .localToGlobalDense(255) : BenchData.localToGlobalSparse(255));
+        mapping = update();
+    }
+
+    @Benchmark
+    public TextMapping update() {
+        TextMapping m = new TextMapping();
+        m.update(0, tokens, false);
+        return m;
+    }
+
+    @Benchmark
+    public int enumerate() {
+        int sum = 0;
+        mapping.first();
+        while (mapping.hasMoreElements())
+            sum += ((Integer) mapping.nextElement()).intValue();
+        return sum;
+    }
+
+    @Benchmark
+    public int localToGlobal() {
+        int sum = 0;
+        for (int i = 1; i <= 255; i += 17)
+            sum += mapping.localToGlobal(i);
+        return sum;
+    }
+}
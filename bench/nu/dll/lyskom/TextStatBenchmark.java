@@ -0,0 +1,68 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building TextStat objects from a get-text-stat reply, and reading the
+ * Misc-Info of the result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextStatBenchmark {
+
+    @Param( { "1", "10" })
+    int recipients;
+
+    byte[] data;
+    KomToken[] tokens;
+    TextStat stat;
+
+    @Setup
+    public void setup() throws IOException {
+        data = BenchData.textStat(recipients);
+        tokens = BenchData.tokenize(data);
+        stat = TextStat.createFrom(4711, tokens, 0, false);
+    }
+
+    @Benchmark
+    public TextStat createFrom() {
+        return TextStat.createFrom(4711, tokens, 0, false);
+    }
+
+    @Benchmark
+    public TextStat readFrom() throws IOException {
+        return TextStat.readFrom(4711, BenchData.reader(data));
+    }
+
+    @Benchmark
+    public int getLocal() {
+        return stat.getLocal(1000 + recipients - 1);
+    }
+
+    @Benchmark
+    public int[] getRecipients() {
+        return stat.getRecipients();
+    }
+}
@@ -0,0 +1,323 @@
+package nu.dll.app.komspy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * The memberships of secret conferences that Spy has seen, as (conference,
+ * person, time) records. New records are appended to a log file,
+ * <tt>&lt;file&gt;.log</tt>, one fixed-size record at a time. Now and then
+ * (when the log holds <tt>spy.compact</tt> records, 1000 by default, and
+ * at startup) the records are sorted by conference and person and written
+ * to a snapshot, <tt>&lt;file&gt;.snap</tt>, and the log is emptied. Both
+ * files are read with a memory-mapped read.
+ * <br>
+ * A map written by earlier versions of Spy, with ObjectOutputStream, is
+ * read once if there is no snapshot yet.
+ */
+public class MembershipLog {
+    final static int MAGIC = 0x53505931; // "SPY1"
+    // conf, person, time
+    final static int RECORD = 4 + 4 + 8;
+
+    File snapFile, logFile, oldFile;
+    int compactAt = Integer.getInteger("spy.compact", 1000).intValue();
+
+    // all records: first the snapshot's, sorted by conference and person,
+    // then those added since, in the order they were added. Records read
+    // at startup may repeat; compact() drops the repeats.
+    int[] confs = new int[0], persons = new int[0];
+    long[] times = new long[0];
+    int sorted = 0, count = 0;
+
+    DataOutputStream log = null;
+
+    public MembershipLog(String filename) throws IOException {
+	oldFile = new File(filename);
+	snapFile = new File(filename + ".snap");
+	logFile = new File(filename + ".log");
+	load();
+    }
+
+    void load() throws IOException {
+	if (snapFile.exists()) {
+	    ByteBuffer b = map(snapFile);
+	    if (b.getInt() != MAGIC)
+		throw new IOException("Bad snapshot file " + snapFile);
+	    int n = b.getInt();
+	    ensure(n);
+	    for (int i = 0; i < n; i++)
+		append(b.getInt(), b.getInt(), b.getLong());
+	    sorted = count;
+	} else if (oldFile.exists()) {
+	    importOld();
+	}
+	if (logFile.exists()) {
+	    // a record cut short by a crash is cut off, so that the records
+	    // appended after it are read back whole
+	    long length = logFile.length();
+	    if (length % RECORD != 0) {
+		RandomAccessFile f = new RandomAccessFile(logFile, "rw");
+		try {
+		    f.setLength(length - length % RECORD);
+		} finally {
+		    f.close();
+		}
+	    }
+	    ByteBuffer b = map(logFile);
+	    int n = b.remaining() / RECORD;
+	    ensure(count + n);
+	    for (int i = 0; i < n; i++)
+		append(b.getInt(), b.getInt(), b.getLong());
+	}
+	if (count > sorted || !snapFile.exists())
+	    compact();
+    }
+
+    static ByteBuffer map(File f) throws IOException {
+	FileInputStream in = new FileInputStream(f);
+	try {
+	    FileChannel ch = in.getChannel();
+	    MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+	    b.load();
+	    return b;
+	} finally {
+	    in.close();
+	}
+    }
+
+    // the Map<Integer, List<Integer>> of earlier versions
+    void importOld() throws IOException {
+	ObjectInputStream objStream = new ObjectInputStream(new FileInputStream(oldFile));
+	try {
+	    Map<?, ?> confMap = (Map<?, ?>) objStream.readObject();
+	    for (Map.Entry<?, ?> e : confMap.entrySet()) {
+		int conf = ((Integer) e.getKey()).intValue();
+		for (Object person : (List<?>) e.getValue())
+		    append(conf, ((Integer) person).intValue(), 0);
+	    }
+	    System.out.println("Imported " + count + " memberships from " + oldFile);
+	} catch (ClassNotFoundException ex1) {
+	    throw new IOException("Bad map file " + oldFile + ": " + ex1);
+	} finally {
+	    objStream.close();
+	}
+    }
+
+    void ensure(int n) {
+	if (n <= confs.length)
+	    return;
+	int size = Math.max(n, confs.length * 2);
+	confs = Arrays.copyOf(confs, size);
+	persons = Arrays.copyOf(persons, size);
+	times = Arrays.copyOf(times, size);
+    }
+
+    // adds a record in memory
+    void append(int conf, int person, long time) {
+	ensure(count + 1);
+	confs[count] = conf;
+	persons[count] = person;
+	times[count] = time;
+	count++;
+    }
+
+    /**
+     * Records that a person is a member of a conference, unless that is
+     * known already. Returns true if it was not.
+     */
+    public synchronized boolean add(int conf, int person) throws IOException {
+	return add(conf, person, System.currentTimeMillis(), true);
+    }
+
+    synchronized boolean add(int conf, int person, long time, boolean write) throws IOException {
+	if (contains(conf, person))
+	    return false;
+	append(conf, person, time);
+	if (!write)
+	    return true;
+	if (log == null)
+	    log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true), RECORD));
+	log.writeInt(conf);
+	log.writeInt(person);
+	log.writeLong(time);
+	log.flush();
+	if (count - sorted >= compactAt)
+	    compact();
+	return true;
+    }
+
+    /**
+     * Sorts all records into a new snapshot, and empties the log. Of records
+     * that repeat, the first is kept.
+     */
+    public synchronized void compact() throws IOException {
+	int[] order = sortedOrder();
+	int[] c = new int[count], p = new int[count];
+	long[] t = new long[count];
+	int n = 0;
+	for (int i = 0; i < count; i++) {
+	    int j = order[i];
+	    if (n > 0 && c[n - 1] == confs[j] && p[n - 1] == persons[j])
+		continue;
+	    c[n] = confs[j];
+	    p[n] = persons[j];
+	    t[n] = times[j];
+	    n++;
+	}
+
+	File tmp = new File(snapFile.getPath() + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(n);
+	    for (int i = 0; i < n; i++) {
+		out.writeInt(c[i]);
+		out.writeInt(p[i]);
+		out.writeLong(t[i]);
+	    }
+	} finally {
+	    out.close();
+	}
+	if (!tmp.renameTo(snapFile)) {
+	    snapFile.delete();
+	    if (!tmp.renameTo(snapFile))
+		throw new IOException("Could not replace " + snapFile);
+	}
+	if (log != null) {
+	    log.close();
+	    log = null;
+	}
+	new FileOutputStream(logFile).close();
+	confs = c;
+	persons = p;
+	times = t;
+	sorted = count = n;
+    }
+
+    /**
+     * Returns the indices of the records, sorted by conference and person.
+     * The merge sort is stable, so the first of a repeat stays first.
+     */
+    int[] sortedOrder() {
+	int[] from = new int[count], to = new int[count];
+	for (int i = 0; i < count; i++)
+	    from[i] = i;
+	for (int width = 1; width < count; width *= 2) {
+	    for (int lo = 0; lo < count; lo += 2 * width) {
+		int mid = Math.min(lo + width, count);
+		int hi = Math.min(lo + 2 * width, count);
+		int i = lo, j = mid, k = lo;
+		while (i < mid && j < hi)
+		    to[k++] = before(from[j], from[i]) ? from[j++] : from[i++];
+		while (i < mid)
+		    to[k++] = from[i++];
+		while (j < hi)
+		    to[k++] = from[j++];
+	    }
+	    int[] swap = from;
+	    from = to;
+	    to = swap;
+	}
+	return from;
+    }
+
+    // true if record a sorts before record b
+    boolean before(int a, int b) {
+	if (confs[a] != confs[b])
+	    return confs[a] < confs[b];
+	return persons[a] < persons[b];
+    }
+
+    // the first snapshot record of a conference, or where it would be
+    int first(int conf) {
+	int lo = 0, hi = sorted;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (confs[mid] < conf)
+		lo = mid + 1;
+	    else
+		hi = mid;
+	}
+	return lo;
+    }
+
+    public synchronized boolean contains(int conf, int person) {
+	int lo = first(conf), hi = sorted;
+	while (lo < hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (confs[mid] != conf || persons[mid] > person)
+		hi = mid;
+	    else if (persons[mid] < person)
+		lo = mid + 1;
+	    else
+		return true;
+	}
+	// the log is short; it is emptied every compactAt records
+	for (int i = sorted; i < count; i++)
+	    if (confs[i] == conf && persons[i] == person)
+		return true;
+	return false;
+    }
+
+    /**
+     * Returns the persons known to be members of a conference.
+     */
+    public synchronized int[] getMembers(int conf) {
+	int[] m = new int[8];
+	int n = 0;
+	for (int i = first(conf); i < sorted && confs[i] == conf; i++) {
+	    if (n == m.length)
+		m = Arrays.copyOf(m, n * 2);
+	    m[n++] = persons[i];
+	}
+	for (int i = sorted; i < count; i++) {
+	    if (confs[i] != conf)
+		continue;
+	    if (n == m.length)
+		m = Arrays.copyOf(m, n * 2);
+	    m[n++] = persons[i];
+	}
+	return Arrays.copyOf(m, n);
+    }
+
+    /**
+     * Returns the secret conferences seen, in order.
+     */
+    public synchronized int[] getConferences() {
+	int[] s = Arrays.copyOf(confs, count);
+	Arrays.sort(s);
+	int n = 0;
+	for (int i = 0; i < count; i++)
+	    if (n == 0 || s[i] != s[n - 1])
+		s[n++] = s[i];
+	return Arrays.copyOf(s, n);
+    }
+
+    /**
+     * Returns the records added after the given time (in milliseconds), as
+     * { conference, person } pairs. Records imported from an old map file
+     * have time zero.
+     */
+    public synchronized int[][] getAddedSince(long time) {
+	List<int[]> l = new ArrayList<int[]>();
+	for (int i = 0; i < count; i++)
+	    if (times[i] > time)
+		l.add(new int[] { confs[i], persons[i] });
+	return l.toArray(new int[l.size()][]);
+    }
+
+    public synchronized int size() {
+	return count;
+    }
+
+    public synchronized void close() throws IOException {
+	if (log != null) {
+	    log.close();
+	    log = null;
+	}
+    }
+}
@@ -3,7 +3,54 @@ package nu.dll.app.komspy;
 import nu.dll.lyskom.*;
 import java.io.*;
 import java.util.*;
-public class Spy {
+public class Spy implements WhoIsOnListener {
+    Session session;
+    MembershipLog memberships;
+
+    Spy(Session session, MembershipLog memberships) {
+	this.session = session;
+	this.memberships = memberships;
+    }
+
+    public void sessionAdded(DynamicSessionInfo s) {
+	check(s);
+    }
+
+    public void sessionChanged(DynamicSessionInfo old, DynamicSessionInfo s) {
+	if (old.getWorkingConference() != s.getWorkingConference())
+	    check(s);
+    }
+
+    public void sessionRemoved(DynamicSessionInfo s) {
+    }
+
+    synchronized void check(DynamicSessionInfo who) {
+	int conf = 0;
+	try {
+	    conf = who.getWorkingConference();
+	    if (conf > 0)
+		session.getConfName(conf);
+	    
+	} catch (IOException ex1) {
+	    System.out.println("I/O error: " + ex1.toString());
+	} catch (RpcFailure ex1) {
+	    if (ex1.getError() == Rpc.E_undefined_conference) {
+		int person = who.getPerson();
+		if (memberships.contains(conf, person))
+		    return;
+		if (memberships.getMembers(conf).length == 0)
+		    System.out.println("New secret conference found: " + conf);
+		System.out.println("Registering " + person + " as a member of " + conf);
+		try {
+		    memberships.add(conf, person);
+		} catch (IOException ex2) {
+		    System.out.println("saving failed: " + ex2.toString());
+		}
+	    } else {
+		System.out.println("RPC error: " + ex1.toString());
+	    }
+	}
+    }
 
     public static void main(String[] argv) throws Exception {
 	int sleepTime = Integer.getInteger("spy.sleeptime", 10000).intValue();
@@ -11,16 +58,10 @@ public class Spy {
 	String server = System.getProperty("spy.server", "kom.sno.pp.se");
 	int loginUser = Integer.getInteger("spy.loginuser", 0).intValue();
 	String loginPassword = System.getProperty("spy.loginpassword", "");
-	Map confMap = null;
-	try {
-	    ObjectInputStream objStream = new ObjectInputStream(new FileInputStream(new File(filename)));
-	    confMap = (Map) objStream.readObject();
-	    objStream.close();
-	    System.out.println("Read confmap file.");
-	} catch (FileNotFoundException ex1) {
-	    System.out.println("No confmap found, starting from scratch");
-	    confMap = new HashMap();
-	}
+	// spy.file.snap and spy.file.log; an old spy.file map is imported
+	MembershipLog memberships = new MembershipLog(filename);
+	System.out.println("Read " + memberships.size() + " memberships of "
+			   + memberships.getConferences().length + " secret conferences.");
 
 	Session session = new Session();
 	session.connect(server);
@@ -29,43 +70,14 @@ public class Spy {
 	    if (!session.login(loginUser, loginPassword, true))
 		System.err.println("Login failed (continuing anyway).");
 	}
+	// the list is kept up to date from login, logout and i-am-on
+	// messages, and fetched again every spy.sleeptime milliseconds (at
+	// least a minute)
+	WhoIsOn who = new WhoIsOn(session);
+	who.addWhoIsOnListener(new Spy(session, memberships));
+	who.start(true, true, 86400);
+	who.setReconcileInterval(Math.max(60000, sleepTime));
 	while (true) {
-	    DynamicSessionInfo[] who = session.whoIsOnDynamic(true, true, 86400);
-	    for (int i=0; i < who.length; i++) {
-		int conf = 0;
-		try {
-		    conf = who[i].getWorkingConference();
-		    if (conf > 0)
-			session.getConfName(conf);
-		    
-		} catch (RpcFailure ex1) {
-		    if (ex1.getError() == Rpc.E_undefined_conference) {
-			int person = who[i].getPerson();
-			List members = (List) confMap.get(new Integer(conf));
-			boolean news = false;
-			if (members == null) {
-			    news = true;
-			    System.out.println("New secret conference found: " + conf);
-			    members = new LinkedList();
-			    confMap.put(new Integer(conf), members);
-			}
-			if (!members.contains(new Integer(person))) {
-			    news = true;
-			    System.out.println("Registering " + person + " as a member of " + conf);
-			    members.add(new Integer(person));
-			}
-			if (news) {
-			    System.out.print("saving...");
-			    ObjectOutputStream objStream = new ObjectOutputStream(new FileOutputStream(new File(filename)));
-			    objStream.writeObject(confMap);
-			    objStream.close();
-			    System.out.println("done.");
-			}
-		    } else {
-			System.out.println("RPC error: " + ex1.toString());
-		    }
-		}
-	    }
 	    try {
 		Thread.sleep(sleepTime);
 	    } catch (InterruptedException ex1) {
@@ -3,10 +3,14 @@ import nu.dll.lyskom.*;
 public class KomWho {
     private Session s;
     private String server;
+    private boolean follow = false;
     
     public KomWho (String[] argv) {
-	if (argv.length != 1) {
-	    System.out.println("Usage: KomWho server");
+	if (argv.length == 2 && argv[0].equals("-f")) {
+	    follow = true;
+	    server = argv[1];
+	} else if (argv.length != 1) {
+	    System.out.println("Usage: KomWho [-f] server");
 	    System.exit(-1);
 	} else {
 	    server = argv[0];
@@ -17,15 +21,43 @@ public class KomWho {
 	    //login(s, "Staffan Test", "hemligt");
 	    //System.out.println("logged in to " + server + " just fine");
 
-	    DynamicSessionInfo[] si = s.whoIsOnDynamic(true, false, 1800);
+	    if (!follow) {
+		DynamicSessionInfo[] si = s.whoIsOnDynamic(true, false, 1800);
+		IntMap<byte[]> names = getNames(si);
 
-	    for (int i = 0; i < si.length; i++) {
+		for (int i = 0; i < si.length; i++)
+		    print("", si[i], names);
+		System.exit(-1);
+	    }
 
-		System.out.print(pad(si[i].session+"", 5) + " ");
-		System.out.print(pad(new String(s.getConfName(si[i].person)), 20) + " ");
-		System.out.print(pad(new String(s.getConfName(si[i].workingConference)), 20) + " ");
-		System.out.print(pad(new String(si[i].whatAmIDoing), 20));
-		System.out.println();
+	    // with -f, print the list and then the changes to it as they
+	    // are reported by the server
+	    WhoIsOn who = new WhoIsOn(s);
+	    who.start(true, false, 1800);
+	    DynamicSessionInfo[] si = who.getSessions();
+	    IntMap<byte[]> names = getNames(si);
+	    for (int i = 0; i < si.length; i++)
+		print("", si[i], names);
+	    who.addWhoIsOnListener(new WhoIsOnListener() {
+		    public void sessionAdded(DynamicSessionInfo session) {
+			print("+", session, null);
+		    }
+		    public void sessionChanged(DynamicSessionInfo old,
+					       DynamicSessionInfo session) {
+			print("*", session, null);
+		    }
+		    public void sessionRemoved(DynamicSessionInfo session) {
+			print("-", session, null);
+		    }
+		});
+	    // the session's threads are daemons; keep the program running
+	    // until the connection is lost
+	    while (s.getConnected()) {
+		try {
+		    Thread.sleep(1000);
+		} catch (InterruptedException ex1) {
+		    System.out.println("sleep() interrupted");
+		}
 	    }
 	    System.exit(-1);
 	} catch (Exception e) {
@@ -33,6 +65,36 @@ public class KomWho {
 	    e.printStackTrace();
 	}
     }
+    // fetches the names of all persons and working conferences in one go
+    IntMap<byte[]> getNames(DynamicSessionInfo[] si) throws java.io.IOException {
+	int[] confs = new int[si.length * 2];
+	for (int i = 0; i < si.length; i++) {
+	    confs[i*2] = si[i].person;
+	    confs[i*2+1] = si[i].workingConference;
+	}
+	return s.getConfNames(confs);
+    }
+
+    String name(int conf, IntMap<byte[]> names) throws java.io.IOException {
+	byte[] name = names != null ? names.get(conf) : null;
+	if (name == null)
+	    name = s.getConfName(conf);
+	return new String(name);
+    }
+
+    void print(String prefix, DynamicSessionInfo si, IntMap<byte[]> names) {
+	try {
+	    System.out.print(prefix + pad(si.session+"", 5) + " ");
+	    System.out.print(pad(name(si.person, names), 20) + " ");
+	    System.out.print(pad(name(si.workingConference, names), 20) + " ");
+	    System.out.print(pad(new String(si.whatAmIDoing), 20));
+	    System.out.println();
+	} catch (Exception e) {
+	    System.err.println("Caught " + e.getClass().getName());
+	    e.printStackTrace();
+	}
+    }
+
     public static void main(String[] argv) {
 	new KomWho(argv);
     }
@@ -0,0 +1,190 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded inbox of asynchronous messages, kept in a ring buffer. It is an
+ * <tt>AsynchMessageReceiver</tt>: the reader thread stores messages in it
+ * and never waits, and when it is full the oldest message is dropped to
+ * make room (and counted). The messages can be taken one at a time, with or
+ * without a timeout, or many at a time with <tt>drainTo()</tt>.
+ *
+ * @see nu.dll.lyskom.Session#getAsynchInbox()
+ * @see nu.dll.lyskom.AsynchPublisher
+ */
+public class AsynchInbox implements AsynchMessageReceiver {
+
+    final AsynchMessage[] ring;
+    // index of the oldest message, and number of messages
+    int head = 0, count = 0;
+    boolean closed = false;
+    long received = 0, dropped = 0;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition notEmpty = lock.newCondition();
+
+    public AsynchInbox(int capacity) {
+        ring = new AsynchMessage[Math.max(1, capacity)];
+    }
+
+    /**
+     * Stores a message, dropping the oldest one if the inbox is full.
+     */
+    public void asynchMessage(AsynchMessage m) {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            received++;
+            if (count == ring.length) {
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                count--;
+                dropped++;
+            }
+            ring[(head + count) % ring.length] = m;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called with the lock held, and count > 0
+    private AsynchMessage removeFirst() {
+        AsynchMessage m = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        return m;
+    }
+
+    /**
+     * Removes and returns the oldest message, or returns null if there is
+     * none.
+     */
+    public AsynchMessage poll() {
+        lock.lock();
+        try {
+            return count > 0 ? removeFirst() : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the oldest message, waiting up to the given time
+     * for one to arrive. Returns null if none arrived, or if the inbox has
+     * been closed.
+     */
+    public AsynchMessage poll(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (count == 0) {
+                if (nanos <= 0 || closed)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the oldest message, waiting for one to arrive.
+     * Returns null if the inbox has been closed.
+     */
+    public AsynchMessage take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (count == 0) {
+                if (closed)
+                    return null;
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to <tt>max</tt> messages, oldest first, to the given
+     * collection, without waiting. Returns the number of messages moved.
+     */
+    public int drainTo(Collection<? super AsynchMessage> c, int max) {
+        lock.lock();
+        try {
+            int n = Math.min(max, count);
+            for (int i = 0; i < n; i++)
+                c.add(removeFirst());
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops all messages, and wakes up threads waiting for one. Messages
+     * stored after this are ignored.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            while (count > 0)
+                removeFirst();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * Returns the number of messages stored since the inbox was created.
+     */
+    public long getReceived() {
+        lock.lock();
+        try {
+            return received;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of messages dropped because the inbox was full.
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
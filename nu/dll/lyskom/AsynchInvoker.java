@@ -1,63 +1,298 @@
 package nu.dll.lyskom;
 
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class AsynchInvoker extends Thread {
-    LinkedList<Runnable> runnables = new LinkedList<Runnable>();
+/**
+ * Runs queued tasks in the threads of a shared work pool. Tasks queued
+ * with the same key (a conference, a text) run one at a time and in the
+ * order they were queued; tasks with different keys may run at the same
+ * time. The pool has few threads, shared by all sessions, so keyed tasks
+ * must not block, for example by waiting for the server.
+ * <br>
+ * Tasks queued without a key share one key, and so run in order, as they
+ * did when the invoker had a thread of its own. They, and the tasks the
+ * library queues with <tt>enqueueBlocking()</tt>, such as prefetching, may
+ * wait for the server: each of the two kinds runs in a thread that is not
+ * one of the shared pool's, so that a session waiting for a slow server
+ * does not hold up the tasks of other sessions.
+ * <br>
+ * At most <tt>lattekom.invoker-queue-limit</tt> tasks (10000) may wait;
+ * tasks queued beyond that are rejected and counted, and the methods
+ * queueing them return false. <tt>quit()</tt> drops the waiting tasks.
+ */
+public class AsynchInvoker {
+    final static int defaultLimit = Integer.getInteger(
+            "lattekom.invoker-queue-limit", 10000).intValue();
 
-    public AsynchInvoker() {
-        setName("AsynchInvokerThread");
+    // the key of tasks queued without one
+    final static Object ORDERED = new Object();
+    // the key of tasks that wait for the server
+    final static Object BLOCKING = new Object();
+
+    // the most tasks of one key run before the key lets others in
+    final static int BATCH = 16;
+
+    // runs the ordered and blocking lanes of all invokers, a thread for
+    // each lane with tasks to run
+    final static ThreadPoolExecutor blockingPool = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, 10, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    return Threads.newThread(r, "Invoker-blocking-"
+                            + count++);
+                }
+            });
+
+    final InvokerPool pool;
+    final ReentrantLock lock = new ReentrantLock();
+    // keys with waiting or running tasks
+    final Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+    int queued = 0;
+    int limit = defaultLimit;
+
+    int maxQueued = 0;
+    long executed = 0, rejected = 0, failed = 0, dropped = 0;
+    LatencyHistogram waitTime = new LatencyHistogram();
+
+    static class Task {
+        Runnable runnable;
+        long queued;
     }
 
-    boolean run = true;
+    /**
+     * The tasks of one key. A lane is in the pool while it has tasks, and
+     * runs them one after another.
+     */
+    class Lane implements Runnable {
+        final Object key;
+        final LinkedList<Task> tasks = new LinkedList<Task>();
 
-    public void run() {
-        while (run) {
-            Debug.println("Started.");
-            try {
-                while (!runnables.isEmpty()) {
-                    Runnable nextRunnable = null;
-                    synchronized (runnables) {
-                        nextRunnable = (Runnable) runnables.removeFirst();
-                    }
-                    if (nextRunnable != null) {
-                        Debug.println("Executing " + nextRunnable.toString());
-                        nextRunnable.run();
-                    } else {
-                        Debug.println("Woke up without events: run=" + run);
+        Lane(Object key) {
+            this.key = key;
+        }
+
+        // true for the lanes whose tasks may block
+        boolean blocking() {
+            return key == BLOCKING || key == ORDERED;
+        }
+
+        void submit() {
+            if (blocking())
+                blockingPool.execute(this);
+            else
+                pool.execute(this);
+        }
+
+        public void run() {
+            // a blocking lane has its thread to itself
+            int batch = blocking() ? Integer.MAX_VALUE : BATCH;
+            for (int i = 0; i < batch; i++) {
+                Task t;
+                lock.lock();
+                try {
+                    if (tasks.isEmpty()) {
+                        // dropped by quit() while the lane waited to run
+                        lanes.remove(key);
+                        return;
                     }
+                    t = tasks.removeFirst();
+                    queued--;
+                } finally {
+                    lock.unlock();
                 }
-                synchronized (runnables) {
-                    Debug.println("Waiting.");
-                    runnables.wait();
+                waitTime.record(System.nanoTime() - t.queued);
+                boolean ok = false, thrown = true, more;
+                try {
+                    if (Debug.ENABLED)
+                        Debug.println("Executing " + t.runnable.toString());
+                    t.runnable.run();
+                    ok = true;
+                    thrown = false;
+                } catch (RuntimeException ex1) {
+                    Debug.println("Task " + t.runnable + " failed: " + ex1);
+                    thrown = false;
+                } finally {
+                    lock.lock();
+                    try {
+                        executed++;
+                        if (!ok)
+                            failed++;
+                        more = !tasks.isEmpty();
+                        if (!more)
+                            lanes.remove(key);
+                    } finally {
+                        lock.unlock();
+                    }
+                    // an Error is on its way out; the tasks after it
+                    // still have to run
+                    if (more && thrown)
+                        submit();
                 }
-            } catch (InterruptedException ex1) {
-                Debug.println("Interrupted.");
+                if (!more)
+                    return;
             }
+            // let other keys have a go
+            submit();
         }
-        Debug.println("Finished.");
-    }
 
-    public void quit() {
-        run = false;
-        synchronized (runnables) {
-            runnables.notify();
+        public String toString() {
+            return "Lane[" + (key == ORDERED ? "ordered"
+                    : key == BLOCKING ? "blocking" : key) + "]";
         }
+    }
+
+    public AsynchInvoker() {
+        this(InvokerPool.shared);
+    }
+
+    AsynchInvoker(InvokerPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Queues a task, to be run after the tasks queued before it without a
+     * key, in a thread outside the shared pool. The task may block. Returns
+     * false if the task was rejected, as too many tasks are waiting.
+     */
+    public boolean enqueue(Runnable r) {
+        return enqueue(ORDERED, r);
+    }
 
+    /**
+     * Queues a task that waits for the server, to be run after the blocking
+     * tasks queued before it, outside the shared pool. Returns false if the
+     * task was rejected, as too many tasks are waiting.
+     */
+    public boolean enqueueBlocking(Runnable r) {
+        return enqueue(BLOCKING, r);
     }
 
-    public void enqueue(Runnable r) {
-        synchronized (runnables) {
-            runnables.addLast(r);
-            runnables.notifyAll();
+    /**
+     * Queues a task, to be run after the tasks queued before it with the
+     * same key, in a thread of the shared pool. The task must not block.
+     * Returns false if the task was rejected, as too many tasks are
+     * waiting.
+     */
+    public boolean enqueue(Object key, Runnable r) {
+        Lane start = null;
+        lock.lock();
+        try {
+            if (queued >= limit) {
+                rejected++;
+                Debug.println("Rejected " + r + ": " + queued
+                        + " tasks waiting");
+                return false;
+            }
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key);
+                lanes.put(key, lane);
+                start = lane;
+            }
+            Task t = new Task();
+            t.runnable = r;
+            t.queued = System.nanoTime();
+            lane.tasks.addLast(t);
+            queued++;
+            maxQueued = Math.max(maxQueued, queued);
+        } finally {
+            lock.unlock();
         }
-        if (!isAlive()) {
-            try {
-                start();
-            } catch (IllegalThreadStateException e) {
-                Debug.println("lattekom.AsynchInvoker.enqueue failed to start():"+e);
+        if (start != null)
+            start.submit();
+        return true;
+    }
+
+    /**
+     * Drops the tasks waiting to run. Tasks already running are not
+     * interrupted, and tasks queued after this are run as usual.
+     */
+    public void quit() {
+        lock.lock();
+        try {
+            // the lanes stay, so that a lane waiting to run is not started
+            // twice; it finds itself empty and ends
+            for (Lane lane : lanes.values()) {
+                dropped += lane.tasks.size();
+                lane.tasks.clear();
             }
+            queued = 0;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Sets the largest number of tasks that may wait.
+     */
+    public void setQueueLimit(int limit) {
+        lock.lock();
+        try {
+            this.limit = limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to run.
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public long getExecuted() {
+        return executed;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns the number of tasks dropped by <tt>quit()</tt>.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the histogram of the time, in nanoseconds, that tasks waited
+     * before they were run.
+     */
+    public LatencyHistogram getWaitTime() {
+        return waitTime;
+    }
+
+    public String toString() {
+        return "queued=" + getQueued() + " max-queued=" + maxQueued
+                + " executed=" + executed + " rejected=" + rejected
+                + " failed=" + failed + " dropped=" + dropped
+                + " pool-threads="
+                + pool.getThreadCount() + " steals=" + pool.getSteals()
+                + " blocking-threads=" + blockingPool.getPoolSize()
+                + " wait " + waitTime;
+    }
 }
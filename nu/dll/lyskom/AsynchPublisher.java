@@ -0,0 +1,194 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes the asynchronous messages of a Session to
+ * <tt>java.util.concurrent.Flow</tt> subscribers. Each subscriber gets an
+ * <tt>AsynchInbox</tt> of its own, and a thread that passes messages from
+ * it to <tt>onNext()</tt> as long as the subscriber has requested more.
+ * While it has not, messages wait in the inbox, and once the inbox is full
+ * the oldest of them are dropped: the reader thread is never held up by a
+ * subscriber.
+ * <br>
+ * When the session is disconnected, each subscription's inbox is closed and
+ * its subscriber gets <tt>onComplete()</tt>; if the connection is lost and
+ * not regained, it gets <tt>onError()</tt> with the IOException instead.
+ * <br>
+ * This class needs Java 9 or later; the rest of the library does not.
+ *
+ * @see nu.dll.lyskom.Session#getAsynchPublisher(int)
+ */
+public class AsynchPublisher implements Flow.Publisher<AsynchMessage> {
+
+    final Session session;
+    final int capacity;
+
+    static final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * @param capacity
+     *            the size of each subscriber's inbox
+     */
+    public AsynchPublisher(Session session, int capacity) {
+        this.session = session;
+        this.capacity = capacity;
+    }
+
+    public void subscribe(Flow.Subscriber<? super AsynchMessage> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException();
+        Subscription s = new Subscription(subscriber, new AsynchInbox(
+                capacity));
+        session.addAsynchMessageReceiver(s.inbox, DispatchQueue.SYNCHRONOUS,
+                0);
+        session.disconnectListeners.add(s);
+        subscriber.onSubscribe(s);
+        Threads.newThread(s, "AsynchPublisher-" + threadCount.getAndIncrement())
+                .start();
+    }
+
+    class Subscription implements Flow.Subscription, Runnable,
+            Session.DisconnectListener {
+        final Flow.Subscriber<? super AsynchMessage> subscriber;
+        final AsynchInbox inbox;
+
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition requested = lock.newCondition();
+        long demand = 0;
+        boolean cancelled = false;
+        Throwable error = null;
+        boolean disconnected = false;
+        IOException cause = null;
+
+        Subscription(Flow.Subscriber<? super AsynchMessage> subscriber,
+                AsynchInbox inbox) {
+            this.subscriber = subscriber;
+            this.inbox = inbox;
+        }
+
+        public void request(long n) {
+            lock.lock();
+            try {
+                if (cancelled)
+                    return;
+                if (n <= 0) {
+                    error = new IllegalArgumentException(
+                            "non-positive request: " + n);
+                } else {
+                    demand += n;
+                    if (demand < 0)
+                        demand = Long.MAX_VALUE;
+                }
+                requested.signal();
+            } finally {
+                lock.unlock();
+            }
+            // wakes the thread if it is waiting in take()
+            if (n <= 0)
+                inbox.close();
+        }
+
+        public void disconnected(IOException cause) {
+            lock.lock();
+            try {
+                if (cancelled || disconnected)
+                    return;
+                disconnected = true;
+                this.cause = cause;
+                requested.signal();
+            } finally {
+                lock.unlock();
+            }
+            inbox.close();
+        }
+
+        public void cancel() {
+            lock.lock();
+            try {
+                if (cancelled)
+                    return;
+                cancelled = true;
+                requested.signal();
+            } finally {
+                lock.unlock();
+            }
+            release();
+        }
+
+        private void release() {
+            session.removeAsynchMessageReceiver(inbox);
+            session.disconnectListeners.remove(this);
+            inbox.close();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    lock.lock();
+                    try {
+                        while (demand == 0 && !cancelled && error == null
+                                && !disconnected)
+                            requested.await();
+                        if (cancelled)
+                            return;
+                        if (error != null || disconnected)
+                            break;
+                    } finally {
+                        lock.unlock();
+                    }
+                    AsynchMessage m = inbox.take();
+                    if (m == null)
+                        break;
+                    lock.lock();
+                    try {
+                        if (cancelled)
+                            return;
+                        if (demand != Long.MAX_VALUE)
+                            demand--;
+                    } finally {
+                        lock.unlock();
+                    }
+                    subscriber.onNext(m);
+                }
+            } catch (InterruptedException ex1) {
+                lock.lock();
+                try {
+                    error = ex1;
+                } finally {
+                    lock.unlock();
+                }
+            } catch (RuntimeException ex1) {
+                // thrown by onNext(): the subscription is over
+                Debug.println("Subscriber " + subscriber + " failed: " + ex1);
+                cancel();
+                return;
+            }
+            // the inbox was closed, by request(), disconnected() or cancel()
+            Throwable t;
+            lock.lock();
+            try {
+                if (cancelled)
+                    return;
+                cancelled = true;
+                t = error != null ? error : cause;
+            } finally {
+                lock.unlock();
+            }
+            release();
+            if (t != null)
+                subscriber.onError(t);
+            else
+                subscriber.onComplete();
+        }
+    }
+}
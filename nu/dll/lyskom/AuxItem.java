@@ -6,6 +6,7 @@
 
 package nu.dll.lyskom;
 
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
@@ -220,6 +221,15 @@ public class AuxItem implements java.io.Serializable, Tokenizable {
 
     }
 
+    /**
+     * Reads an Aux-Item directly from the reply stream.
+     */
+    static AuxItem readFrom(KomTokenReader in) throws IOException {
+        return new AuxItem(in.readInt(), in.readInt(), in.readInt(),
+                in.readTime(), in.readBitstring(), in.readInt(), new Hollerith(
+                        in.readHollerith(), in.getCharset()));
+    }
+
     /**
      * Uses the data in this AuxItem object to construct an Aux-Item-Input token
      * that can be used in RPC calls to the servern.
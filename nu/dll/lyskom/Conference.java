@@ -126,6 +126,15 @@ public class Conference {
         return noOfTexts;
     }
 
+    /**
+     * Counts a text that has been added to the conference since its status
+     * was read, if it is the next one.
+     */
+    void textAdded(int localNo) {
+        if (localNo == firstLocalNo + noOfTexts)
+            noOfTexts++;
+    }
+
     public static int getDebug() {
         return DEBUG;
     }
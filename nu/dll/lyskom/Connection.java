@@ -9,18 +9,24 @@ package nu.dll.lyskom;
 import java.net.*;
 import java.io.*;
 
-import java.security.KeyManagementException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
@@ -30,7 +36,13 @@ class Connection {
 
     boolean debug = Boolean.getBoolean("lattekom.debug-writer");
 
-    private LinkedList<byte[]> writeQueue = new LinkedList<byte[]>();
+    // byte[] or RpcCall objects; RpcCalls are serialized by the writer thread
+    private LinkedList<Object> writeQueue = new LinkedList<Object>();
+    // locks rather than monitors, so that threads blocked on them do not
+    // pin a carrier thread when they are virtual threads
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition queued = writeLock.newCondition();
+    private final ReentrantLock outputLock = new ReentrantLock();
     private Socket sock;
     private InputStream input;
     private OutputStream output;
@@ -52,50 +64,13 @@ class Connection {
         
         if (ssl_connection) {
             Debug.println("Trying to make SSL Connection");
-            javax.net.ssl.SSLSocketFactory factory = null;
+            // a reconnecting session uses the factory it connected with,
+            // since the embedded root certificate stream has been read
+            javax.net.ssl.SSLSocketFactory factory = session.sslFactory;
 
-            switch (cert_level) {
-            case 0:
-                // TO ONLY TRUST CERTS TRACABLE TO DEFAULT ROOT CERTS
-                Debug.println("Allow only signed cert");
-                factory = HttpsURLConnection.getDefaultSSLSocketFactory();
-                break;
-            case 1:
-                // TO TRUST EMBEDDED ROOT CERTS
-                Debug.println("Allow embedded cert");
-                factory = newSslSocketFactory(root_stream);
-                break;
-            case 2:
-                // FOR TESTING: TO TRUST ANY CERTIFICATE
-                Debug.println("Use any cert");
-                X509TrustManager[] trustAllCerts = (X509TrustManager[]) new X509TrustManager[] { new X509TrustManager() {
-                    public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-                        return null;
-                    }
-
-                    public void checkClientTrusted(
-                            java.security.cert.X509Certificate[] certs,
-                            String authType) {
-                    }
-
-                    public void checkServerTrusted(
-                            java.security.cert.X509Certificate[] certs,
-                            String authType) {
-                    }
-                } };
-
-                // Install the all-trusting trust manager
-                try {
-                    SSLContext sc = SSLContext.getInstance("SSL");
-                    sc.init(null, trustAllCerts,
-                            new java.security.SecureRandom());
-                    factory = sc.getSocketFactory();
-                } catch (Exception e) {
-                    Debug.println("Error creating factory:" + e);
-                }
-                // factory.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-                // END BLOCK FOR TESTING: TO TRUST ANY CERTIFICATE
-            }
+            if (factory == null)
+                factory = socketFactory(cert_level, root_stream);
+            session.sslFactory = factory;
             SSLSocket ssl_sock = null;
             Debug.println("Creating a SSL Socket For " + server
                     + " on port " + port);
@@ -116,33 +91,38 @@ class Connection {
              */
 
             ssl_sock.startHandshake();
-            System.out.println("Handshaking Complete");
 
-            /**
-             * Retrieve the server's certificate chain
-             * 
-             * Returns the identity of the peer which was established as part of
-             * defining the session. Note: This method can be used only when
-             * using certificate-based cipher suites; using it with
-             * non-certificate-based cipher suites, such as Kerberos, will throw
-             * an SSLPeerUnverifiedException.
-             * 
-             * 
-             * Returns: an ordered array of peer certificates, with the peer's
-             * own certificate first followed by any certificate authorities.
-             */
-            Certificate[] serverCerts = ssl_sock.getSession().getPeerCertificates();
-            Debug.println("Retreived Server's Certificate Chain");
-
-            Debug.println(serverCerts.length + " certificates found\n\n\n");
-            for (int i = 0; i < serverCerts.length; i++) {
-                Certificate myCert = serverCerts[i];
-                Debug.println("====Certificate:" + (i + 1) + "====");
-                Debug.println("-Public Key-\n" + myCert.getPublicKey());
-                //Debug.println("-Public Key-\n" + myCert.toString());
-                Debug.println("-Certificate Type-\n " + myCert.getType());
-
-                Debug.println("");
+            if (Debug.ENABLED) {
+                /**
+                 * Retrieve the server's certificate chain
+                 * 
+                 * Returns the identity of the peer which was established as
+                 * part of defining the session. Note: This method can be used
+                 * only when using certificate-based cipher suites; using it
+                 * with non-certificate-based cipher suites, such as Kerberos,
+                 * will throw an SSLPeerUnverifiedException.
+                 * 
+                 * 
+                 * Returns: an ordered array of peer certificates, with the
+                 * peer's own certificate first followed by any certificate
+                 * authorities.
+                 */
+                SSLSession sslSession = ssl_sock.getSession();
+                Debug.println("Handshake complete: " + sslSession.getProtocol()
+                        + ", " + sslSession.getCipherSuite());
+                Certificate[] serverCerts = sslSession.getPeerCertificates();
+                Debug.println("Retreived Server's Certificate Chain");
+
+                Debug.println(serverCerts.length + " certificates found\n\n\n");
+                for (int i = 0; i < serverCerts.length; i++) {
+                    Certificate myCert = serverCerts[i];
+                    Debug.println("====Certificate:" + (i + 1) + "====");
+                    Debug.println("-Public Key-\n" + myCert.getPublicKey());
+                    //Debug.println("-Public Key-\n" + myCert.toString());
+                    Debug.println("-Certificate Type-\n " + myCert.getType());
+
+                    Debug.println("");
+                }
             }
             sock = ssl_sock;
         } else {
@@ -153,39 +133,76 @@ class Connection {
             Debug.println("Sock is null!");
             return;
         }
-        input = sock.getInputStream();
+        // the writer thread sends whole batches of calls at once; don't
+        // let Nagle's algorithm hold back the handshake line or the last
+        // TLS handshake message waiting for an ACK
+        sock.setTcpNoDelay(true);
+        InputStream in = sock.getInputStream();
         output = sock.getOutputStream();
+        WireCapture capture = session.wireCapture;
+        if (capture != null) {
+            in = capture.wrap(in);
+            output = capture.wrap(output);
+        }
+        // the token reader reads one byte at a time
+        input = new BufferedInputStream(new MeteredInputStream(in,
+                session.metrics), 8192);
+
+        queuedWriter = Threads.newThread(new Runnable() {
+            KomOutputBuffer buffer = new KomOutputBuffer();
+            List<RpcCall> traced = new ArrayList<RpcCall>();
 
-        queuedWriter = new Thread(new Runnable() {
             public void run() {
                 Debug.println("Queued writer start.");
                 while (keepRunning) {
                     try {
-                        synchronized (writeQueue) {
+                        writeLock.lock();
+                        try {
                             if (writeQueue.isEmpty()) {
                                 if (debug)
                                     Debug.println("Write queue empty.");
-                                writeQueue.wait();
+                                queued.await();
                             }
-                            synchronized (output) {
-                                while (!writeQueue.isEmpty()) {
-                                    byte[] bytes = (byte[]) writeQueue
-                                            .removeFirst();
-                                    output.write(bytes);
-                                    if (Debug.ENABLED) {
-                                        String s;
-                                        if (bytes[bytes.length - 1] == '\n') {
-                                            s = new String(bytes, 0,
-                                                    bytes.length - 1);
-                                        } else {
-                                            s = new String(bytes);
-                                        }
-                                        if (debug)
-                                            Debug.println("wrote: " + s);
-                                    }
+                            // serialize everything queued into the
+                            // buffer, and write it all at once
+                            buffer.reset();
+                            while (!writeQueue.isEmpty()) {
+                                Object o = writeQueue.removeFirst();
+                                int start = buffer.size();
+                                if (o instanceof RpcCall) {
+                                    ((RpcCall) o).writeTo(buffer);
+                                    if (session.trace != null)
+                                        traced.add((RpcCall) o);
+                                } else
+                                    buffer.write((byte[]) o);
+                                if (Debug.ENABLED && debug) {
+                                    int end = buffer.size();
+                                    if (end > start
+                                            && buffer.buf[end - 1] == '\n')
+                                        end--;
+                                    Debug.println("wrote: "
+                                            + new String(buffer.buf, start,
+                                                    end - start));
                                 }
                             }
+                        } finally {
+                            writeLock.unlock();
                         }
+                        outputLock.lock();
+                        try {
+                            buffer.writeTo(output);
+                        } finally {
+                            outputLock.unlock();
+                        }
+                        session.metrics.bytesWritten(buffer.size());
+                        if (!traced.isEmpty()) {
+                            long now = System.nanoTime();
+                            for (int i = 0; i < traced.size(); i++)
+                                traced.get(i).written = now;
+                            traced.clear();
+                        }
+                        if (buffer.buf.length > 65536)
+                            buffer = new KomOutputBuffer();
 
                     } catch (IOException ex1) {
                         Debug.println("I/O error during write: "
@@ -198,15 +215,138 @@ class Connection {
                 }
                 Debug.println("Queued writer exit.");
             }
-        });
-        queuedWriter.setName("QueuedWriter-" + writerThreadCount++);
-        queuedWriter.setDaemon(true);
+        }, "QueuedWriter-" + writerThreadCount++);
         queuedWriter.start();
 
     }
 
     static int writerThreadCount = 0;
 
+    /**
+     * Size of the client SSL session cache of each SSLContext, from the
+     * system property <tt>lattekom.ssl-session-cache-size</tt>.
+     */
+    static int sslSessionCacheSize = Integer.getInteger(
+            "lattekom.ssl-session-cache-size", 1000).intValue();
+
+    /**
+     * Time in seconds for which SSL sessions may be resumed, from the system
+     * property <tt>lattekom.ssl-session-timeout</tt>.
+     */
+    static int sslSessionTimeout = Integer.getInteger(
+            "lattekom.ssl-session-timeout", 24 * 3600).intValue();
+
+    // one SSLContext per trust configuration, shared by all connections so
+    // that they share its session cache, and new connections to a server
+    // can resume an earlier session instead of doing a full handshake
+    private static Map<String, SSLSocketFactory> sslFactories = new HashMap<String, SSLSocketFactory>();
+
+    /**
+     * Returns the socket factory for a certificate level: 0 trusts the
+     * default root certificates, 1 those in the given key store, and 2 any
+     * certificate (for testing). Key stores are told apart by their
+     * contents.
+     */
+    static SSLSocketFactory socketFactory(int certLevel, InputStream rootStream)
+            throws IOException {
+        byte[] keyStore = null;
+        String key = "level-" + certLevel;
+        if (certLevel == 1) {
+            if (rootStream == null)
+                throw new IOException("No root certificate key store given");
+            keyStore = readFully(rootStream);
+            key += "-" + digest(keyStore);
+        }
+        synchronized (sslFactories) {
+            SSLSocketFactory factory = sslFactories.get(key);
+            if (factory == null) {
+                factory = newSocketFactory(certLevel, keyStore);
+                sslFactories.put(key, factory);
+            }
+            return factory;
+        }
+    }
+
+    private static SSLSocketFactory newSocketFactory(int certLevel,
+            byte[] keyStore) throws IOException {
+        try {
+            SSLContext sc = SSLContext.getInstance("TLS");
+            switch (certLevel) {
+            case 1:
+                // TO TRUST EMBEDDED ROOT CERTS
+                Debug.println("Allow embedded cert");
+                KeyStore ks = KeyStore.getInstance("BKS");
+                char[] password = ("2fa190f4McD").toCharArray();
+                // the key store contains the trusted certificates (root and
+                // any intermediate certs)
+                ks.load(new ByteArrayInputStream(keyStore), password);
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance("X509");
+                TrustManagerFactory tmf = TrustManagerFactory
+                        .getInstance("X509");
+                kmf.init(ks, password);
+                tmf.init(ks);
+                sc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+                break;
+            case 2:
+                // FOR TESTING: TO TRUST ANY CERTIFICATE
+                Debug.println("Use any cert");
+                sc.init(null, new X509TrustManager[] { new X509TrustManager() {
+                    public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    public void checkClientTrusted(
+                            java.security.cert.X509Certificate[] certs,
+                            String authType) {
+                    }
+
+                    public void checkServerTrusted(
+                            java.security.cert.X509Certificate[] certs,
+                            String authType) {
+                    }
+                } }, new java.security.SecureRandom());
+                break;
+            default:
+                // TO ONLY TRUST CERTS TRACABLE TO DEFAULT ROOT CERTS
+                Debug.println("Allow only signed cert");
+                sc.init(null, null, null);
+            }
+            SSLSessionContext sessions = sc.getClientSessionContext();
+            sessions.setSessionCacheSize(sslSessionCacheSize);
+            sessions.setSessionTimeout(sslSessionTimeout);
+            return sc.getSocketFactory();
+        } catch (GeneralSecurityException ex1) {
+            throw new SSLException("Could not set up SSL for certificate level "
+                    + certLevel + ": " + ex1, ex1);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String digest(byte[] data) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuffer hex = new StringBuffer(d.length * 2);
+            for (int i = 0; i < d.length; i++)
+                hex.append(Character.forDigit((d[i] >> 4) & 0xf, 16)).append(
+                        Character.forDigit(d[i] & 0xf, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex1) {
+            throw new RuntimeException(ex1);
+        }
+    }
+
     public String getServer() {
         return server;
     }
@@ -230,7 +370,8 @@ class Connection {
     }
 
     public void queuedWrite(String s) throws IOException {
-        synchronized (writeQueue) {
+        writeLock.lock();
+        try {
             if (!keepRunning) {
                 throw new IllegalStateException(
                         "Connection has been terminated.");
@@ -246,14 +387,33 @@ class Connection {
                 throw new RuntimeException("Unsupported server encoding: "
                         + ex1.getMessage());
             }
-            writeQueue.notifyAll();
+            queued.signal();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Queues an RPC call for writing. The call is serialized by the writer
+     * thread, and must not be changed until it has been written.
+     */
+    public void queuedWrite(RpcCall c) {
+        writeLock.lock();
+        try {
+            writeQueue.addLast(c);
+            queued.signal();
+        } finally {
+            writeLock.unlock();
         }
     }
 
     public void queuedWrite(byte[] b) {
-        synchronized (writeQueue) {
+        writeLock.lock();
+        try {
             writeQueue.addLast(b);
-            writeQueue.notifyAll();
+            queued.signal();
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -262,20 +422,31 @@ class Connection {
      * @deprecated use writeLine() or queuedWrite() instead
      */
     public void write(char c) throws IOException {
-        synchronized (output) {
+        outputLock.lock();
+        try {
             output.write(c);
+        } finally {
+            outputLock.unlock();
         }
     }
 
     public void writeLine(byte[] b) throws IOException {
-        synchronized (output) {
-            output.write(b);
-            output.write('\n');
+        // one write, so that an SSL connection sends one record
+        byte[] line = new byte[b.length + 1];
+        System.arraycopy(b, 0, line, 0, b.length);
+        line[b.length] = (byte) '\n';
+        outputLock.lock();
+        try {
+            output.write(line);
+        } finally {
+            outputLock.unlock();
         }
+        session.metrics.bytesWritten(b.length + 1);
     }
 
     public void writeLine(String s) throws IOException {
-        synchronized (output) {
+        outputLock.lock();
+        try {
             try {
                 byte[] bytes = s.getBytes(session.serverEncoding);
                 byte[] line;
@@ -288,11 +459,14 @@ class Connection {
                     line = bytes;
                 }
                 output.write(line);
+                session.metrics.bytesWritten(line.length + 1);
             } catch (UnsupportedEncodingException ex1) {
                 throw new RuntimeException("Unsupported server encoding: "
                         + ex1.getMessage());
             }
             output.write('\n');
+        } finally {
+            outputLock.unlock();
         }
     }
 
@@ -319,53 +493,5 @@ class Connection {
 
         return new String(os.toByteArray(), session.serverEncoding);
     }
-    
-    private SSLSocketFactory newSslSocketFactory(InputStream in) {
-        KeyStore ks = null;
-        SSLSocketFactory factory = null;
-        try {
-            ks = KeyStore.getInstance("BKS");
-
-            // get user password and file input stream
-            char[] password = ("2fa190f4McD").toCharArray();
-            // Get the raw resource, which contains the keystore with your
-            // trusted certificates (root and any intermediate certs)
-            ks.load(in, password);
-            in.close();
-
-            SSLContext sc = null;
-            sc = SSLContext.getInstance("TLS");
-            KeyManagerFactory kmf = null;
-            kmf = KeyManagerFactory.getInstance("X509");
-            TrustManagerFactory tmf = null;
-            tmf = TrustManagerFactory.getInstance("X509");
-
-            kmf.init(ks, password);
-            tmf.init(ks);
-
-            sc.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-
-            factory = sc.getSocketFactory();
-        } catch (KeyManagementException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (CertificateException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (KeyStoreException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (NoSuchAlgorithmException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (UnrecoverableKeyException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        return factory;
-    }
 
 }
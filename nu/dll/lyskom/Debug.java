@@ -8,6 +8,10 @@ package nu.dll.lyskom;
 /**
  * Helper class to aid debug tracing. The println() and print() methods has no
  * effect unless the system property "lattekom.debug" is set to "true".
+ * <br>
+ * Code on hot paths should use a Channel instead (see <tt>channel()</tt>),
+ * which has its own level and formats its message only when that level is
+ * enabled.
  */
 public class Debug {
 	/**
@@ -16,6 +20,15 @@ public class Debug {
 	 */
 	public final static boolean ENABLED = Boolean.getBoolean(getPropertyKey());
 
+	/** Channel level: no output. */
+	public final static int OFF = 0;
+	/** Channel level: errors and unusual events. */
+	public final static int INFO = 1;
+	/** Channel level: one message per operation. */
+	public final static int FINE = 2;
+	/** Channel level: everything, including per-element messages. */
+	public final static int TRACE = 3;
+
 	static {
 		if (ENABLED) {
 			println("LatteKOM debug output enabled.");
@@ -28,7 +41,7 @@ public class Debug {
 	 */
 	public static void println(String msg) {
 		if (ENABLED)
-			System.err.println("Lattekom " + Thread.currentThread().getName() + ": " + msg);
+			write(msg);
 	}
 
 	/**
@@ -39,7 +52,114 @@ public class Debug {
 			System.err.print(msg);
 	}
 
+	static void write(String msg) {
+		System.err.println("Lattekom " + Thread.currentThread().getName() + ": " + msg);
+	}
+
 	public static String getPropertyKey() {
         return "lattekom.debug";
 	}
+
+	/**
+	 * Returns a debug channel for a subsystem. Its level is taken from the
+	 * system property <tt>lattekom.debug.<i>name</i></tt> (a number from
+	 * <tt>OFF</tt> to <tt>TRACE</tt>); if that is not set, it is
+	 * <tt>TRACE</tt> when <tt>ENABLED</tt> is true, and <tt>OFF</tt>
+	 * otherwise.
+	 */
+	public static Channel channel(String name) {
+		int level = ENABLED ? TRACE : OFF;
+		String value = System.getProperty(getPropertyKey() + "." + name);
+		if (value != null) {
+			try {
+				level = Integer.parseInt(value.trim());
+			} catch (NumberFormatException ex1) {
+				level = Boolean.valueOf(value).booleanValue() ? TRACE : OFF;
+			}
+		}
+		return new Channel(name, level);
+	}
+
+	/**
+	 * Debug output for one subsystem. The <tt>log()</tt> methods take a
+	 * message format, in which each <tt>{}</tt> is replaced by the next
+	 * argument, and do nothing (and allocate nothing, for the <tt>int</tt>
+	 * variants) unless the given level is enabled. Callers that need to do
+	 * any other work to build a message should check <tt>isOn()</tt> first.
+	 */
+	public static class Channel {
+		final String name;
+		final int level;
+
+		Channel(String name, int level) {
+			this.name = name;
+			this.level = level;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		/**
+		 * Returns <tt>true</tt> if messages of the given level are printed.
+		 */
+		public boolean isOn(int level) {
+			return level <= this.level;
+		}
+
+		public void log(int level, String msg) {
+			if (level <= this.level)
+				write(msg);
+		}
+
+		public void log(int level, String format, Object a) {
+			if (level <= this.level)
+				write(format(format, new Object[] { a }));
+		}
+
+		public void log(int level, String format, Object a, Object b) {
+			if (level <= this.level)
+				write(format(format, new Object[] { a, b }));
+		}
+
+		public void log(int level, String format, Object a, Object b,
+				Object c) {
+			if (level <= this.level)
+				write(format(format, new Object[] { a, b, c }));
+		}
+
+		public void log(int level, String format, int a) {
+			if (level <= this.level)
+				write(format(format, new Object[] { Integer.valueOf(a) }));
+		}
+
+		public void log(int level, String format, int a, int b) {
+			if (level <= this.level)
+				write(format(format, new Object[] { Integer.valueOf(a),
+						Integer.valueOf(b) }));
+		}
+
+		public void log(int level, String format, int a, int b, int c) {
+			if (level <= this.level)
+				write(format(format, new Object[] { Integer.valueOf(a),
+						Integer.valueOf(b), Integer.valueOf(c) }));
+		}
+
+		static String format(String format, Object[] args) {
+			StringBuffer buf = new StringBuffer(format.length() + 16 * args.length);
+			int arg = 0, start = 0;
+			int i = format.indexOf("{}");
+			while (i != -1 && arg < args.length) {
+				buf.append(format, start, i).append(args[arg++]);
+				start = i + 2;
+				i = format.indexOf("{}", start);
+			}
+			buf.append(format, start, format.length());
+			return buf.toString();
+		}
+	}
 }
@@ -0,0 +1,388 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Passes asynchronous messages or RPC events on to one application
+ * receiver, in a thread of its own, so that a slow receiver does not hold
+ * up the reading of the connection. The messages are delivered one at a
+ * time and in order. The thread is started when there is something to
+ * deliver, and ends when the queue has been empty for a while.
+ * <br>
+ * The queue holds at most <tt>capacity</tt> messages. When it is full, the
+ * overflow policy decides what happens to a new one:
+ * <ul>
+ * <li><tt>BLOCK</tt>: the reader thread waits until there is room, or
+ * until the receiver waits for an RPC reply (which the reader thread must
+ * read), in which case the queue is let grow past its capacity.
+ * <li><tt>DROP_OLDEST</tt>: the oldest queued message is dropped.
+ * <li><tt>COALESCE</tt>: a message that only tells the latest state of
+ * something replaces a queued message about the same thing, whether the
+ * queue is full or not: <tt>i-am-on</tt> about the same session,
+ * <tt>new-name</tt> about the same conference and <tt>new-membership</tt>
+ * about the same person and conference. Other messages wait for room as with <tt>BLOCK</tt>.
+ * </ul>
+ * With the <tt>SYNCHRONOUS</tt> policy there is no queue, and the receiver
+ * is called in the reader thread, as in earlier versions.
+ * <br>
+ * The default policy and capacity are taken from the system properties
+ * <tt>lattekom.dispatch-policy</tt> (<tt>block</tt>,
+ * <tt>drop-oldest</tt>, <tt>coalesce</tt> or <tt>synchronous</tt>) and
+ * <tt>lattekom.dispatch-queue-size</tt> (1024).
+ *
+ * @see nu.dll.lyskom.Session#addAsynchMessageReceiver(AsynchMessageReceiver,
+ *      int, int)
+ * @see nu.dll.lyskom.Session#addRpcEventListener(RpcEventListener, int, int)
+ */
+public class DispatchQueue implements AsynchMessageReceiver,
+        RpcEventListener {
+
+    public final static int SYNCHRONOUS = 0;
+    public final static int BLOCK = 1;
+    public final static int DROP_OLDEST = 2;
+    public final static int COALESCE = 3;
+
+    final static String[] policyNames = { "synchronous", "block",
+            "drop-oldest", "coalesce" };
+
+    public final static int defaultPolicy = policy(System.getProperty(
+            "lattekom.dispatch-policy", "block"));
+    public final static int defaultCapacity = Integer.getInteger(
+            "lattekom.dispatch-queue-size", 1024).intValue();
+
+    // how long an idle delivery thread waits before it ends
+    final static long IDLE_TIMEOUT = 10000;
+
+    static final AtomicInteger threadCount = new AtomicInteger();
+
+    // the queue whose receiver the current thread is calling
+    final static ThreadLocal<DispatchQueue> current = new ThreadLocal<DispatchQueue>();
+
+    static class Entry {
+        Object item;
+        Object key;
+        long queued;
+    }
+
+    final Object receiver;
+    final int policy;
+    final int capacity;
+
+    LinkedList<Entry> queue = new LinkedList<Entry>();
+    // the queued entries that may be replaced, by key
+    Map<Object, Entry> coalescable = new HashMap<Object, Entry>();
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition queued = lock.newCondition();
+    final Condition room = lock.newCondition();
+    Thread thread = null;
+    boolean closed = false;
+    // the number of RPC replies the receiver is waiting for
+    int waiting = 0;
+
+    long delivered = 0, dropped = 0, coalesced = 0, blocked = 0;
+    int maxDepth = 0;
+    LatencyHistogram lag = new LatencyHistogram();
+
+    /**
+     * Creates a queue for an <tt>AsynchMessageReceiver</tt> or an
+     * <tt>RpcEventListener</tt>.
+     */
+    public DispatchQueue(Object receiver, int policy, int capacity) {
+        if (!(receiver instanceof AsynchMessageReceiver)
+                && !(receiver instanceof RpcEventListener))
+            throw new IllegalArgumentException("Not a receiver: " + receiver);
+        if (policy < SYNCHRONOUS || policy > COALESCE)
+            throw new IllegalArgumentException("Bad policy: " + policy);
+        this.receiver = receiver;
+        this.policy = policy;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Returns the policy constant for a name such as "drop-oldest".
+     */
+    public static int policy(String name) {
+        for (int i = 0; i < policyNames.length; i++)
+            if (policyNames[i].equals(name))
+                return i;
+        throw new IllegalArgumentException("Unknown dispatch policy: " + name);
+    }
+
+    public Object getReceiver() {
+        return receiver;
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public void asynchMessage(AsynchMessage m) {
+        offer(m, policy == COALESCE ? coalesceKey(m) : null);
+    }
+
+    public void rpcEvent(RpcEvent e) {
+        offer(e, null);
+    }
+
+    /**
+     * Returns what a message is about, if a later message of the same kind
+     * about the same thing makes it obsolete, or null.
+     */
+    static Object coalesceKey(AsynchMessage m) {
+        KomToken[] params = m.getParameters();
+        switch (m.getNumber()) {
+        case Asynch.i_am_on:
+            // person, working-conference, session-no, ...
+            if (params.length < 3)
+                return null;
+            return m.getNumber() + ":" + params[2].intValue();
+        case Asynch.new_name:
+            // conf-no, old-name, new-name
+            if (params.length < 1)
+                return null;
+            return m.getNumber() + ":" + params[0].intValue();
+        case Asynch.new_membership:
+            // pers-no, conf-no
+            if (params.length < 2)
+                return null;
+            return m.getNumber() + ":" + params[0].intValue() + ":"
+                    + params[1].intValue();
+        default:
+            return null;
+        }
+    }
+
+    void offer(Object item, Object key) {
+        if (policy == SYNCHRONOUS) {
+            deliver(item);
+            return;
+        }
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            if (key != null) {
+                Entry e = coalescable.get(key);
+                if (e != null) {
+                    e.item = item;
+                    coalesced++;
+                    return;
+                }
+            }
+            if (queue.size() >= capacity) {
+                if (policy == DROP_OLDEST) {
+                    Entry e = queue.removeFirst();
+                    if (e.key != null)
+                        coalescable.remove(e.key);
+                    dropped++;
+                } else {
+                    blocked++;
+                    while (queue.size() >= capacity && !closed
+                            && waiting == 0)
+                        room.awaitUninterruptibly();
+                    if (closed)
+                        return;
+                }
+            }
+            Entry e = new Entry();
+            e.item = item;
+            e.key = key;
+            e.queued = System.nanoTime();
+            queue.addLast(e);
+            if (key != null)
+                coalescable.put(key, e);
+            maxDepth = Math.max(maxDepth, queue.size());
+            queued.signal();
+            if (thread == null)
+                startThread();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called with the lock held
+    private void startThread() {
+        thread = Threads.newThread(new Runnable() {
+            public void run() {
+                deliverQueued();
+            }
+        }, "Dispatcher-" + threadCount.getAndIncrement());
+        thread.start();
+    }
+
+    void deliverQueued() {
+        current.set(this);
+        boolean idle = false;
+        try {
+            idle = deliverUntilIdle();
+        } finally {
+            if (!idle) {
+                // an Error from the receiver is on its way out; the
+                // messages after it still have to be delivered, or the
+                // reader thread would wait for room forever
+                lock.lock();
+                try {
+                    thread = null;
+                    if (!closed && !queue.isEmpty())
+                        startThread();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    // returns true when the queue has been idle or closed, and the thread
+    // is to end
+    private boolean deliverUntilIdle() {
+        while (true) {
+            Entry e;
+            lock.lock();
+            try {
+                long idle = TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT);
+                while (queue.isEmpty() && !closed && idle > 0)
+                    idle = queued.awaitNanos(idle);
+                if (queue.isEmpty() || closed) {
+                    thread = null;
+                    return true;
+                }
+                e = queue.removeFirst();
+                if (e.key != null)
+                    coalescable.remove(e.key);
+                room.signal();
+            } catch (InterruptedException ex1) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            lag.record(System.nanoTime() - e.queued);
+            try {
+                deliver(e.item);
+            } catch (RuntimeException ex1) {
+                Debug.println("Receiver " + receiver + " failed: " + ex1);
+            } finally {
+                lock.lock();
+                try {
+                    delivered++;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by a thread that is about to wait for an RPC reply. If it is
+     * the delivery thread of a queue, the reader thread must not wait for
+     * room in that queue until <tt>endWait()</tt> is called on it.
+     */
+    static DispatchQueue beginWait() {
+        DispatchQueue q = current.get();
+        if (q != null) {
+            q.lock.lock();
+            try {
+                q.waiting++;
+                q.room.signalAll();
+            } finally {
+                q.lock.unlock();
+            }
+        }
+        return q;
+    }
+
+    void endWait() {
+        lock.lock();
+        try {
+            waiting--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void deliver(Object item) {
+        if (item instanceof AsynchMessage)
+            ((AsynchMessageReceiver) receiver)
+                    .asynchMessage((AsynchMessage) item);
+        else
+            ((RpcEventListener) receiver).rpcEvent((RpcEvent) item);
+    }
+
+    /**
+     * Drops the queued messages and lets the delivery thread end. Messages
+     * offered after this are ignored.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            coalescable.clear();
+            queued.signalAll();
+            room.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of queued messages.
+     */
+    public int getDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Returns the number of times the reader thread had to wait for room in
+     * the queue.
+     */
+    public long getBlocked() {
+        return blocked;
+    }
+
+    /**
+     * Returns the histogram of the time, in nanoseconds, from when a
+     * message was queued to when it was passed to the receiver.
+     */
+    public LatencyHistogram getLag() {
+        return lag;
+    }
+
+    public String toString() {
+        return receiver + ": " + policyNames[policy] + " depth=" + getDepth()
+                + "/" + capacity + " max-depth=" + maxDepth + " delivered="
+                + delivered + " dropped=" + dropped + " coalesced="
+                + coalesced + " blocked=" + blocked + " lag " + lag;
+    }
+}
@@ -6,6 +6,8 @@
 
 package nu.dll.lyskom;
 
+import java.io.IOException;
+
 /*
  Session-Info ::= 
  ( person                  :       Pers-No;
@@ -102,6 +104,22 @@ public class DynamicSessionInfo {
 		this.whatAmIDoing = whatAmIDoing;
 	}
 
+	/**
+	 * Reads an ARRAY of Dynamic-Session-Info directly from the reply stream.
+	 */
+	static DynamicSessionInfo[] readArrayFrom(KomTokenReader in)
+			throws IOException {
+		DynamicSessionInfo[] ids = new DynamicSessionInfo[in.readInt()];
+		if (in.readArrayStart()) {
+			for (int i = 0; i < ids.length; i++)
+				ids[i] = new DynamicSessionInfo(in.readInt(), in.readInt(),
+						in.readInt(), in.readInt(), in.readBitstring(),
+						in.readHollerith());
+			in.readArrayEnd();
+		}
+		return ids;
+	}
+
 	/**
 	 * Returns the session number for this session
 	 */
@@ -94,20 +94,13 @@ public class Hollerith extends KomToken implements Serializable {
 	 * followed by the string data.
 	 */
 	public byte[] toNetwork() {
-		try {
-			String prefixString = contents.length + "H";
-			byte[] prefixBytes = prefixString.getBytes("us-ascii");
-			byte[] contents = getContents();
-			byte[] output = new byte[contents.length + prefixBytes.length];
-
-			System.arraycopy(prefixBytes, 0, output, 0, prefixBytes.length);
-			System.arraycopy(contents, 0, output, prefixBytes.length,
-					contents.length);
+		byte[] contents = getContents();
+		KomOutputBuffer out = new KomOutputBuffer(contents.length + 12);
+		out.writeHollerith(contents);
+		return out.toByteArray();
+	}
 
-			return output;
-		} catch (java.io.UnsupportedEncodingException e) {
-			throw new RuntimeException("Unsupported encoding: "
-					+ e.getMessage());
-		}
+	void writeTo(KomOutputBuffer out) {
+		out.writeHollerith(getContents());
 	}
 }
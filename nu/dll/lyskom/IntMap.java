@@ -0,0 +1,128 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.util.Arrays;
+
+/**
+ * A map from <tt>int</tt> (conference, person or text numbers) to objects,
+ * kept in open-addressed arrays, so that no <tt>Integer</tt> is created for
+ * a key. Keys must not be zero; zero marks a free slot.
+ */
+public class IntMap<V> {
+    int[] keys;
+    Object[] values;
+    int size = 0;
+
+    public IntMap() {
+        this(16);
+    }
+
+    /**
+     * @param expected
+     *            the number of entries expected
+     */
+    public IntMap(int expected) {
+        int capacity = 8;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+    }
+
+    // the slot of the key, or of the free slot where it would go
+    private int slot(int key) {
+        int mask = keys.length - 1;
+        int h = key * 0x9e3779b9;
+        int i = (h ^ h >>> 16) & mask;
+        while (keys[i] != 0 && keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        return (V) values[slot(key)];
+    }
+
+    public boolean containsKey(int key) {
+        return keys[slot(key)] != 0;
+    }
+
+    /**
+     * Maps a key to a value, and returns the value it was mapped to before,
+     * if any.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (key == 0)
+            throw new IllegalArgumentException("key zero");
+        int i = slot(key);
+        V old = (V) values[i];
+        if (keys[i] == 0) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                i = slot(key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+        return old;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the keys, in no particular order.
+     */
+    public int[] keys() {
+        int[] k = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != 0)
+                k[n++] = keys[i];
+        return k;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer("{");
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == 0)
+                continue;
+            if (buf.length() > 1)
+                buf.append(", ");
+            buf.append(keys[i]).append('=').append(values[i]);
+        }
+        return buf.append('}').toString();
+    }
+}
@@ -0,0 +1,182 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small work-stealing thread pool, shared by the AsynchInvokers of all
+ * sessions. Each worker has a deque of its own: a task submitted by a
+ * worker goes on that worker's deque, other tasks are spread over the
+ * workers in turn, and a worker with nothing to do takes tasks from the
+ * far end of the others' deques.
+ * <br>
+ * There are as many workers as processors (at least four), or
+ * <tt>lattekom.invoker-threads</tt>. They are created with
+ * <tt>Threads.newThread()</tt> when the first task is submitted, and run
+ * for as long as the program does.
+ */
+class InvokerPool {
+
+    final static InvokerPool shared = new InvokerPool(Integer.getInteger(
+            "lattekom.invoker-threads",
+            Math.max(4, Runtime.getRuntime().availableProcessors()))
+            .intValue());
+
+    // the worker the current thread is, if any
+    final ThreadLocal<Worker> current = new ThreadLocal<Worker>();
+
+    final Worker[] workers;
+    final AtomicInteger next = new AtomicInteger();
+    // the number of tasks on all deques
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicLong steals = new AtomicLong();
+
+    // where idle workers wait
+    final ReentrantLock idleLock = new ReentrantLock();
+    final Condition work = idleLock.newCondition();
+    int idle = 0;
+    boolean started = false;
+
+    class Worker implements Runnable {
+        final int index;
+        final ArrayDeque<Runnable> deque = new ArrayDeque<Runnable>();
+        final ReentrantLock lock = new ReentrantLock();
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        void push(Runnable r) {
+            lock.lock();
+            try {
+                deque.addLast(r);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Runnable pollFirst() {
+            lock.lock();
+            try {
+                return deque.pollFirst();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        Runnable pollLast() {
+            lock.lock();
+            try {
+                return deque.pollLast();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void run() {
+            current.set(this);
+            while (true) {
+                Runnable r = pollFirst();
+                if (r == null)
+                    r = steal(index);
+                if (r == null) {
+                    awaitWork();
+                    continue;
+                }
+                pending.decrementAndGet();
+                boolean thrown = true;
+                try {
+                    r.run();
+                    thrown = false;
+                } catch (RuntimeException ex1) {
+                    Debug.println("Task " + r + " failed: " + ex1);
+                    thrown = false;
+                } finally {
+                    // an Error ends this thread; another takes over the
+                    // deque
+                    if (thrown)
+                        Threads.newThread(this, "Invoker-" + index).start();
+                }
+            }
+        }
+    }
+
+    InvokerPool(int threads) {
+        workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new Worker(i);
+    }
+
+    /**
+     * Runs a task in one of the workers.
+     */
+    void execute(Runnable r) {
+        Worker w = current.get();
+        if (w == null)
+            w = workers[(next.getAndIncrement() & Integer.MAX_VALUE)
+                    % workers.length];
+        w.push(r);
+        pending.incrementAndGet();
+        idleLock.lock();
+        try {
+            if (!started)
+                start();
+            if (idle > 0)
+                work.signal();
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    // called with idleLock held
+    private void start() {
+        started = true;
+        for (int i = 0; i < workers.length; i++)
+            Threads.newThread(workers[i], "Invoker-" + i).start();
+    }
+
+    private Runnable steal(int thief) {
+        for (int i = 1; i < workers.length; i++) {
+            Runnable r = workers[(thief + i) % workers.length].pollLast();
+            if (r != null) {
+                steals.incrementAndGet();
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private void awaitWork() {
+        idleLock.lock();
+        try {
+            // a task submitted after the deques were looked at has
+            // already been counted here
+            if (pending.get() > 0)
+                return;
+            idle++;
+            try {
+                work.awaitUninterruptibly();
+            } finally {
+                idle--;
+            }
+        } finally {
+            idleLock.unlock();
+        }
+    }
+
+    int getThreadCount() {
+        return workers.length;
+    }
+
+    long getSteals() {
+        return steals.get();
+    }
+}
@@ -0,0 +1,121 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer into which RPC calls are serialized. Integers,
+ * Holleriths and arrays are written directly into the buffer, without
+ * creating any intermediate byte arrays or Strings, and the buffer can be
+ * reset and reused for the next call.
+ */
+class KomOutputBuffer {
+    byte[] buf;
+    int count = 0;
+
+    KomOutputBuffer() {
+        this(256);
+    }
+
+    KomOutputBuffer(int size) {
+        buf = new byte[size];
+    }
+
+    private void ensure(int n) {
+        if (count + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+    }
+
+    void reset() {
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    KomOutputBuffer write(int b) {
+        ensure(1);
+        buf[count++] = (byte) b;
+        return this;
+    }
+
+    KomOutputBuffer write(byte[] b) {
+        return write(b, 0, b.length);
+    }
+
+    KomOutputBuffer write(byte[] b, int off, int len) {
+        ensure(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+        return this;
+    }
+
+    /**
+     * Writes the decimal representation of <tt>i</tt>.
+     */
+    KomOutputBuffer writeInt(int i) {
+        if (i == Integer.MIN_VALUE) {
+            ensure(11);
+            for (int n = 0; n < 11; n++)
+                buf[count++] = (byte) "-2147483648".charAt(n);
+            return this;
+        }
+        ensure(11);
+        if (i < 0) {
+            buf[count++] = '-';
+            i = -i;
+        }
+        int digits = 1;
+        for (int n = i; n >= 10; n /= 10)
+            digits++;
+        for (int pos = count + digits - 1; pos >= count; pos--) {
+            buf[pos] = (byte) ('0' + i % 10);
+            i /= 10;
+        }
+        count += digits;
+        return this;
+    }
+
+    /**
+     * Writes <tt>data</tt> as a HOLLERITH.
+     */
+    KomOutputBuffer writeHollerith(byte[] data) {
+        writeInt(data.length).write('H');
+        return write(data);
+    }
+
+    /**
+     * Writes an ARRAY of integers.
+     */
+    KomOutputBuffer writeArray(int length, int[] values) {
+        writeInt(length).write(' ').write('{');
+        ensure(values.length * 12);
+        for (int i = 0; i < values.length; i++) {
+            write(' ').writeInt(values[i]);
+        }
+        return write(' ').write('}');
+    }
+
+    /**
+     * Writes the network representation of a KomToken.
+     */
+    KomOutputBuffer writeToken(KomToken token) {
+        token.writeTo(this);
+        return this;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+}
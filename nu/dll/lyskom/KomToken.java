@@ -39,6 +39,10 @@ public class KomToken implements Serializable {
 	int type = PRIMITIVE; // obsolete?
 	byte[] contents = null;
 
+	// set by KomToken(int); contents are then only created if asked for
+	boolean numeric = false;
+	int numericValue;
+
 	private static final int DEBUG = 0;
 
 	boolean eol = false; // indicates last token on line
@@ -85,7 +89,8 @@ public class KomToken implements Serializable {
 	 * value.
 	 */
 	public KomToken(int i) {
-		contents = (i + "").getBytes();
+		numeric = true;
+		numericValue = i;
 	}
 
 	public KomToken(boolean b) {
@@ -117,6 +122,8 @@ public class KomToken implements Serializable {
 	 * using a radix of 10.
 	 */
 	public int intValue() {
+		if (numeric)
+			return numericValue;
 		if (contents == null || contents.length == 0)
 			throw new RuntimeException(
 					"intValue() invoked on token with zero length data");
@@ -163,10 +170,23 @@ public class KomToken implements Serializable {
 		return getContents();
 	}
 
+	/**
+	 * Writes the network representation of this KomToken into the buffer.
+	 */
+	void writeTo(KomOutputBuffer out) {
+		if (numeric)
+			out.writeInt(numericValue);
+		else
+			out.write(getContents());
+	}
+
 	/**
 	 * Returns the contents of this KomToken
 	 */
 	public byte[] getContents() {
+		if (numeric && contents == null)
+			contents = new KomOutputBuffer(11).writeInt(numericValue)
+					.toByteArray();
 		return contents;
 	}
 
@@ -174,10 +194,13 @@ public class KomToken implements Serializable {
 	 * Sets the contents of this KomToken
 	 */
 	public void setContents(byte[] c) {
+		numeric = false;
 		contents = c;
 	}
 
 	protected boolean isEmpty() {
+		if (numeric)
+			return false;
 		return contents == null || contents.length == 0;
 	}
 
@@ -20,6 +20,13 @@ public class KomTokenArray extends KomToken {
     KomToken[] objects;
     int length;
 
+    // set by KomTokenArray(int, int[]); objects are then created on demand
+    int[] ints;
+
+    // true if getContents() should return the network representation of
+    // this array, which is then built on first use
+    private boolean contentsIsNetwork = false;
+
     /**
      * Constructs an empty KomTokenArray
      */
@@ -51,9 +58,7 @@ public class KomTokenArray extends KomToken {
      */
     public KomTokenArray(int length, int[] n) {
         this.length = length;
-        objects = new KomToken[n.length];
-        for (int i = 0; i < n.length; i++)
-            objects[i] = new KomToken(n[i]);
+        ints = n;
     }
 
     /**
@@ -62,7 +67,7 @@ public class KomTokenArray extends KomToken {
     public KomTokenArray(int length, KomToken[] o) {
         this.length = length;
         objects = o;
-        contents = toNetwork();
+        contentsIsNetwork = true;
     }
 
     /**
@@ -75,7 +80,7 @@ public class KomTokenArray extends KomToken {
         for (int i = 0; i < o.length; i++) {
             objects[i] = o[i].toToken();
         }
-        contents = toNetwork();
+        contentsIsNetwork = true;
     }
 
     /**
@@ -88,7 +93,7 @@ public class KomTokenArray extends KomToken {
         for (int i = 0; i < objects.length; i++) {
             objects[i] = ((Tokenizable) tokenList.get(i)).toToken();
         }
-        contents = toNetwork();
+        contentsIsNetwork = true;
     }
 
     /* end of constructors */
@@ -106,6 +111,8 @@ public class KomTokenArray extends KomToken {
      * @see nu.dll.lyskom.KomToken#intValue()
      */
     public int[] intValues() {
+        if (ints != null)
+            return ints.clone();
         int[] vals = new int[objects.length];
         for (int i = 0; i < objects.length; i++)
             vals[i] = objects[i].intValue();
@@ -160,10 +167,27 @@ public class KomTokenArray extends KomToken {
      * Returns an array with all KomToken objects in this Array.
      */
     public KomToken[] getTokens() {
+        if (objects == null) {
+            KomToken[] o = new KomToken[ints.length];
+            for (int i = 0; i < o.length; i++)
+                o[i] = new KomToken(ints[i]);
+            objects = o;
+        }
         return objects;
     }
 
+    public byte[] getContents() {
+        if (contents == null && contentsIsNetwork)
+            contents = toNetwork();
+        return contents;
+    }
+
+    protected boolean isEmpty() {
+        return contents == null && !contentsIsNetwork;
+    }
+
     public String toString() {
+        KomToken[] objects = getTokens();
         StringBuffer buf = new StringBuffer("ARRAY(");
         buf.append(objects.length).append("/").append(length).append("):{");
         for (int i = 0; i < objects.length; i++) {
@@ -183,20 +207,23 @@ public class KomTokenArray extends KomToken {
      * 
      */
     public byte[] toNetwork() {
-        try {
-            String encoding = Session.defaultServerEncoding;
-            ByteArrayOutputStream os = new ByteArrayOutputStream(512);
-            os.write((length + " {").getBytes(encoding));
-            for (int i = 0; i < objects.length; i++) {
-                os.write(' ');
-                os.write(objects[i].toNetwork());
-            }
-            os.write(" }".getBytes(encoding));
-            return os.toByteArray();
-        } catch (IOException ex1) {
-            throw new RuntimeException("I/O error creating byte array: "
-                    + ex1.toString());
+        KomOutputBuffer out = new KomOutputBuffer(
+                ints != null ? ints.length * 8 + 16 : 512);
+        writeTo(out);
+        return out.toByteArray();
+    }
+
+    void writeTo(KomOutputBuffer out) {
+        if (ints != null) {
+            out.writeArray(length, ints);
+            return;
+        }
+        out.writeInt(length).write(' ').write('{');
+        for (int i = 0; i < objects.length; i++) {
+            out.write(' ');
+            objects[i].writeTo(out);
         }
+        out.write(' ').write('}');
     }
 
 }
@@ -13,6 +13,7 @@ import java.util.Enumeration;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.Arrays;
 
 import nu.dll.io.SpyInputStream;
 
@@ -75,8 +76,11 @@ class KomTokenReader {
 		KomToken beforeLast = null;
 		KomToken last = readToken(null, -1, is, charset);
 
-		byte[] lspre = last.getContents();
-		boolean arrayCompleted = lspre[0] == '}';
+		// nested arrays are never the end of this one; do not ask them
+		// for their contents, as that would serialize them
+		byte[] lspre = last instanceof KomTokenArray ? null : last
+				.getContents();
+		boolean arrayCompleted = lspre != null && lspre[0] == '}';
 		while (!arrayCompleted) {
 			if (lspre != null && lspre.length != 0 && lspre[0] == '{') {
 				v.add(readArray(beforeLast, is, charset));
@@ -87,7 +91,8 @@ class KomTokenReader {
 			beforeLast = last;
 			last = readToken(last, -1, is, charset);
 
-			lspre = last.getContents();
+			lspre = last instanceof KomTokenArray ? null : last
+					.getContents();
 			arrayCompleted = lspre != null && lspre.length != 0
 					&& lspre[0] == '}';
 		}
@@ -260,8 +265,219 @@ class KomTokenReader {
 			ProtocolException {
 		KomToken token = readToken(lastToken, hollerithLimit, input,
 				session.getServerEncoding());
+		if (token == null)
+			throw new EOFException("End of stream from server");
 		lastToken = token;
 		lastByteWasEol = token.isEol();
 		return token;
 	}
+
+	/*
+	 * Direct decoding support, used by the ReplyDecoder implementations. These
+	 * methods read single values straight from the input stream without
+	 * creating any KomToken objects. While a reply is being decoded, all bytes
+	 * read are recorded, so that the reply can be kept in raw form and be
+	 * reparsed by readToken() should the decoder give up on it.
+	 */
+	private byte[] recordBuffer = new byte[512];
+	private int recordLength = 0;
+	private boolean recording = false;
+
+	/**
+	 * Returns the character encoding used for HOLLERITH data.
+	 */
+	String getCharset() {
+		return session.getServerEncoding();
+	}
+
+	/**
+	 * Starts recording the bytes read by the direct decoding methods.
+	 */
+	void startRecording() {
+		recordLength = 0;
+		recording = true;
+		lastByteWasEol = false;
+	}
+
+	/**
+	 * Stops recording and returns a copy of the recorded bytes.
+	 */
+	byte[] stopRecording() {
+		recording = false;
+		byte[] recorded = Arrays.copyOf(recordBuffer, recordLength);
+		if (recordBuffer.length > 65536)
+			recordBuffer = new byte[512];
+		return recorded;
+	}
+
+	/**
+	 * Stops recording and discards the recorded bytes.
+	 */
+	void discardRecording() {
+		recording = false;
+		if (recordBuffer.length > 65536)
+			recordBuffer = new byte[512];
+	}
+
+	/**
+	 * Stops recording and returns a stream that first returns the recorded
+	 * bytes and then continues with the rest of the input.
+	 */
+	InputStream replayRecording() {
+		return new SequenceInputStream(new ByteArrayInputStream(
+				stopRecording()), input);
+	}
+
+	private void record(int b) {
+		if (recordLength == recordBuffer.length)
+			recordBuffer = Arrays.copyOf(recordBuffer, recordLength * 2);
+		recordBuffer[recordLength++] = (byte) b;
+	}
+
+	private void record(byte[] data) {
+		if (recordLength + data.length > recordBuffer.length)
+			recordBuffer = Arrays.copyOf(recordBuffer, Math.max(
+					recordBuffer.length * 2, recordLength + data.length));
+		System.arraycopy(data, 0, recordBuffer, recordLength, data.length);
+		recordLength += data.length;
+	}
+
+	private int read() throws IOException {
+		int b = input.read();
+		if (b == -1)
+			throw new EOFException("End of stream while decoding reply");
+		if (recording)
+			record(b);
+		return b;
+	}
+
+	/**
+	 * Skips the separating whitespace and returns the first byte of the next
+	 * token.
+	 */
+	private int readTokenStart() throws IOException {
+		if (lastByteWasEol)
+			throw new KomProtocolException("Unexpected end of reply");
+		int b = read();
+		while (b == ' ')
+			b = read();
+		if (b == '\n')
+			throw new KomProtocolException("Unexpected end of reply");
+		return b;
+	}
+
+	private void readTokenEnd(int b) {
+		if (b != ' ' && b != '\n')
+			throw new KomProtocolException("Unexpected character '"
+					+ (char) b + "' in reply");
+		lastByteWasEol = b == '\n';
+	}
+
+	/**
+	 * Reads an INT32 (or any other integer type).
+	 */
+	int readInt() throws IOException {
+		int b = readTokenStart();
+		boolean negative = b == '-';
+		if (negative)
+			b = read();
+		int value = 0, digits = 0;
+		while (b >= '0' && b <= '9') {
+			value = value * 10 + (b - '0');
+			digits++;
+			b = read();
+		}
+		if (digits == 0)
+			throw new KomProtocolException("Expected integer, got '"
+					+ (char) b + "'");
+		readTokenEnd(b);
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Reads a BOOL.
+	 */
+	boolean readBoolean() throws IOException {
+		return readInt() != 0;
+	}
+
+	/**
+	 * Reads a Time.
+	 */
+	KomTime readTime() throws IOException {
+		return new KomTime(readInt(), readInt(), readInt(), readInt(),
+				readInt(), readInt(), readInt(), readInt(), readInt());
+	}
+
+	/**
+	 * Reads the contents of a HOLLERITH.
+	 */
+	byte[] readHollerith() throws IOException {
+		int b = readTokenStart();
+		int length = 0, digits = 0;
+		while (b >= '0' && b <= '9') {
+			length = length * 10 + (b - '0');
+			digits++;
+			b = read();
+		}
+		if (digits == 0 || b != 'H')
+			throw new KomProtocolException("Bad hollerith");
+		byte[] data = new byte[length];
+		if (readFill(input, data) < length)
+			throw new EOFException("End of stream in hollerith");
+		if (recording)
+			record(data);
+		readTokenEnd(read());
+		return data;
+	}
+
+	/**
+	 * Reads a BITSTRING.
+	 */
+	Bitstring readBitstring() throws IOException {
+		int b = readTokenStart();
+		byte[] bits = new byte[8];
+		int length = 0;
+		while (b == '0' || b == '1') {
+			if (length == bits.length)
+				bits = Arrays.copyOf(bits, length * 2);
+			bits[length++] = (byte) b;
+			b = read();
+		}
+		readTokenEnd(b);
+		Bitstring bitstring = new Bitstring();
+		bitstring.setContents(length == bits.length ? bits : Arrays.copyOf(
+				bits, length));
+		return bitstring;
+	}
+
+	/**
+	 * Reads the start of an ARRAY's contents, following its length. Returns
+	 * <tt>true</tt> if the elements follow, or <tt>false</tt> if the server
+	 * sent an empty array (<tt>*</tt>), in which case nothing more should
+	 * be read for this array.
+	 */
+	boolean readArrayStart() throws IOException {
+		int b = readTokenStart();
+		if (b == '*') {
+			readTokenEnd(read());
+			return false;
+		}
+		if (b != '{')
+			throw new KomProtocolException("Expected array, got '"
+					+ (char) b + "'");
+		readTokenEnd(read());
+		return true;
+	}
+
+	/**
+	 * Reads the end of an ARRAY started with readArrayStart().
+	 */
+	void readArrayEnd() throws IOException {
+		int b = readTokenStart();
+		if (b != '}')
+			throw new KomProtocolException("Expected end of array, got '"
+					+ (char) b + "'");
+		readTokenEnd(read());
+	}
 }
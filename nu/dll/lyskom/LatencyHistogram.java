@@ -0,0 +1,162 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in nanoseconds, with buckets on a log-linear
+ * scale: each power of two is split into 16 buckets, so a recorded value is
+ * reported with at most 1/16 (about 6%) relative error. The buckets cover
+ * 1 &micro;s (2^10 ns) to about 68 s (2^36 ns); shorter values share one
+ * bucket, as do longer ones, whose maximum is still kept exactly. That
+ * keeps a histogram at 418 counters (about 3.3 KB), as every session has
+ * one for each call it uses.
+ * <br>
+ * Recording is lock-free and does not allocate. Several histograms may be
+ * merged with <tt>add()</tt>.
+ */
+public class LatencyHistogram {
+
+    final static int SUB_BITS = 4;
+    final static int SUB_BUCKETS = 1 << SUB_BITS;
+    final static int MIN_EXPONENT = 10;
+    final static int MAX_EXPONENT = 36;
+    // one below and one above the range
+    final static int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS + 2;
+
+    AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    AtomicLong count = new AtomicLong();
+    AtomicLong total = new AtomicLong();
+    AtomicLong max = new AtomicLong();
+
+    static int bucket(long value) {
+        if (value < 1L << MIN_EXPONENT)
+            return 0;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value that falls into the given bucket.
+     */
+    static long highestValue(int bucket) {
+        if (bucket == 0)
+            return (1L << MIN_EXPONENT) - 1;
+        if (bucket == BUCKETS - 1)
+            return Long.MAX_VALUE;
+        int exponent = (bucket - 1) / SUB_BUCKETS + MIN_EXPONENT;
+        int sub = (bucket - 1) % SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Records one value (normally a duration in nanoseconds).
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value))
+            m = max.get();
+    }
+
+    /**
+     * Returns the number of recorded values.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the highest recorded value.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of all recorded values, or zero if none have been
+     * recorded.
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : total.get() / n;
+    }
+
+    /**
+     * Returns the value at the given percentile (0-100), rounded up to the
+     * upper edge of its bucket, or zero if no values have been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(n * Math.min(percentile, 100.0) / 100.0);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Adds all values recorded in another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        count.addAndGet(other.count.get());
+        total.addAndGet(other.total.get());
+        long m = max.get(), o = other.max.get();
+        while (o > m && !max.compareAndSet(m, o))
+            m = max.get();
+    }
+
+    /**
+     * Discards all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns a string with the count and a few percentiles, in
+     * milliseconds.
+     */
+    public String toString() {
+        return "n=" + getCount() + " p50=" + millis(getPercentile(50))
+                + " p99=" + millis(getPercentile(99)) + " p99.9="
+                + millis(getPercentile(99.9)) + " max=" + millis(getMax())
+                + " ms";
+    }
+
+    static String millis(long nanos) {
+        return String.valueOf(Math.round(nanos / 1000.0) / 1000.0);
+    }
+}
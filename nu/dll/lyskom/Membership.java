@@ -5,6 +5,7 @@
  */
 package nu.dll.lyskom;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
@@ -342,6 +343,103 @@ public class Membership {
         return m;
     }
 
+    /**
+     * Returns the Membership in the reply to a query-read-texts call.
+     */
+    static Membership createFrom(RpcReply reply, boolean proto10) {
+        if (reply.getDecoded() instanceof Membership)
+            return (Membership) reply.getDecoded();
+        return createFrom(0, reply.getParameters(), proto10);
+    }
+
+    /**
+     * Returns the Memberships in the reply to a get-membership call.
+     */
+    static Membership[] createFromArray(RpcReply reply, boolean proto10) {
+        if (reply.getDecoded() instanceof Membership[])
+            return (Membership[]) reply.getDecoded();
+        return createFromArray(0, reply.getParameters(), proto10);
+    }
+
+    /**
+     * Reads a Membership directly from the reply stream.
+     */
+    static Membership readFrom(KomTokenReader in, boolean proto10)
+            throws IOException {
+        int position = in.readInt();
+        KomTime lastTimeRead = in.readTime();
+        int conf = in.readInt();
+        int prio = in.readInt();
+
+        List<Range> ranges = new LinkedList<Range>();
+
+        boolean hasReadTexts;
+        if (!proto10) {
+            int rangeArraySize = in.readInt();
+            hasReadTexts = rangeArraySize == 0;
+            if (in.readArrayStart()) {
+                for (int rangeNo = 0; rangeNo < rangeArraySize; rangeNo++) {
+                    int firstRead = in.readInt();
+                    int lastRead = in.readInt();
+                    ranges.add(new Range(firstRead, lastRead));
+                }
+                in.readArrayEnd();
+                hasReadTexts = true;
+            }
+        } else {
+            int lastTextRead = in.readInt();
+            int readTextsLength = in.readInt();
+
+            if (lastTextRead > 0) {
+                ranges.add(new Range(1, lastTextRead));
+            }
+
+            hasReadTexts = readTextsLength == 0;
+            if (in.readArrayStart()) {
+                Range range = null;
+                for (int j = 0; j < readTextsLength; j++) {
+                    int no = in.readInt();
+                    if (range != null && no == range.last + 1) {
+                        range.last = no;
+                    } else {
+                        range = new Range(no, no);
+                        ranges.add(range);
+                    }
+                }
+                in.readArrayEnd();
+                hasReadTexts = true;
+            }
+        }
+
+        int addedBy = in.readInt();
+        KomTime addedAt = in.readTime();
+        MembershipType type = new MembershipType(in.readBitstring());
+
+        Membership m = new Membership(position, lastTimeRead, conf, prio,
+                ranges, addedBy, addedAt, type, hasReadTexts);
+
+        if (DEBUG) {
+            dprintln("Membership: read " + m
+                    + (!hasReadTexts ? " (no read-texts supplied)" : ""));
+        }
+        return m;
+    }
+
+    /**
+     * Reads an ARRAY of Membership directly from the reply stream.
+     */
+    static Membership[] readArrayFrom(KomTokenReader in, boolean proto10)
+            throws IOException {
+        int length = in.readInt();
+        Membership[] ml = new Membership[length];
+        if (in.readArrayStart()) {
+            for (int i = 0; i < length; i++)
+                ml[i] = readFrom(in, proto10);
+            in.readArrayEnd();
+        }
+        return ml;
+    }
+
     public static Membership[] createFromArray(int offset,
             KomToken[] parameters, boolean proto10) {
         int pcount = offset;
@@ -13,6 +13,7 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.io.*;
 
 /**
@@ -29,11 +30,13 @@ class MessageListener implements Runnable {
     HollerithStream pendingStream = null;
 
     Exception exception = null;
-    List<RpcReplyReceiver> rpcReceivers = new LinkedList<RpcReplyReceiver>();
-    List<AsynchMessageReceiver> asynchReceivers = new LinkedList<AsynchMessageReceiver>();
+    // copied on write, so that the reader thread can call the receivers
+    // without holding a lock
+    List<RpcReplyReceiver> rpcReceivers = new CopyOnWriteArrayList<RpcReplyReceiver>();
+    List<AsynchMessageReceiver> asynchReceivers = new CopyOnWriteArrayList<AsynchMessageReceiver>();
     Thread thread = null;
     Session session;
-    boolean disconnect = false;
+    volatile boolean disconnect = false;
     boolean disconnected = false;
 
     boolean asynch = false;
@@ -48,8 +51,8 @@ class MessageListener implements Runnable {
         if (wantAsynch) {
             if (!asynch) {
                 asynch = true;
-                thread = new Thread(this, "MessageListener-" + threadCount++);
-                thread.setDaemon(true);
+                thread = Threads.newThread(this, "MessageListener-"
+                        + threadCount++);
                 thread.start();
             }
         } else {
@@ -110,10 +113,13 @@ class MessageListener implements Runnable {
         while (asynch && !disconnect) {
             KomToken[] row = {};
             Throwable readError = null;
+            boolean lost = false;
             boolean rowCompleted = false;
             KomTokenReader reader = session.getKomTokenReader();
             boolean isRpcReply = false, isAsynchMessage = false, good = false;
             int id = 0;
+            RpcReply decodedReply = null;
+            long received = 0;
             try {
                 if (pendingStream != null) {
                     synchronized (pendingStream) {
@@ -126,6 +132,8 @@ class MessageListener implements Runnable {
                 }
                 LinkedList<KomToken> tokens = new LinkedList<KomToken>();
                 KomToken first = reader.readToken();
+                if (session.trace != null)
+                    received = System.nanoTime();
                 tokens.add(first);
                 byte[] descriptor = first.getContents();
                 isRpcReply = descriptor[0] == '=' || descriptor[0] == '%';
@@ -146,6 +154,15 @@ class MessageListener implements Runnable {
                         throw new KomProtocolException("Bad RPC ID: "
                                 + ex1.getMessage());
                     }
+                    if (good && !reader.lastByteWasEol
+                            && !waitingForStream(id)) {
+                        ReplyDecoder decoder = ReplyDecoders
+                                .get(session.rpcHeap.getRpcCall(id, false));
+                        if (decoder != null) {
+                            decodedReply = decode(reader, decoder, id, tokens);
+                            rowCompleted = true;
+                        }
+                    }
                     if (waitingForStream()) {
                         if (waitingForStream(id)) {
                             int limit = hollerithLimitForStreamReceiver(id);
@@ -194,17 +211,22 @@ class MessageListener implements Runnable {
             } catch (SocketException ex) {
                 Debug.println("SocketException: " + ex.getClass().getName() + ": "
                         + ex.getMessage());
-                ex.printStackTrace();
+                lost = !disconnect;
+                if (lost)
+                    ex.printStackTrace();
                 exception = (Exception) (readError = ex);
                 disconnect = true;
             } catch (IOException ex) {
                 Debug.println("IOException: " + ex.getClass().getName() + ": "
                         + ex.getMessage());
-                ex.printStackTrace();
+                lost = !disconnect;
+                if (lost)
+                    ex.printStackTrace();
                 exception = (Exception) (readError = ex);
                 disconnect = true;
             } catch (Exception ex) {
                 ex.printStackTrace();
+                lost = !disconnect;
                 exception = (Exception) (readError = ex);
                 disconnect = true;
             }
@@ -216,6 +238,11 @@ class MessageListener implements Runnable {
                 } catch (NullPointerException ex2) {
                 }
 
+                // let the session start reconnecting before the waiters
+                // are woken up, so that they keep waiting
+                if (lost)
+                    session.connectionLost(exception);
+
                 // sends a null to all receivers to notify about the
                 // disconnection
                 // this is not very clean, we should probably extend the
@@ -249,58 +276,107 @@ class MessageListener implements Runnable {
                 KomToken[] params = new KomToken[row.length - 1];
                 System.arraycopy(row, 1, params, 0, params.length);
 
-                // notify listeners...
-                synchronized (rpcReceivers) {
-                    for (Iterator<RpcReplyReceiver> i = rpcReceivers.iterator(); i
-                            .hasNext();)
-                        ((RpcReplyReceiver) i.next()).rpcReply(new RpcReply(
-                                good, id, params));
+                RpcReply reply = decodedReply != null ? decodedReply
+                        : new RpcReply(good, id, params);
+                if (received != 0) {
+                    reply.received = received;
+                    reply.parsed = System.nanoTime();
                 }
+
+                // notify listeners...
+                for (Iterator<RpcReplyReceiver> i = rpcReceivers.iterator(); i
+                        .hasNext();)
+                    ((RpcReplyReceiver) i.next()).rpcReply(reply);
             } else if (isAsynchMessage) { // Asynch message
-                synchronized (asynchReceivers) {
-                    for (Iterator<AsynchMessageReceiver> i = asynchReceivers
-                            .iterator(); i.hasNext();) {
-                        AsynchMessageReceiver rcvr = (AsynchMessageReceiver) i
-                                .next();
-                        if (Debug.ENABLED) {
-                            Debug.println("dispatching asynch message {"
-                                    + Arrays.asList(row) + "} to " + rcvr);
-                        }
-                        rcvr.asynchMessage(new AsynchMessage(row));
+                // application receivers are DispatchQueues, and return
+                // at once
+                for (Iterator<AsynchMessageReceiver> i = asynchReceivers
+                        .iterator(); i.hasNext();) {
+                    AsynchMessageReceiver rcvr = (AsynchMessageReceiver) i
+                            .next();
+                    if (Debug.ENABLED) {
+                        Debug.println("dispatching asynch message {"
+                                + Arrays.asList(row) + "} to " + rcvr);
                     }
+                    rcvr.asynchMessage(new AsynchMessage(row));
                 }
             }
         }
         Debug.println("MessageListener.run() finishing");
     }
 
+    /**
+     * Reads the rest of a reply using a ReplyDecoder. Returns the decoded
+     * reply, or null if the decoder failed, in which case the reply has been
+     * parsed into KomTokens and added to <tt>tokens</tt> instead.
+     */
+    private RpcReply decode(KomTokenReader reader, ReplyDecoder decoder,
+            int id, List<KomToken> tokens) throws IOException {
+        RpcCall call = session.rpcHeap.getRpcCall(id, false);
+        reader.startRecording();
+        try {
+            Object decoded = decoder.decode(reader, call);
+            if (reader.lastByteWasEol) {
+                // the raw reply is only kept if someone may ask for its
+                // parameters: the caller, or an application's RPC event
+                // listener
+                byte[] raw = null;
+                if (call.keepRaw || Debug.ENABLED
+                        || session.hasRpcEventListeners())
+                    raw = reader.stopRecording();
+                else
+                    reader.discardRecording();
+                return new RpcReply(id, decoded, raw, reader.getCharset());
+            }
+            Debug.println("decoder for op " + call.getOp()
+                    + " did not consume the entire reply");
+        } catch (KomProtocolException ex) {
+            Debug.println("decoder for op " + call.getOp() + " failed: "
+                    + ex.getMessage());
+        }
+
+        // parse everything read so far, and the rest of the reply, the
+        // usual way
+        InputStream replay = reader.replayRecording();
+        String charset = reader.getCharset();
+        KomToken token = tokens.get(tokens.size() - 1);
+        do {
+            token = KomTokenReader.readToken(token, -1, replay, charset);
+            if (token == null)
+                throw new EOFException("End of stream in reply " + id);
+            tokens.add(token);
+        } while (!token.isEol());
+        return null;
+    }
+
     protected boolean isConnected() {
         return !disconnected;
     }
 
+    /**
+     * Adds the receivers of another listener to this one, when it replaces
+     * that listener after a reconnect.
+     */
+    void copyReceivers(MessageListener from) {
+        rpcReceivers.addAll(from.rpcReceivers);
+        asynchReceivers.addAll(from.asynchReceivers);
+    }
+
     /** add/remove event receivers **/
     public boolean removeRpcReplyReceiver(RpcReplyReceiver r) {
-        synchronized (rpcReceivers) {
-            return rpcReceivers.remove(r);
-        }
+        return rpcReceivers.remove(r);
     }
 
     public void addRpcReplyReceiver(RpcReplyReceiver r) {
-        synchronized (rpcReceivers) {
-            rpcReceivers.add(r);
-        }
+        rpcReceivers.add(r);
     }
 
     public void addAsynchMessageReceiver(AsynchMessageReceiver a) {
-        synchronized (asynchReceivers) {
-            asynchReceivers.add(a);
-        }
+        asynchReceivers.add(a);
     }
 
     public boolean removeAsynchMessageReceiver(AsynchMessageReceiver a) {
-        synchronized (asynchReceivers) {
-            return asynchReceivers.remove(a);
-        }
+        return asynchReceivers.remove(a);
     }
 
 }
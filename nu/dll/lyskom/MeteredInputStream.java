@@ -0,0 +1,43 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from the server into the session's metrics.
+ */
+class MeteredInputStream extends FilterInputStream {
+    SessionMetrics metrics;
+
+    MeteredInputStream(InputStream in, SessionMetrics metrics) {
+        super(in);
+        this.metrics = metrics;
+    }
+
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1)
+            metrics.bytesRead(1);
+        return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0)
+            metrics.bytesRead(n);
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        if (skipped > 0)
+            metrics.bytesRead(skipped);
+        return skipped;
+    }
+}
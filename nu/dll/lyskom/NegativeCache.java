@@ -0,0 +1,157 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, for a while, that asking the server about a conference or a
+ * text failed: that the conference does not exist or is secret, that the
+ * text is deleted, or that access was denied. Until the entry expires (after
+ * <tt>lattekom.negative-cache-ttl</tt> seconds, 60 by default) or is removed
+ * by an asynchronous message showing that the object is there after all, the
+ * failure is thrown again without asking the server, as a new RpcFailure
+ * with the same error code and status. A new membership, added by the
+ * session or announced with <tt>new-membership</tt>, removes the entry of
+ * the conference and the access-denied entries of all texts.
+ * <br>
+ * Each entry is keyed by the type and number of the object, and holds the
+ * error code and status. At most <tt>lattekom.negative-cache-size</tt> entries (4096)
+ * are kept; the oldest go first.
+ */
+class NegativeCache {
+    final static boolean DEBUG = Boolean.getBoolean("lattekom.caches.debug");
+
+    final static int CONFERENCE = 0;
+    final static int TEXT = 1;
+
+    final static long defaultTtl = Integer.getInteger(
+            "lattekom.negative-cache-ttl", 60).intValue() * 1000L;
+    final static int defaultSize = Integer.getInteger(
+            "lattekom.negative-cache-size", 4096).intValue();
+
+    static class Entry {
+        int error;
+        int status;
+        long expires;
+    }
+
+    long ttl = defaultTtl;
+    final int maxSize;
+    final Map<Long, Entry> entries;
+
+    NegativeCache() {
+        this(defaultSize);
+    }
+
+    NegativeCache(int size) {
+        maxSize = size;
+        entries = new LinkedHashMap<Long, Entry>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    static Long key(int type, int no) {
+        return Long.valueOf((long) type << 32 | (no & 0xffffffffL));
+    }
+
+    /**
+     * Returns true if a failure with this error code is worth remembering.
+     */
+    static boolean cachable(int type, int error) {
+        switch (error) {
+        case Rpc.E_undefined_conference:
+            return type == CONFERENCE;
+        case Rpc.E_no_such_text:
+            return type == TEXT;
+        case Rpc.E_access_denied:
+        case Rpc.E_permission_denied:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Remembers a failure, if it is of a kind that is remembered. Returns
+     * true if it was.
+     */
+    synchronized boolean add(int type, int no, RpcFailure failure) {
+        if (ttl <= 0 || !cachable(type, failure.getError()))
+            return false;
+        Entry e = new Entry();
+        e.error = failure.getError();
+        e.status = failure.getErrorStatus();
+        e.expires = System.currentTimeMillis() + ttl;
+        Long k = key(type, no);
+        // re-insert, so that the entry is the newest
+        entries.remove(k);
+        entries.put(k, e);
+        if (DEBUG)
+            Debug.println("NegativeCache: adding " + type + "/" + no + ": "
+                    + failure.getError());
+        return true;
+    }
+
+    /**
+     * Returns a new failure with the remembered error code and status, or
+     * null if there is none or it has expired.
+     */
+    synchronized RpcFailure get(int type, int no) {
+        Long k = key(type, no);
+        Entry e = entries.get(k);
+        if (e == null)
+            return null;
+        if (e.expires <= System.currentTimeMillis()) {
+            entries.remove(k);
+            return null;
+        }
+        return new RpcFailure(e.error, e.status, "remembered failure of "
+                + (type == TEXT ? "text " : "conference ") + no);
+    }
+
+    synchronized void remove(int type, int no) {
+        entries.remove(key(type, no));
+    }
+
+    /**
+     * Removes the remembered failures of all objects of a type that failed
+     * with the given error code.
+     */
+    synchronized void removeAll(int type, int error) {
+        for (Iterator<Map.Entry<Long, Entry>> i = entries.entrySet()
+                .iterator(); i.hasNext();) {
+            Map.Entry<Long, Entry> e = i.next();
+            if ((int) (e.getKey().longValue() >>> 32) == type
+                    && e.getValue().error == error)
+                i.remove();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Sets how long, in milliseconds, failures are remembered; 0 turns the
+     * cache off.
+     */
+    synchronized void setTtl(long ttl) {
+        this.ttl = ttl;
+        if (ttl <= 0)
+            entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,25 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+
+/**
+ * Decodes the reply to a specific RPC call straight from the wire into the
+ * object the caller is going to need, without creating a KomToken array for
+ * it first.
+ * 
+ * A decoder is invoked by the MessageListener after the reply ID has been
+ * read, and must read the entire reply, up to and including the terminating
+ * newline. If the reply does not look as expected, it should throw a
+ * KomProtocolException, in which case the reply is parsed into KomTokens as
+ * usual.
+ * 
+ * @see nu.dll.lyskom.ReplyDecoders
+ */
+interface ReplyDecoder {
+    Object decode(KomTokenReader in, RpcCall call) throws IOException;
+}
@@ -0,0 +1,95 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The ReplyDecoder registry, keyed on RPC call operation.
+ * 
+ * Direct decoding can be turned off by setting the system property
+ * <tt>lattekom.direct-decode</tt> to <tt>false</tt>.
+ */
+class ReplyDecoders {
+    final static boolean ENABLED = !"false".equals(System.getProperty(
+            "lattekom.direct-decode"));
+
+    private final static Map<Integer, ReplyDecoder> decoders = new HashMap<Integer, ReplyDecoder>();
+
+    static void register(int op, ReplyDecoder decoder) {
+        synchronized (decoders) {
+            decoders.put(Integer.valueOf(op), decoder);
+        }
+    }
+
+    /**
+     * Returns the decoder for the reply to the supplied call, or null if the
+     * reply should be parsed into KomTokens.
+     */
+    static ReplyDecoder get(RpcCall call) {
+        if (!ENABLED || call == null)
+            return null;
+        synchronized (decoders) {
+            return decoders.get(Integer.valueOf(call.getOp()));
+        }
+    }
+
+    static {
+        register(Rpc.C_get_text_stat, new ReplyDecoder() {
+            public Object decode(KomTokenReader in, RpcCall call)
+                    throws IOException {
+                return TextStat.readFrom(call.getParameter(0).intValue(), in);
+            }
+        });
+
+        ReplyDecoder membership = new ReplyDecoder() {
+            public Object decode(KomTokenReader in, RpcCall call)
+                    throws IOException {
+                return Membership.readArrayFrom(in,
+                        call.getOp() == Rpc.C_get_membership_10);
+            }
+        };
+        register(Rpc.C_get_membership, membership);
+        register(Rpc.C_get_membership_10, membership);
+
+        ReplyDecoder readTexts = new ReplyDecoder() {
+            public Object decode(KomTokenReader in, RpcCall call)
+                    throws IOException {
+                return Membership.readFrom(in,
+                        call.getOp() == Rpc.C_query_read_texts_10);
+            }
+        };
+        register(Rpc.C_query_read_texts, readTexts);
+        register(Rpc.C_query_read_texts_10, readTexts);
+
+        ReplyDecoder textMapping = new ReplyDecoder() {
+            public Object decode(KomTokenReader in, RpcCall call)
+                    throws IOException {
+                return TextMapping.Block.readFrom(in);
+            }
+        };
+        register(Rpc.C_local_to_global, textMapping);
+        register(Rpc.C_local_to_global_reverse, textMapping);
+        register(Rpc.C_map_created_texts_reverse, textMapping);
+
+        register(Rpc.C_who_is_on_dynamic, new ReplyDecoder() {
+            public Object decode(KomTokenReader in, RpcCall call)
+                    throws IOException {
+                return DynamicSessionInfo.readArrayFrom(in);
+            }
+        });
+
+        register(Rpc.C_get_uconf_stat, new ReplyDecoder() {
+            public Object decode(KomTokenReader in, RpcCall call)
+                    throws IOException {
+                return UConference.readFrom(call.getParameter(0).intValue(),
+                        in);
+            }
+        });
+    }
+}
@@ -6,9 +6,10 @@
 // -*- Mode: Java; c-basic-offset: 4 -*-
 package nu.dll.lyskom;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.io.ByteArrayOutputStream;
+import java.util.List;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -19,19 +20,77 @@ import java.io.OutputStream;
  */
 public class RpcCall implements Rpc {
 
-    static final int DEBUG = 3;
+    final static Debug.Channel debug = Debug.channel("rpc");
 
     int id, number;
     RpcReply reply;
 
-    Vector<KomToken> parameters;
-    Vector<Object> aux;
+    // System.nanoTime() when the call was queued for writing
+    long sent;
+
+    // timestamps for RpcTrace, only set while tracing
+    long created, written;
+    long traceSeq;
+
+    // set by RpcHeap while the call is stored
+    RpcHeap.Expiry timeout;
+
+    // stored only until the reply arrives, as nobody waits for it
+    boolean discard;
+
+    // cleared for calls whose replies only the library reads, through the
+    // object built by their ReplyDecoder; the raw reply is then not kept,
+    // unless an application listens to RPC events
+    volatile boolean keepRaw = true;
+
+    List<KomToken> parameters;
+    List<Object> aux;
+
+    /**
+     * Marks this call as one whose reply is only read through
+     * <tt>RpcReply.getDecoded()</tt>, so that a directly decoded reply need
+     * not be kept in raw form while no <tt>RpcEventListener</tt> other than
+     * the session is registered. Returns this call.
+     */
+    RpcCall decodedOnly() {
+        keepRaw = false;
+        return this;
+    }
 
     public RpcCall(int id, int number) {
         this.id = id;
         this.number = number;
-        parameters = new Vector<KomToken>();
-        aux = new Vector<Object>();
+        parameters = new ArrayList<KomToken>(4);
+        if (RpcTrace.active > 0)
+            created = System.nanoTime();
+    }
+
+    // ops that may be sent again, on a new connection, without changing the
+    // outcome: queries, and calls that set a state to a given value
+    private final static boolean[] idempotent = new boolean[128];
+    static {
+        int[] ops = { C_get_marks, C_get_text, C_mark_as_read, C_get_time,
+                C_get_person_stat, C_get_unread_confs, C_who_am_i, C_find_next_text_no,
+                C_find_previous_text_no, C_get_client_name,
+                C_get_client_version, C_mark_text, C_unmark_text,
+                C_re_z_lookup, C_lookup_z_name, C_set_last_read,
+                C_get_uconf_stat, C_user_active, C_who_is_on_dynamic,
+                C_get_static_session_info, C_get_text_stat, C_get_conf_stat,
+                C_get_info, C_query_read_texts_10, C_get_membership_10,
+                C_local_to_global, C_query_read_texts, C_get_membership,
+                C_local_to_global_reverse, C_map_created_texts_reverse,
+                C_change_conference, C_change_what_i_am_doing };
+        for (int i = 0; i < ops.length; i++)
+            idempotent[ops[i]] = true;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this call can safely be sent to the server
+     * again when it is not known whether the first attempt reached it.
+     */
+    public boolean isIdempotent() {
+        return number >= 0 && number < idempotent.length
+                && idempotent[number];
     }
 
     public int getId() {
@@ -52,9 +111,9 @@ public class RpcCall implements Rpc {
 
     public void setReply(RpcReply r) {
         reply = r;
-        if (r != null && !r.getSuccess()) {
-            Debug.println("RPC call #" + id + " (" + number
-                    + ") failed with error #" + r.parameters[0].intValue());
+        if (r != null && !r.getSuccess() && r.exception != null) {
+            debug.log(Debug.INFO, "RPC call #{} ({}) failed with error #{}",
+                    id, number, r.exception.getError());
         }
     }
 
@@ -67,11 +126,11 @@ public class RpcCall implements Rpc {
     }
 
     public KomToken getParameter(int n) {
-        return (KomToken) parameters.elementAt(n);
+        return parameters.get(n);
     }
 
     public Enumeration<KomToken> getParameterElements() {
-        return parameters.elements();
+        return Collections.enumeration(parameters);
     }
 
     public void removeParameter(int n) {
@@ -79,7 +138,7 @@ public class RpcCall implements Rpc {
     }
 
     public void removeLast() {
-        parameters.removeElementAt(parameters.size() - 1);
+        parameters.remove(parameters.size() - 1);
     }
 
     public void setParameter(int n, KomToken t) {
@@ -87,18 +146,22 @@ public class RpcCall implements Rpc {
     }
 
     public void addAux(Object o) {
-        aux.addElement(o);
+        if (aux == null)
+            aux = new ArrayList<Object>(2);
+        aux.add(o);
     }
 
     public Object getAux(int n) {
-        if (n < 0 || n > aux.size() - 1)
+        if (aux == null || n < 0 || n > aux.size() - 1)
             return null;
 
-        return aux.elementAt(n);
+        return aux.get(n);
     }
 
     public Enumeration<Object> getAuxElements() {
-        return aux.elements();
+        if (aux == null)
+            return Collections.enumeration(Collections.emptyList());
+        return Collections.enumeration(aux);
     }
 
     public RpcCall add(Hollerith h) {
@@ -114,12 +177,12 @@ public class RpcCall implements Rpc {
     }
 
     public RpcCall add(KomToken k) {
-        parameters.addElement(k);
+        parameters.add(k);
         return this;
     }
 
     public RpcCall add(String s) {
-        parameters.addElement(new KomToken(s));
+        parameters.add(new KomToken(s));
         return this;
     }
 
@@ -128,33 +191,35 @@ public class RpcCall implements Rpc {
                 + parameters.size() + ")";
     }
 
-    public void writeTo(OutputStream stream) throws IOException {
-        stream.write((id + " ").getBytes("us-ascii"));
-        stream.write((number + "").getBytes("us-ascii"));
-        for (Enumeration<KomToken> e = parameters.elements(); e
-                .hasMoreElements();) {
-            stream.write(' ');
-            stream.write(((KomToken) e.nextElement()).toNetwork());
+    /**
+     * Serializes this call into the supplied buffer.
+     */
+    void writeTo(KomOutputBuffer out) {
+        out.writeInt(id).write(' ').writeInt(number);
+        for (int i = 0; i < parameters.size(); i++) {
+            out.write(' ');
+            parameters.get(i).writeTo(out);
         }
-        stream.write('\n');
+        out.write('\n');
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        KomOutputBuffer out = new KomOutputBuffer();
+        writeTo(out);
+        out.writeTo(stream);
     }
 
     public byte[] toNetwork() {
-        try {
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            writeTo(stream);
-            return stream.toByteArray();
-        } catch (IOException ex) {
-            Debug.println("RpcCall.toNetwork(): " + ex.getMessage());
-            System.exit(-101);
-            return null;
-        }
+        KomOutputBuffer out = new KomOutputBuffer();
+        writeTo(out);
+        return out.toByteArray();
     }
 
     public void writeNetwork(OutputStream output) throws IOException {
-        output.write(toNetwork());
-        if (DEBUG > 2)
-            Debug.println("Wrote: " + new String(toNetwork()));
+        byte[] bytes = toNetwork();
+        output.write(bytes);
+        if (debug.isOn(Debug.TRACE))
+            debug.log(Debug.TRACE, "Wrote: {}", new String(bytes));
     }
 
 }
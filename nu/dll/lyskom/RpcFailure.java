@@ -45,6 +45,17 @@ public class RpcFailure extends RuntimeException {
 		this(null, t);
 	}
 
+	/**
+	 * A failure with the given error code and status, not read from a
+	 * reply: one that was remembered from an earlier reply.
+	 */
+	RpcFailure(int errorCode, int errorStatus, String message) {
+		super(message);
+		reply = null;
+		this.errorCode = errorCode;
+		this.errorStatus = errorStatus;
+	}
+
 	public Throwable getException() {
 		return nested;
 	}
@@ -6,37 +6,145 @@
 package nu.dll.lyskom;
 
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Stores all pending RPC calls
+ * <br>
+ * Each stored call has a timeout on a timing wheel shared by all sessions.
+ * A call that has had no reply within <tt>Session.rpcTimeout</tt> is
+ * removed and its id remembered as expired, so that a thread waiting for
+ * it fails at once and a late reply can be told from one that matches no
+ * call at all. A reply that nobody collects is dropped
+ * <tt>lattekom.reply-keep</tt> seconds (10 by default) after it arrived.
+ * <br>
+ * The table holds at most <tt>lattekom.rpc-heap-size</tt> calls (4096 by
+ * default). When a call is stored in a full table, the oldest uncollected
+ * reply is dropped, or if there is none, the oldest call without a reply
+ * expires at once. Both properties are read when the session is created.
+ * <br>
+ * While the session reconnects, calls without a reply do not expire; their
+ * timeouts start over once it is done.
  */
 class RpcHeap {
     static int DEBUG = 1;
 
+    // one tick is 100 ms, and one turn of the wheel 51.2 s
+    final static TimerWheel timer = new TimerWheel(100, 512, "RpcTimer");
+
+    // number of expired call ids remembered
+    final static int EXPIRED_IDS = 1024;
+
     /**
      * All RPC calls are stored until they are explicitly purged (as done by
-     * Session.waitFor()) or their age is the RPC timeout value times 60.
+     * Session.waitFor()), until they have been without a reply for the RPC
+     * timeout, or until their reply has been uncollected for
+     * <tt>replyKeep</tt> milliseconds.
      */
-    long maxAge = Session.rpcTimeout * 60;
+    final long replyKeep = Integer.getInteger("lattekom.reply-keep", 10)
+            .intValue() * 1000L;
+    final int maxCalls = Integer.getInteger("lattekom.rpc-heap-size", 4096)
+            .intValue();
+    // in the order they were made
     Map<Integer, RpcCall> rpcCalls;
-    Map<Integer, Long> ages;
+    // the stored calls that have a reply, in the order the replies came
+    Map<Integer, RpcCall> uncollected;
+    Map<Integer, Boolean> expired;
+    final SessionMetrics metrics;
+    // set while reconnecting; guarded by rpcCalls
+    boolean suspended = false;
 
-    public RpcHeap() {
-        rpcCalls = new HashMap<Integer, RpcCall>();
-        ages = new HashMap<Integer, Long>();
-    }
+    // waiting for replies, see awaitReply()
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition changed = lock.newCondition();
 
-    protected void gc() {
-        synchronized (rpcCalls) {
-            for (Iterator<Entry<Integer, Long>> i = ages.entrySet().iterator(); i
-                    .hasNext();) {
-                Map.Entry<Integer, Long> entry = i.next();
-                if (((Long) entry.getValue()).longValue() > maxAge) {
-                    i.remove();
-                    rpcCalls.remove(entry.getKey());
+    /**
+     * The timeout of a stored call.
+     */
+    class Expiry extends TimerWheel.Timeout {
+        final RpcCall call;
+        boolean replied = false;
+        // expired while suspended, to be started over by resumeExpiry()
+        boolean held = false;
+
+        Expiry(RpcCall call) {
+            this.call = call;
+        }
+
+        void expire() {
+            Integer id = Integer.valueOf(call.getId());
+            synchronized (rpcCalls) {
+                if (rpcCalls.get(id) != call)
+                    return;
+                if (suspended && call.getReply() == null) {
+                    held = true;
+                    return;
+                }
+                if (call.getReply() != null && !replied) {
+                    // replied to without replied() being called; keep the
+                    // reply for whoever comes to collect it
+                    replied = true;
+                    timer.schedule(this, replyKeep);
+                    return;
+                }
+                rpcCalls.remove(id);
+                uncollected.remove(id);
+                call.timeout = null;
+                if (call.getReply() != null) {
+                    metrics.replyUncollected();
+                    return;
                 }
+                expired.put(id, Boolean.TRUE);
             }
+            metrics.callExpired();
+            signalAll();
+        }
+    }
+
+    public RpcHeap(SessionMetrics metrics) {
+        this.metrics = metrics;
+        rpcCalls = new LinkedHashMap<Integer, RpcCall>();
+        uncollected = new LinkedHashMap<Integer, RpcCall>();
+        expired = new LinkedHashMap<Integer, Boolean>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, Boolean> eldest) {
+                return size() > EXPIRED_IDS;
+            }
+        };
+    }
+
+    /**
+     * Blocks until <tt>signalAll()</tt> is called or the timeout (in
+     * milliseconds) has passed, unless one of the given calls has a reply
+     * already.
+     */
+    void awaitReply(Collection<Integer> ids, long timeout)
+            throws InterruptedException {
+        lock.lock();
+        try {
+            // checked with the lock held, so that a reply that arrives
+            // after the caller looked cannot be missed
+            if (getRpcCall(ids, true) == null)
+                changed.await(timeout, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up all threads in <tt>awaitReply()</tt>: a reply has arrived,
+     * or the connection has changed.
+     */
+    void signalAll() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -49,17 +157,175 @@ class RpcHeap {
             return;
 
         synchronized (rpcCalls) {
-            rpcCalls.remove(new Integer(wid));
-            ages.remove(new Integer(wid));
+            Integer id = Integer.valueOf(wid);
+            RpcCall r = rpcCalls.remove(id);
+            uncollected.remove(id);
+            if (r != null && r.timeout != null) {
+                timer.cancel(r.timeout);
+                r.timeout = null;
+            }
         }
     }
 
+    /**
+     * Stores a call, and starts its timeout over if it is stored already.
+     */
     public void addRpcCall(RpcCall r) {
+        boolean full;
         synchronized (rpcCalls) {
-            rpcCalls.put(new Integer(r.getId()), r);
-            ages.put(new Integer(r.getId()),
-                    new Long(System.currentTimeMillis()));
+            Integer id = Integer.valueOf(r.getId());
+            rpcCalls.put(id, r);
+            uncollected.remove(id);
+            expired.remove(id);
+            if (Session.rpcTimeout > 0) {
+                if (r.timeout == null)
+                    r.timeout = new Expiry(r);
+                r.timeout.replied = false;
+                r.timeout.held = false;
+                timer.schedule(r.timeout, Session.rpcTimeout);
+            }
+            full = rpcCalls.size() > maxCalls;
         }
+        if (full && trim())
+            signalAll();
+    }
+
+    /**
+     * Makes room in a full table: drops the oldest uncollected replies, and
+     * then expires the oldest calls without a reply. Returns <tt>true</tt>
+     * if a call expired.
+     */
+    private boolean trim() {
+        int expiredCalls = 0;
+        synchronized (rpcCalls) {
+            while (rpcCalls.size() > maxCalls) {
+                Map<Integer, RpcCall> from = uncollected.isEmpty() ? rpcCalls
+                        : uncollected;
+                Iterator<Map.Entry<Integer, RpcCall>> i = from.entrySet()
+                        .iterator();
+                Map.Entry<Integer, RpcCall> eldest = i.next();
+                i.remove();
+                Integer id = eldest.getKey();
+                RpcCall call = eldest.getValue();
+                rpcCalls.remove(id);
+                if (call.timeout != null) {
+                    timer.cancel(call.timeout);
+                    call.timeout = null;
+                }
+                if (call.getReply() != null) {
+                    metrics.replyUncollected();
+                } else {
+                    expired.put(id, Boolean.TRUE);
+                    expiredCalls++;
+                }
+            }
+        }
+        for (int i = 0; i < expiredCalls; i++)
+            metrics.callExpired();
+        return expiredCalls > 0;
+    }
+
+    /**
+     * Notes that a stored call has got its reply: the reply is kept for
+     * <tt>replyKeep</tt> milliseconds for someone to collect.
+     */
+    void replied(RpcCall r) {
+        synchronized (rpcCalls) {
+            Integer id = Integer.valueOf(r.getId());
+            if (rpcCalls.get(id) != r)
+                return;
+            uncollected.put(id, r);
+            if (r.timeout != null) {
+                r.timeout.replied = true;
+                r.timeout.held = false;
+                timer.schedule(r.timeout, replyKeep);
+            }
+        }
+    }
+
+    /**
+     * Keeps calls without a reply from expiring, until
+     * <tt>resumeExpiry()</tt> is called.
+     */
+    void suspendExpiry() {
+        synchronized (rpcCalls) {
+            suspended = true;
+        }
+    }
+
+    /**
+     * Lets calls expire again, and starts the timeouts over of those that
+     * would have expired meanwhile.
+     */
+    void resumeExpiry() {
+        synchronized (rpcCalls) {
+            suspended = false;
+            for (RpcCall r : rpcCalls.values()) {
+                if (r.timeout != null && r.timeout.held) {
+                    r.timeout.held = false;
+                    timer.schedule(r.timeout, Session.rpcTimeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first of the given calls that has expired without a
+     * reply, or -1.
+     */
+    int getExpired(Collection<Integer> ids) {
+        synchronized (ids) {
+            synchronized (rpcCalls) {
+                for (Integer id : ids)
+                    if (expired.containsKey(id))
+                        return id.intValue();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records a reply that matches no stored call: a late reply to a call
+     * that has expired, or an orphaned one.
+     */
+    void unmatchedReply(int wid) {
+        boolean late;
+        synchronized (rpcCalls) {
+            late = expired.containsKey(new Integer(wid));
+        }
+        if (late)
+            metrics.replyLate();
+        else
+            metrics.replyOrphaned();
+    }
+
+    /**
+     * Returns the number of stored calls.
+     */
+    int size() {
+        synchronized (rpcCalls) {
+            return rpcCalls.size();
+        }
+    }
+
+    /**
+     * Returns the stored calls that have not been replied to, in the order
+     * they were made.
+     */
+    public List<RpcCall> getPendingCalls() {
+        List<RpcCall> pending = new ArrayList<RpcCall>();
+        synchronized (rpcCalls) {
+            for (RpcCall r : rpcCalls.values())
+                if (r.getReply() == null)
+                    pending.add(r);
+        }
+        Collections.sort(pending, new Comparator<RpcCall>() {
+            public int compare(RpcCall a, RpcCall b) {
+                return a.getId() < b.getId() ? -1 : a.getId() == b.getId() ? 0
+                        : 1;
+            }
+        });
+        return pending;
     }
 
     public RpcCall getRpcCall(int wid, boolean reqReply) {
@@ -5,6 +5,12 @@
  */
 package nu.dll.lyskom;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Represents an RPC reply received from the server.
  */
@@ -15,6 +21,16 @@ public class RpcReply {
 
 	RpcFailure exception;
 
+	// set for replies read by a ReplyDecoder: the decoded object and the
+	// raw reply data, from which the parameters are parsed on demand
+	Object decoded;
+	byte[] raw;
+	String charset;
+
+	// timestamps for RpcTrace: when the first token of the reply had been
+	// read, and when the whole reply had been parsed
+	long received, parsed;
+
 	final static int DEBUG = 255;
 
 	RpcReply(boolean good, int id, KomToken[] parameters) {
@@ -25,6 +41,24 @@ public class RpcReply {
 			exception = new RpcFailure(this, null);
 	}
 
+	RpcReply(int id, Object decoded, byte[] raw, String charset) {
+		this.good = true;
+		this.id = id;
+		this.decoded = decoded;
+		this.raw = raw;
+		this.charset = charset;
+	}
+
+	/**
+	 * Returns the object built by the ReplyDecoder for the call, or null if
+	 * the reply was not decoded directly.
+	 * 
+	 * @see nu.dll.lyskom.ReplyDecoder
+	 */
+	Object getDecoded() {
+		return decoded;
+	}
+
 	/**
 	 * Returns <tt>true</tt> if the server indicated that the initiating call
 	 * was successful.
@@ -51,22 +85,51 @@ public class RpcReply {
 	}
 
 	/**
-	 * Return an array of KomToken objects containing all reply data.
+	 * Return an array of KomToken objects containing all reply data. For a
+	 * reply to a call that the library made for its own use and decoded
+	 * directly, this is null, unless an <tt>RpcEventListener</tt> was
+	 * registered when the reply arrived.
 	 */
 	public KomToken[] getParameters() {
+		if (parameters == null && raw != null) {
+			parameters = parseRaw();
+		}
 		return parameters;
 	}
 
+	// false for a directly decoded reply whose raw form was not kept
+	boolean hasParameters() {
+		return parameters != null || raw != null;
+	}
+
+	private KomToken[] parseRaw() {
+		List<KomToken> tokens = new ArrayList<KomToken>();
+		InputStream is = new ByteArrayInputStream(raw);
+		try {
+			KomToken token = null;
+			do {
+				token = KomTokenReader.readToken(token, -1, is, charset);
+				if (token != null)
+					tokens.add(token);
+			} while (token != null && !token.isEol());
+		} catch (IOException ex1) {
+			throw new RuntimeException("Error parsing reply data", ex1);
+		}
+		return tokens.toArray(new KomToken[tokens.size()]);
+	}
+
 	/**
 	 * Returns a string containing information about this object.
 	 */
 	public String toString() {
 		StringBuffer buf = new StringBuffer();
+		KomToken[] parameters = getParameters();
 		if (parameters != null)
 			for (int i = 0; i < parameters.length; i++)
 				buf.append(parameters[i]).append(" ");
 		return "RpcReply(id: " + id + "; OK: " + good + "; "
-				+ parameters.length + " parameters: " + buf.toString() + ")";
+				+ (parameters != null ? parameters.length : 0)
+				+ " parameters: " + buf.toString() + ")";
 	}
 
 }
@@ -0,0 +1,463 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records where the time goes for each RPC call. When tracing is enabled
+ * for a session (see <tt>Session.setTracing()</tt>, or the system property
+ * <tt>lattekom.rpc-trace</tt>), every call is timestamped when it is
+ * created, when it is queued for writing, when the writer thread has written
+ * it to the socket, when the first token of the reply has been read, when
+ * the reply has been parsed and when the thread waiting for it wakes up.
+ * <br>
+ * The timestamps (from <tt>System.nanoTime()</tt>) are kept in a fixed-size
+ * ring buffer which is written without locks; when it is full the oldest
+ * records are overwritten. The contents can be saved to a compact binary file
+ * with <tt>writeTo()</tt> (and read back with <tt>readFrom()</tt>, or printed
+ * by running this class with the file name as argument), or committed as
+ * Java Flight Recorder events with <tt>emitJfrEvents()</tt>.
+ *
+ * @see nu.dll.lyskom.Session#setTracing(int)
+ */
+public class RpcTrace {
+
+    final static int MAGIC = 0x4c4b5452; // "LKTR"
+    final static int VERSION = 1;
+
+    // the layout of a record in the ring buffer; SEQ is written last, and
+    // is the record's sequence number plus one
+    final static int SEQ = 0;
+    final static int ID_OP = 1;
+    final static int CREATED = 2;
+    final static int ENQUEUED = 3;
+    final static int WRITTEN = 4;
+    final static int FIRST_BYTE = 5;
+    final static int PARSED = 6;
+    final static int WOKEN = 7;
+    final static int STRIDE = 8;
+
+    // number of traces in use; calls are only stamped at creation while
+    // this is non-zero
+    static volatile int active = 0;
+
+    AtomicLongArray ring;
+    AtomicLong next = new AtomicLong();
+    int capacity;
+    // whether this trace is counted in active
+    boolean activated = false;
+
+    /**
+     * Creates a trace holding the given number of records (rounded up to a
+     * power of two).
+     */
+    public RpcTrace(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new AtomicLongArray(this.capacity * STRIDE);
+    }
+
+    static synchronized void activate(boolean on) {
+        active += on ? 1 : -1;
+    }
+
+    /**
+     * Counts this trace as in use, or no longer in use. Calling it twice
+     * with the same value does nothing.
+     */
+    synchronized void setActive(boolean on) {
+        if (on == activated)
+            return;
+        activated = on;
+        activate(on);
+    }
+
+    /**
+     * Returns the number of records the ring buffer holds.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of records written since the trace was created
+     * (including those that have since been overwritten).
+     */
+    public long getRecordCount() {
+        return next.get();
+    }
+
+    /**
+     * Records a call whose reply has just been parsed. The time the waiting
+     * thread wakes up is added later, by <tt>woken()</tt>.
+     */
+    void record(RpcCall call, RpcReply reply) {
+        long seq = next.getAndIncrement();
+        int base = (int) (seq & (capacity - 1)) * STRIDE;
+        ring.set(base + SEQ, 0);
+        ring.set(base + ID_OP, ((long) call.getId() << 32) | call.getOp());
+        ring.set(base + CREATED, call.created);
+        ring.set(base + ENQUEUED, call.sent);
+        ring.set(base + WRITTEN, call.written);
+        ring.set(base + FIRST_BYTE, reply.received);
+        ring.set(base + PARSED, reply.parsed);
+        ring.set(base + WOKEN, 0);
+        ring.set(base + SEQ, seq + 1);
+        call.traceSeq = seq + 1;
+    }
+
+    /**
+     * Adds the wakeup time to the record of a call, if the record has not
+     * been overwritten yet.
+     */
+    void woken(RpcCall call) {
+        long seq = call.traceSeq;
+        if (seq == 0)
+            return;
+        int base = (int) ((seq - 1) & (capacity - 1)) * STRIDE;
+        if (ring.get(base + SEQ) == seq)
+            ring.set(base + WOKEN, System.nanoTime());
+    }
+
+    /**
+     * One traced call. Timestamps are in <tt>System.nanoTime()</tt> units,
+     * and are zero when unknown.
+     */
+    public static class Record {
+        int id, op;
+        long created, enqueued, written, firstByte, parsed, woken;
+
+        public int getId() {
+            return id;
+        }
+
+        public int getOp() {
+            return op;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getEnqueued() {
+            return enqueued;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        public long getFirstByte() {
+            return firstByte;
+        }
+
+        public long getParsed() {
+            return parsed;
+        }
+
+        public long getWoken() {
+            return woken;
+        }
+
+        /**
+         * Time spent waiting in the write queue.
+         */
+        public long getQueueTime() {
+            return span(enqueued, written);
+        }
+
+        /**
+         * Time from the write until the first token of the reply was read
+         * (network and server time).
+         */
+        public long getServerTime() {
+            return span(written, firstByte);
+        }
+
+        /**
+         * Time spent reading and parsing the rest of the reply.
+         */
+        public long getParseTime() {
+            return span(firstByte, parsed);
+        }
+
+        /**
+         * Time from the parsed reply was dispatched until the waiting thread
+         * woke up.
+         */
+        public long getWakeupTime() {
+            return span(parsed, woken);
+        }
+
+        /**
+         * Time from the call was queued until the waiting thread woke up
+         * (or the reply was parsed, if nobody waited for it).
+         */
+        public long getTotalTime() {
+            return span(enqueued != 0 ? enqueued : created, woken != 0 ? woken
+                    : parsed);
+        }
+
+        static long span(long from, long to) {
+            return from != 0 && to != 0 ? to - from : -1;
+        }
+
+        public String toString() {
+            return "#" + id + " " + SessionMetrics.getOpName(op) + ": queue "
+                    + micros(getQueueTime()) + ", server "
+                    + micros(getServerTime()) + ", parse "
+                    + micros(getParseTime()) + ", wakeup "
+                    + micros(getWakeupTime()) + ", total "
+                    + micros(getTotalTime()) + " us";
+        }
+
+        static String micros(long nanos) {
+            return nanos < 0 ? "-" : String.valueOf(nanos / 1000);
+        }
+    }
+
+    /**
+     * Returns the records currently in the ring buffer, oldest first.
+     * Records that are being overwritten while they are copied are left out.
+     */
+    public List<Record> getRecords() {
+        long end = next.get();
+        long start = Math.max(0, end - capacity);
+        List<Record> records = new ArrayList<Record>((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            int base = (int) (seq & (capacity - 1)) * STRIDE;
+            if (ring.get(base + SEQ) != seq + 1)
+                continue;
+            Record r = new Record();
+            long idOp = ring.get(base + ID_OP);
+            r.id = (int) (idOp >>> 32);
+            r.op = (int) idOp;
+            r.created = ring.get(base + CREATED);
+            r.enqueued = ring.get(base + ENQUEUED);
+            r.written = ring.get(base + WRITTEN);
+            r.firstByte = ring.get(base + FIRST_BYTE);
+            r.parsed = ring.get(base + PARSED);
+            r.woken = ring.get(base + WOKEN);
+            if (ring.get(base + SEQ) == seq + 1)
+                records.add(r);
+        }
+        return records;
+    }
+
+    /**
+     * Writes the records in the ring buffer to a stream. Each record takes
+     * about 20 bytes: the timestamps are stored as variable-length offsets
+     * from the creation time.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        List<Record> records = getRecords();
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                out));
+        os.writeInt(MAGIC);
+        os.writeInt(VERSION);
+        os.writeInt(records.size());
+        for (Record r : records) {
+            os.writeInt(r.id);
+            writeVarLong(os, r.op);
+            os.writeLong(r.created);
+            writeOffset(os, r.created, r.enqueued);
+            writeOffset(os, r.created, r.written);
+            writeOffset(os, r.created, r.firstByte);
+            writeOffset(os, r.created, r.parsed);
+            writeOffset(os, r.created, r.woken);
+        }
+        os.flush();
+    }
+
+    /**
+     * Reads records written by <tt>writeTo()</tt>.
+     */
+    public static List<Record> readFrom(InputStream in) throws IOException {
+        DataInputStream is = new DataInputStream(new BufferedInputStream(in));
+        if (is.readInt() != MAGIC)
+            throw new IOException("Not an RPC trace file");
+        int version = is.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported RPC trace version " + version);
+        int count = is.readInt();
+        List<Record> records = new ArrayList<Record>(count);
+        for (int i = 0; i < count; i++) {
+            Record r = new Record();
+            r.id = is.readInt();
+            r.op = (int) readVarLong(is);
+            r.created = is.readLong();
+            r.enqueued = readOffset(is, r.created);
+            r.written = readOffset(is, r.created);
+            r.firstByte = readOffset(is, r.created);
+            r.parsed = readOffset(is, r.created);
+            r.woken = readOffset(is, r.created);
+            records.add(r);
+        }
+        return records;
+    }
+
+    // offsets are stored as offset + 1, so that zero can mean "unknown"
+    static void writeOffset(DataOutputStream os, long base, long t)
+            throws IOException {
+        writeVarLong(os, t == 0 || t < base ? 0 : t - base + 1);
+    }
+
+    static long readOffset(DataInputStream is, long base) throws IOException {
+        long v = readVarLong(is);
+        return v == 0 ? 0 : base + v - 1;
+    }
+
+    static void writeVarLong(DataOutputStream os, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            os.write((int) (v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        os.write((int) v);
+    }
+
+    static long readVarLong(DataInputStream is) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = is.read();
+            if (b == -1)
+                throw new EOFException();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Bad variable-length number");
+    }
+
+    /**
+     * Commits one Java Flight Recorder event (named
+     * <tt>nu.dll.lyskom.RpcCall</tt>) per record in the ring buffer, with the
+     * call's id, op and the time spent in each stage. The events are created
+     * through reflection, so this works without JFR on the class path; it
+     * returns the number of events committed, or -1 if JFR is not available.
+     */
+    public int emitJfrEvents() {
+        JfrEvents jfr = JfrEvents.get();
+        if (jfr == null)
+            return -1;
+        List<Record> records = getRecords();
+        for (Record r : records)
+            jfr.commit(r);
+        return records.size();
+    }
+
+    /**
+     * Builds a JFR event type with <tt>jdk.jfr.EventFactory</tt>, using
+     * reflection only.
+     */
+    static class JfrEvents {
+        final static String[] fields = { "id", "op", "queueTime",
+                "serverTime", "parseTime", "wakeupTime", "totalTime" };
+
+        static JfrEvents instance = null;
+        static boolean failed = false;
+
+        Object factory;
+        Method newEvent, set, commit;
+
+        static synchronized JfrEvents get() {
+            if (instance == null && !failed) {
+                try {
+                    instance = new JfrEvents();
+                } catch (Exception ex1) {
+                    Debug.println("JFR events not available: " + ex1);
+                    failed = true;
+                }
+            }
+            return instance;
+        }
+
+        JfrEvents() throws Exception {
+            Class<?> annotationElement = Class
+                    .forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Constructor<?> annotation = annotationElement.getConstructor(
+                    Class.class, Object.class);
+            Constructor<?> value = valueDescriptor.getConstructor(Class.class,
+                    String.class, List.class);
+
+            List<Object> eventAnnotations = new ArrayList<Object>();
+            eventAnnotations.add(annotation.newInstance(Class
+                    .forName("jdk.jfr.Name"), "nu.dll.lyskom.RpcCall"));
+            eventAnnotations.add(annotation.newInstance(Class
+                    .forName("jdk.jfr.Label"), "LysKOM RPC Call"));
+            eventAnnotations.add(annotation.newInstance(Class
+                    .forName("jdk.jfr.Category"), new String[] { "LysKOM" }));
+            eventAnnotations.add(annotation.newInstance(Class
+                    .forName("jdk.jfr.StackTrace"), Boolean.FALSE));
+
+            Object timespan = annotation.newInstance(Class
+                    .forName("jdk.jfr.Timespan"), "NANOSECONDS");
+            List<Object> values = new ArrayList<Object>();
+            for (int i = 0; i < fields.length; i++) {
+                List<Object> a = i < 2 ? Collections.emptyList() : Collections
+                        .singletonList(timespan);
+                values.add(value.newInstance(i == 1 ? String.class
+                        : (i == 0 ? Integer.TYPE : Long.TYPE), fields[i], a));
+            }
+            factory = eventFactory.getMethod("create", List.class, List.class)
+                    .invoke(null, eventAnnotations, values);
+            newEvent = eventFactory.getMethod("newEvent");
+            set = event.getMethod("set", Integer.TYPE, Object.class);
+            commit = event.getMethod("commit");
+        }
+
+        void commit(Record r) {
+            try {
+                Object e = newEvent.invoke(factory);
+                set.invoke(e, 0, Integer.valueOf(r.id));
+                set.invoke(e, 1, SessionMetrics.getOpName(r.op));
+                set.invoke(e, 2, Long.valueOf(r.getQueueTime()));
+                set.invoke(e, 3, Long.valueOf(r.getServerTime()));
+                set.invoke(e, 4, Long.valueOf(r.getParseTime()));
+                set.invoke(e, 5, Long.valueOf(r.getWakeupTime()));
+                set.invoke(e, 6, Long.valueOf(r.getTotalTime()));
+                commit.invoke(e);
+            } catch (Exception ex1) {
+                Debug.println("Could not commit JFR event: " + ex1);
+            }
+        }
+    }
+
+    /**
+     * Prints the records in a trace file.
+     */
+    public static void main(String[] argv) throws IOException {
+        if (argv.length != 1) {
+            System.err.println("Usage: RpcTrace <trace file>");
+            System.exit(1);
+        }
+        InputStream in = new FileInputStream(argv[0]);
+        try {
+            List<Record> records = readFrom(in);
+            for (Record r : records)
+                System.out.println(r);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -47,6 +47,26 @@ public class Selection implements Serializable, Tokenizable {
         keyList = new LinkedList<Integer>();
     }
 
+    /**
+     * For subclasses that keep their data elsewhere and override all
+     * accessors.
+     */
+    Selection(Map<Integer, Object> values, LinkedList<Integer> keyList) {
+        this.values = values;
+        this.keyList = keyList;
+    }
+
+    /**
+     * Returns a detached copy of this Selection.
+     */
+    public Selection copy() {
+        Selection s = new Selection();
+        int[] keys = getKeys();
+        for (int i = 0; i < keys.length; i++)
+            s.add(keys[i], get(keys[i]));
+        return s;
+    }
+
     /**
      * Adds the tag <tt>key</tt> to this Selection. The supplied object may be
      * null to indicate a tag without a trailing value.
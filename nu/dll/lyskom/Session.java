@@ -11,6 +11,11 @@ import java.io.*;
 import java.util.*;
 import java.lang.ref.*;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLSocketFactory;
+
 /**
  * <p>
  * This is the main interface to the LysKOM server and the LatteKOM library.
@@ -49,15 +54,17 @@ import java.lang.ref.*;
  * <p>
  * Asynchronous messages can be received by clients by registering
  * <tt>AsynchMessageReceiver</tt> objects with the
- * <tt>addAsynchMessageReceiver</tt> method. The objects'
- * <tt>asynchMessage()</tt> method will be called by the network read thread at
- * the moment a message has been received and parsed into an
- * <tt>AsynchMessage</tt> object. As the <tt>asynchMessage()</tt> method will be
- * executed by the thread responsible for reading server messages, no server
- * messages will be read during the execution of the receiver's method. Most
- * notably, the receiving method must not send an RPC call and then call the
- * waitFor() method to wait for the reply (this will cause an
- * <tt>IOException</tt> to be thrown by the waitFor() method).
+ * <tt>addAsynchMessageReceiver</tt> method. Each receiver gets a
+ * <tt>DispatchQueue</tt>: the network read thread puts every
+ * <tt>AsynchMessage</tt> on the queue, and the receiver's
+ * <tt>asynchMessage()</tt> method is called, in order, by a thread of its
+ * own. A slow receiver thus does not hold up the reading of server messages
+ * until its queue is full, and the receiving method may send RPC calls and
+ * wait for their replies. What happens when the queue is full is up to its
+ * overflow policy. With the <tt>SYNCHRONOUS</tt> policy, the receiver is
+ * called by the read thread itself, and must then not call the waitFor()
+ * method (this will cause an <tt>IOException</tt> to be thrown by the
+ * waitFor() method). <tt>RpcEventListener</tt>s get queues in the same way.
  * </p>
  * <p>
  * The LatteKOM library keeps caches of texts, conferences, persons and
@@ -228,7 +235,27 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     List<Membership> unreadMembership;
 
     boolean prefetch = Boolean.getBoolean("lattekom.enable-prefetch");
-    List<Integer> textPrefetchQueue;
+    // the most get-uconf-stat calls getUConfStats() has outstanding
+    static int bulkWindow = Integer.getInteger("lattekom.bulk-window", 32)
+            .intValue();
+    /**
+     * Told when the session is disconnected, or its connection is lost for
+     * good. The cause is null after <tt>disconnect()</tt>.
+     */
+    interface DisconnectListener {
+        void disconnected(IOException cause);
+    }
+
+    // the subscriptions of AsynchPublishers, see getAsynchPublisher()
+    final List<DisconnectListener> disconnectListeners = new java.util.concurrent.CopyOnWriteArrayList<DisconnectListener>();
+
+    // see getWhoIsOn(); published once started, under whoIsOnLock
+    volatile WhoIsOn whoIsOn = null;
+    final Object whoIsOnLock = new Object();
+
+    // see setNewTextWarming()
+    boolean newTextWarming = !"false".equals(System
+            .getProperty("lattekom.new-text-warming"));
 
     int currentConference = -1;
 
@@ -237,8 +264,44 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     ConferenceCache conferenceCache;
     MembershipCache membershipCache;
     TextStatCache textStatCache;
+    NegativeCache negativeCache;
     Map<Integer, SessionInfo> sessionCache;
 
+    final static Debug.Channel debug = Debug.channel("session");
+
+    final ReentrantLock textLock = new ReentrantLock();
+
+    SessionMetrics metrics = new SessionMetrics();
+    volatile RpcTrace trace = null;
+    WireCapture wireCapture = null;
+
+    static int wireCaptureCount = 0;
+
+    // automatic reconnection, see setAutoReconnect()
+    boolean autoReconnect = Boolean.getBoolean("lattekom.auto-reconnect");
+    int reconnectAttempts = Integer.getInteger("lattekom.reconnect-attempts",
+            8).intValue();
+    volatile boolean reconnecting = false;
+    Thread reconnectThread = null;
+    final Object reconnectLock = new Object();
+    // calls made while reconnecting, not yet sent
+    Set<RpcCall> deferredCalls = new HashSet<RpcCall>();
+    // calls that were lost with the connection and could not be resent
+    Set<Integer> lostCalls = new HashSet<Integer>();
+    int reconnectCount = 0;
+
+    static int reconnectThreadCount = 0;
+
+    // what it takes to bring a new connection to the same state; the
+    // password is kept in plain text from login() until logout() or
+    // disconnect(), see setAutoReconnect()
+    byte[] loginPassword = null;
+    boolean loginHidden = false;
+    int[] acceptedAsync = null;
+    String clientName = null;
+    String clientVersion = null;
+    SSLSocketFactory sslFactory = null;
+
     Map<String, Object> sessionAttributes = new HashMap<String, Object>();
 
     ReadTextsMap readTexts;
@@ -247,6 +310,13 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
 
     Vector<RpcEventListener> rpcEventListeners;
 
+    // the queues of the application's asynch message receivers and of its
+    // RPC event listeners, by receiver; guarded by dispatchLock, which is
+    // also held while receivers are added and removed
+    Map<Object, DispatchQueue> asynchQueues = new HashMap<Object, DispatchQueue>();
+    Map<Object, DispatchQueue> rpcQueues = new HashMap<Object, DispatchQueue>();
+    final Object dispatchLock = new Object();
+
     Person myPerson = null;
     int myPersonNo = 0;
     int mySessionNo = 0;
@@ -271,7 +341,9 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     int bigTextHead = defaultBigTextHead;
     int lazyTextLimit = defaultLazyTextLimit;
 
-    List<AsynchMessage> pendingAsynchMessages = new LinkedList<AsynchMessage>();
+    // messages stored for getAsynchMessage(), see setStoreAsynchMessages()
+    AsynchInbox asynchInbox = new AsynchInbox(Integer.getInteger(
+            "lattekom.asynch-inbox-size", 4096).intValue());
     boolean storeAsynchMessages = false;
 
     Map<String, Object> serverInfo = null;
@@ -284,14 +356,26 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         conferenceCache = new ConferenceCache();
         membershipCache = new MembershipCache();
         textStatCache = new TextStatCache();
+        negativeCache = new NegativeCache();
         sessionCache = new HashMap<Integer, SessionInfo>();
         readTexts = new ReadTextsMap();
-        rpcHeap = new RpcHeap();
+        rpcHeap = new RpcHeap(metrics);
         rpcEventListeners = new Vector<RpcEventListener>(1);
         mainThread = Thread.currentThread();
-        textPrefetchQueue = new LinkedList<Integer>();
         invoker = new AsynchInvoker();
-        invoker.setDaemon(true);
+        metrics.invoker = invoker;
+        setTracing(Integer.getInteger("lattekom.rpc-trace", 0).intValue());
+        String capturePath = System.getProperty("lattekom.wire-capture");
+        if (capturePath != null) {
+            try {
+                synchronized (Session.class) {
+                    wireCapture = new WireCapture(capturePath + "-"
+                            + wireCaptureCount++);
+                }
+            } catch (IOException ex1) {
+                log.error("Could not start wire capture: " + ex1);
+            }
+        }
     }
 
     Thread mainThread;
@@ -304,6 +388,18 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         enableBigText = b;
     }
 
+    /**
+     * If <tt>true</tt> (the default, unless the system property
+     * <tt>lattekom.new-text-warming</tt> is <tt>false</tt>), a new-text
+     * message also updates the number of texts in cached conference
+     * statuses, and extends cached local-to-global mappings of its
+     * recipients, so that the new text can be found without asking the
+     * server. The text-stat in the message is always cached.
+     */
+    public void setNewTextWarming(boolean b) {
+        newTextWarming = b;
+    }
+
     public void setStoreAsynchMessages(boolean b) {
         storeAsynchMessages = b;
     }
@@ -337,6 +433,34 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         sessionCache.clear();
         personCache.clear();
         readTexts.clear();
+        negativeCache.clear();
+    }
+
+    /**
+     * Sets how long, in seconds, failed lookups of conferences and texts
+     * (undefined, deleted or inaccessible) are remembered, so that asking
+     * again throws the same failure without a server call. The default is
+     * <tt>lattekom.negative-cache-ttl</tt> (60); 0 turns this off.
+     */
+    public void setNegativeCacheTTL(int seconds) {
+        negativeCache.setTtl(seconds * 1000L);
+    }
+
+    // throws the remembered failure of a lookup, if there is one
+    void checkNegative(int type, int no) throws RpcFailure {
+        RpcFailure f = negativeCache.get(type, no);
+        if (f != null) {
+            metrics.cacheHit(SessionMetrics.CACHE_NEGATIVE);
+            throw f;
+        }
+    }
+
+    // remembers the failure of a lookup, if it is of a kind that is
+    // remembered, and returns it
+    RpcFailure addNegative(int type, int no, RpcFailure f) {
+        if (negativeCache.add(type, no, f))
+            metrics.cacheMiss(SessionMetrics.CACHE_NEGATIVE);
+        return f;
     }
 
     /**
@@ -348,8 +472,63 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         textStatCache.remove(textNo);
     }
 
-    public void invokeLater(Runnable r) {
-        invoker.enqueue(r);
+    /**
+     * Returns the session's live list of who is on, starting it on the first
+     * call. It includes visible and invisible sessions, active within
+     * <tt>lattekom.who-is-on.active-last</tt> seconds (0, meaning all, by
+     * default).
+     * 
+     * Must not be called before connect()
+     * 
+     * @see nu.dll.lyskom.WhoIsOn
+     */
+    public WhoIsOn getWhoIsOn() throws IOException {
+        WhoIsOn w = whoIsOn;
+        if (w != null)
+            return w;
+        synchronized (whoIsOnLock) {
+            if (whoIsOn != null)
+                return whoIsOn;
+            w = new WhoIsOn(this);
+            // only handed out once it has been fetched; if that fails, the
+            // next call tries again
+            w.start(true, true, Integer.getInteger(
+                    "lattekom.who-is-on.active-last", 0).intValue());
+            whoIsOn = w;
+        }
+        return w;
+    }
+
+    /**
+     * Runs a task in a thread of the invoker, after the tasks queued before
+     * it with this method. The task may wait for the server. Returns false
+     * if too many tasks are waiting. Tasks that have not started when the
+     * session is disconnected are dropped.
+     * 
+     * @see nu.dll.lyskom.AsynchInvoker
+     */
+    public boolean invokeLater(Runnable r) {
+        return invoker.enqueue(r);
+    }
+
+    /**
+     * Runs a task in a thread of the invoker pool, after the tasks queued
+     * before it with the same key, but not necessarily after other tasks.
+     * The pool is shared by all sessions, so the task must not block; use
+     * <tt>invokeLater(Runnable)</tt> for tasks that wait for the server.
+     * Returns false if too many tasks are waiting.
+     * 
+     * @see nu.dll.lyskom.AsynchInvoker
+     */
+    public boolean invokeLater(Object key, Runnable r) {
+        return invoker.enqueue(key, r);
+    }
+
+    /**
+     * Returns the invoker that runs tasks for this session.
+     */
+    public AsynchInvoker getInvoker() {
+        return invoker;
     }
 
     /**
@@ -379,14 +558,82 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      * @see nu.dll.lyskom.RpcEvent
      */
     public void addRpcEventListener(RpcEventListener l) {
-        rpcEventListeners.addElement(l);
+        addRpcEventListener(l, DispatchQueue.defaultPolicy,
+                DispatchQueue.defaultCapacity);
+    }
+
+    /**
+     * Adds an RPC reply listener, to be called through a
+     * <tt>DispatchQueue</tt> with the given policy and capacity. Adding a
+     * listener that has already been added has no effect.
+     * 
+     * @see nu.dll.lyskom.DispatchQueue
+     */
+    public void addRpcEventListener(RpcEventListener l, int policy,
+            int capacity) {
+        synchronized (dispatchLock) {
+            if (rpcQueues.containsKey(l) || rpcEventListeners.contains(l)) {
+                Debug.println("RPC event listener " + l + " already added");
+                return;
+            }
+            rpcEventListeners.addElement((RpcEventListener) queueFor(
+                    rpcQueues, l, policy, capacity));
+        }
     }
 
     /**
      * Removes an RPC reply listener.
      */
     public void removeRpcEventListener(RpcEventListener l) {
-        rpcEventListeners.removeElement(l);
+        synchronized (dispatchLock) {
+            DispatchQueue q = removeQueue(rpcQueues, l);
+            rpcEventListeners.removeElement(q != null ? q : l);
+        }
+    }
+
+    // true if an RPC event listener other than the session itself is
+    // registered; their events must carry the reply parameters
+    boolean hasRpcEventListeners() {
+        synchronized (rpcEventListeners) {
+            int n = rpcEventListeners.size();
+            return n > 1 || n == 1 && rpcEventListeners.elementAt(0) != this;
+        }
+    }
+
+    // wraps an application receiver in a DispatchQueue, unless it is to be
+    // called synchronously; must be called with dispatchLock held
+    private Object queueFor(Map<Object, DispatchQueue> queues,
+            Object receiver, int policy, int capacity) {
+        if (policy == DispatchQueue.SYNCHRONOUS)
+            return receiver;
+        DispatchQueue q = new DispatchQueue(receiver, policy, capacity);
+        queues.put(receiver, q);
+        metrics.dispatchQueues.add(q);
+        return q;
+    }
+
+    // must be called with dispatchLock held
+    private DispatchQueue removeQueue(Map<Object, DispatchQueue> queues,
+            Object receiver) {
+        DispatchQueue q = queues.remove(receiver);
+        if (q != null) {
+            metrics.dispatchQueues.remove(q);
+            q.close();
+        }
+        return q;
+    }
+
+    /**
+     * Returns the dispatch queues of the registered receivers and
+     * listeners, for their depth and lag metrics.
+     */
+    public DispatchQueue[] getDispatchQueues() {
+        synchronized (dispatchLock) {
+            List<DispatchQueue> all = new ArrayList<DispatchQueue>(
+                    asynchQueues.values());
+            all.addAll(rpcQueues.values());
+            return all.toArray(new DispatchQueue[all.size()]);
+        }
     }
 
     /**
@@ -431,6 +678,11 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      */
     public void disconnect(boolean force) throws IOException {
         mySessionNo = 0;
+        synchronized (reconnectLock) {
+            if (reconnectThread != null)
+                reconnectThread.interrupt();
+            clearLoginPassword();
+        }
 
         // if we're not connected, then state could never be anything
         // but STATE_DISCONNECTED, right? So we can return without
@@ -462,6 +714,20 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         } catch (Exception e) {
             log.error("Exception in " + this + "::disconnect() 4: " + e);
         }
+        notifyDisconnected(null);
+        metrics.unregister();
+        // the trace can still be read, but calls are no longer stamped
+        // for it
+        RpcTrace t = trace;
+        if (t != null)
+            t.setActive(false);
+        if (wireCapture != null) {
+            try {
+                wireCapture.close();
+            } catch (IOException e) {
+                log.error("Exception in " + this + "::disconnect() 6: " + e);
+            }
+        }
 
         if (connection != null) {
             try {
@@ -506,10 +772,28 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         this.port = port;
         this.useSSL = useSSL;
         this.cert_level = cert_level;
+        sslFactory = null;
         
         connection = new Connection(this, root_stream);
         reader = new KomTokenReader(connection.getInputStream(), this);
+        handshake();
+
+        listener = new MessageListener(this);
+        listener.addRpcReplyReceiver(this);
+        listener.addAsynchMessageReceiver(this);
+        listener.setAsynch(true);
+        addRpcEventListener(this, DispatchQueue.SYNCHRONOUS, 0);
+        if (Boolean.getBoolean("lattekom.jmx"))
+            metrics.register(this);
+        // stopped by an earlier disconnect
+        RpcTrace t = trace;
+        if (t != null)
+            t.setActive(true);
+        state = STATE_CONNECTED;
+        return connected = true;
+    }
 
+    private void handshake() throws IOException {
         byte[] userdata = new Hollerith(clientUser
                 + (clientHost != null ? "%" + clientHost : "")).toNetwork();
         byte[] handshake = new byte[userdata.length + 1];
@@ -521,14 +805,6 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         String serverResponse = new String(reader.readToken().getContents());
         if (!serverResponse.equals("LysKOM"))
             throw (new KomProtocolException("Bad handshake: " + serverResponse));
-
-        listener = new MessageListener(this);
-        listener.addRpcReplyReceiver(this);
-        listener.addAsynchMessageReceiver(this);
-        listener.setAsynch(true);
-        addRpcEventListener(this);
-        state = STATE_CONNECTED;
-        return connected = true;
     }
 
     public String toString(byte[] buf) throws UnsupportedEncodingException {
@@ -588,17 +864,68 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     }
 
     /**
-     * Adds a listener for asynchronous messages.
-     * 
-     * At the moment, registered receivers must return quickly, and
-     * specifically, may not call the waitFor() method.
+     * Connect to specified server/port number without SSL and do initial
+     * handshake
+     *
+     * @param server
+     *            The host name of the server
+     * @param port
+     *            Port number to use (normally 4894)
+     * @return <tt>true</tt> if the connection was successful
+     */
+    public boolean connect(String server, int port) throws IOException,
+            ProtocolException {
+        return connect(server, port, false, 0, null);
+    }
+
+    /**
+     * Connect to specified server on the default port (4894) without SSL and
+     * do initial handshake
+     *
+     * @param server
+     *            The host name of the server
+     * @return <tt>true</tt> if the connection was successful
+     */
+    public boolean connect(String server) throws IOException,
+            ProtocolException {
+        return connect(server, port);
+    }
+
+    /**
+     * Adds a listener for asynchronous messages, to be called through a
+     * <tt>DispatchQueue</tt> with the default policy and capacity.
      * 
      * Must not be called before connect()
      * 
      * @see nu.dll.lyskom.AsynchMessageReceiver
      */
     public void addAsynchMessageReceiver(AsynchMessageReceiver a) {
-        listener.addAsynchMessageReceiver(a);
+        addAsynchMessageReceiver(a, DispatchQueue.defaultPolicy,
+                DispatchQueue.defaultCapacity);
+    }
+
+    /**
+     * Adds a listener for asynchronous messages, to be called through a
+     * <tt>DispatchQueue</tt> with the given policy and capacity. With the
+     * <tt>SYNCHRONOUS</tt> policy, the receiver is called by the network
+     * read thread, must return quickly, and may not call the waitFor()
+     * method. Adding a receiver that has already been added has no effect.
+     * 
+     * Must not be called before connect()
+     * 
+     * @see nu.dll.lyskom.DispatchQueue
+     */
+    public void addAsynchMessageReceiver(AsynchMessageReceiver a, int policy,
+            int capacity) {
+        synchronized (dispatchLock) {
+            if (asynchQueues.containsKey(a)
+                    || listener.asynchReceivers.contains(a)) {
+                Debug.println("asynch receiver " + a + " already added");
+                return;
+            }
+            listener.addAsynchMessageReceiver((AsynchMessageReceiver) queueFor(
+                    asynchQueues, a, policy, capacity));
+        }
     }
 
     /**
@@ -607,7 +934,10 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      * @see nu.dll.lyskom.Session#addAsynchMessageReceiver(AsynchMessageReceiver)
      */
     public void removeAsynchMessageReceiver(AsynchMessageReceiver a) {
-        listener.removeAsynchMessageReceiver(a);
+        synchronized (dispatchLock) {
+            DispatchQueue q = removeQueue(asynchQueues, a);
+            listener.removeAsynchMessageReceiver(q != null ? q : a);
+        }
     }
 
     /**
@@ -727,6 +1057,10 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     		reply = waitFor(rpcid);
     		loggedIn = reply.getSuccess();
     		if (loggedIn) {
+    			// what could not be seen may be visible to this person
+    			negativeCache.clear();
+    			loginPassword = password.clone();
+    			loginHidden = hidden;
     			myPerson = getPersonStat(id);
     			myPersonNo = myPerson.getNo();
     			myPerson.uconf = getUConfStat(id);
@@ -782,6 +1116,36 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         return membershipCache.get(confNo);
     }
 
+    /**
+     * Fetches, after login, what <tt>getMyPerson()</tt>,
+     * <tt>getMyMembershipList()</tt>, <tt>updateUnreads()</tt>,
+     * <tt>getUserArea()</tt> and <tt>getInfo()</tt> would, but with the calls
+     * that do not depend on each other sent at once, and the others sent as
+     * soon as what they need has arrived. On a slow link this takes a few
+     * round trips instead of one per call. The returned object tells how
+     * long it took until the first conference with unread texts was known.
+     * 
+     * @see nu.dll.lyskom.WarmUp
+     * @see nu.dll.lyskom.WarmUpOptions
+     */
+    public WarmUp warmUp(WarmUpOptions options) throws IOException,
+            RpcFailure {
+        if (!loggedIn)
+            throw new IllegalStateException("warmUp() called before login");
+        WarmUp w = new WarmUp(this, options);
+        w.run();
+        if (Debug.ENABLED)
+            Debug.println("warmUp(): " + w);
+        return w;
+    }
+
+    /**
+     * Equal to <tt>warmUp(new WarmUpOptions())</tt>.
+     */
+    public WarmUp warmUp() throws IOException, RpcFailure {
+        return warmUp(new WarmUpOptions());
+    }
+
     /**
      * Updates the unreadMembership array with Membership objects for
      * conferences that may contain unreads.
@@ -825,9 +1189,10 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         synchronized (unreadsConferences) {
             for (Iterator<Integer> i = unreadsConferences.iterator(); i.hasNext();) {
                 int conf = i.next().intValue();
-                pendingCalls.add(new Integer(doGetUConfStat(conf).getId()));
+                pendingCalls.add(Integer.valueOf(doGetUConfStat(conf)
+                        .decodedOnly().getId()));
                 pendingCalls.add(new Integer(doQueryReadTexts(persNo, conf)
-                        .getId()));
+                        .decodedOnly().getId()));
             }
         }
 
@@ -836,12 +1201,11 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         while (pendingCalls.size() > 0) {
             RpcCall rc = waitForCall(pendingCalls);
             if (rc.getOp() == Rpc.C_get_uconf_stat) {
-                conferenceCache.add(new UConference(rc.getParameter(0)
-                        .intValue(), rc.getReply().getParameters()));
+                conferenceCache.add(UConference.createFrom(rc.getParameter(0)
+                        .intValue(), rc.getReply()));
             } else if (rc.getOp() == Rpc.C_query_read_texts
                     || rc.getOp() == Rpc.C_query_read_texts_10) {
-                membershipCache.add(Membership.createFrom(0, rc.getReply()
-                        .getParameters(),
+                membershipCache.add(Membership.createFrom(rc.getReply(),
                         rc.getOp() == Rpc.C_query_read_texts_10));
             } else {
                 throw new RuntimeException("Unexpected RPC reply " + rc.getOp());
@@ -862,8 +1226,9 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
                 int conf = ((Integer) unreadsCopy.get(i)).intValue();
                 Membership m = queryReadTexts(persNo, conf);
                 if (m.getPriority() < minPrio) {
-                    Debug.println("updateUnreads(): skipping conf " + conf
-                            + " with prio " + m.getPriority());
+                    debug.log(Debug.FINE,
+                            "updateUnreads(): skipping conf {} with prio {}",
+                            conf, m.getPriority());
                     continue;
                 }
 
@@ -892,27 +1257,20 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     // send them in batches to the server with mark-as-read.
     public void markAsRead(int textNo) throws IOException, RpcFailure {
         TextStat stat = getTextStat(textNo, true);
-        Debug.println("markAsRead(" + textNo + "): text-stat is " + stat);
-        List<Selection> recipientSelections = new LinkedList<Selection>();
-        int[] tags = { TextStat.miscRecpt, TextStat.miscCcRecpt,
-                TextStat.miscBccRecpt };
-        for (int i = 0; i < tags.length; i++) {
-            recipientSelections.addAll(stat.getMiscInfoSelections(tags[i]));
-        }
-
-        Iterator<?> recipientIterator = recipientSelections.iterator();
-        while (recipientIterator.hasNext()) {
-            Selection selection = (Selection) recipientIterator.next();
-            int rcpt = 0;
-            for (int i = 0; i < tags.length; i++) {
-                if (selection.contains(tags[i]))
-                    rcpt = selection.getIntValue(tags[i]);
-            }
+        if (debug.isOn(Debug.FINE))
+            debug.log(Debug.FINE, "markAsRead({}): text-stat is {}", Integer
+                    .valueOf(textNo), stat);
+        int count = stat.getMiscInfoCount();
+        for (int g = 0; g < count; g++) {
+            if (!stat.isRecipientGroup(g))
+                continue;
+            int rcpt = stat.getMiscInfoValue(g);
             if (rcpt > 0 && isMemberOf(rcpt)) {
-                int local = selection.getIntValue(TextStat.miscLocNo);
-                Debug.println("markAsRead: global " + textNo + " rcpt " + rcpt
-                        + " local " + local);
-                markAsRead(rcpt, new int[] { local });
+                int local = stat.getMiscInfoInt(g, TextStat.miscLocNo);
+                debug.log(Debug.FINE, "markAsRead: global {} rcpt {} local {}",
+                        textNo, rcpt, local);
+                if (local > 0)
+                    markAsRead(rcpt, new int[] { local });
             }
         }
         // add the text to the ReadTextsMap
@@ -1162,8 +1520,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
                     cuconf.setHighestLocalNo(localTextNo[i]);
                 }
             }
-            Debug.println("marked local " + localTextNo[i] + " in conf "
-                    + confNo + " as read");
+            debug.log(Debug.FINE, "marked local {} in conf {} as read",
+                    localTextNo[i], confNo);
         }
     }
 
@@ -1241,6 +1599,10 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         RpcReply reply = waitFor(doGetInfo());
         if (!reply.getSuccess())
             throw reply.getException();
+        return serverInfo = parseInfo(reply);
+    }
+
+    static Map<String, Object> parseInfo(RpcReply reply) {
         KomToken[] data = reply.getParameters();
 
         Map<String, Object> info = new HashMap<String, Object>();
@@ -1263,7 +1625,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         }
         info.put("aux-item-list", auxItems);
 
-        return serverInfo = Collections.unmodifiableMap(info);
+        return Collections.unmodifiableMap(info);
     }
 
     public List<String> getAllowedContentTypes() throws IOException, RpcFailure {
@@ -1382,6 +1744,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      */
     public RpcCall doSetClientVersion(String clientName, String clientVersion)
             throws IOException {
+        this.clientName = clientName;
+        this.clientVersion = clientVersion;
         return writeRpcCall(new RpcCall(count(), Rpc.C_set_client_version).add(
                 new Hollerith(clientName)).add(new Hollerith(clientVersion)));
     }
@@ -1439,7 +1803,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      * @see nu.dll.lyskom.Session#getText(int)
      * 
      */
-    public synchronized Text getText(int textNo, boolean refreshCache)
+    public Text getText(int textNo, boolean refreshCache)
             throws IOException, RpcFailure {
         return getText(textNo, refreshCache, true);
     }
@@ -1458,20 +1822,36 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      * @see nu.dll.lyskom.Session#getText(int)
      * 
      */
-    public synchronized Text getText(int textNo, boolean refreshCache,
+    public Text getText(int textNo, boolean refreshCache,
+            boolean useLazyText) throws IOException, RpcFailure {
+        // one text at a time, as before, but without holding the session's
+        // monitor (and with it count()) while waiting for the server
+        textLock.lock();
+        try {
+            return getTextLocked(textNo, refreshCache, useLazyText);
+        } finally {
+            textLock.unlock();
+        }
+    }
+
+    private Text getTextLocked(int textNo, boolean refreshCache,
             boolean useLazyText) throws IOException, RpcFailure {
         if (textNo == 0)
             throw new RuntimeException("attempt to retrieve text zero");
         if (textNo < 0)
             throw new RuntimeException("attempt to retrieve negative text number");
 
-        Debug.println("** getText(): getting text " + textNo
-                + "; refreshCache: " + refreshCache);
+        if (debug.isOn(Debug.FINE))
+            debug.log(Debug.FINE, "** getText(): getting text {}; refreshCache: {}",
+                    Integer.valueOf(textNo), Boolean.valueOf(refreshCache));
 
         Text text = refreshCache ? null : textCache.get(textNo);
+        if (!refreshCache)
+            cacheLookup(SessionMetrics.CACHE_TEXT, text);
         if (text != null) {
             text.setCached(true);
-            Debug.println("** getText(): Returning cached text " + textNo);
+            debug.log(Debug.FINE, "** getText(): Returning cached text {}",
+                    textNo);
             return text;
         }
 
@@ -1484,12 +1864,12 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         int contentLimit = textStat.getSize();
 
         if (enableBigText && textIsBig) {
-            Debug.println("Creating a BigText");
+            debug.log(Debug.FINE, "Creating a BigText");
             text = new BigText(this, textNo);
             contentLimit = bigTextHead;
         } else {
             if (useLazyText) {
-                Debug.println("Creating a LazyText");
+                debug.log(Debug.FINE, "Creating a LazyText");
                 text = new LazyText(this, textNo);
                 contentLimit = textStat.getSize() > lazyTextLimit ? lazyTextLimit
                         : textStat.getSize();
@@ -1507,16 +1887,15 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
 
         RpcReply reply = waitFor(textReq.getId());
         if (!reply.getSuccess())
-            throw reply.getException();
+            throw addNegative(NegativeCache.TEXT, textNo, reply.getException());
 
         text.setContents(reply.getParameters()[0].getContents());
         if (isCachableType(text.getContentType())) {
             textCache.add(text);
         } else {
-            if (Debug.ENABLED) {
-                Debug.println("Not caching " + text + " ("
-                        + text.getContentType() + ")");
-            }
+            if (debug.isOn(Debug.FINE))
+                debug.log(Debug.FINE, "Not caching {} ({})", text, text
+                        .getContentType());
         }
         return text;
     }
@@ -1674,6 +2053,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      *            contain
      * @see nu.dll.lyskom.Session#doLocalToGlobal(int, int, int)
      */
+    // keyed by conference, first local number and number of texts;
+    // prefixed with "r" for reverse mappings and "c" for created texts
     Map<String, SoftReference<TextMapping>> ltgCache = new HashMap<String, SoftReference<TextMapping>>();
 
     public TextMapping localToGlobal(int confNo, int firstLocalNo,
@@ -1690,7 +2071,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         }
 
         if (m != null) {
-            Debug.println("returning cached TextMapping " + m);
+            debug.log(Debug.FINE, "returning cached TextMapping {}", m);
             m.first();
             return m;
         }
@@ -1705,15 +2086,15 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             existingTextsLeft = noOfExistingTexts - offset;
             int _noOfExistingTexts = existingTextsLeft > 255 ? 255
                     : existingTextsLeft;
-            Debug.println("Doing local-to-global " + confNo + ", "
-                    + (firstLocalNo + offset) + ", " + _noOfExistingTexts);
+            debug.log(Debug.FINE, "Doing local-to-global {}, {}, {}", confNo,
+                    firstLocalNo + offset, _noOfExistingTexts);
             RpcReply r = waitFor(doLocalToGlobal(confNo, firstLocalNo + offset,
-                    _noOfExistingTexts).getId());
+                    _noOfExistingTexts).decodedOnly().getId());
             if (!r.getSuccess())
                 throw new RpcFailure(r, "in localToGloal(" + confNo + ", "
                         + firstLocalNo + ", " + noOfExistingTexts + ")");
 
-            m.update(0, r.getParameters(), false);
+            m.update(r, false);
             offset += 255;
         } while (m.laterTextsExists && (noOfExistingTexts - offset) > 0);
 
@@ -1767,7 +2148,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      */
     public TextMapping localToGlobalReverse(int confNo, int firstLocalNo,
             int noOfExistingTexts) throws IOException, RpcFailure {
-        String key = confNo + "-" + firstLocalNo + "-" + noOfExistingTexts;
+        String key = "r" + confNo + "-" + firstLocalNo + "-"
+                + noOfExistingTexts;
         Reference<?> ref;
         TextMapping m;
         synchronized (ltgCache) {
@@ -1776,7 +2158,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         }
 
         if (m != null) {
-            Debug.println("returning cached TextMapping " + m);
+            debug.log(Debug.FINE, "returning cached TextMapping {}", m);
             m.first();
             return m;
         }
@@ -1791,15 +2173,15 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             existingTextsLeft = noOfExistingTexts - offset;
             int _noOfExistingTexts = existingTextsLeft > 255 ? 255
                     : existingTextsLeft;
-            Debug.println("Doing local-to-global-reverse " + confNo + ", "
-                    + (firstLocalNo + offset) + ", " + _noOfExistingTexts);
+            debug.log(Debug.FINE, "Doing local-to-global-reverse {}, {}, {}", confNo,
+                    firstLocalNo + offset, _noOfExistingTexts);
             RpcReply r = waitFor(doLocalToGlobalReverse(confNo, firstLocalNo + offset,
-                    _noOfExistingTexts).getId());
+                    _noOfExistingTexts).decodedOnly().getId());
             if (!r.getSuccess())
                 throw new RpcFailure(r, "in localToGloalReverse(" + confNo + ", "
                         + firstLocalNo + ", " + noOfExistingTexts + ")");
 
-            m.update(0, r.getParameters(), false);
+            m.update(r, false);
             offset += 255;
         } while (m.laterTextsExists && (noOfExistingTexts - offset) > 0);
 
@@ -1853,7 +2235,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      */
     public TextMapping mapCreatedTextsReverse(int confNo, int firstLocalNo,
             int noOfExistingTexts) throws IOException, RpcFailure {
-        String key = confNo + "-" + firstLocalNo + "-" + noOfExistingTexts;
+        String key = "c" + confNo + "-" + firstLocalNo + "-"
+                + noOfExistingTexts;
         Reference<?> ref;
         TextMapping m;
         synchronized (ltgCache) {
@@ -1862,7 +2245,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         }
 
         if (m != null) {
-            Debug.println("returning cached TextMapping " + m);
+            debug.log(Debug.FINE, "returning cached TextMapping {}", m);
             m.first();
             return m;
         }
@@ -1877,15 +2260,15 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             existingTextsLeft = noOfExistingTexts - offset;
             int _noOfExistingTexts = existingTextsLeft > 255 ? 255
                     : existingTextsLeft;
-            Debug.println("Doing mapCreatedTextsReverse " + confNo + ", "
-                    + (firstLocalNo + offset) + ", " + _noOfExistingTexts);
+            debug.log(Debug.FINE, "Doing mapCreatedTextsReverse {}, {}, {}", confNo,
+                    firstLocalNo + offset, _noOfExistingTexts);
             RpcReply r = waitFor(doMapCreatedTextsReverse(confNo, firstLocalNo + offset,
-                    _noOfExistingTexts).getId());
+                    _noOfExistingTexts).decodedOnly().getId());
             if (!r.getSuccess())
                 throw new RpcFailure(r, "in mapCreatedTextsReverse(" + confNo + ", "
                         + firstLocalNo + ", " + noOfExistingTexts + ")");
 
-            m.update(0, r.getParameters(), false);
+            m.update(r, false);
             offset += 255;
         } while (m.laterTextsExists && (noOfExistingTexts - offset) > 0);
 
@@ -1956,17 +2339,20 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         if (!refresh && persNo == myPerson.getNo()) {
             m = membershipCache.get(confNo);
             if (m != null && m.hasReadTexts()) {
+                metrics.cacheHit(SessionMetrics.CACHE_MEMBERSHIP);
                 return m;
             }
+            metrics.cacheMiss(SessionMetrics.CACHE_MEMBERSHIP);
         }
-        RpcCall call = waitForCall(doQueryReadTexts(persNo, confNo));
+        RpcCall call = waitForCall(doQueryReadTexts(persNo, confNo)
+                .decodedOnly());
         RpcReply reply = call.getReply();
         if (!reply.getSuccess())
             throw reply.getException();
 
         if (call.getOp() == Rpc.C_query_read_texts
                 || call.getOp() == Rpc.C_query_read_texts_10) {
-            m = Membership.createFrom(0, reply.getParameters(),
+            m = Membership.createFrom(reply,
                     call.getOp() == Rpc.C_query_read_texts_10);
             
         }
@@ -2137,8 +2523,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      */
     public List<Membership> getMembershipList(int persNo, int first, int no,
             boolean wantReadTexts) throws IOException {
-        Debug.println("getMembershipList(" + persNo + ", " + first + ", " + no
-                + ", " + wantReadTexts + ")");
+        debug.log(Debug.FINE, "getMembershipList({}, {}, {})", persNo, first,
+                no);
         Membership[] m = getMembership(persNo, first, no, wantReadTexts);
         LinkedList<Membership> l = new LinkedList<Membership>();
         for (int i = 0; i < m.length; i++) {
@@ -2148,8 +2534,9 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
                     membershipCache.add(m[i]);
             }
         }
-        Debug.println("getMembershipList(persNo:" + persNo + "): returning "
-                + l.size() + " confererences");
+        debug.log(Debug.FINE,
+                "getMembershipList(persNo:{}): returning {} confererences",
+                persNo, l.size());
         return l;
     }
 
@@ -2170,11 +2557,10 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     public Membership[] getMembership(int persNo, int first, int no,
             boolean wantReadTexts) throws IOException {
         RpcCall call = waitForCall(doGetMembership(persNo, first, no,
-                wantReadTexts));
+                wantReadTexts).decodedOnly());
         if (!call.getReply().getSuccess())
             throw call.getReply().getException();
-        KomToken[] parameters = call.getReply().getParameters();
-        Membership[] memberships = Membership.createFromArray(0, parameters,
+        Membership[] memberships = Membership.createFromArray(call.getReply(),
                 call.getOp() == Rpc.C_get_membership_10);
         Arrays.sort(memberships, new Comparator<Membership>() {
             public int compare(Membership o1, Membership o2) {
@@ -2307,8 +2693,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      * @see nu.dll.lyskom.Session#doGetMembership(int)
      */
     public Membership[] getMembership(int persNo) throws IOException {
-        RpcCall call = waitForCall(doGetMembership(persNo));
-        return Membership.createFromArray(0, call.getReply().getParameters(),
+        RpcCall call = waitForCall(doGetMembership(persNo).decodedOnly());
+        return Membership.createFromArray(call.getReply(),
                 call.getOp() == Rpc.C_get_membership_10);
     }
 
@@ -2365,12 +2751,18 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         try {
         	cc = refreshCache ? null : conferenceCache
         			.getUConference(confNo);
+        	if (!refreshCache)
+        		cacheLookup(SessionMetrics.CACHE_UCONFERENCE, cc);
         	if (cc != null)
         		return cc;
-        	req = doGetUConfStat(confNo);
+        	if (!refreshCache)
+        		checkNegative(NegativeCache.CONFERENCE, confNo);
+        	req = doGetUConfStat(confNo).decodedOnly();
         	if (Debug.ENABLED)
         		Debug.println("uconf-stat for " + confNo
         				+ " not in cache, asking server");
+    	} catch (RpcFailure e) {
+    	    throw e;
     	} catch (Exception e) {
             log.error("Session.getUConfStat1 Caught " + e.getClass().getName());
             log.error(getStackTraceString(e));
@@ -2390,7 +2782,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     		
     	if ((rep != null) && rep.getSuccess()) {
     		try {
-    			cc = new UConference(confNo, rep.getParameters());
+    			cc = UConference.createFrom(confNo, rep);
     			conferenceCache.add(cc);
         	} catch (Exception e) {
                 log.error("Session.getUConfStat3 Caught " + e.getClass().getName());
@@ -2399,7 +2791,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     		return cc;
     	} 
         if (rep != null) {
-            throw rep.getException();
+            throw addNegative(NegativeCache.CONFERENCE, confNo, rep
+                    .getException());
         } 
         log.error("Session.getUConfStat4 rep is null!");
         return null;
@@ -2417,6 +2810,123 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         return getUConfStat(confNo, false);
     }
 
+    /**
+     * Returns <tt>UConference</tt> objects for many conferences at once.
+     * Those in the cache are taken from there; for the others, get-uconf-stat
+     * calls are sent without waiting for each reply, with at most
+     * <tt>lattekom.bulk-window</tt> calls (32) outstanding at a time, and the
+     * results are cached.
+     * <br>
+     * Conferences that do not exist, or are secret, are left out of the
+     * returned map, as are zeroes. If any call fails for another reason, the
+     * first such failure is thrown after all replies have been read. Failures
+     * are remembered as by <tt>getUConfStat()</tt>.
+     *
+     * @param confNos
+     *            the conferences to request information about
+     * @see nu.dll.lyskom.Session#getUConfStat(int)
+     */
+    public IntMap<UConference> getUConfStats(int[] confNos)
+            throws IOException, RpcFailure {
+        IntMap<UConference> result = new IntMap<UConference>(confNos.length);
+        // calls that have been sent, and conferences that have not
+        Map<Integer, Integer> pending = new HashMap<Integer, Integer>();
+        IntMap<Boolean> missing = new IntMap<Boolean>();
+        RpcFailure failure = null;
+        for (int i = 0; i < confNos.length; i++) {
+            int confNo = confNos[i];
+            if (confNo == 0 || result.containsKey(confNo)
+                    || missing.containsKey(confNo))
+                continue;
+            UConference cc = conferenceCache.getUConference(confNo);
+            cacheLookup(SessionMetrics.CACHE_UCONFERENCE, cc);
+            RpcFailure known = cc == null ? negativeCache.get(
+                    NegativeCache.CONFERENCE, confNo) : null;
+            if (cc != null) {
+                result.put(confNo, cc);
+            } else if (known != null) {
+                metrics.cacheHit(SessionMetrics.CACHE_NEGATIVE);
+                if (known.getError() != Rpc.E_undefined_conference
+                        && failure == null)
+                    failure = known;
+            } else {
+                missing.put(confNo, Boolean.TRUE);
+            }
+        }
+
+        int[] misses = missing.keys();
+        int next = 0;
+        while (next < misses.length || !pending.isEmpty()) {
+            while (next < misses.length && pending.size() < bulkWindow) {
+                RpcCall req = doGetUConfStat(misses[next]).decodedOnly();
+                pending.put(Integer.valueOf(req.getId()), Integer.valueOf(
+                        misses[next++]));
+            }
+            RpcCall rc = waitForCall(pending.keySet());
+            int confNo = pending.remove(Integer.valueOf(rc.getId())).intValue();
+            RpcReply rep = rc.getReply();
+            if (rep.getSuccess()) {
+                UConference cc = UConference.createFrom(confNo, rep);
+                conferenceCache.add(cc);
+                result.put(confNo, cc);
+            } else {
+                RpcFailure f = addNegative(NegativeCache.CONFERENCE, confNo,
+                        rep.getException());
+                if (f.getError() != Rpc.E_undefined_conference
+                        && failure == null)
+                    failure = f;
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return result;
+    }
+
+    /**
+     * Returns the names of many conferences at once, fetching those that are
+     * not cached as <tt>getUConfStats()</tt> does. Conferences that do not
+     * exist, or are secret, are left out of the returned map, as are zeroes.
+     *
+     * @see nu.dll.lyskom.Session#getUConfStats(int[])
+     * @see nu.dll.lyskom.Session#getConfName(int)
+     */
+    public IntMap<byte[]> getConfNames(int[] confNos) throws IOException,
+            RpcFailure {
+        IntMap<UConference> stats = getUConfStats(confNos);
+        IntMap<byte[]> names = new IntMap<byte[]>(stats.size());
+        int[] keys = stats.keys();
+        for (int i = 0; i < keys.length; i++)
+            names.put(keys[i], stats.get(keys[i]).getName());
+        return names;
+    }
+
+    /**
+     * Fetches, in the background, the <tt>UConference</tt> objects of the
+     * given conferences that are not cached, so that later calls to
+     * <tt>getConfName()</tt> and <tt>getUConfStat()</tt> find them in the
+     * cache.
+     *
+     * @see nu.dll.lyskom.Session#getUConfStats(int[])
+     */
+    public void prefetchUConfStats(final int[] confNos) {
+        invoker.enqueueBlocking(new Runnable() {
+            public void run() {
+                try {
+                    getUConfStats(confNos);
+                } catch (IOException ex1) {
+                    Debug.println("Prefetching conferences failed: " + ex1);
+                } catch (RpcFailure ex1) {
+                    Debug.println("Prefetching conferences failed: " + ex1);
+                }
+            }
+
+            public String toString() {
+                return "UConfStatPrefetcher[" + confNos.length
+                        + " conferences]";
+            }
+        });
+    }
+
     public void saveUserArea(UserArea userArea) throws RpcFailure, IOException {
         saveUserArea(myPersonNo, userArea);
     }
@@ -2589,12 +3099,17 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             throws IOException, RpcFailure {
         Conference cc = refreshCache ? null : conferenceCache
                 .getConference(confNo);
+        if (!refreshCache)
+            cacheLookup(SessionMetrics.CACHE_CONFERENCE, cc);
         if (cc != null)
             return cc;
+        if (!refreshCache)
+            checkNegative(NegativeCache.CONFERENCE, confNo);
 
         RpcReply reply = waitFor(doGetConfStat(confNo).getId());
         if (!reply.getSuccess())
-            throw reply.getException();
+            throw addNegative(NegativeCache.CONFERENCE, confNo, reply
+                    .getException());
         Conference c = new Conference(confNo, reply.getParameters());
         conferenceCache.add(c);
         return c;
@@ -2748,6 +3263,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         if (!reply.getSuccess()) {
             throw reply.getException();
         }
+        updateCachesNewMembership(confNo);
         memberships = getMyMembershipList(false); // XXX
     }
 
@@ -2886,6 +3402,8 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     public Person getPersonStat(int persNo, boolean refreshCache)
             throws IOException, RpcFailure {
         Person p = refreshCache ? null : personCache.get(persNo);
+        if (!refreshCache)
+            cacheLookup(SessionMetrics.CACHE_PERSON, p);
         if (p != null)
             return p;
 
@@ -2955,17 +3473,25 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             throws IOException, RpcFailure {
 
         TextStat ts = refreshCache ? null : textStatCache.get(textNo);
-        if (ts != null)
+        if (ts != null) {
+            metrics.cacheHit(SessionMetrics.CACHE_TEXT_STAT);
             return ts;
+        }
 
         Text cachedText = textCache.get(textNo);
-        if (!refreshCache && cachedText != null && cachedText.getStat() != null)
+        if (!refreshCache && cachedText != null && cachedText.getStat() != null) {
+            metrics.cacheHit(SessionMetrics.CACHE_TEXT_STAT);
             return cachedText.getStat();
+        }
+        if (!refreshCache) {
+            metrics.cacheMiss(SessionMetrics.CACHE_TEXT_STAT);
+            checkNegative(NegativeCache.TEXT, textNo);
+        }
 
-        RpcReply reply = waitFor(doGetTextStat(textNo).getId());
+        RpcReply reply = waitFor(doGetTextStat(textNo).decodedOnly().getId());
 
         if (!reply.getSuccess())
-            throw reply.getException();
+            throw addNegative(NegativeCache.TEXT, textNo, reply.getException());
 
         ts = TextStat.createFrom(textNo, reply);
 
@@ -3022,6 +3548,9 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
 
         writeRpcCall(logoutCall);
         loggedIn = false;
+        synchronized (reconnectLock) {
+            clearLoginPassword();
+        }
         state = STATE_CONNECTED;
         if (!block)
             return;
@@ -3056,6 +3585,311 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         }
     }
 
+    /**
+     * If <tt>true</tt>, the session reconnects by itself when the connection
+     * to the server is lost while a user is logged in: it connects again,
+     * logs in as the same user, accepts the same asynchronous messages,
+     * restores the client version, current conference and what-am-i-doing
+     * string, and then sends again the calls that had not been replied to.
+     * Threads waiting for replies keep waiting meanwhile. Calls that are not
+     * safe to repeat (see <tt>RpcCall.isIdempotent()</tt>) and that may have
+     * reached the server are not sent again; waiting for them throws an
+     * IOException. <br>
+     * The caches are kept; the membership list and the unread conferences
+     * are refreshed in the background once the session is back. Calls made
+     * while reconnecting are held back until then, except those whose reply
+     * nobody waits for, which fail with an IOException. Calls waiting for a
+     * reply do not time out while the session reconnects.
+     * <br>
+     * To log in again, the session keeps the password given to
+     * <tt>login()</tt>, in plain text in memory, until <tt>logout()</tt> or
+     * <tt>disconnect()</tt> is called, whether automatic reconnection is
+     * enabled or not.
+     * <br>
+     * The default is the value of the system property
+     * <tt>lattekom.auto-reconnect</tt>. The number of attempts, with
+     * increasing delays up to 30 seconds, is taken from
+     * <tt>lattekom.reconnect-attempts</tt> (default 8).
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public boolean getAutoReconnect() {
+        return autoReconnect;
+    }
+
+    /**
+     * Returns <tt>true</tt> while the session is reconnecting.
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * Returns the number of times this session has reconnected.
+     */
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * Returns the number of calls that are stored waiting for a reply, or
+     * for the reply to be collected.
+     */
+    public int getPendingCallCount() {
+        return rpcHeap.size();
+    }
+
+    /**
+     * Called by the MessageListener when the connection has been lost
+     * without being closed by us. Starts reconnecting, if enabled.
+     */
+    void connectionLost(Exception ex) {
+        synchronized (reconnectLock) {
+            if (reconnecting || !connected)
+                return;
+            if (!autoReconnect || !loggedIn || loginPassword == null) {
+                notifyDisconnected(new IOException("Lost connection to "
+                        + server + ": " + ex));
+                return;
+            }
+            reconnecting = true;
+            // the calls are resent, or given up on, by resume()
+            rpcHeap.suspendExpiry();
+            reconnectThread = Threads.newThread(new Runnable() {
+                public void run() {
+                    reconnect();
+                }
+            }, "Reconnector-" + reconnectThreadCount++);
+            reconnectThread.start();
+        }
+        log.error("Lost connection to " + server + ":" + port + " (" + ex
+                + "), reconnecting");
+    }
+
+    // true if the current thread should wait for a reconnect to finish
+    // rather than fail
+    private boolean awaitingReconnect() {
+        return reconnecting && Thread.currentThread() != reconnectThread;
+    }
+
+    /**
+     * Holds back calls made while reconnecting, until the session is logged
+     * in again. Returns false if the call should be sent now.
+     * 
+     * @throws IOException
+     *             if nobody waits for the reply to the call, and so nobody
+     *             would learn that it could not be sent
+     */
+    private boolean deferCall(RpcCall c, boolean store) throws IOException {
+        synchronized (reconnectLock) {
+            if (!awaitingReconnect())
+                return false;
+            if (!store)
+                throw new IOException("Reconnecting to " + server
+                        + ", RPC call " + c.getOp() + " not sent");
+            rpcHeap.addRpcCall(c);
+            deferredCalls.add(c);
+            return true;
+        }
+    }
+
+    private void notifyDisconnected(IOException cause) {
+        for (int i = 0; i < disconnectListeners.size(); i++) {
+            try {
+                disconnectListeners.get(i).disconnected(cause);
+            } catch (RuntimeException ex1) {
+                log.error("Exception in " + this + "::notifyDisconnected(): "
+                        + ex1);
+            }
+        }
+    }
+
+    // must be called with reconnectLock held
+    private void clearLoginPassword() {
+        if (loginPassword != null)
+            Arrays.fill(loginPassword, (byte) 0);
+        loginPassword = null;
+    }
+
+    /**
+     * Fails the wait for calls that the RpcHeap has given up on.
+     */
+    private void checkExpired(Collection<Integer> ids, long waitStart)
+            throws IOException {
+        int id = rpcHeap.getExpired(ids);
+        if (id == -1)
+            return;
+        IOException e = new IOException("Timeout waiting for RPC reply #"
+                + id + " (" + (System.currentTimeMillis() - waitStart)
+                + " ms)");
+        log.error(getStackTraceString(e));
+        throw e;
+    }
+
+    private void checkLost(Collection<Integer> ids) throws IOException {
+        synchronized (reconnectLock) {
+            if (lostCalls.isEmpty())
+                return;
+            for (Object id : ids) {
+                if (lostCalls.remove(id))
+                    throw new IOException("Connection lost before the reply "
+                            + "to RPC call #" + id + "; the call was not resent");
+            }
+        }
+    }
+
+    private void reconnect() {
+        long delay = 250;
+        for (int attempt = 1; attempt <= reconnectAttempts; attempt++) {
+            try {
+                Thread.sleep(delay + random.nextInt((int) delay));
+            } catch (InterruptedException ex1) {
+                break;
+            }
+            if (!connected)
+                break;
+            try {
+                reopen();
+                resume();
+                log.error("Reconnected to " + server + ":" + port
+                        + " after " + attempt + " attempt(s)");
+                return;
+            } catch (RpcFailure ex1) {
+                // another attempt would not be let in either
+                log.error("Login failed when reconnecting to " + server
+                        + ": " + ex1.getMessage());
+                break;
+            } catch (IOException ex1) {
+                debug.log(Debug.INFO, "reconnect attempt {} to {} failed: {}",
+                        Integer.valueOf(attempt), server, ex1);
+                delay = Math.min(delay * 2, 30000);
+            }
+        }
+        synchronized (reconnectLock) {
+            deferredCalls.clear();
+            reconnecting = false;
+            reconnectThread = null;
+        }
+        log.error("Could not reconnect to " + server + ":" + port);
+        rpcHeap.resumeExpiry();
+        rpcHeap.signalAll();
+        if (connected)
+            notifyDisconnected(new IOException("Could not reconnect to "
+                    + server));
+    }
+
+    /**
+     * Connects and logs in again, and restores the server side state of the
+     * session.
+     */
+    private void reopen() throws IOException {
+        MessageListener old = listener;
+        Connection c = new Connection(this, null);
+        MessageListener l = null;
+        boolean done = false;
+        try {
+            connection = c;
+            reader = new KomTokenReader(c.getInputStream(), this);
+            handshake();
+            l = new MessageListener(this);
+            l.copyReceivers(old);
+            listener = l;
+            l.setAsynch(true);
+            mySessionNo = 0;
+
+            byte[] password;
+            synchronized (reconnectLock) {
+                password = loginPassword == null ? null
+                        : loginPassword.clone();
+            }
+            if (password == null)
+                throw new IOException("Logged out while reconnecting");
+            RpcReply r = waitFor(writeRpcCall(new RpcCall(count(),
+                    Rpc.C_login).add(new KomToken(myPersonNo)).add(
+                    new Hollerith(password)).add(loginHidden ? "1" : "0")));
+            Arrays.fill(password, (byte) 0);
+            if (!r.getSuccess())
+                throw r.getException();
+            if (acceptedAsync != null)
+                acceptAsync(acceptedAsync);
+            if (clientName != null)
+                waitFor(doSetClientVersion(clientName, clientVersion));
+            if (whatIAmDoing != null)
+                waitFor(doChangeWhatIAmDoing(whatIAmDoing));
+            if (currentConference != -1
+                    && !waitFor(doChangeConference(currentConference))
+                            .getSuccess())
+                currentConference = -1;
+            done = true;
+        } finally {
+            if (!done) {
+                if (l != null)
+                    l.disconnect = true;
+                c.close();
+                listener = old;
+            }
+        }
+    }
+
+    /**
+     * Sends again the calls that were in flight when the connection was
+     * lost, and the ones made while reconnecting, and lets waiting threads
+     * go on.
+     */
+    private void resume() throws IOException {
+        int resent = 0, lost = 0;
+        synchronized (reconnectLock) {
+            List<RpcCall> pending = rpcHeap.getPendingCalls();
+            for (int i = 0; i < pending.size(); i++) {
+                RpcCall c = pending.get(i);
+                if (deferredCalls.contains(c) || c.isIdempotent()) {
+                    writeRpcCall(c, !c.discard);
+                    resent++;
+                } else {
+                    rpcHeap.purgeRpcCall(c);
+                    if (c.discard)
+                        continue;
+                    lostCalls.add(Integer.valueOf(c.getId()));
+                    lost++;
+                }
+            }
+            deferredCalls.clear();
+            reconnecting = false;
+            reconnectThread = null;
+            reconnectCount++;
+        }
+        debug.log(Debug.INFO, "resent {} calls, {} lost", resent, lost);
+        rpcHeap.resumeExpiry();
+        rpcHeap.signalAll();
+        invoker.enqueueBlocking(new Runnable() {
+            public void run() {
+                revalidateCaches();
+            }
+        });
+    }
+
+    /**
+     * Refreshes the cached state that asynchronous messages missed while
+     * reconnecting may have made stale: the membership list and the unread
+     * conferences. Texts, persons and conferences stay cached.
+     */
+    void revalidateCaches() {
+        try {
+            if (memberships != null)
+                getMyMembershipList(false);
+            if (unreadsConferences != null)
+                updateUnreads(null, false, 0);
+            if (whoIsOn != null)
+                whoIsOn.reconcile();
+        } catch (IOException ex1) {
+            log.error("Could not refresh caches after reconnect: " + ex1);
+        } catch (RpcFailure ex1) {
+            log.error("Could not refresh caches after reconnect: " + ex1);
+        }
+    }
+
     /**
      * Writes a raw (custom) RPC call to the server. The reference number will
      * be selected by this method.
@@ -3402,7 +4236,12 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             boolean wantInvisible, int activeLast) throws IOException {
         Debug.println("whoIsOnDynamic called");
         RpcReply reply = waitFor(doWhoIsOnDynamic(wantVisible, wantInvisible,
-                activeLast).getId());
+                activeLast).decodedOnly().getId());
+        if (!reply.getSuccess())
+            throw reply.getException();
+
+        if (reply.getDecoded() instanceof DynamicSessionInfo[])
+            return (DynamicSessionInfo[]) reply.getDecoded();
 
         KomToken[] parameters = reply.getParameters();
         DynamicSessionInfo[] ids = new DynamicSessionInfo[parameters[0]
@@ -3572,8 +4411,12 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      *            order to use waitFor() etc
      */
     public RpcCall writeRpcCall(RpcCall c, boolean store) throws IOException {
-        if (store)
-            rpcHeap.addRpcCall(c);
+        if (reconnecting && deferCall(c, store))
+            return c;
+        // a call that is not stored for waitFor() is still kept until its
+        // reply arrives, so that the reply is not taken for an orphan
+        c.discard = !store;
+        rpcHeap.addRpcCall(c);
         if (Debug.ENABLED) {
             Debug.println("writeRpcCall(): id: " + c.getId() + "; op: "
                     + c.getOp() + "; store: " + store + " ("
@@ -3583,7 +4426,9 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             throw new IOException(
                     "Connection has gone away (see SF bug ID 973278).");
         }
-        connection.queuedWrite(c.toNetwork());
+        c.sent = System.nanoTime();
+        metrics.callSent(c);
+        connection.queuedWrite(c);
         return c;
     }
 
@@ -3649,6 +4494,93 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         return waitFor(singleton(id));
     }
 
+    /**
+     * Returns the metrics (call counts, latencies, byte counts, cache hit
+     * rates etc.) collected for this session.
+     * 
+     * @see nu.dll.lyskom.SessionMetrics
+     */
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables or disables RPC tracing. When enabled, the timestamps of the
+     * last <tt>capacity</tt> calls are kept in an RpcTrace object, which
+     * is returned by getTrace(). A capacity of zero disables tracing.
+     * <br>
+     * Tracing can also be enabled by setting the system property
+     * <tt>lattekom.rpc-trace</tt> to the desired capacity.
+     * 
+     * @see nu.dll.lyskom.RpcTrace
+     */
+    public synchronized void setTracing(int capacity) {
+        if (trace != null) {
+            trace.setActive(false);
+            trace = null;
+        }
+        if (capacity > 0) {
+            trace = new RpcTrace(capacity);
+            trace.setActive(true);
+        }
+    }
+
+    /**
+     * Sets a WireCapture to record the traffic of this session to. It must
+     * be set before connecting. If the system property
+     * <tt>lattekom.wire-capture</tt> is set, each session captures to a file
+     * named after it and a sequence number.
+     * <br>
+     * <b>The capture holds the session's traffic in clear text, even over
+     * SSL</b>; only passwords are masked. See <tt>WireCapture</tt>.
+     * <br>
+     * The capture set before is closed, and the capture is closed when the
+     * session disconnects.
+     * 
+     * @see nu.dll.lyskom.WireCapture
+     */
+    public void setWireCapture(WireCapture capture) {
+        WireCapture old = wireCapture;
+        wireCapture = capture;
+        if (old != null && old != capture) {
+            try {
+                old.close();
+            } catch (IOException ex1) {
+                log.error("Could not close wire capture: " + ex1);
+            }
+        }
+    }
+
+    /**
+     * Returns the WireCapture this session records its traffic to, or null.
+     */
+    public WireCapture getWireCapture() {
+        return wireCapture;
+    }
+
+    /**
+     * Returns the RPC trace for this session, or null if tracing is not
+     * enabled.
+     * 
+     * @see nu.dll.lyskom.Session#setTracing(int)
+     */
+    public RpcTrace getTrace() {
+        return trace;
+    }
+
+    private void traceWakeup(RpcCall call) {
+        RpcTrace t = trace;
+        if (t != null)
+            t.woken(call);
+    }
+
+    private void cacheLookup(int cache, Object cached) {
+        if (cached != null)
+            metrics.cacheHit(cache);
+        else
+            metrics.cacheMiss(cache);
+    }
+
     public Collection<Integer> singleton(int i) {
         HashSet<Integer> h = new HashSet<Integer>();
         h.add(new Integer(i));
@@ -3670,20 +4602,66 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
         return waitForCall(singleton(id));
     }
 
+    /**
+     * Returns the oldest stored asynchronous message, waiting for one to
+     * arrive if there is none. Starts storing messages, if that has not
+     * been done already. Returns null if interrupted.
+     * 
+     * @see nu.dll.lyskom.Session#getAsynchInbox()
+     */
     public AsynchMessage getAsynchMessage() {
         storeAsynchMessages = true;
-        synchronized (pendingAsynchMessages) {
-            if (pendingAsynchMessages.size() == 0) {
-                try {
-                    pendingAsynchMessages.wait();
-                } catch (InterruptedException ex1) {
-                }
-            }
-            if (pendingAsynchMessages.size() > 0) {
-                return (AsynchMessage) pendingAsynchMessages.remove(0);
-            }
+        try {
+            return asynchInbox.take();
+        } catch (InterruptedException ex1) {
+            return null;
         }
-        return null;
+    }
+
+    /**
+     * Returns the oldest stored asynchronous message, waiting up to
+     * <tt>timeout</tt> milliseconds for one to arrive. Returns null if none
+     * arrived.
+     */
+    public AsynchMessage getAsynchMessage(long timeout)
+            throws InterruptedException {
+        storeAsynchMessages = true;
+        return asynchInbox.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves up to <tt>max</tt> stored asynchronous messages to the given
+     * collection, without waiting, and returns the number moved.
+     */
+    public int drainAsynchMessages(Collection<? super AsynchMessage> c,
+            int max) {
+        storeAsynchMessages = true;
+        return asynchInbox.drainTo(c, max);
+    }
+
+    /**
+     * Returns the inbox where asynchronous messages are stored while
+     * <tt>setStoreAsynchMessages(true)</tt> is in effect. It holds at most
+     * <tt>lattekom.asynch-inbox-size</tt> messages (4096); when it is full,
+     * the oldest are dropped.
+     */
+    public AsynchInbox getAsynchInbox() {
+        return asynchInbox;
+    }
+
+    /**
+     * Returns a <tt>java.util.concurrent.Flow.Publisher</tt> of the
+     * asynchronous messages received from now on, with demand-based
+     * backpressure. Each subscriber gets an inbox with room for
+     * <tt>capacity</tt> messages. Subscribers are completed when the
+     * session is disconnected, and get <tt>onError()</tt> with an
+     * IOException if the connection is lost and not regained. Requires Java
+     * 9 or later.
+     * 
+     * Must not be called before connect()
+     */
+    public AsynchPublisher getAsynchPublisher(int capacity) {
+        return new AsynchPublisher(this, capacity);
     }
 
     /**
@@ -3721,7 +4699,9 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
                 // already
                 if (null == (call = rpcHeap.getRpcCall(ids, true))) {
                     waitCount++;
-                    if (!listener.isConnected()) {
+                    checkLost(ids);
+                    checkExpired(ids, waitStart);
+                    if (!listener.isConnected() && !awaitingReconnect()) {
                         if (listener.getException() != null) {
                             throw new IOException(
                                     "Exception in listener thread: "
@@ -3731,13 +4711,19 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
                             throw new IOException("Listener is disconnected.");
                         }
                     }
-                    synchronized (rpcHeap) {
-                        rpcHeap.wait(rpcSoftTimeout > 0 ? rpcSoftTimeout
-                                : rpcTimeout);
+                    DispatchQueue q = DispatchQueue.beginWait();
+                    try {
+                        rpcHeap.awaitReply(ids,
+                                rpcSoftTimeout > 0 ? rpcSoftTimeout
+                                        : rpcTimeout);
+                    } finally {
+                        if (q != null)
+                            q.endWait();
                     }
                 } else {
                     rpcHeap.purgeRpcCall(call);
                     if (fallbackCheck(ids, call)) {
+                        traceWakeup(call);
                         if (Debug.ENABLED) {
                             Debug.println("waitForCall(" + ids
                                     + ") returning after "
@@ -3756,14 +4742,18 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             }
             call = rpcHeap.getRpcCall(ids, true);
             if (call == null && listener != null
-                    && listener.getException() != null) {
+                    && listener.getException() != null
+                    && !awaitingReconnect()) {
                 throw new IOException("Exception in listener: "
                         + listener.getException());
             } else if (listener == null) {
                 throw new IOException("MessageListener has gone away!");
             }
 
-            if (call == null) {
+            if (call == null && awaitingReconnect()) {
+                // the time spent reconnecting does not count
+                waitStart = System.currentTimeMillis();
+            } else if (call == null) {
                 waited = System.currentTimeMillis() - waitStart;
                 if (waited > rpcTimeout) {
                     IOException e = new IOException(
@@ -3777,6 +4767,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
                 if (!fallbackCheck(ids, call)) {
                     call = null;
                 } else {
+                    traceWakeup(call);
                     if (Debug.ENABLED) {
                         Debug.println("waitForCall(" + ids
                                 + ") returning after "
@@ -3852,50 +4843,63 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
     public void rpcReply(RpcReply r) {
 
         if (r == null) {
-            synchronized (rpcHeap) {
-                rpcHeap.notifyAll();
-            }
+            rpcHeap.signalAll();
             return;
         }
 
         RpcCall originCall = rpcHeap.getRpcCall(r.getId(), false);
         if (originCall != null) {
+            metrics.callCompleted(originCall, r);
+            RpcTrace t = trace;
+            if (t != null)
+                t.record(originCall, r);
             originCall.setReply(r);
+            if (originCall.discard)
+                rpcHeap.purgeRpcCall(originCall);
+            else
+                rpcHeap.replied(originCall);
+        } else {
+            rpcHeap.unmatchedReply(r.getId());
         }
 
-        synchronized (rpcHeap) {
-            if (Debug.ENABLED) {
-                Debug.println("notifying waiting threads: " + r.getId() + " "
-                        + (r.getSuccess() ? ":-)" : ":-("));
-            }
-            rpcHeap.notifyAll();
+        if (Debug.ENABLED) {
+            Debug.println("notifying waiting threads: " + r.getId() + " "
+                    + (r.getSuccess() ? ":-)" : ":-("));
         }
+        rpcHeap.signalAll();
 
-        if (originCall != null) {
+        // a reply without parameters was read before any application
+        // listener was registered, and is not theirs to see
+        if (originCall != null && r.hasParameters()) {
             notifyRpcEventListeners(new RpcEvent(this, originCall));
         }
 
     }
 
     void updateCachesNewText(TextStat textStat) {
-        List<Selection> miscInfo = textStat.getMiscInfo();
-        for (int i = 0; i < miscInfo.size(); i++) {
-            Selection misc = miscInfo.get(i);
-            int key = misc.getKey();
-            if (key == TextStat.miscRecpt || key == TextStat.miscCcRecpt
-                    || key == TextStat.miscBccRecpt) {
-                int recipient = misc.getIntValue();
+        int count = textStat.getMiscInfoCount();
+        for (int i = 0; i < count; i++) {
+            int key = textStat.getMiscInfoKey(i);
+            if (TextStat.isRecipientTag(key)) {
+                int recipient = textStat.getMiscInfoValue(i);
                 Integer recipientObj = new Integer(recipient);
+                negativeCache.remove(NegativeCache.CONFERENCE, recipient);
                 UConference cachedUConf = conferenceCache
                         .getUConference(recipient);
+                int locNo = textStat.getMiscInfoInt(i, TextStat.miscLocNo);
                 if (cachedUConf != null) {
-                    int locNo = misc.getIntValue(TextStat.miscLocNo);
                     if (locNo > cachedUConf.getHighestLocalNo())
                         cachedUConf.setHighestLocalNo(locNo);
                 }
+                if (newTextWarming && locNo != -1) {
+                    Conference cachedConf = conferenceCache
+                            .getConference(recipient);
+                    if (cachedConf != null)
+                        cachedConf.textAdded(locNo);
+                    updateMappingsNewText(recipient, locNo, textStat.getNo());
+                }
                 Membership cachedMs = membershipCache.get(recipient);
-                if (cachedMs != null) {
-                    int locNo = misc.getIntValue(TextStat.miscLocNo);
+                if (cachedMs != null && locNo != -1) {
                     if (readTexts.contains(textStat.getNo())
                             && !cachedMs.isRead(locNo)) {
                         cachedMs.markAsRead(locNo);
@@ -3915,20 +4919,71 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
                 }
             }
             if (key == TextStat.miscCommTo) {
-                textStatCache.remove(misc.getIntValue());
+                textStatCache.remove(textStat.getMiscInfoValue(i));
             }
             if (key == TextStat.miscFootnTo) {
-                textStatCache.remove(misc.getIntValue());
+                textStatCache.remove(textStat.getMiscInfoValue(i));
+            }
+        }
+    }
+
+    /**
+     * Adds a new text to the cached local-to-global mappings of a
+     * conference that end where the text begins, and drops the ones that
+     * the text shows to be out of date.
+     */
+    void updateMappingsNewText(int confNo, int locNo, int textNo) {
+        String prefix = confNo + "-";
+        synchronized (ltgCache) {
+            for (Iterator<Map.Entry<String, SoftReference<TextMapping>>> i = ltgCache
+                    .entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, SoftReference<TextMapping>> entry = i
+                        .next();
+                String key = entry.getKey();
+                if (!key.startsWith(prefix))
+                    continue;
+                TextMapping m = entry.getValue().get();
+                if (m == null) {
+                    i.remove();
+                    continue;
+                }
+                if (m.laterTextsExists() || locNo < m.rangeEnd)
+                    continue;
+                int wanted = Integer.parseInt(key.substring(key
+                        .lastIndexOf('-') + 1));
+                // the cached mapping may be in use, so it is replaced
+                // rather than changed
+                if (locNo != m.rangeEnd) {
+                    // texts have been missed
+                    i.remove();
+                } else if (m.size() < wanted) {
+                    entry.setValue(new SoftReference<TextMapping>(m.append(
+                            locNo, textNo)));
+                } else {
+                    m = m.copy();
+                    m.laterTextsExists = true;
+                    entry.setValue(new SoftReference<TextMapping>(m));
+                }
             }
         }
     }
 
+    // a new member may see the conference, and the texts in it, that were
+    // secret to it before
+    void updateCachesNewMembership(int confNo) {
+        negativeCache.remove(NegativeCache.CONFERENCE, confNo);
+        negativeCache.removeAll(NegativeCache.TEXT, Rpc.E_access_denied);
+    }
+
     void updateCachesSubRecipient(int textNo, int confNo, int recipientType) {
         purgeTextCache(textNo);
     }
 
     void updateCachesNewRecipient(int textNo, int confNo, int recipientType) {
         purgeTextCache(textNo);
+        // the text, and the conference, may now be visible
+        negativeCache.remove(NegativeCache.TEXT, textNo);
+        negativeCache.remove(NegativeCache.CONFERENCE, confNo);
         if (!readTexts.contains(textNo)) {
             try {
                 if (unreadsConferences != null) {
@@ -3964,6 +5019,7 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
 
     public RpcCall doAcceptAsync(int[] requestList, boolean discardReply)
             throws IOException {
+        acceptedAsync = requestList;
         RpcCall c = new RpcCall(count(), Rpc.C_accept_async);
         c.add(new KomTokenArray(requestList.length, requestList));
         return writeRpcCall(c, !discardReply);
@@ -3975,12 +5031,9 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
      * @see nu.dll.lyskom.AsynchMessageReceiver
      */
     public void asynchMessage(AsynchMessage m) {
-        if (storeAsynchMessages) {
-            synchronized (pendingAsynchMessages) {
-                pendingAsynchMessages.add(m);
-                pendingAsynchMessages.notifyAll();
-            }
-        }
+        if (storeAsynchMessages)
+            asynchInbox.asynchMessage(m);
+        metrics.asynchReceived(m.getNumber());
         KomToken[] parameters = m.getParameters();
 
         int textNo = 0;
@@ -4000,26 +5053,40 @@ public class Session implements AsynchMessageReceiver, RpcReplyReceiver,
             break;
 
         case Asynch.new_text_old:
+            textNo = parameters[0].intValue();
             textStat = TextStat.createFrom(textNo, parameters, 1, true);
             //$FALL-THROUGH$
         case Asynch.new_text:
-            if (textStat == null)
+            if (textStat == null) {
+                textNo = parameters[0].intValue();
                 textStat = TextStat.createFrom(textNo, parameters, 1, false);
+            }
+            // a text-stat that could not be parsed in full is not cached
+            if (textStat == null || textStat.getMiscInfoCount() == 0) {
+                Debug.println("async-new-text: bad text-stat for " + textNo);
+                purgeTextCache(textNo);
+                break;
+            }
 
+            // the message carries the whole text-stat, so there is no
+            // need to ask for it
+            negativeCache.remove(NegativeCache.TEXT, textNo);
+            textStatCache.add(textStat);
             updateCachesNewText(textStat);
             if (prefetch) {
-                try {
-                    textNo = parameters[0].intValue();
-                    textPrefetchQueue.add(new Integer(textNo));
-                    invoker.enqueue(new TextPrefetcher(this, textPrefetchQueue));
-                } catch (java.lang.ArrayIndexOutOfBoundsException e) {
-                    Debug.println("async-new-text exception " + e);
-                }
+                invoker.enqueueBlocking(new TextPrefetcher(this, textNo));
             }
             break;
 
+        case Asynch.new_membership:
+            // parameters: person, conference
+            updateCachesNewMembership(parameters[1].intValue());
+            break;
+
         case Asynch.new_name:
             conferenceCache.removeAll(parameters[0].intValue());
+            negativeCache.remove(NegativeCache.CONFERENCE, parameters[0]
+                    .intValue());
             break;
         case Asynch.deleted_text:
             textNo = parameters[0].intValue();
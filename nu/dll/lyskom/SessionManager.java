@@ -0,0 +1,633 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Keeps a set of logged-in Sessions to one server, one per key (typically
+ * a user of a web frontend), so that a gateway does not have to connect and
+ * log in for every request.
+ * <br>
+ * <tt>getSession()</tt> returns the open session for a key, or connects and
+ * logs in a new one. Sessions that have not been asked for in
+ * <tt>idleTimeout</tt> milliseconds are logged out and disconnected by a
+ * background thread, and when <tt>maxSessions</tt> are open, the least
+ * recently used session is closed to make room for a new one. Sessions
+ * whose connection has gone away are replaced on the next request.
+ * <br>
+ * A key's session is only handed out to callers giving the person number
+ * and password it logged in with. A request for another person replaces
+ * the session; a wrong password is refused. Only a salted hash of the
+ * password is kept for the comparison.
+ * <br>
+ * Each Session still has its own socket and reader and writer threads; the
+ * blocking design of the library does not allow them to share an event
+ * loop. Sessions that connect with SSL share one SSLContext per trust
+ * configuration, and so its SSL session cache. <tt>openSessions()</tt>
+ * connects many sessions at once, for example when a gateway restarts.
+ * <br>
+ * Counters, connect latencies and the sum of all sessions' metrics are
+ * available through the methods of this class, and through JMX once
+ * <tt>register()</tt> has been called.
+ *
+ * @see nu.dll.lyskom.Session
+ */
+public class SessionManager implements SessionManagerMBean {
+
+    String server;
+    int port;
+    boolean useSSL = false;
+    int certLevel = 0;
+    boolean hidden = false;
+    boolean fetchMembership = true;
+    boolean autoReconnect = Boolean.getBoolean("lattekom.auto-reconnect");
+
+    int maxSessions = 1000;
+    long idleTimeout = 30 * 60 * 1000;
+    int connectThreads = 8;
+
+    // access order, so that the first entry is the least recently used
+    Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f,
+            true);
+
+    AtomicLong created = new AtomicLong();
+    AtomicLong reused = new AtomicLong();
+    AtomicLong idledOut = new AtomicLong();
+    AtomicLong evicted = new AtomicLong();
+    AtomicLong dead = new AtomicLong();
+    AtomicLong failures = new AtomicLong();
+    LatencyHistogram connectLatency = new LatencyHistogram();
+
+    Thread reaper = null;
+    boolean running = true;
+    ObjectName objectName = null;
+
+    static final AtomicInteger reaperCount = new AtomicInteger();
+    static final AtomicInteger connectorCount = new AtomicInteger();
+
+    static final SecureRandom random = new SecureRandom();
+
+    /**
+     * One managed session. The entry is created before the session is
+     * connected; its connect lock keeps concurrent requests for the same key
+     * from logging in twice. The entry's own monitor guards
+     * <tt>session</tt>, the login and <tt>removed</tt>, and is only held
+     * briefly, never while taking another lock: the manager lock may be held
+     * while it is taken, but not the other way around.
+     */
+    static class Entry {
+        String key;
+        volatile Session session = null;
+        // the login of session: the person and a salted password hash
+        int persNo = 0;
+        byte[] salt = null;
+        byte[] passwordHash = null;
+        // set when the entry is taken out of the manager; a session that
+        // is still connecting is then closed by the connecting thread
+        volatile boolean removed = false;
+        final Object connectLock = new Object();
+        long lastUsed = System.currentTimeMillis();
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        // must be called with the entry locked
+        void setLogin(int persNo, String password) {
+            this.persNo = persNo;
+            salt = new byte[16];
+            random.nextBytes(salt);
+            passwordHash = hash(salt, password);
+        }
+
+        // must be called with the entry locked
+        boolean passwordMatches(String password) {
+            return passwordHash != null
+                    && MessageDigest.isEqual(passwordHash, hash(salt,
+                            password));
+        }
+    }
+
+    static byte[] hash(byte[] salt, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            return md.digest(password.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException ex1) {
+            throw new RuntimeException(ex1);
+        } catch (UnsupportedEncodingException ex1) {
+            throw new RuntimeException(ex1);
+        }
+    }
+
+    public SessionManager(String server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    /**
+     * Sets whether new sessions connect using SSL, and the certificate
+     * level (see <tt>Session.connect()</tt>).
+     */
+    public void setUseSSL(boolean useSSL, int certLevel) {
+        this.useSSL = useSSL;
+        this.certLevel = certLevel;
+    }
+
+    /**
+     * If <tt>true</tt>, sessions log in invisibly.
+     */
+    public void setHidden(boolean hidden) {
+        this.hidden = hidden;
+    }
+
+    /**
+     * If <tt>true</tt> (the default), the membership list is fetched when a
+     * session logs in.
+     */
+    public void setFetchMembership(boolean fetchMembership) {
+        this.fetchMembership = fetchMembership;
+    }
+
+    /**
+     * If <tt>true</tt>, new sessions reconnect by themselves when their
+     * connection is lost (see <tt>Session.setAutoReconnect()</tt>), and are
+     * kept while they do.
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public synchronized void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Sets the time, in milliseconds, after which unused sessions are
+     * closed. Zero disables idle timeouts.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        notifyAll();
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the number of threads <tt>openSessions()</tt> connects with.
+     */
+    public void setConnectThreads(int connectThreads) {
+        this.connectThreads = connectThreads;
+    }
+
+    /**
+     * Returns the sessions for a number of keys, connecting and logging in
+     * those that are not open, with up to <tt>connectThreads</tt> at a time.
+     * The first session is opened before the others, so that when using SSL,
+     * they can resume its SSL session instead of doing a full handshake
+     * each. <br>
+     * The sessions are returned in the order of the keys. Where a session
+     * could not be opened, the element is null (and the failure counted).
+     */
+    public Session[] openSessions(final String[] keys, final int[] persNos,
+            final String[] passwords) throws InterruptedException {
+        final Session[] sessions = new Session[keys.length];
+        if (keys.length == 0)
+            return sessions;
+        sessions[0] = openSession(keys[0], persNos[0], passwords[0]);
+
+        final AtomicInteger next = new AtomicInteger(1);
+        Runnable connector = new Runnable() {
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < keys.length)
+                    sessions[i] = openSession(keys[i], persNos[i], passwords[i]);
+            }
+        };
+        Thread[] threads = new Thread[Math.max(1, Math.min(connectThreads,
+                keys.length - 1))];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = Threads.newThread(connector,
+                    "SessionManager-connector-"
+                            + connectorCount.getAndIncrement());
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        return sessions;
+    }
+
+    private Session openSession(String key, int persNo, String password) {
+        try {
+            return getSession(key, persNo, password);
+        } catch (IOException ex1) {
+            Debug.println("SessionManager: could not open session " + key
+                    + ": " + ex1);
+        } catch (RuntimeException ex1) {
+            Debug.println("SessionManager: could not open session " + key
+                    + ": " + ex1);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the session for <tt>key</tt> if one is open, or connects a new
+     * session and logs it in as the given person. An open session is only
+     * returned if it is logged in as <tt>persNo</tt> with
+     * <tt>password</tt>; if it is logged in as another person, it is closed
+     * and a new session is opened in its place.
+     *
+     * @throws IOException
+     *             if the connection or login failed, or the password does
+     *             not match the one the open session logged in with
+     */
+    public Session getSession(String key, int persNo, String password)
+            throws IOException {
+        if (password == null)
+            throw new IOException("Null password not allowed.");
+        Entry entry;
+        List<Entry> overflow = null;
+        synchronized (this) {
+            if (!running)
+                throw new IllegalStateException("SessionManager is shut down");
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+                overflow = removeOverflow();
+            }
+            entry.lastUsed = System.currentTimeMillis();
+            startReaper();
+        }
+        closeEntries(overflow);
+
+        Session orphan;
+        synchronized (entry.connectLock) {
+            Session old;
+            synchronized (entry) {
+                if (entry.removed) {
+                    // closed since it was looked up; start over
+                    old = null;
+                } else {
+                    old = entry.session;
+                    if (old != null && isAlive(old)
+                            && entry.persNo == persNo) {
+                        if (!entry.passwordMatches(password)) {
+                            failures.incrementAndGet();
+                            throw new IOException("Login failed for person "
+                                    + persNo);
+                        }
+                        reused.incrementAndGet();
+                        return old;
+                    }
+                    if (old != null && entry.persNo != persNo)
+                        Debug.println("SessionManager: " + key
+                                + " changes from person " + entry.persNo
+                                + " to " + persNo);
+                    else if (old != null)
+                        dead.incrementAndGet();
+                    entry.session = null;
+                    entry.passwordHash = null;
+                }
+            }
+            if (old != null) {
+                close(old);
+            } else if (entry.removed) {
+                return getSession(key, persNo, password);
+            }
+            long start = System.nanoTime();
+            Session session = new Session();
+            session.setAutoReconnect(autoReconnect);
+            try {
+                session.connect(server, port, useSSL, certLevel, null);
+                if (!session.login(persNo, password, hidden, fetchMembership))
+                    throw new IOException("Login failed for person " + persNo);
+            } catch (IOException ex1) {
+                failures.incrementAndGet();
+                close(session);
+                synchronized (this) {
+                    if (entries.get(key) == entry)
+                        entries.remove(key);
+                }
+                throw ex1;
+            }
+            connectLatency.record(System.nanoTime() - start);
+            created.incrementAndGet();
+            synchronized (entry) {
+                if (!entry.removed) {
+                    entry.session = session;
+                    entry.setLogin(persNo, password);
+                    return session;
+                }
+            }
+            orphan = session;
+        }
+        // evicted or closed while it was connecting
+        close(orphan);
+        throw new IOException("Session for " + key
+                + " was closed while connecting");
+    }
+
+    /**
+     * Returns the open session for <tt>key</tt>, or null if there is none.
+     */
+    public Session getSession(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null)
+                return null;
+            entry.lastUsed = System.currentTimeMillis();
+        }
+        synchronized (entry) {
+            if (entry.session != null && isAlive(entry.session)) {
+                reused.incrementAndGet();
+                return entry.session;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Logs out and disconnects the session for <tt>key</tt>, if there is
+     * one.
+     */
+    public void closeSession(String key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(key);
+        }
+        if (entry != null)
+            close(entry);
+    }
+
+    static boolean isAlive(Session session) {
+        MessageListener listener = session.listener;
+        return session.getConnected()
+                && (session.isReconnecting() || listener != null
+                        && listener.isConnected());
+    }
+
+    // must be called with the manager locked; the entries removed must be
+    // closed with closeEntries() once the lock is released
+    private List<Entry> removeOverflow() {
+        List<Entry> removed = null;
+        Iterator<Entry> i = entries.values().iterator();
+        while (entries.size() > maxSessions && i.hasNext()) {
+            Entry e = i.next();
+            i.remove();
+            evicted.incrementAndGet();
+            if (removed == null)
+                removed = new ArrayList<Entry>();
+            removed.add(e);
+        }
+        return removed;
+    }
+
+    /**
+     * Marks an entry that has been taken out of the manager as removed, and
+     * closes its session. If the session is still connecting, the thread
+     * connecting it closes it when it is done. Must not be called with the
+     * manager locked.
+     */
+    private void close(Entry entry) {
+        Session session;
+        synchronized (entry) {
+            entry.removed = true;
+            session = entry.session;
+            entry.session = null;
+        }
+        close(session);
+    }
+
+    private void closeEntries(List<Entry> removed) {
+        if (removed != null)
+            for (int i = 0; i < removed.size(); i++)
+                close(removed.get(i));
+    }
+
+    private static void close(Session session) {
+        if (session == null)
+            return;
+        try {
+            session.shutdown();
+        } catch (RuntimeException ex1) {
+            Debug.println("SessionManager: error closing " + session + ": "
+                    + ex1);
+        }
+    }
+
+    /**
+     * Closes all sessions that have been unused for longer than the idle
+     * timeout.
+     */
+    public void closeIdleSessions() {
+        if (idleTimeout <= 0)
+            return;
+        List<Entry> idle = new ArrayList<Entry>();
+        long limit = System.currentTimeMillis() - idleTimeout;
+        synchronized (this) {
+            for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+                Entry e = i.next();
+                if (e.lastUsed < limit) {
+                    i.remove();
+                    idle.add(e);
+                }
+            }
+        }
+        for (int i = 0; i < idle.size(); i++) {
+            idledOut.incrementAndGet();
+            close(idle.get(i));
+        }
+    }
+
+    // must be called with the manager locked
+    private void startReaper() {
+        if (reaper != null)
+            return;
+        reaper = Threads.newThread(new Runnable() {
+            public void run() {
+                while (true) {
+                    synchronized (SessionManager.this) {
+                        if (!running)
+                            break;
+                        try {
+                            SessionManager.this.wait(idleTimeout > 0 ? Math
+                                    .max(idleTimeout / 4, 1000) : 60000);
+                        } catch (InterruptedException ex1) {
+                        }
+                        if (!running)
+                            break;
+                    }
+                    closeIdleSessions();
+                }
+            }
+        }, "SessionManager-reaper-" + reaperCount.getAndIncrement());
+        reaper.start();
+    }
+
+    /**
+     * Closes all sessions and stops the idle timeout thread.
+     */
+    public void shutdown() {
+        List<Entry> all;
+        synchronized (this) {
+            running = false;
+            all = new ArrayList<Entry>(entries.values());
+            entries.clear();
+            notifyAll();
+        }
+        for (int i = 0; i < all.size(); i++)
+            close(all.get(i));
+        unregister();
+    }
+
+    /**
+     * Returns the open sessions.
+     */
+    public synchronized List<Session> getSessions() {
+        List<Session> sessions = new ArrayList<Session>(entries.size());
+        for (Entry e : entries.values()) {
+            Session s = e.session;
+            if (s != null)
+                sessions.add(s);
+        }
+        return sessions;
+    }
+
+    /**
+     * Returns the sum of the metrics of all open sessions.
+     */
+    public SessionMetrics getMetrics() {
+        SessionMetrics total = new SessionMetrics();
+        List<Session> sessions = getSessions();
+        for (int i = 0; i < sessions.size(); i++)
+            total.add(sessions.get(i).getMetrics());
+        return total;
+    }
+
+    public synchronized int getOpenSessions() {
+        return entries.size();
+    }
+
+    /** Sessions connected and logged in. */
+    public long getCreated() {
+        return created.get();
+    }
+
+    /** Requests served by an already open session. */
+    public long getReused() {
+        return reused.get();
+    }
+
+    /** Sessions closed by the idle timeout. */
+    public long getIdledOut() {
+        return idledOut.get();
+    }
+
+    /** Sessions closed to stay within maxSessions. */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /** Sessions found disconnected, and replaced. */
+    public long getDead() {
+        return dead.get();
+    }
+
+    /** Failed connects or logins. */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the histogram of the time, in nanoseconds, it took to connect
+     * and log in new sessions.
+     */
+    public LatencyHistogram getConnectLatency() {
+        return connectLatency;
+    }
+
+    public long getConnectPercentile(double percentile) {
+        return connectLatency.getPercentile(percentile);
+    }
+
+    /**
+     * Returns one line per open session: its key, whether it is connected,
+     * and for how long it has been unused.
+     */
+    public String[] getSessionSummaries() {
+        List<String> lines = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Entry e : entries.values()) {
+                Session s = e.session;
+                lines.add(e.key + ": "
+                        + (s == null ? "connecting"
+                                : s.isReconnecting() ? "reconnecting"
+                                        : isAlive(s) ? "connected"
+                                                : "disconnected")
+                        + (s != null && s.getReconnectCount() > 0 ? ", "
+                                + s.getReconnectCount() + " reconnects" : "")
+                        + ", idle "
+                        + (now - e.lastUsed) / 1000 + " s");
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Registers this object with the platform MBean server, under the name
+     * <tt>nu.dll.lyskom:type=SessionManager,name=<i>name</i></tt>.
+     */
+    public synchronized void register(String name) throws JMException {
+        if (objectName != null)
+            return;
+        ObjectName on = new ObjectName(
+                "nu.dll.lyskom:type=SessionManager,name="
+                        + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+    }
+
+    /**
+     * Removes this object from the platform MBean server, if it has been
+     * registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+        } catch (JMException ex1) {
+            Debug.println("Could not unregister session manager: " + ex1);
+        }
+        objectName = null;
+    }
+}
@@ -0,0 +1,37 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+/**
+ * The JMX management interface of <tt>SessionManager</tt>.
+ *
+ * @see nu.dll.lyskom.SessionManager
+ */
+public interface SessionManagerMBean {
+    public int getOpenSessions();
+
+    public int getMaxSessions();
+
+    public long getIdleTimeout();
+
+    public long getCreated();
+
+    public long getReused();
+
+    public long getIdledOut();
+
+    public long getEvicted();
+
+    public long getDead();
+
+    public long getFailures();
+
+    public long getConnectPercentile(double percentile);
+
+    public String[] getSessionSummaries();
+
+    public void closeIdleSessions();
+}
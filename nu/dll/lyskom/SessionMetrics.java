@@ -0,0 +1,559 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for a Session: calls, errors (by
+ * <tt>Rpc.E_*</tt> code, in all and per call) and send-to-reply latency per
+ * Protocol A call,
+ * bytes read and written, asynchronous messages by type, and hits and
+ * misses in the session's caches.
+ * <br>
+ * The metrics are always collected; recording a value costs a few atomic
+ * increments. They can be read through the methods of this class, or through
+ * JMX once <tt>register()</tt> has been called (or if the system property
+ * <tt>lattekom.jmx</tt> is set to true when the session connects).
+ *
+ * @see nu.dll.lyskom.Session#getMetrics()
+ */
+public class SessionMetrics implements SessionMetricsMBean {
+
+    final static int OPS = 128;
+    final static int ERROR_CODES = 64;
+    final static int ASYNCH_TYPES = 32;
+
+    public final static int CACHE_TEXT = 0;
+    public final static int CACHE_TEXT_STAT = 1;
+    public final static int CACHE_PERSON = 2;
+    public final static int CACHE_CONFERENCE = 3;
+    public final static int CACHE_UCONFERENCE = 4;
+    public final static int CACHE_MEMBERSHIP = 5;
+    // hits are failures thrown again from the negative cache, misses are
+    // failures added to it
+    public final static int CACHE_NEGATIVE = 6;
+
+    final static String[] cacheNames = { "text", "text-stat", "person",
+            "conference", "uconference", "membership", "negative" };
+
+    final static String[] opNames = constantNames(Rpc.class, "C_", OPS);
+    final static String[] errorNames = constantNames(Rpc.class, "E_",
+            ERROR_CODES);
+    final static String[] asynchNames = constantNames(Asynch.class, "",
+            ASYNCH_TYPES);
+
+    AtomicLongArray calls = new AtomicLongArray(OPS);
+    AtomicLongArray errors = new AtomicLongArray(OPS);
+    AtomicLongArray errorCodes = new AtomicLongArray(ERROR_CODES);
+    // by op, then error code; created when the op first fails
+    AtomicReferenceArray<AtomicLongArray> opErrorCodes = new AtomicReferenceArray<AtomicLongArray>(
+            OPS);
+    AtomicReferenceArray<LatencyHistogram> latencies = new AtomicReferenceArray<LatencyHistogram>(
+            OPS);
+    AtomicLongArray asynchs = new AtomicLongArray(ASYNCH_TYPES);
+    AtomicLongArray cacheHits = new AtomicLongArray(cacheNames.length);
+    AtomicLongArray cacheMisses = new AtomicLongArray(cacheNames.length);
+    AtomicLong bytesIn = new AtomicLong();
+    AtomicLong bytesOut = new AtomicLong();
+    AtomicLong expiredCalls = new AtomicLong();
+    AtomicLong lateReplies = new AtomicLong();
+    AtomicLong orphanedReplies = new AtomicLong();
+    AtomicLong uncollectedReplies = new AtomicLong();
+    LatencyHistogram warmUpTime = new LatencyHistogram();
+    LatencyHistogram firstUnreadTime = new LatencyHistogram();
+    List<DispatchQueue> dispatchQueues = new CopyOnWriteArrayList<DispatchQueue>();
+    AsynchInvoker invoker = null;
+
+    ObjectName objectName = null;
+
+    static int registered = 0;
+
+    /**
+     * Maps the values of the int constants with the given prefix in a
+     * class to their names, with the prefix stripped and underscores
+     * replaced by dashes.
+     */
+    static String[] constantNames(Class<?> c, String prefix, int size) {
+        String[] names = new String[size];
+        Field[] fields = c.getFields();
+        for (int i = 0; i < fields.length; i++) {
+            Field f = fields[i];
+            if (f.getType() != Integer.TYPE
+                    || !Modifier.isStatic(f.getModifiers())
+                    || !f.getName().startsWith(prefix))
+                continue;
+            try {
+                int value = f.getInt(null);
+                if (value >= 0 && value < size && names[value] == null)
+                    names[value] = f.getName().substring(prefix.length())
+                            .replace('_', '-');
+            } catch (IllegalAccessException ex1) {
+            }
+        }
+        return names;
+    }
+
+    static String name(String[] names, int n) {
+        return n >= 0 && n < names.length && names[n] != null ? names[n]
+                : String.valueOf(n);
+    }
+
+    static int slot(int n, int size) {
+        return n >= 0 && n < size ? n : size - 1;
+    }
+
+    /**
+     * Returns the name of a Protocol A call, such as "get-text".
+     */
+    public static String getOpName(int op) {
+        return name(opNames, op);
+    }
+
+    /**
+     * Returns the number of a Protocol A call given its name, or -1 if it
+     * is not known. The number itself is also accepted.
+     */
+    public static int getOpNumber(String name) {
+        for (int i = 0; i < opNames.length; i++)
+            if (name.equals(opNames[i]))
+                return i;
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException ex1) {
+            return -1;
+        }
+    }
+
+    /**
+     * Records that a call has been sent (and is counted in the call count
+     * for its op).
+     */
+    void callSent(RpcCall call) {
+        calls.incrementAndGet(slot(call.getOp(), OPS));
+    }
+
+    /**
+     * Records the reply to a call: the time since it was sent, and the error
+     * code if it failed.
+     */
+    void callCompleted(RpcCall call, RpcReply reply) {
+        int op = slot(call.getOp(), OPS);
+        if (call.sent != 0)
+            getLatency(op).record(System.nanoTime() - call.sent);
+        if (!reply.getSuccess()) {
+            errors.incrementAndGet(op);
+            int code = reply.exception != null ? reply.exception.getError()
+                    : -1;
+            errorCodes.incrementAndGet(slot(code, ERROR_CODES));
+            getErrorCodes(op).incrementAndGet(slot(code, ERROR_CODES));
+        }
+    }
+
+    AtomicLongArray getErrorCodes(int op) {
+        AtomicLongArray a = opErrorCodes.get(op);
+        if (a == null) {
+            opErrorCodes.compareAndSet(op, null, new AtomicLongArray(
+                    ERROR_CODES));
+            a = opErrorCodes.get(op);
+        }
+        return a;
+    }
+
+    void asynchReceived(int type) {
+        asynchs.incrementAndGet(slot(type, ASYNCH_TYPES));
+    }
+
+    void cacheHit(int cache) {
+        cacheHits.incrementAndGet(cache);
+    }
+
+    void cacheMiss(int cache) {
+        cacheMisses.incrementAndGet(cache);
+    }
+
+    void bytesRead(long n) {
+        bytesIn.addAndGet(n);
+    }
+
+    void bytesWritten(long n) {
+        bytesOut.addAndGet(n);
+    }
+
+    void callExpired() {
+        expiredCalls.incrementAndGet();
+    }
+
+    void replyLate() {
+        lateReplies.incrementAndGet();
+    }
+
+    void replyOrphaned() {
+        orphanedReplies.incrementAndGet();
+    }
+
+    void replyUncollected() {
+        uncollectedReplies.incrementAndGet();
+    }
+
+    void warmUp(long time, long timeToFirstUnread) {
+        warmUpTime.record(time);
+        firstUnreadTime.record(timeToFirstUnread);
+    }
+
+    LatencyHistogram getLatency(int op) {
+        LatencyHistogram h = latencies.get(op);
+        if (h == null) {
+            latencies.compareAndSet(op, null, new LatencyHistogram());
+            h = latencies.get(op);
+        }
+        return h;
+    }
+
+    /**
+     * Returns the latency histogram for a Protocol A call, or null if no
+     * reply to such a call has been received.
+     */
+    public LatencyHistogram getLatencyHistogram(int op) {
+        return op >= 0 && op < OPS ? latencies.get(op) : null;
+    }
+
+    /**
+     * Returns the number of calls sent with the given op.
+     */
+    public long getCalls(int op) {
+        return op >= 0 && op < OPS ? calls.get(op) : 0;
+    }
+
+    /**
+     * Returns the number of calls with the given op that failed.
+     */
+    public long getErrors(int op) {
+        return op >= 0 && op < OPS ? errors.get(op) : 0;
+    }
+
+    /**
+     * Returns the number of failed calls with the given error code.
+     */
+    public long getErrorCount(int errorCode) {
+        return errorCode >= 0 && errorCode < ERROR_CODES ? errorCodes
+                .get(errorCode) : 0;
+    }
+
+    /**
+     * Returns the number of calls with the given op that failed with the
+     * given error code.
+     */
+    public long getErrorCount(int op, int errorCode) {
+        if (op < 0 || op >= OPS || errorCode < 0 || errorCode >= ERROR_CODES)
+            return 0;
+        AtomicLongArray a = opErrorCodes.get(op);
+        return a != null ? a.get(errorCode) : 0;
+    }
+
+    /**
+     * Returns the number of asynchronous messages received of a given type.
+     *
+     * @see nu.dll.lyskom.Asynch
+     */
+    public long getAsynchMessages(int type) {
+        return type >= 0 && type < ASYNCH_TYPES ? asynchs.get(type) : 0;
+    }
+
+    /**
+     * Returns the number of hits in one of the caches (<tt>CACHE_*</tt>).
+     */
+    public long getCacheHits(int cache) {
+        return cacheHits.get(cache);
+    }
+
+    /**
+     * Returns the number of misses in one of the caches (<tt>CACHE_*</tt>).
+     */
+    public long getCacheMisses(int cache) {
+        return cacheMisses.get(cache);
+    }
+
+    public long getCalls() {
+        return sum(calls);
+    }
+
+    public long getErrors() {
+        return sum(errors);
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getAsynchMessages() {
+        return sum(asynchs);
+    }
+
+    /**
+     * Returns the number of calls that got no reply within the RPC timeout.
+     */
+    public long getExpiredCalls() {
+        return expiredCalls.get();
+    }
+
+    /**
+     * Returns the number of replies that arrived after their call had
+     * expired.
+     */
+    public long getLateReplies() {
+        return lateReplies.get();
+    }
+
+    /**
+     * Returns the number of replies that matched no call.
+     */
+    public long getOrphanedReplies() {
+        return orphanedReplies.get();
+    }
+
+    /**
+     * Returns the number of replies that were dropped because nobody
+     * collected them.
+     */
+    public long getUncollectedReplies() {
+        return uncollectedReplies.get();
+    }
+
+    public long getCacheHits() {
+        return sum(cacheHits);
+    }
+
+    public long getCacheMisses() {
+        return sum(cacheMisses);
+    }
+
+    static long sum(AtomicLongArray a) {
+        long n = 0;
+        for (int i = 0; i < a.length(); i++)
+            n += a.get(i);
+        return n;
+    }
+
+    /**
+     * Returns one line per Protocol A call that has been used, with the
+     * call and error counts, the errors by code, and latency percentiles.
+     */
+    public String[] getOpSummaries() {
+        List<String> lines = new ArrayList<String>();
+        for (int op = 0; op < OPS; op++) {
+            long n = calls.get(op);
+            if (n == 0)
+                continue;
+            LatencyHistogram h = latencies.get(op);
+            AtomicLongArray codes = opErrorCodes.get(op);
+            String byCode = "";
+            if (codes != null) {
+                String[] s = summaries(codes, errorNames);
+                for (int i = 0; i < s.length; i++)
+                    byCode += (i == 0 ? " (" : ", ") + s[i];
+                if (s.length > 0)
+                    byCode += ")";
+            }
+            lines.add(getOpName(op) + ": calls=" + n + " errors="
+                    + errors.get(op) + byCode + (h != null ? " " + h : ""));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public String[] getErrorSummaries() {
+        return summaries(errorCodes, errorNames);
+    }
+
+    public String[] getAsynchSummaries() {
+        return summaries(asynchs, asynchNames);
+    }
+
+    static String[] summaries(AtomicLongArray counts, String[] names) {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < counts.length(); i++) {
+            long n = counts.get(i);
+            if (n != 0)
+                lines.add(name(names, i) + ": " + n);
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Returns one line per dispatch queue of the session, with its depth,
+     * counters and lag percentiles.
+     */
+    public String[] getDispatchSummaries() {
+        List<String> lines = new ArrayList<String>();
+        for (DispatchQueue q : dispatchQueues)
+            lines.add(q.toString());
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Returns the queue length, counters and wait-time percentiles of the
+     * session's AsynchInvoker.
+     */
+    public String getInvokerSummary() {
+        AsynchInvoker i = invoker;
+        return i != null ? i.toString() : "";
+    }
+
+    /**
+     * Returns the percentiles of the times that <tt>Session.warmUp()</tt>
+     * took, in all and until the first unread conference was known.
+     */
+    public String getWarmUpSummary() {
+        return "warm-up " + warmUpTime + " first-unread " + firstUnreadTime;
+    }
+
+    public String[] getCacheSummaries() {
+        String[] lines = new String[cacheNames.length];
+        for (int i = 0; i < cacheNames.length; i++) {
+            lines[i] = cacheNames[i] + ": hits=" + cacheHits.get(i)
+                    + " misses=" + cacheMisses.get(i);
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the latency, in nanoseconds, at the given percentile for a
+     * call given by name (or number), or zero if there is no such data.
+     */
+    public long getLatencyPercentile(String op, double percentile) {
+        LatencyHistogram h = getLatencyHistogram(getOpNumber(op));
+        return h != null ? h.getPercentile(percentile) : 0;
+    }
+
+    /**
+     * Adds all counters and histograms of another SessionMetrics object to
+     * this one. Useful to get totals for many sessions.
+     */
+    public void add(SessionMetrics other) {
+        for (int op = 0; op < OPS; op++) {
+            calls.addAndGet(op, other.calls.get(op));
+            errors.addAndGet(op, other.errors.get(op));
+            LatencyHistogram h = other.latencies.get(op);
+            if (h != null)
+                getLatency(op).add(h);
+            AtomicLongArray codes = other.opErrorCodes.get(op);
+            if (codes != null)
+                add(getErrorCodes(op), codes);
+        }
+        add(errorCodes, other.errorCodes);
+        add(asynchs, other.asynchs);
+        add(cacheHits, other.cacheHits);
+        add(cacheMisses, other.cacheMisses);
+        bytesIn.addAndGet(other.bytesIn.get());
+        bytesOut.addAndGet(other.bytesOut.get());
+        expiredCalls.addAndGet(other.expiredCalls.get());
+        lateReplies.addAndGet(other.lateReplies.get());
+        orphanedReplies.addAndGet(other.orphanedReplies.get());
+        uncollectedReplies.addAndGet(other.uncollectedReplies.get());
+        warmUpTime.add(other.warmUpTime);
+        firstUnreadTime.add(other.firstUnreadTime);
+    }
+
+    static void add(AtomicLongArray to, AtomicLongArray from) {
+        for (int i = 0; i < to.length(); i++)
+            to.addAndGet(i, from.get(i));
+    }
+
+    /**
+     * Resets all counters and histograms.
+     */
+    public void reset() {
+        for (int op = 0; op < OPS; op++) {
+            calls.set(op, 0);
+            errors.set(op, 0);
+            LatencyHistogram h = latencies.get(op);
+            if (h != null)
+                h.reset();
+            AtomicLongArray codes = opErrorCodes.get(op);
+            if (codes != null)
+                clear(codes);
+        }
+        clear(errorCodes);
+        clear(asynchs);
+        clear(cacheHits);
+        clear(cacheMisses);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        expiredCalls.set(0);
+        lateReplies.set(0);
+        orphanedReplies.set(0);
+        uncollectedReplies.set(0);
+        warmUpTime.reset();
+        firstUnreadTime.reset();
+    }
+
+    static void clear(AtomicLongArray a) {
+        for (int i = 0; i < a.length(); i++)
+            a.set(i, 0);
+    }
+
+    /**
+     * Registers this object with the platform MBean server, under the name
+     * <tt>nu.dll.lyskom:type=Session,name=<i>name</i></tt>.
+     */
+    public synchronized void register(String name) throws JMException {
+        if (objectName != null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName on = new ObjectName("nu.dll.lyskom:type=Session,name="
+                + ObjectName.quote(name));
+        server.registerMBean(this, on);
+        objectName = on;
+    }
+
+    /**
+     * Registers this object with the platform MBean server, under a name
+     * made from the server, port and a sequence number.
+     */
+    void register(Session session) {
+        synchronized (SessionMetrics.class) {
+            registered++;
+        }
+        try {
+            register(session.getServer() + ":" + session.getPort() + "#"
+                    + registered);
+        } catch (JMException ex1) {
+            Debug.println("Could not register session metrics: " + ex1);
+        }
+    }
+
+    /**
+     * Removes this object from the platform MBean server, if it has been
+     * registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+        } catch (JMException ex1) {
+            Debug.println("Could not unregister session metrics: " + ex1);
+        }
+        objectName = null;
+    }
+}
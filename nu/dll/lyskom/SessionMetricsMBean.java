@@ -0,0 +1,53 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+/**
+ * The JMX management interface of <tt>SessionMetrics</tt>.
+ *
+ * @see nu.dll.lyskom.SessionMetrics
+ */
+public interface SessionMetricsMBean {
+    public long getCalls();
+
+    public long getErrors();
+
+    public long getBytesIn();
+
+    public long getBytesOut();
+
+    public long getAsynchMessages();
+
+    public long getExpiredCalls();
+
+    public long getLateReplies();
+
+    public long getOrphanedReplies();
+
+    public long getUncollectedReplies();
+
+    public long getCacheHits();
+
+    public long getCacheMisses();
+
+    public String[] getOpSummaries();
+
+    public String[] getErrorSummaries();
+
+    public String[] getAsynchSummaries();
+
+    public String[] getCacheSummaries();
+
+    public String[] getDispatchSummaries();
+
+    public String getInvokerSummary();
+
+    public String getWarmUpSummary();
+
+    public long getLatencyPercentile(String op, double percentile);
+
+    public void reset();
+}
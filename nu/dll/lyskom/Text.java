@@ -16,7 +16,9 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.io.Serializable;
-import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 
 
@@ -40,6 +42,45 @@ public class Text extends Hollerith implements Serializable {
     int textNo = -1;
     TextStat stat = null;
 
+    /*
+     * Parse-once index over the contents array. It is tied to the identity
+     * of the array it was built from, so it is rebuilt automatically
+     * whenever the contents are replaced, whether through setContents() or
+     * by a subclass filling in the contents field. An Index is never
+     * changed; what is worked out later is added to a copy, which replaces
+     * it, so that threads sharing a cached Text always see a whole one.
+     */
+    static class Index {
+        final byte[] contents;
+        final int[] newlines; // byte offsets of all '\n' in contents
+
+        // charset-decoded contents, and the char offset of the first '\n'
+        final String decoded;
+        final String charset;
+        final int decodedSubjectEnd;
+
+        final String wrapped;
+        final int wrappedMargin;
+
+        Index(byte[] contents, int[] newlines, String decoded,
+                String charset, int decodedSubjectEnd, String wrapped,
+                int wrappedMargin) {
+            this.contents = contents;
+            this.newlines = newlines;
+            this.decoded = decoded;
+            this.charset = charset;
+            this.decodedSubjectEnd = decodedSubjectEnd;
+            this.wrapped = wrapped;
+            this.wrappedMargin = wrappedMargin;
+        }
+
+        int subjectEnd() {
+            return newlines.length > 0 ? newlines[0] : -1;
+        }
+    }
+
+    transient volatile Index index = null;
+
     Text setCached(boolean b) {
         cached = b;
         return this;
@@ -171,22 +212,58 @@ public class Text extends Hollerith implements Serializable {
             lastchar = i;
             break;
         }
-        byte[] newcontents = new byte[lastchar + 1];
-        for (int i = 0; i < newcontents.length; i++)
-            newcontents[i] = contents[i];
-        setContents(newcontents);
+        if (lastchar == contents.length - 1)
+            return; // nothing to trim, keep the array as it is
 
+        setContents(Arrays.copyOf(contents, lastchar + 1));
     }
 
     /**
      * Count the number of rows this text contains.
      */
     public int getRows() {
-        int count = 0;
-        for (int i = 0; i < contents.length; i++)
-            if (contents[i] == '\n')
-                count++;
-        return count;
+        return index().newlines.length;
+    }
+
+    /**
+     * Builds (if necessary) and returns the newline index for the current
+     * contents array.
+     */
+    private Index index() {
+        byte[] b = contents;
+        Index ix = index;
+        if (ix == null || ix.contents != b) {
+            int count = 0;
+            for (int i = 0; i < b.length; i++)
+                if (b[i] == '\n')
+                    count++;
+            int[] nl = new int[count];
+            count = 0;
+            for (int i = 0; i < b.length; i++)
+                if (b[i] == '\n')
+                    nl[count++] = i;
+
+            ix = new Index(b, nl, null, null, -1, null, -1);
+            index = ix;
+        }
+        return ix;
+    }
+
+    /**
+     * Returns the index with the contents decoded according to this text's
+     * charset. The decoding is cached until the contents or charset
+     * changes.
+     */
+    private Index decoded() throws UnsupportedEncodingException {
+        Index ix = index();
+        String charset = getCharset();
+        if (ix.decoded == null || !charset.equals(ix.charset)) {
+            String d = new String(ix.contents, charset);
+            ix = new Index(ix.contents, ix.newlines, d, charset, d
+                    .indexOf('\n'), null, -1);
+            index = ix;
+        }
+        return ix;
     }
 
     /**
@@ -327,28 +404,34 @@ public class Text extends Hollerith implements Serializable {
     }
 
     /**
-     * Returns the subject (first row) of this text.
+     * Returns the subject (first row) of this text, in a new array.
      */
     public byte[] getSubject() {
         // do not use getContents() since, if we are a BigText object,
         // we don't want to fetch the entire body form the server.
-        byte[] b = contents;
-        int i = 0;
-        while (i < b.length && b[i] != '\n')
-            i++;
-        if (i >= b.length) {
+        Index ix = index();
+        int end = ix.subjectEnd();
+        if (end == -1) {
             return new byte[] {};
         }
-        byte[] r = new byte[i];
-        for (i = 0; i < r.length; i++)
-            r[i] = b[i];
-        return r;
+        return Arrays.copyOf(ix.contents, end);
     }
 
     public String getSubjectString() throws UnsupportedEncodingException {
-        return new String(getSubject(), getCharset());
+        return getSubjectChars().toString();
+    }
+
+    /**
+     * Returns the subject of this text as a read-only view over the decoded
+     * contents. No characters are copied.
+     */
+    public CharSequence getSubjectChars() throws UnsupportedEncodingException {
+        Index ix = decoded();
+        if (ix.decodedSubjectEnd == -1)
+            return CharBuffer.wrap(ix.decoded, 0, 0);
+        return CharBuffer.wrap(ix.decoded, 0, ix.decodedSubjectEnd);
     }
-    
+
     public String getSubjectString8() {
     	String value = "SubjectString";
     	try {
@@ -362,7 +445,22 @@ public class Text extends Hollerith implements Serializable {
 
 
     public String getBodyString() throws UnsupportedEncodingException {
-        return new String(getBody(), getCharset());
+        return getBodyChars().toString();
+    }
+
+    /**
+     * Returns the body of this text as a read-only view over the decoded
+     * contents. No characters are copied.
+     */
+    public CharSequence getBodyChars() throws UnsupportedEncodingException {
+        byte[] b = getContents();
+        if (b != contents) {
+            // contents not kept in memory (BigText)
+            return new String(getBody(b), getCharset());
+        }
+        Index ix = decoded();
+        return CharBuffer.wrap(ix.decoded, ix.decodedSubjectEnd + 1,
+                ix.decoded.length());
     }
 
     public String getBodyString8() {
@@ -378,10 +476,17 @@ public class Text extends Hollerith implements Serializable {
     }
 
     /**
-     * Returns the body (everything but the first row) of this text.
+     * Returns the body (everything but the first row) of this text, in a
+     * new array.
      */
     public byte[] getBody() {
-        return getBody(getContents());
+        byte[] b = getContents();
+        if (b != contents)
+            return getBody(b);
+
+        Index ix = index();
+        return Arrays.copyOfRange(ix.contents, ix.subjectEnd() + 1,
+                ix.contents.length);
     }
 
     protected byte[] getBody(byte[] contents) {
@@ -394,24 +499,38 @@ public class Text extends Hollerith implements Serializable {
             return b;
         }
 
-        byte[] r = new byte[b.length - i - 1]; // -1 is \n
-        i++; // skip '\n'
-        System.arraycopy(b, i, r, 0, r.length);
-        return r;
+        return Arrays.copyOfRange(b, i + 1, b.length);
     }
 
     public static List<String> getRows(String s) {
-        try {
-            BufferedReader rdr = new BufferedReader(new StringReader(s));
-            List<String> bodyList = new LinkedList<String>();
-            String row;
-            while ((row = rdr.readLine()) != null) {
-                bodyList.add(row);
+        List<CharSequence> rows = getRowViews(s);
+        List<String> bodyList = new ArrayList<String>(rows.size());
+        for (int i = 0; i < rows.size(); i++)
+            bodyList.add(rows.get(i).toString());
+        return bodyList;
+    }
+
+    /**
+     * Splits the supplied characters into rows the same way
+     * BufferedReader.readLine() does (on '\n', '\r' or "\r\n"), returning
+     * read-only views instead of copies.
+     */
+    static List<CharSequence> getRowViews(CharSequence s) {
+        List<CharSequence> rows = new ArrayList<CharSequence>();
+        int length = s.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '\n' || c == '\r') {
+                rows.add(CharBuffer.wrap(s, start, i));
+                if (c == '\r' && i + 1 < length && s.charAt(i + 1) == '\n')
+                    i++;
+                start = i + 1;
             }
-            return bodyList;
-        } catch (IOException ex1) {
-            throw new RuntimeException("This shouldn't happen");
         }
+        if (start < length)
+            rows.add(CharBuffer.wrap(s, start, length));
+        return rows;
     }
 
     /**
@@ -420,7 +539,20 @@ public class Text extends Hollerith implements Serializable {
      */
     public List<?> getBodyList() {
         try {
-            return getRows(new String(getBody(), getCharset()));
+            return getRows(getBodyChars().toString());
+        } catch (UnsupportedEncodingException ex1) {
+            throw new RuntimeException("Unsupported character encoding: "
+                    + ex1.getMessage());
+        }
+    }
+
+    /**
+     * Returns the rows of the body of this text as read-only views over the
+     * decoded contents.
+     */
+    public List<CharSequence> getBodyRows() {
+        try {
+            return getRowViews(getBodyChars());
         } catch (UnsupportedEncodingException ex1) {
             throw new RuntimeException("Unsupported character encoding: "
                     + ex1.getMessage());
@@ -554,12 +686,13 @@ public class Text extends Hollerith implements Serializable {
     }
 
     public static String wrap(String s, int margin) {
-        List<String> rows = getRows(s);
-        List<String> newRows = new LinkedList<String>();
+        return wrap(getRowViews(s), margin);
+    }
 
-        Iterator<String> i = rows.iterator();
-        while (i.hasNext()) {
-            String row = (String) i.next();
+    static String wrap(List<CharSequence> rows, int margin) {
+        StringBuilder newBody = new StringBuilder();
+        for (int r = 0; r < rows.size(); r++) {
+            String row = rows.get(r).toString();
             boolean skip = false;
             while (!skip && row.length() > margin) {
                 int cutAt = row.lastIndexOf(' ', margin);
@@ -567,18 +700,10 @@ public class Text extends Hollerith implements Serializable {
                     skip = true;
                     continue;
                 }
-                String wrappedRow = row.substring(0, cutAt);
+                newBody.append(row, 0, cutAt).append('\n');
                 row = row.substring(cutAt + 1);
-                newRows.add(wrappedRow);
             }
-            newRows.add(row);
-        }
-
-        i = newRows.iterator();
-        StringBuffer newBody = new StringBuffer();
-        while (i.hasNext()) {
-            String row = (String) i.next();
-            newBody.append(row + "\n");
+            newBody.append(row).append('\n');
         }
         return newBody.toString();
     }
@@ -587,7 +712,20 @@ public class Text extends Hollerith implements Serializable {
             .intValue();
 
     public String getWrapped() throws UnsupportedEncodingException {
-        return wrap(getBodyString(), rightMargin);
+        byte[] b = getContents();
+        if (b != contents) // BigText, contents not kept
+            return wrap(getRowViews(new String(getBody(b), getCharset())),
+                    rightMargin);
+        Index ix = decoded();
+        if (ix.wrapped == null || ix.wrappedMargin != rightMargin) {
+            CharSequence body = CharBuffer.wrap(ix.decoded,
+                    ix.decodedSubjectEnd + 1, ix.decoded.length());
+            ix = new Index(ix.contents, ix.newlines, ix.decoded, ix.charset,
+                    ix.decodedSubjectEnd, wrap(getRowViews(body),
+                            rightMargin), rightMargin);
+            index = ix;
+        }
+        return ix.wrapped;
     }
 
 }
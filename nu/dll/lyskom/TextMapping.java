@@ -5,9 +5,10 @@
  */
 package nu.dll.lyskom;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Enumeration;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -34,12 +35,19 @@ import java.util.List;
  * This class handles storage of global text numbers for one conference.
  */
 public class TextMapping implements Enumeration<Object> {
-    public final static int DEBUG = 2;
+    final static Debug.Channel debug = Debug.channel("mapping");
+
+    /**
+     * @deprecated use the "mapping" debug channel; this is its level
+     */
+    @Deprecated
+    public final static int DEBUG = debug.getLevel();
+
     Hashtable<Integer, Integer> hash = new Hashtable<Integer, Integer>();
     int enumc = 0;
     int rangeBegin = 0;
     int rangeEnd = 0;
-    List<Integer> list = new LinkedList<Integer>();
+    List<Integer> list = new ArrayList<Integer>();
     boolean laterTextsExists;
 
     // int[] list;
@@ -62,7 +70,7 @@ public class TextMapping implements Enumeration<Object> {
     }
 
     public int globalToLocal(int n) {
-        Debug.println("TextMapping.globalToLocal(" + n + ")");
+        debug.log(Debug.FINE, "TextMapping.globalToLocal({})", n);
         Enumeration<Integer> e = hash.keys();
         while (e.hasMoreElements()) {
             Integer localNo = (Integer) e.nextElement();
@@ -70,7 +78,7 @@ public class TextMapping implements Enumeration<Object> {
             if (localNo.equals(globalNo))
                 return localNo.intValue();
         }
-        Debug.println("TextMapping.globalToLocal(" + n + "): nothing found");
+        debug.log(Debug.FINE, "TextMapping.globalToLocal({}): nothing found", n);
         return -1;
     }
 
@@ -93,15 +101,15 @@ public class TextMapping implements Enumeration<Object> {
      * Returns the next Global number
      */
     public Object nextElement() {
-        if (enumc >= list.size()) {
-            Debug.println("no such element, enum=" + enumc);
+        if (list == null || enumc >= list.size()) {
+            debug.log(Debug.FINE, "no such element, enum={}", enumc);
             return null;
         }
-        Debug.println("returning "
-                + localToGlobal(((Integer) list.get(enumc)).intValue()) + "/"
-                + ((Integer) list.get(enumc)).intValue() + " - " + enumc);
-        return list != null ? (Object) new Integer(
-                localToGlobal(((Integer) list.get(enumc++)).intValue())) : null;
+        int local = list.get(enumc).intValue();
+        int global = localToGlobal(local);
+        debug.log(Debug.TRACE, "returning {}/{} - {}", global, local, enumc);
+        enumc++;
+        return Integer.valueOf(global);
     }
 
     /**
@@ -142,8 +150,7 @@ public class TextMapping implements Enumeration<Object> {
 
         switch (tk[offset++].intValue()) { // sparse/dense?
         case 0: // sparse -- local-global pairs
-            if (DEBUG > 0)
-                Debug.println("TextMapping.update(): sparse mode");
+            debug.log(Debug.FINE, "TextMapping.update(): sparse mode");
             int textNumberPairArrayLength = tk[offset++].intValue();
             if (textNumberPairArrayLength == 0) {
                 break;
@@ -167,8 +174,7 @@ public class TextMapping implements Enumeration<Object> {
             }
             break;
         case 1: // dense
-            if (DEBUG > 0)
-                Debug.println("TextMapping.update(): dense mode");
+            debug.log(Debug.FINE, "TextMapping.update(): dense mode");
             int firstLocalNo = tk[offset++].intValue();
       
             offset++; 
@@ -184,9 +190,109 @@ public class TextMapping implements Enumeration<Object> {
                 }
             }
         }
-        if (DEBUG > 1)
-            Debug.println("lastLocal: " + lastLocal() + ", list.length=="
-                    + list.size() + ", enumc==" + enumc);
+        if (debug.isOn(Debug.FINE))
+            debug.log(Debug.FINE, "lastLocal: {}, list.length=={}, enumc=={}",
+                    lastLocal(), list.size(), enumc);
+    }
+
+    /**
+     * A Text-Mapping as read directly from the reply stream, before it is
+     * merged into a TextMapping by update(RpcReply, boolean).
+     */
+    static class Block {
+        int rangeBegin;
+        int rangeEnd;
+        boolean laterTextsExists;
+        boolean dense;
+        int firstLocalNo;
+        // dense: global numbers from firstLocalNo; sparse: local/global pairs
+        int[] numbers;
+
+        static Block readFrom(KomTokenReader in) throws IOException {
+            Block b = new Block();
+            b.rangeBegin = in.readInt();
+            b.rangeEnd = in.readInt();
+            b.laterTextsExists = in.readBoolean();
+            int length;
+            switch (in.readInt()) {
+            case 0: // sparse
+                length = in.readInt() * 2;
+                break;
+            case 1: // dense
+                b.dense = true;
+                b.firstLocalNo = in.readInt();
+                length = in.readInt();
+                break;
+            default:
+                throw new KomProtocolException("Bad Local-To-Global-Block");
+            }
+            b.numbers = new int[length];
+            if (in.readArrayStart()) {
+                for (int i = 0; i < length; i++)
+                    b.numbers[i] = in.readInt();
+                in.readArrayEnd();
+            }
+            return b;
+        }
+    }
+
+    /**
+     * Update the TextMapping with the reply to a local-to-global (or similar)
+     * call.
+     * 
+     * @see #update(int, KomToken[], boolean)
+     */
+    void update(RpcReply reply, boolean keepZeroes) {
+        if (!(reply.getDecoded() instanceof Block)) {
+            update(0, reply.getParameters(), keepZeroes);
+            return;
+        }
+        Block b = (Block) reply.getDecoded();
+        rangeBegin = b.rangeBegin;
+        rangeEnd = b.rangeEnd;
+        laterTextsExists = b.laterTextsExists;
+        int[] numbers = b.numbers;
+        if (b.dense) {
+            for (int i = 0; i < numbers.length; i++) {
+                if ((numbers[i] != 0) || keepZeroes) {
+                    list.add(Integer.valueOf(b.firstLocalNo + i));
+                    hash.put(Integer.valueOf(b.firstLocalNo + i), Integer
+                            .valueOf(numbers[i]));
+                }
+            }
+        } else {
+            for (int i = 0; i + 1 < numbers.length; i += 2) {
+                list.add(Integer.valueOf(numbers[i]));
+                hash.put(Integer.valueOf(numbers[i]), Integer
+                        .valueOf(numbers[i + 1]));
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of this mapping, with its cursor at the beginning.
+     */
+    TextMapping copy() {
+        TextMapping m = new TextMapping();
+        m.hash = new Hashtable<Integer, Integer>(hash);
+        m.list = new ArrayList<Integer>(list);
+        m.rangeBegin = rangeBegin;
+        m.rangeEnd = rangeEnd;
+        m.laterTextsExists = laterTextsExists;
+        return m;
+    }
+
+    /**
+     * Returns a copy of this mapping with a pair added after the end of the
+     * range, for a text created since the mapping was read. This mapping,
+     * which others may be reading, is not changed.
+     */
+    TextMapping append(int localNo, int globalNo) {
+        TextMapping m = copy();
+        m.list.add(Integer.valueOf(localNo));
+        m.hash.put(Integer.valueOf(localNo), Integer.valueOf(globalNo));
+        m.rangeEnd = localNo + 1;
+        return m;
     }
 
     public boolean search(int localNo) {
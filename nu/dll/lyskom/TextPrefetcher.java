@@ -1,40 +1,40 @@
 package nu.dll.lyskom;
 
 import java.io.IOException;
-import java.util.List;
 
+/**
+ * Fetches a new text, and the text-stats of the texts it comments, into
+ * the caches. Queued on the session's AsynchInvoker with the text number
+ * as key, so that prefetches of different texts run in parallel.
+ */
 class TextPrefetcher implements Runnable {
-    List<Integer> texts;
+    int textNo;
     Session session;
 
-    public TextPrefetcher(Session session, List<Integer> texts) {
+    public TextPrefetcher(Session session, int textNo) {
         this.session = session;
-        this.texts = texts;
+        this.textNo = textNo;
     }
 
     public void run() {
-        Debug.println("TextPrefetcher: " + texts.size()
-                + " texts to be fetched");
-        while (!texts.isEmpty()) {
-            int textNo;
-            synchronized (texts) {
-                textNo = texts.remove(0).intValue();
+        try {
+            // the text-stat is cached from the new-text message
+            Text text = session.getText(textNo, false);
+            int[] commented = text.getCommented();
+            for (int i = 0; i < commented.length; i++) {
+                Debug.println("prefetching text-stat for " + commented[i]);
+                session.getTextStat(commented[i], true);
             }
-            try {
-                Text text = session.getText(textNo, true);
-                int[] commented = text.getCommented();
-                for (int i = 0; i < commented.length; i++) {
-                    Debug.println("prefetching text-stat for " + commented[i]);
-                    session.getTextStat(commented[i], true);
-                }
 
-                Debug.println("Fetched text number " + textNo);
-            } catch (IOException ex1) {
-                Debug.println("I/O error during pre-fetch: " + ex1.getMessage());
-            } catch (Exception ex) {
-                Debug.println("Error during pre-fetch: " + ex.getMessage());
-            }
+            Debug.println("Fetched text number " + textNo);
+        } catch (IOException ex1) {
+            Debug.println("I/O error during pre-fetch: " + ex1.getMessage());
+        } catch (Exception ex) {
+            Debug.println("Error during pre-fetch: " + ex.getMessage());
         }
-        Debug.println("Prefetch list empty");
+    }
+
+    public String toString() {
+        return "TextPrefetcher[" + textNo + "]";
     }
 }
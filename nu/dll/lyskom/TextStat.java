@@ -5,14 +5,17 @@
  */
 package nu.dll.lyskom;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Iterator;
 import java.util.Properties;
-import java.util.Stack;
+import java.util.RandomAccess;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.StringTokenizer;
+import java.io.IOException;
 
 /**
  * <p>
@@ -151,9 +154,28 @@ public class TextStat implements java.io.Serializable {
 
     int no;
 
-    // public Selection miscInfo;
-    List<Selection> miscInfo = new LinkedList<Selection>();
-    Map<Integer, Integer> localMap = new HashMap<Integer, Integer>();
+    /*
+     * Misc-Info, packed. Each entry is a triple in misc[]: the tag, the value
+     * and a group word holding the id of the group (Selection) the entry
+     * belongs to, or'ed with NO_VALUE for tags without a trailing value, or
+     * TIME_VALUE if the value is an index into times[]. Entries of a group are
+     * stored consecutively. times[] holds KomTime.ITEM_SIZE ints per time, in
+     * the order they are sent on the wire.
+     */
+    final static int NO_VALUE = 1 << 30;
+    final static int TIME_VALUE = 1 << 29;
+    final static int GROUP_MASK = TIME_VALUE - 1;
+    final static int[] EMPTY = new int[0];
+
+    int[] misc = EMPTY;
+    int miscEntries = 0;
+    int[] times = EMPTY;
+    int timeCount = 0;
+    int nextGroupId = 0;
+
+    transient int[] groupStarts = null;
+    transient int[][] slices = null;
+    transient List<Selection> miscInfoView = null;
 
     /**
      * Creates an empty TextStat object
@@ -165,7 +187,45 @@ public class TextStat implements java.io.Serializable {
     protected TextStat(int no) {
         super();
         this.no = no;
-        miscInfo = new LinkedList<Selection>();
+    }
+
+    /**
+     * Reads both the packed form and the older form, where Misc-Info was a
+     * list of Selections in the field <tt>miscInfo</tt>, which is converted.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(java.io.ObjectInputStream in)
+            throws java.io.IOException, ClassNotFoundException {
+        java.io.ObjectInputStream.GetField fields = in.readFields();
+        auxItems = (AuxItem[]) fields.get("auxItems",
+                new AuxItem[INITIAL_AUX_LENGTH]);
+        auxItemCount = fields.get("auxItemCount", 0);
+        creationTime = (KomTime) fields.get("creationTime", null);
+        author = fields.get("author", 0);
+        lines = fields.get("lines", 0);
+        chars = fields.get("chars", 0);
+        marks = fields.get("marks", 0);
+        no = fields.get("no", 0);
+        misc = (int[]) fields.get("misc", EMPTY);
+        miscEntries = fields.get("miscEntries", 0);
+        times = (int[]) fields.get("times", EMPTY);
+        timeCount = fields.get("timeCount", 0);
+        nextGroupId = fields.get("nextGroupId", 0);
+        if (misc == null) {
+            misc = EMPTY;
+            miscEntries = 0;
+        }
+        if (times == null) {
+            times = EMPTY;
+            timeCount = 0;
+        }
+        if (fields.getObjectStreamClass().getField("miscInfo") == null)
+            return;
+        List<Selection> miscInfo = (List<Selection>) fields.get("miscInfo",
+                null);
+        if (miscInfo != null)
+            for (Selection selection : miscInfo)
+                addMiscInfo(selection);
     }
 
     protected void setNo(int no) {
@@ -399,35 +459,102 @@ public class TextStat implements java.io.Serializable {
     /**
      * Returns a List containing Selection objects, which in turn makes up the
      * Misc-Info data for this text.
+     * <p>
+     * The list and its Selection objects are views of the packed Misc-Info
+     * data of this TextStat; changes made through them are written back.
+     * Selections added to the list are copied, so later changes to the added
+     * object itself are not reflected.
+     * </p>
      */
     public List<Selection> getMiscInfo() {
-        return miscInfo;
+        if (miscInfoView == null)
+            miscInfoView = new MiscInfoList();
+        return miscInfoView;
     }
 
     public int getMarks() {
         return marks;
     }
 
+    /**
+     * Returns the number of Misc-Info groups (Selections) in this text.
+     */
+    public int getMiscInfoCount() {
+        return groupIndex().length - 1;
+    }
+
+    /**
+     * Returns the first tag of Misc-Info group <tt>group</tt>, for example
+     * <tt>miscRecpt</tt> for a group describing a recipient.
+     */
+    public int getMiscInfoKey(int group) {
+        return misc[groupIndex()[group] * 3];
+    }
+
+    /**
+     * Returns the integer value of the first tag in Misc-Info group
+     * <tt>group</tt>, for example the conference number of a recipient.
+     */
+    public int getMiscInfoValue(int group) {
+        return misc[groupIndex()[group] * 3 + 1];
+    }
+
+    /**
+     * Returns the integer value tagged with <tt>tag</tt> in Misc-Info group
+     * <tt>group</tt>, or -1 if the group contains no such tag.
+     */
+    public int getMiscInfoInt(int group, int tag) {
+        int[] starts = groupIndex();
+        for (int e = starts[group]; e < starts[group + 1]; e++) {
+            if (misc[e * 3] == tag) {
+                int flags = misc[e * 3 + 2];
+                if ((flags & (NO_VALUE | TIME_VALUE)) != 0)
+                    return -1;
+                return misc[e * 3 + 1];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the time tagged with <tt>tag</tt> (<tt>miscRecTime</tt> or
+     * <tt>miscSentAt</tt>) in Misc-Info group <tt>group</tt>, or null if the
+     * group contains no such time.
+     */
+    public KomTime getMiscInfoTime(int group, int tag) {
+        int[] starts = groupIndex();
+        for (int e = starts[group]; e < starts[group + 1]; e++) {
+            if (misc[e * 3] == tag && (misc[e * 3 + 2] & TIME_VALUE) != 0)
+                return timeAt(misc[e * 3 + 1]);
+        }
+        return null;
+    }
+
+    /**
+     * Returns <tt>true</tt> if Misc-Info group <tt>group</tt> describes a
+     * recipient (normal, CC or BCC).
+     */
+    public boolean isRecipientGroup(int group) {
+        return isRecipientTag(getMiscInfoKey(group));
+    }
+
+    static boolean isRecipientTag(int tag) {
+        return tag == miscRecpt || tag == miscCcRecpt || tag == miscBccRecpt;
+    }
+
     /**
      * Removes all Selections containing the specified key. For example,
      * <tt>clearMiscInfoEntry(miscRecpt)</tt> will remove all (normal)
      * recipients from this text.
      */
     public void clearMiscInfoEntry(int key) {
-        Iterator<Selection> i = miscInfo.iterator();
-        Stack<Selection> toRemove = new Stack<Selection>();
         int count = 0;
-        while (i.hasNext()) {
-            Selection selection = (Selection) i.next();
-            if (selection.contains(key)) {
-                toRemove.push(selection);
-                Debug.println("removed misc-info selection " + selection);
+        for (int g = getMiscInfoCount() - 1; g >= 0; g--) {
+            if (groupContains(g, key)) {
+                removeGroupAt(g);
                 count++;
             }
         }
-        while (!toRemove.isEmpty())
-            miscInfo.remove(toRemove.pop());
-
         Debug.println("clearMiscInfoEntry: found " + count
                 + " selections with flag " + key);
     }
@@ -436,16 +563,14 @@ public class TextStat implements java.io.Serializable {
      * Removes tag <tt>key</tt> if it contains <tt>value</tt> in this texts
      * Misc-Info list. For example, a convenient way of subtracting the
      * recipient no. 4711 may be: <tt>removeMiscInfo(miscRecpt, 4711</tt>.
+     * The entire Misc-Info group started by the matching tag (such as the
+     * local text number of a removed recipient) is removed along with it.
      */
     public void removeMiscInfoEntry(int key, int value) {
-        Iterator<Selection> i = miscInfo.iterator();
         int count = 0;
-        while (i.hasNext()) {
-            Selection selection = (Selection) i.next();
-            if (selection.contains(key)) {
-                selection.remove(key, new Integer(value));
-                Debug.println("removed key " + key + ", value " + value
-                        + " from misc-info " + selection);
+        for (int g = getMiscInfoCount() - 1; g >= 0; g--) {
+            if (getMiscInfoInt(g, key) == value && groupContains(g, key)) {
+                removeGroupAt(g);
                 count++;
             }
         }
@@ -453,8 +578,11 @@ public class TextStat implements java.io.Serializable {
                 + count + " keys");
     }
 
+    /**
+     * Adds a copy of the supplied Selection to the Misc-Info list.
+     */
     public void addMiscInfo(Selection selection) {
-        miscInfo.add(selection);
+        insertGroup(miscEntries, selection);
     }
 
     /**
@@ -470,7 +598,7 @@ public class TextStat implements java.io.Serializable {
      * value <tt>value</tt>.
      */
     public void addMiscInfoEntry(int key, int value) {
-        miscInfo.add(new Selection().add(key, new Integer(value)));
+        insertEntry(miscEntries, key, value, nextGroupId++);
     }
 
     /**
@@ -482,12 +610,11 @@ public class TextStat implements java.io.Serializable {
      * <tt>getMiscInfoSelections(miscLocNo)</tt>).
      */
     public List<Selection> getMiscInfoSelections(int key) {
-        List<Selection> l = new LinkedList<Selection>();
-        Iterator<Selection> i = miscInfo.iterator();
-        while (i.hasNext()) {
-            Selection s = (Selection) i.next();
-            if (s.contains(key))
-                l.add(s);
+        List<Selection> l = new ArrayList<Selection>();
+        int count = getMiscInfoCount();
+        for (int g = 0; g < count; g++) {
+            if (groupContains(g, key))
+                l.add(new MiscSelection(this, groupId(g)));
         }
         return l;
     }
@@ -499,31 +626,15 @@ public class TextStat implements java.io.Serializable {
      * all recipients to this text.
      */
     public int[] getStatInts(int no) {
-        List<Object> values = new LinkedList<Object>();
-        Iterator<Selection> i = miscInfo.iterator();
-        while (i.hasNext()) {
-            Selection selection = (Selection) i.next();
-            if (selection.contains(no)) {
-                values.add(selection.get(no));
-            }
-        }
-        int[] stats = new int[values.size()];
-        Iterator<Object> vi = values.iterator();
-        for (int j = 0; j < stats.length; j++) {
-            stats[j] = ((Integer) vi.next()).intValue();
-        }
-        return stats;
+        return slice(no).clone();
     }
 
     public List<Integer> getAllRecipients() {
         List<Integer> recipients = new LinkedList<Integer>();
-        for (int i = 0; i < miscInfo.size(); i++) {
-            Selection misc = (Selection) miscInfo.get(i);
-            int key = misc.getKey();
-            if (key == TextStat.miscRecpt || key == TextStat.miscCcRecpt
-                    || key == TextStat.miscBccRecpt) {
-                recipients.add(new Integer(misc.getIntValue()));
-            }
+        int count = getMiscInfoCount();
+        for (int g = 0; g < count; g++) {
+            if (isRecipientGroup(g))
+                recipients.add(Integer.valueOf(getMiscInfoValue(g)));
         }
         return recipients;
     }
@@ -547,19 +658,14 @@ public class TextStat implements java.io.Serializable {
     }
 
     public boolean hasRecipient(int no) {
-        int[] r = getStatInts(miscRecpt);
-        for (int i = 0; i < r.length; i++)
-            if (r[i] == no)
-                return true;
-
-        int[] c = getStatInts(miscCcRecpt);
-        for (int i = 0; i < c.length; i++)
-            if (c[i] == no)
-                return true;
+        return contains(slice(miscRecpt), no)
+                || contains(slice(miscCcRecpt), no)
+                || contains(slice(miscBccRecpt), no);
+    }
 
-        int[] b = getStatInts(miscBccRecpt);
-        for (int i = 0; i < b.length; i++)
-            if (b[i] == no)
+    private static boolean contains(int[] a, int no) {
+        for (int i = 0; i < a.length; i++)
+            if (a[i] == no)
                 return true;
         return false;
     }
@@ -583,42 +689,458 @@ public class TextStat implements java.io.Serializable {
      */
     // more error handling (as everywhere)
     public int getLocal(int confNo) throws RuntimeException {
-        Integer locNo = (Integer) localMap.get(new Integer(confNo));
-        if (locNo != null)
-            return locNo.intValue();
-
-        List<Selection> miscInfo = getMiscInfoSelections(TextStat.miscLocNo);
-        Iterator<Selection> i = miscInfo.iterator();
-        while (i.hasNext()) {
-            Selection selection = (Selection) i.next();
-
-            int rcpt = 0;
-            if (selection.contains(TextStat.miscRecpt))
-                rcpt = selection.getIntValue(TextStat.miscRecpt);
-            if (selection.contains(TextStat.miscCcRecpt))
-                rcpt = selection.getIntValue(TextStat.miscCcRecpt);
-            if (selection.contains(TextStat.miscBccRecpt))
-                rcpt = selection.getIntValue(TextStat.miscBccRecpt);
-
-            if (rcpt == confNo) {
-                int no = selection.getIntValue(TextStat.miscLocNo);
-                localMap.put(new Integer(confNo), new Integer(no));
-                return no;
+        int count = getMiscInfoCount();
+        for (int g = 0; g < count; g++) {
+            if (isRecipientGroup(g) && getMiscInfoValue(g) == confNo) {
+                int no = getMiscInfoInt(g, miscLocNo);
+                if (no != -1)
+                    return no;
             }
-
         }
         Debug.println("Text.getLocal(" + confNo + "): recipient not found");
         return -1;
     }
 
+    /*
+     * Packed Misc-Info storage.
+     */
+
+    /**
+     * Returns the values of all entries tagged with <tt>tag</tt>. The slices
+     * are computed once for all tags and shared; callers must not modify them.
+     */
+    int[] slice(int tag) {
+        if (tag < 0 || tag >= MISC_INFO_COUNT)
+            return EMPTY;
+        int[][] s = slices;
+        if (s == null) {
+            int[] counts = new int[MISC_INFO_COUNT];
+            for (int e = 0; e < miscEntries; e++) {
+                int t = misc[e * 3];
+                if (t >= 0 && t < MISC_INFO_COUNT && isIntEntry(e))
+                    counts[t]++;
+            }
+            s = new int[MISC_INFO_COUNT][];
+            for (int t = 0; t < MISC_INFO_COUNT; t++)
+                s[t] = counts[t] == 0 ? EMPTY : new int[counts[t]];
+            for (int e = miscEntries - 1; e >= 0; e--) {
+                int t = misc[e * 3];
+                if (t >= 0 && t < MISC_INFO_COUNT && isIntEntry(e))
+                    s[t][--counts[t]] = misc[e * 3 + 1];
+            }
+            slices = s;
+        }
+        return s[tag];
+    }
+
+    private boolean isIntEntry(int e) {
+        return (misc[e * 3 + 2] & (NO_VALUE | TIME_VALUE)) == 0;
+    }
+
+    /**
+     * Returns the entry index of the first entry of each group, followed by
+     * miscEntries as a sentinel.
+     */
+    int[] groupIndex() {
+        int[] starts = groupStarts;
+        if (starts == null) {
+            int count = 0;
+            for (int e = 0; e < miscEntries; e++)
+                if (e == 0 || groupIdAt(e) != groupIdAt(e - 1))
+                    count++;
+            starts = new int[count + 1];
+            count = 0;
+            for (int e = 0; e < miscEntries; e++)
+                if (e == 0 || groupIdAt(e) != groupIdAt(e - 1))
+                    starts[count++] = e;
+            starts[count] = miscEntries;
+            groupStarts = starts;
+        }
+        return starts;
+    }
+
+    private int groupIdAt(int entry) {
+        return misc[entry * 3 + 2] & GROUP_MASK;
+    }
+
+    int groupId(int group) {
+        return groupIdAt(groupIndex()[group]);
+    }
+
+    /**
+     * Returns the group index of the group with id <tt>id</tt>, or -1.
+     */
+    int findGroup(int id) {
+        int[] starts = groupIndex();
+        for (int g = 0; g < starts.length - 1; g++)
+            if (groupIdAt(starts[g]) == id)
+                return g;
+        return -1;
+    }
+
+    boolean groupContains(int group, int tag) {
+        return findEntry(group, tag) != -1;
+    }
+
+    int findEntry(int group, int tag) {
+        int[] starts = groupIndex();
+        for (int e = starts[group]; e < starts[group + 1]; e++)
+            if (misc[e * 3] == tag)
+                return e;
+        return -1;
+    }
+
+    /**
+     * Returns the value of entry <tt>e</tt> as an Integer, a KomTime or null.
+     */
+    Object entryValue(int e) {
+        int flags = misc[e * 3 + 2];
+        if ((flags & NO_VALUE) != 0)
+            return null;
+        if ((flags & TIME_VALUE) != 0)
+            return timeAt(misc[e * 3 + 1]);
+        return Integer.valueOf(misc[e * 3 + 1]);
+    }
+
+    private void invalidate() {
+        groupStarts = null;
+        slices = null;
+    }
+
+    void insertEntry(int e, int tag, int value, int groupWord) {
+        if ((miscEntries + 1) * 3 > misc.length) {
+            int[] n = new int[Math.max(misc.length * 2, (miscEntries + 4) * 3)];
+            System.arraycopy(misc, 0, n, 0, miscEntries * 3);
+            misc = n;
+        }
+        System.arraycopy(misc, e * 3, misc, e * 3 + 3, (miscEntries - e) * 3);
+        misc[e * 3] = tag;
+        misc[e * 3 + 1] = value;
+        misc[e * 3 + 2] = groupWord;
+        miscEntries++;
+        invalidate();
+    }
+
+    void removeEntries(int from, int to) {
+        System.arraycopy(misc, to * 3, misc, from * 3, (miscEntries - to) * 3);
+        miscEntries -= to - from;
+        invalidate();
+    }
+
+    /**
+     * Adds <tt>key</tt> with the value <tt>o</tt> (an Integer, a KomTime or
+     * null) to the entry at position <tt>e</tt>, belonging to group
+     * <tt>id</tt>.
+     */
+    void insertValue(int e, int id, int key, Object o) {
+        if (o == null) {
+            insertEntry(e, key, 0, id | NO_VALUE);
+        } else if (o instanceof Integer) {
+            insertEntry(e, key, ((Integer) o).intValue(), id);
+        } else if (o instanceof KomTime) {
+            insertEntry(e, key, addTime((KomTime) o), id | TIME_VALUE);
+        } else {
+            throw new IllegalArgumentException("Unsupported Misc-Info value "
+                    + o.getClass().getName());
+        }
+    }
+
+    void insertGroup(int e, Selection selection) {
+        int id = nextGroupId++;
+        int[] keys = selection.getKeys();
+        for (int i = 0; i < keys.length; i++)
+            insertValue(e + i, id, keys[i], selection.get(keys[i]));
+    }
+
+    void removeGroupAt(int group) {
+        int[] starts = groupIndex();
+        removeEntries(starts[group], starts[group + 1]);
+    }
+
+    /**
+     * Stores the supplied time in the times array, in wire order (the hours
+     * field including the daylight savings adjustment), and returns its index.
+     */
+    int addTime(KomTime t) {
+        int o = newTime() * KomTime.ITEM_SIZE;
+        times[o++] = t.seconds;
+        times[o++] = t.minutes;
+        times[o++] = t.hours + t.isdst;
+        times[o++] = t.mday;
+        times[o++] = t.month;
+        times[o++] = t.year;
+        times[o++] = t.weekday;
+        times[o++] = t.yearday;
+        times[o++] = t.isdst;
+        return timeCount - 1;
+    }
+
+    /**
+     * Allocates room for one more time in the times array and returns its
+     * index.
+     */
+    int newTime() {
+        if ((timeCount + 1) * KomTime.ITEM_SIZE > times.length) {
+            int[] n = new int[Math.max(times.length * 2, KomTime.ITEM_SIZE * 2)];
+            System.arraycopy(times, 0, n, 0, timeCount * KomTime.ITEM_SIZE);
+            times = n;
+        }
+        return timeCount++;
+    }
+
+    KomTime timeAt(int index) {
+        int o = index * KomTime.ITEM_SIZE;
+        return new KomTime(times[o], times[o + 1], times[o + 2], times[o + 3],
+                times[o + 4], times[o + 5], times[o + 6], times[o + 7],
+                times[o + 8]);
+    }
+
+    /**
+     * The List returned by getMiscInfo(): one Selection view per group.
+     */
+    class MiscInfoList extends AbstractList<Selection> implements RandomAccess,
+            java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public int size() {
+            return getMiscInfoCount();
+        }
+
+        public Selection get(int index) {
+            if (index < 0 || index >= size())
+                throw new IndexOutOfBoundsException("Index: " + index);
+            return new MiscSelection(TextStat.this, groupId(index));
+        }
+
+        public void add(int index, Selection selection) {
+            if (index < 0 || index > size())
+                throw new IndexOutOfBoundsException("Index: " + index);
+            insertGroup(groupIndex()[index], selection);
+            modCount++;
+        }
+
+        public Selection set(int index, Selection selection) {
+            Selection old = remove(index);
+            add(index, selection);
+            return old;
+        }
+
+        public Selection remove(int index) {
+            if (index < 0 || index >= size())
+                throw new IndexOutOfBoundsException("Index: " + index);
+            Selection old = get(index).copy();
+            removeGroupAt(index);
+            modCount++;
+            return old;
+        }
+    }
+
+    /**
+     * A Selection that reads and writes one group of the packed Misc-Info
+     * data of a TextStat.
+     */
+    static class MiscSelection extends Selection {
+        private static final long serialVersionUID = 1L;
+
+        TextStat stat;
+        int id;
+
+        MiscSelection(TextStat stat, int id) {
+            super(null, null);
+            this.stat = stat;
+            this.id = id;
+        }
+
+        private int group() {
+            return stat.findGroup(id);
+        }
+
+        public Selection add(int key, Object o) {
+            int g = group();
+            int e = g == -1 ? stat.miscEntries : stat.groupIndex()[g + 1];
+            stat.insertValue(e, id, key, o);
+            return this;
+        }
+
+        public Selection add(int key, int value) {
+            int g = group();
+            int e = g == -1 ? stat.miscEntries : stat.groupIndex()[g + 1];
+            stat.insertEntry(e, key, value, id);
+            return this;
+        }
+
+        public boolean contains(int key) {
+            int g = group();
+            return g != -1 && stat.groupContains(g, key);
+        }
+
+        public int getKey() {
+            int g = group();
+            return g == -1 ? -1 : stat.getMiscInfoKey(g);
+        }
+
+        public Object getFirst() {
+            int g = group();
+            return g == -1 ? null : stat.entryValue(stat.groupIndex()[g]);
+        }
+
+        public Object get(int key) {
+            int g = group();
+            int e = g == -1 ? -1 : stat.findEntry(g, key);
+            if (e == -1)
+                throw new NoSuchKeyException("key " + key);
+            return stat.entryValue(e);
+        }
+
+        public boolean remove(int key, Object value) {
+            int g = group();
+            int e = g == -1 ? -1 : stat.findEntry(g, key);
+            if (e == -1)
+                throw new NoSuchKeyException("key " + key);
+            if (!value.equals(stat.entryValue(e)))
+                return false;
+            stat.misc[e * 3 + 2] |= NO_VALUE;
+            stat.invalidate();
+            return true;
+        }
+
+        public boolean clear(int key) {
+            int g = group();
+            int e = g == -1 ? -1 : stat.findEntry(g, key);
+            if (e == -1)
+                return false;
+            stat.removeEntries(e, e + 1);
+            return true;
+        }
+
+        public int[] getKeys() {
+            int g = group();
+            if (g == -1)
+                return EMPTY;
+            int[] starts = stat.groupIndex();
+            int[] keys = new int[starts[g + 1] - starts[g]];
+            for (int i = 0; i < keys.length; i++)
+                keys[i] = stat.misc[(starts[g] + i) * 3];
+            return keys;
+        }
+
+        public int countKeys() {
+            return getKeys().length;
+        }
+
+        public int size() {
+            int g = group();
+            if (g == -1)
+                return 0;
+            int[] starts = stat.groupIndex();
+            int count = 0;
+            for (int e = starts[g]; e < starts[g + 1]; e++)
+                if ((stat.misc[e * 3 + 2] & NO_VALUE) == 0)
+                    count++;
+            return count;
+        }
+
+        public KomToken toToken() {
+            return copy().toToken();
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof MiscSelection))
+                return false;
+            MiscSelection other = (MiscSelection) o;
+            return other.stat == stat && other.id == id;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(stat) ^ id;
+        }
+
+        public String toString() {
+            return copy().toString();
+        }
+    }
+
     static TextStat createFrom(int no, RpcReply reply) {
+        if (reply.getDecoded() instanceof TextStat)
+            return (TextStat) reply.getDecoded();
         return createFrom(no, reply.getParameters(), 0, false);
     }
 
+    private static AuxItem specialize(AuxItem obj) {
+	if (obj.getTag() == AuxItem.tagCreationLocation || obj.getTag() == AuxItem.tagLocation) {
+	    obj = new LocationAuxItem(obj.getTag(), obj.getDataString());
+	}
+	return obj;
+    }
+
+    /**
+     * Reads a Text-Stat directly from the reply stream.
+     */
+    @SuppressWarnings("fallthrough")
+    static TextStat readFrom(int no, KomTokenReader in) throws IOException {
+        TextStat ts = new TextStat(no);
+        ts.creationTime = in.readTime();
+        ts.author = in.readInt();
+        ts.lines = in.readInt();
+        ts.chars = in.readInt();
+        ts.marks = in.readInt();
+
+        int arrayLength = in.readInt();
+        if (in.readArrayStart()) {
+            ts.misc = new int[arrayLength * 3];
+            int group = -1;
+            for (int i = 0; i < arrayLength; i++) {
+                int selectionId = in.readInt();
+                switch (selectionId) {
+                case miscRecpt:
+                case miscCcRecpt:
+                case miscCommTo:
+                case miscCommIn:
+                case miscFootnTo:
+                case miscFootnIn:
+                case miscBccRecpt:
+                    group = ts.nextGroupId++;
+
+                    //$FALL-THROUGH$
+                case miscLocNo:
+                case miscSentBy:
+                    if (group == -1)
+                        group = ts.nextGroupId++;
+                    ts.insertEntry(ts.miscEntries, selectionId, in.readInt(),
+                            group);
+                    break;
+                case miscRecTime:
+                case miscSentAt:
+                    if (group == -1)
+                        group = ts.nextGroupId++;
+                    int t = ts.newTime();
+                    int o = t * KomTime.ITEM_SIZE;
+                    for (int j = 0; j < KomTime.ITEM_SIZE; j++)
+                        ts.times[o + j] = in.readInt();
+                    ts.insertEntry(ts.miscEntries, selectionId, t, group
+                            | TIME_VALUE);
+                    break;
+                default:
+                    throw new KomProtocolException("Unknown Misc-Info tag "
+                            + selectionId);
+                }
+            }
+            in.readArrayEnd();
+        }
+
+        int auxLength = in.readInt();
+        if (in.readArrayStart()) {
+            ts.auxItems = new AuxItem[auxLength];
+            for (int i = 0; i < auxLength; i++)
+                ts.auxItems[ts.auxItemCount++] = specialize(AuxItem.readFrom(in));
+            in.readArrayEnd();
+        }
+        return ts;
+    }
+
     static TextStat createFrom(int no, KomToken[] params, int offset,
             boolean textStatOld) {
         TextStat ts = new TextStat(no);
-        List<Selection> miscInfo = ts.getMiscInfo();
 
         int pcount = offset;
         try {
@@ -680,12 +1202,13 @@ public class TextStat implements java.io.Serializable {
 
         int mcount = 0;
 
-        Selection selection = null;
+        ts.misc = new int[arrayLength * 3];
+        int group = -1;
         for (int i = 0; i < arrayLength; i++) {
             int selectionId = miscInfoTokens[mcount++].intValue();
 
             switch (selectionId) {
-            /* items to be stored as Integer */
+            /* items starting a new group */
             case 0: // recipient : Conf-No
             case 1: // cc-recipient
             case 2: // comment-to
@@ -693,29 +1216,28 @@ public class TextStat implements java.io.Serializable {
             case 4: // footnote-to
             case 5: // footnote-in
             case 15: // bcc-recipient
-                selection = new Selection();
-                miscInfo.add(selection);
-                
+                group = ts.nextGroupId++;
+
                 //$FALL-THROUGH$
             case 6: // loc-no ! Lokalt textnummer
             case 8: // sent-by
+                if (group == -1)
+                    group = ts.nextGroupId++;
                 int value = miscInfoTokens[mcount++].intValue();
-                selection.add(selectionId, value);
+                ts.insertEntry(ts.miscEntries, selectionId, value, group);
                 break;
 
-            /* items to be stored as KomTime */
+            /* items stored as times */
             case 7: // rec-time : Time
             case 9: // sent-at : Time
-                KomTime stm = new KomTime(miscInfoTokens[mcount++].intValue(),
-                        miscInfoTokens[mcount++].intValue(),
-                        miscInfoTokens[mcount++].intValue(),
-                        miscInfoTokens[mcount++].intValue(),
-                        miscInfoTokens[mcount++].intValue(),
-                        miscInfoTokens[mcount++].intValue(),
-                        miscInfoTokens[mcount++].intValue(),
-                        miscInfoTokens[mcount++].intValue(),
-                        miscInfoTokens[mcount++].intValue());
-                selection.add(selectionId, stm);
+                if (group == -1)
+                    group = ts.nextGroupId++;
+                int t = ts.newTime();
+                int o = t * KomTime.ITEM_SIZE;
+                for (int j = 0; j < KomTime.ITEM_SIZE; j++)
+                    ts.times[o + j] = miscInfoTokens[mcount++].intValue();
+                ts.insertEntry(ts.miscEntries, selectionId, t, group
+                        | TIME_VALUE);
                 break;
             default:
                 break;
@@ -729,11 +1251,7 @@ public class TextStat implements java.io.Serializable {
                 KomToken[] ai = new KomToken[AuxItem.ITEM_SIZE];
                 for (int i = 0; i < AuxItem.ITEM_SIZE; i++)
                     ai[i] = auxItemTokens[acount++];
-		AuxItem obj = new AuxItem(ai);
-		if (obj.getTag() == AuxItem.tagCreationLocation || obj.getTag() == AuxItem.tagLocation) {
-		    obj = new LocationAuxItem(obj.getTag(), obj.getDataString());
-		}
-		ts.addAuxItem(obj);
+		ts.addAuxItem(specialize(new AuxItem(ai)));
             }
         }
 
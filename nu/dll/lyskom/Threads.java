@@ -0,0 +1,92 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads of the library: the message listener, the queued
+ * writer, the invoker pool, the dispatch queues, the RPC timer and the
+ * reconnect threads.
+ * <br>
+ * If the system property <tt>lattekom.virtual-threads</tt> is
+ * <tt>true</tt> when a thread is created and the JVM has virtual threads
+ * (Java 21 or later), it is a virtual thread, so that an application can
+ * hold many thousands of sessions. Otherwise it is a daemon platform
+ * thread, as before. The loops that run in them, and
+ * <tt>Session.waitForCall()</tt>, block on <tt>java.util.concurrent</tt>
+ * locks rather than monitors, so that a blocked virtual thread does not pin
+ * its carrier thread. Callers may run the blocking Session methods in
+ * virtual threads of their own in either case.
+ */
+class Threads {
+
+    /**
+     * Thread.ofVirtual(), Thread.Builder.name(String) and
+     * Thread.Builder.unstarted(Runnable), looked up by reflection so that
+     * the library still runs on older JVMs. Looked up the first time virtual
+     * threads are asked for.
+     */
+    private static class Virtual {
+        static Method ofVirtual, name, unstarted;
+
+        /**
+         * <tt>true</tt> if the JVM has virtual threads.
+         */
+        final static boolean AVAILABLE;
+
+        static {
+            boolean available = false;
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                name = builder.getMethod("name", String.class);
+                unstarted = builder.getMethod("unstarted", Runnable.class);
+                // fails unless virtual threads are enabled
+                newVirtualThread(new Runnable() {
+                    public void run() {
+                    }
+                }, "probe");
+                available = true;
+            } catch (Exception ex1) {
+                Debug.println("Virtual threads not available: " + ex1);
+            }
+            AVAILABLE = available;
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if new threads are virtual threads.
+     */
+    static boolean isVirtual() {
+        return Boolean.getBoolean("lattekom.virtual-threads")
+                && Virtual.AVAILABLE;
+    }
+
+    private static Thread newVirtualThread(Runnable r, String threadName)
+            throws Exception {
+        Object builder = Virtual.ofVirtual.invoke(null);
+        builder = Virtual.name.invoke(builder, threadName);
+        return (Thread) Virtual.unstarted.invoke(builder, r);
+    }
+
+    /**
+     * Returns a new, unstarted daemon thread: a virtual thread if
+     * {@link #isVirtual()}.
+     */
+    static Thread newThread(Runnable r, String threadName) {
+        if (isVirtual()) {
+            try {
+                return newVirtualThread(r, threadName);
+            } catch (Exception ex1) {
+                Debug.println("Could not create virtual thread: " + ex1);
+            }
+        }
+        Thread t = new Thread(r, threadName);
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,147 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+/**
+ * A hashed timing wheel: timeouts are kept in a ring of buckets, one per
+ * tick, and a single thread advances one bucket per tick and expires the
+ * timeouts that are due. Scheduling and cancelling take constant time, and
+ * there is no thread per timeout. A timeout fires up to one tick late.
+ * <br>
+ * The thread is started when the first timeout is scheduled, and runs for
+ * as long as the program does.
+ */
+class TimerWheel implements Runnable {
+
+    /**
+     * A scheduled action. A Timeout can be scheduled again once it has
+     * fired or been cancelled.
+     */
+    static abstract class Timeout {
+        long deadline;
+        long rounds;
+        Timeout prev, next;
+        int bucket = -1;
+
+        /**
+         * Called in the timer thread when the timeout is due. Must not
+         * block.
+         */
+        abstract void expire();
+    }
+
+    final long tick;
+    final Timeout[] wheel;
+    final String name;
+
+    // the bucket the timer thread handles next, and when
+    int cursor = 0;
+    long nextTick;
+
+    Thread thread = null;
+
+    /**
+     * @param tick
+     *            the resolution, in milliseconds
+     * @param buckets
+     *            the number of buckets; timeouts further ahead than
+     *            <tt>tick * buckets</tt> go around the wheel more than once
+     */
+    TimerWheel(long tick, int buckets, String name) {
+        this.tick = tick;
+        this.wheel = new Timeout[buckets];
+        this.name = name;
+    }
+
+    /**
+     * Schedules a timeout to expire after <tt>delay</tt> milliseconds,
+     * cancelling it first if it is already scheduled.
+     */
+    synchronized void schedule(Timeout t, long delay) {
+        if (t.bucket != -1)
+            unlink(t);
+        if (thread == null) {
+            nextTick = System.currentTimeMillis() + tick;
+            thread = Threads.newThread(this, name);
+            thread.start();
+        }
+        long now = System.currentTimeMillis();
+        t.deadline = now + delay;
+        // ticks from the bucket the timer thread handles next
+        long ticks = Math.max(0, (t.deadline - nextTick + tick - 1) / tick);
+        t.rounds = ticks / wheel.length;
+        t.bucket = (int) ((cursor + ticks) % wheel.length);
+        t.prev = null;
+        t.next = wheel[t.bucket];
+        if (t.next != null)
+            t.next.prev = t;
+        wheel[t.bucket] = t;
+    }
+
+    /**
+     * Cancels a timeout. Returns false if it was not scheduled.
+     */
+    synchronized boolean cancel(Timeout t) {
+        if (t.bucket == -1)
+            return false;
+        unlink(t);
+        return true;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null)
+            t.prev.next = t.next;
+        else
+            wheel[t.bucket] = t.next;
+        if (t.next != null)
+            t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.bucket = -1;
+    }
+
+    public void run() {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = nextTick - System.currentTimeMillis();
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException ex1) {
+                    continue;
+                }
+            }
+            Timeout due = null;
+            synchronized (this) {
+                Timeout t = wheel[cursor];
+                while (t != null) {
+                    Timeout next = t.next;
+                    if (t.rounds > 0) {
+                        t.rounds--;
+                    } else {
+                        unlink(t);
+                        t.next = due;
+                        due = t;
+                    }
+                    t = next;
+                }
+                cursor = (cursor + 1) % wheel.length;
+                nextTick += tick;
+            }
+            while (due != null) {
+                Timeout next = due.next;
+                due.next = null;
+                try {
+                    due.expire();
+                } catch (RuntimeException ex1) {
+                    Debug.println("Timeout " + due + " failed: " + ex1);
+                }
+                due = next;
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@
  */
 package nu.dll.lyskom;
 
+import java.io.IOException;
+
 /**
  * An UConference is a minimalistic set of status information about a
  * conference, such as it's name and type. Usually used for situations where you
@@ -26,6 +28,27 @@ public class UConference {
 		setFrom(tokens);
 	}
 
+	/**
+	 * Returns the UConference in the reply to get-uconf-stat.
+	 */
+	static UConference createFrom(int no, RpcReply reply) {
+		if (reply.getDecoded() instanceof UConference)
+			return (UConference) reply.getDecoded();
+		return new UConference(no, reply.getParameters());
+	}
+
+	/**
+	 * Reads an UConference directly from the reply stream.
+	 */
+	static UConference readFrom(int no, KomTokenReader in) throws IOException {
+		UConference c = new UConference(no);
+		c.name = new Hollerith(in.readHollerith(), in.getCharset());
+		c.type = in.readBitstring();
+		c.highestLocalNo = in.readInt();
+		c.nice = in.readInt();
+		return c;
+	}
+
 	void setFrom(KomToken[] tokens) {
 		int c = 0;
 		name = (Hollerith) tokens[c++];
@@ -0,0 +1,377 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Fetches what a client needs after login, with all calls that do not
+ * depend on each other sent at once, instead of one round trip after
+ * another. The calls that do depend on others (the rest of the membership
+ * list and the user area need the person, the read texts and conference
+ * statuses of the unread conferences need get-unread-confs) are sent as
+ * soon as their input arrives. The conference statuses of the memberships
+ * come last, at most <tt>lattekom.bulk-window</tt> (32) at a time.
+ * <br>
+ * When it is done, the caches, the membership list, the unread conferences
+ * and the user area are as after <tt>getMyPerson()</tt>,
+ * <tt>getMyMembershipList()</tt>, <tt>updateUnreads()</tt>,
+ * <tt>getUserArea()</tt> and <tt>getInfo()</tt>.
+ *
+ * @see nu.dll.lyskom.Session#warmUp(WarmUpOptions)
+ */
+public class WarmUp {
+    final Session session;
+    final WarmUpOptions options;
+    final int persNo;
+
+    // reference numbers of the sent calls; waitForCall() changes them when
+    // it resends a call in its protocol 10 form
+    final Set<Integer> pending = new HashSet<Integer>();
+    int calls = 0;
+
+    Person person;
+    // membership chunks, by position
+    final TreeMap<Integer, Membership[]> chunks = new TreeMap<Integer, Membership[]>();
+    int nextChunk = 0;
+
+    int[] unreadConfs = null;
+    // query-read-texts results of the unread conferences (Boolean.FALSE if
+    // it failed), and conferences whose uconf-stat failed
+    final IntMap<Object> unreadMemberships = new IntMap<Object>();
+    final IntMap<Boolean> uconfRequested = new IntMap<Boolean>();
+    final IntMap<Boolean> uconfFailed = new IntMap<Boolean>();
+    int resolved = 0;
+
+    // conference statuses of the memberships, sent a few at a time
+    final LinkedList<Integer> backlog = new LinkedList<Integer>();
+    int backlogOutstanding = 0;
+
+    int userAreaTextNo = 0;
+    TextStat userAreaStat;
+
+    final long start;
+    long firstUnreadTime = -1, doneTime = -1;
+    int firstUnread = -1;
+
+    WarmUp(Session session, WarmUpOptions options) {
+        this.session = session;
+        this.options = options;
+        this.persNo = session.myPersonNo;
+        this.person = session.myPerson;
+        start = System.nanoTime();
+    }
+
+    void run() throws IOException, RpcFailure {
+        if (person == null)
+            send(session.doGetPersonStat(persNo));
+        if (options.unreads)
+            send(session.doGetUnreadConfs(persNo));
+        if (options.info && session.serverInfo == null)
+            send(session.doGetInfo());
+        if (options.membership && person == null) {
+            // how many there are is not known before the person is
+            sendChunk();
+        }
+        if (person != null)
+            personArrived();
+
+        while (!pending.isEmpty()) {
+            RpcCall rc = session.waitForCall(pending);
+            pending.remove(Integer.valueOf(rc.getId()));
+            if (backlogOutstanding > 0 && rc.getOp() == Rpc.C_get_uconf_stat
+                    && rc.getAux(0) == backlog)
+                backlogOutstanding--;
+            replyArrived(rc);
+            checkFirstUnread();
+            pumpBacklog();
+        }
+        finish();
+    }
+
+    private void send(RpcCall c) {
+        pending.add(Integer.valueOf(c.getId()));
+        calls++;
+    }
+
+    private void sendChunk() throws IOException {
+        send(session.doGetMembership(persNo, nextChunk,
+                options.membershipChunk, options.readTexts).decodedOnly());
+        nextChunk += options.membershipChunk;
+    }
+
+    private void sendUConfStat(int confNo) throws IOException {
+        if (uconfRequested.containsKey(confNo))
+            return;
+        uconfRequested.put(confNo, Boolean.TRUE);
+        if (session.conferenceCache.getUConference(confNo) != null)
+            return;
+        if (session.negativeCache.get(NegativeCache.CONFERENCE, confNo) != null)
+            uconfFailed.put(confNo, Boolean.TRUE);
+        else
+            send(session.doGetUConfStat(confNo).decodedOnly());
+    }
+
+    private void pumpBacklog() throws IOException {
+        while (!backlog.isEmpty() && backlogOutstanding < Session.bulkWindow) {
+            int confNo = backlog.removeFirst().intValue();
+            if (uconfRequested.containsKey(confNo))
+                continue;
+            uconfRequested.put(confNo, Boolean.TRUE);
+            if (session.conferenceCache.getUConference(confNo) != null)
+                continue;
+            RpcCall c = session.doGetUConfStat(confNo).decodedOnly();
+            c.addAux(backlog);
+            send(c);
+            backlogOutstanding++;
+        }
+    }
+
+    private void personArrived() throws IOException {
+        if (options.membership) {
+            while (nextChunk < person.getNoOfConfs() + 1)
+                sendChunk();
+        }
+        if (options.userArea) {
+            int textNo = person.getUserArea();
+            if (textNo == 0) {
+                session.userArea = new UserArea(session.getServerEncoding());
+            } else if (session.userArea == null
+                    || session.userArea.getTextNo() != textNo) {
+                userAreaTextNo = textNo;
+                send(session.doGetTextStat(textNo).decodedOnly());
+            }
+        }
+    }
+
+    private void replyArrived(RpcCall rc) throws IOException {
+        RpcReply reply = rc.getReply();
+        switch (rc.getOp()) {
+        case Rpc.C_get_person_stat:
+            if (!reply.getSuccess())
+                throw reply.getException();
+            person = Person.createFrom(persNo, reply);
+            session.personCache.add(person);
+            if (session.myPerson != null)
+                person.uconf = session.myPerson.uconf;
+            session.myPerson = person;
+            personArrived();
+            break;
+
+        case Rpc.C_get_membership:
+        case Rpc.C_get_membership_10: {
+            if (!reply.getSuccess())
+                throw reply.getException();
+            Membership[] m = Membership.createFromArray(reply,
+                    rc.getOp() == Rpc.C_get_membership_10);
+            chunks.put(Integer.valueOf(rc.getParameter(1).intValue()), m);
+            for (int i = 0; i < m.length; i++) {
+                if (m[i] == null)
+                    continue;
+                // query-read-texts may have brought more than this
+                if (!unreadMemberships.containsKey(m[i].getNo()))
+                    session.membershipCache.add(m[i]);
+                if (options.memberConfStats)
+                    backlog.add(Integer.valueOf(m[i].getNo()));
+            }
+            break;
+        }
+
+        case Rpc.C_get_unread_confs: {
+            if (!reply.getSuccess())
+                throw reply.getException();
+            KomToken[] confs = ((KomTokenArray) reply.getParameters()[1])
+                    .getTokens();
+            unreadConfs = new int[confs.length];
+            for (int i = 0; i < confs.length; i++) {
+                unreadConfs[i] = confs[i].intValue();
+                sendUConfStat(unreadConfs[i]);
+                send(session.doQueryReadTexts(persNo, unreadConfs[i])
+                        .decodedOnly());
+            }
+            break;
+        }
+
+        case Rpc.C_get_uconf_stat: {
+            int confNo = rc.getParameter(0).intValue();
+            if (reply.getSuccess()) {
+                session.conferenceCache.add(UConference.createFrom(confNo,
+                        reply));
+            } else {
+                session.addNegative(NegativeCache.CONFERENCE, confNo, reply
+                        .getException());
+                uconfFailed.put(confNo, Boolean.TRUE);
+            }
+            break;
+        }
+
+        case Rpc.C_query_read_texts:
+        case Rpc.C_query_read_texts_10: {
+            int confNo = rc.getParameter(1).intValue();
+            if (reply.getSuccess()) {
+                Membership m = Membership.createFrom(reply,
+                        rc.getOp() == Rpc.C_query_read_texts_10);
+                session.membershipCache.add(m);
+                unreadMemberships.put(confNo, m);
+            } else {
+                unreadMemberships.put(confNo, Boolean.FALSE);
+            }
+            break;
+        }
+
+        case Rpc.C_get_info:
+            if (reply.getSuccess())
+                session.serverInfo = Session.parseInfo(reply);
+            break;
+
+        case Rpc.C_get_text_stat:
+            if (!reply.getSuccess())
+                break;
+            userAreaStat = TextStat.createFrom(userAreaTextNo, reply);
+            session.textStatCache.add(userAreaStat);
+            RpcCall textReq = new RpcCall(session.count(), Rpc.C_get_text)
+                    .add(new KomToken(userAreaTextNo)).add("0")
+                    .add(new KomToken(userAreaStat.getSize()));
+            session.writeRpcCall(textReq);
+            send(textReq);
+            break;
+
+        case Rpc.C_get_text:
+            if (!reply.getSuccess())
+                break;
+            Text t = new Text(userAreaTextNo, userAreaStat);
+            t.setContents(reply.getParameters()[0].getContents());
+            try {
+                session.userArea = new UserArea(t);
+            } catch (IllegalArgumentException ex1) {
+                Debug.println("warmUp(): bad user area " + userAreaTextNo
+                        + ": " + ex1);
+            }
+            break;
+
+        default:
+            throw new RuntimeException("Unexpected RPC reply " + rc.getOp());
+        }
+    }
+
+    /**
+     * Looks for the first of the unread conferences, in the server's order,
+     * that has unread texts, once everything needed to tell is here.
+     */
+    private void checkFirstUnread() {
+        if (unreadConfs == null || firstUnreadTime != -1)
+            return;
+        while (resolved < unreadConfs.length) {
+            int confNo = unreadConfs[resolved];
+            Object m = unreadMemberships.get(confNo);
+            if (m == null)
+                return;
+            if (m != Boolean.FALSE && !uconfFailed.containsKey(confNo)) {
+                UConference uc = session.conferenceCache.getUConference(confNo);
+                if (uc == null)
+                    return;
+                if (hasUnreads((Membership) m, uc)) {
+                    firstUnread = confNo;
+                    firstUnreadTime = System.nanoTime() - start;
+                    return;
+                }
+            }
+            resolved++;
+        }
+    }
+
+    private boolean hasUnreads(Membership m, UConference uc) {
+        if (m.getPriority() < options.minPrio)
+            return false;
+        return uc.getHighestLocalNo() - m.getLastTextRead()
+                - m.getReadTexts().length > 0;
+    }
+
+    private void finish() {
+        if (options.membership && person != null) {
+            List<Membership> all = new LinkedList<Membership>();
+            for (Iterator<Membership[]> i = chunks.values().iterator(); i
+                    .hasNext();) {
+                Membership[] m = i.next();
+                for (int j = 0; j < m.length; j++)
+                    if (m[j] != null)
+                        all.add(m[j]);
+            }
+            Membership[] sorted = all.toArray(new Membership[all.size()]);
+            Arrays.sort(sorted, new Comparator<Membership>() {
+                public int compare(Membership o1, Membership o2) {
+                    return o2.getPriority() - o1.getPriority();
+                }
+            });
+            session.memberships = new LinkedList<Membership>(Arrays
+                    .asList(sorted));
+        }
+        if (unreadConfs != null) {
+            List<Integer> unreads = new LinkedList<Integer>();
+            List<Membership> unreadMembership = new LinkedList<Membership>();
+            for (int i = 0; i < unreadConfs.length; i++) {
+                int confNo = unreadConfs[i];
+                Object m = unreadMemberships.get(confNo);
+                UConference uc = session.conferenceCache
+                        .getUConference(confNo);
+                if (m instanceof Membership && uc != null
+                        && hasUnreads((Membership) m, uc)) {
+                    unreads.add(Integer.valueOf(confNo));
+                    unreadMembership.add((Membership) m);
+                }
+            }
+            session.unreadsConferences = unreads;
+            session.unreadMembership = unreadMembership;
+        }
+        doneTime = System.nanoTime() - start;
+        session.metrics.warmUp(doneTime, getTimeToFirstUnread());
+    }
+
+    /**
+     * Returns the time, in nanoseconds, from the start until the first
+     * conference with unread texts was known, or until it was known that
+     * there is none.
+     */
+    public long getTimeToFirstUnread() {
+        return firstUnreadTime != -1 ? firstUnreadTime : doneTime;
+    }
+
+    /**
+     * Returns the time, in nanoseconds, that the whole warm-up took.
+     */
+    public long getTime() {
+        return doneTime;
+    }
+
+    /**
+     * Returns the first conference with unread texts, or -1 if there is
+     * none (or unreads were not asked for).
+     */
+    public int getFirstUnreadConference() {
+        return firstUnread;
+    }
+
+    /**
+     * Returns the number of calls sent to the server.
+     */
+    public int getCalls() {
+        return calls;
+    }
+
+    public String toString() {
+        return "WarmUp[calls=" + calls + " first-unread="
+                + LatencyHistogram.millis(getTimeToFirstUnread())
+                + " ms total=" + LatencyHistogram.millis(doneTime) + " ms]";
+    }
+}
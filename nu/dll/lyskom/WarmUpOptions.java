@@ -0,0 +1,71 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+/**
+ * What <tt>Session.warmUp()</tt> should fetch. By default it fetches
+ * everything: the person, the membership list, the unread conferences and
+ * what is needed to tell which of them have unread texts, the user area,
+ * the server information and the conference names of all memberships.
+ *
+ * @see nu.dll.lyskom.Session#warmUp(WarmUpOptions)
+ */
+public class WarmUpOptions {
+    boolean membership = true;
+    boolean readTexts = false;
+    boolean unreads = true;
+    boolean userArea = true;
+    boolean info = true;
+    boolean memberConfStats = true;
+    int minPrio = 0;
+    int membershipChunk = 100;
+
+    /**
+     * Fetch the membership list, <tt>chunk</tt> memberships per call.
+     */
+    public WarmUpOptions setMembership(boolean membership, int chunk) {
+        this.membership = membership;
+        this.membershipChunk = Math.max(1, chunk);
+        return this;
+    }
+
+    /**
+     * Fetch the read texts of each membership along with the list.
+     */
+    public WarmUpOptions setReadTexts(boolean readTexts) {
+        this.readTexts = readTexts;
+        return this;
+    }
+
+    /**
+     * Find the conferences with unread texts, as <tt>updateUnreads()</tt>
+     * does, skipping those with a priority below <tt>minPrio</tt>.
+     */
+    public WarmUpOptions setUnreads(boolean unreads, int minPrio) {
+        this.unreads = unreads;
+        this.minPrio = minPrio;
+        return this;
+    }
+
+    public WarmUpOptions setUserArea(boolean userArea) {
+        this.userArea = userArea;
+        return this;
+    }
+
+    public WarmUpOptions setInfo(boolean info) {
+        this.info = info;
+        return this;
+    }
+
+    /**
+     * Fetch the <tt>UConference</tt> of every membership, so that their names
+     * are cached.
+     */
+    public WarmUpOptions setMemberConfStats(boolean memberConfStats) {
+        this.memberConfStats = memberConfStats;
+        return this;
+    }
+}
@@ -0,0 +1,381 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A live list of the sessions logged in to the server. It is filled by one
+ * who-is-on-dynamic call, and then kept up to date from the asynchronous
+ * login, logout, i-am-on and new-name messages, so that a tool that shows
+ * who is on does not have to ask the server for the whole list over and
+ * over. Once in a while (every <tt>lattekom.who-is-on.reconcile</tt>
+ * seconds, 300 by default) and after a reconnect, the list is fetched
+ * again, and the differences are reported as changes.
+ * <br>
+ * The <tt>DynamicSessionInfo</tt> objects in the list are never changed;
+ * a change replaces the object. Their idle times are as of the last time
+ * the list was fetched, or zero for sessions that have since logged in or
+ * changed.
+ * <br>
+ * The messages do not tell whether a session is invisible, so sessions that
+ * log in or become active are taken to be visible, and are only added to the
+ * list if visible sessions are wanted. Having just been active, they are
+ * always within <tt>activeLast</tt>; sessions that have been idle for longer
+ * since are removed when the list is fetched again.
+ *
+ * @see nu.dll.lyskom.Session#getWhoIsOn()
+ */
+public class WhoIsOn implements AsynchMessageReceiver {
+
+    final static long defaultReconcileInterval = Integer.getInteger(
+            "lattekom.who-is-on.reconcile", 300).intValue() * 1000L;
+
+    // the messages that the list is kept up to date from
+    final static int[] messages = { Asynch.login, Asynch.logout,
+            Asynch.i_am_on, Asynch.new_name };
+
+    final Session session;
+    boolean wantVisible = true, wantInvisible = true;
+    int activeLast = 0;
+
+    // by session number
+    Map<Integer, DynamicSessionInfo> sessions = new TreeMap<Integer, DynamicSessionInfo>();
+    // messages that arrive while the list is being fetched
+    List<AsynchMessage> held = null;
+    List<WhoIsOnListener> listeners = new CopyOnWriteArrayList<WhoIsOnListener>();
+    boolean started = false;
+    long reconcileInterval = defaultReconcileInterval;
+    int reconciles = 0;
+    // one reconciliation at a time
+    final Object reconcileLock = new Object();
+
+    final TimerWheel.Timeout reconcileTimeout = new TimerWheel.Timeout() {
+        void expire() {
+            // fetch the list in the invoker, not in the timer thread
+            session.invoker.enqueueBlocking(new Runnable() {
+                public void run() {
+                    try {
+                        reconcile();
+                    } catch (IOException ex1) {
+                        Debug.println("who-is-on reconciliation failed: "
+                                + ex1);
+                        scheduleReconcile();
+                    }
+                }
+            });
+        }
+    };
+
+    public WhoIsOn(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Starts keeping the list: makes sure the server sends the messages
+     * needed, and fetches the list. If that fails, the list is stopped
+     * again, and start() may be retried.
+     *
+     * @param wantVisible
+     *            include visible sessions
+     * @param wantInvisible
+     *            include invisible sessions
+     * @param activeLast
+     *            only fetch sessions active within this many seconds, or 0
+     *            for all
+     */
+    public void start(boolean wantVisible, boolean wantInvisible,
+            int activeLast) throws IOException {
+        synchronized (this) {
+            if (started)
+                return;
+            started = true;
+            this.wantVisible = wantVisible;
+            this.wantInvisible = wantInvisible;
+            this.activeLast = activeLast;
+        }
+        boolean ok = false;
+        try {
+            doStart();
+            ok = true;
+        } finally {
+            if (!ok)
+                close();
+        }
+    }
+
+    private void doStart() throws IOException {
+        int[] accepted = session.acceptedAsync;
+        if (accepted != null) {
+            int[] wanted = accepted;
+            for (int i = 0; i < messages.length; i++) {
+                boolean found = false;
+                for (int j = 0; j < wanted.length; j++)
+                    found |= wanted[j] == messages[i];
+                if (!found) {
+                    wanted = Arrays.copyOf(wanted, wanted.length + 1);
+                    wanted[wanted.length - 1] = messages[i];
+                }
+            }
+            if (wanted != accepted)
+                session.acceptAsync(wanted);
+        }
+        session.addAsynchMessageReceiver(this);
+        reconcile();
+    }
+
+    /**
+     * Stops keeping the list.
+     */
+    public void close() {
+        synchronized (this) {
+            started = false;
+        }
+        RpcHeap.timer.cancel(reconcileTimeout);
+        session.removeAsynchMessageReceiver(this);
+    }
+
+    public void addWhoIsOnListener(WhoIsOnListener l) {
+        listeners.add(l);
+    }
+
+    public void removeWhoIsOnListener(WhoIsOnListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Sets how often, in milliseconds, the list is fetched again, or 0 for
+     * never.
+     */
+    public void setReconcileInterval(long interval) {
+        reconcileInterval = interval;
+        scheduleReconcile();
+    }
+
+    void scheduleReconcile() {
+        if (reconcileInterval > 0 && started)
+            RpcHeap.timer.schedule(reconcileTimeout, reconcileInterval);
+        else
+            RpcHeap.timer.cancel(reconcileTimeout);
+    }
+
+    /**
+     * Fetches the list from the server, replaces the kept one with it and
+     * reports the differences to the listeners.
+     */
+    public void reconcile() throws IOException {
+        synchronized (reconcileLock) {
+            reconcileLocked();
+        }
+    }
+
+    private void reconcileLocked() throws IOException {
+        synchronized (this) {
+            if (held == null)
+                held = new ArrayList<AsynchMessage>();
+        }
+        DynamicSessionInfo[] who;
+        try {
+            who = session.whoIsOnDynamic(wantVisible, wantInvisible,
+                    activeLast);
+        } catch (IOException ex1) {
+            release();
+            throw ex1;
+        } catch (RpcFailure ex1) {
+            release();
+            throw ex1;
+        }
+        Map<Integer, DynamicSessionInfo> fresh = new TreeMap<Integer, DynamicSessionInfo>();
+        for (int i = 0; i < who.length; i++)
+            fresh.put(Integer.valueOf(who[i].getSession()), who[i]);
+
+        List<DynamicSessionInfo> added = new ArrayList<DynamicSessionInfo>();
+        List<DynamicSessionInfo> removed = new ArrayList<DynamicSessionInfo>();
+        List<DynamicSessionInfo[]> changed = new ArrayList<DynamicSessionInfo[]>();
+        synchronized (this) {
+            for (Iterator<DynamicSessionInfo> i = sessions.values()
+                    .iterator(); i.hasNext();) {
+                DynamicSessionInfo s = i.next();
+                if (!fresh.containsKey(Integer.valueOf(s.getSession())))
+                    removed.add(s);
+            }
+            for (Iterator<DynamicSessionInfo> i = fresh.values().iterator(); i
+                    .hasNext();) {
+                DynamicSessionInfo s = i.next();
+                DynamicSessionInfo old = sessions.get(Integer.valueOf(s
+                        .getSession()));
+                if (old == null)
+                    added.add(s);
+                else if (differs(old, s))
+                    changed.add(new DynamicSessionInfo[] { old, s });
+            }
+            sessions = fresh;
+            reconciles++;
+        }
+        for (int i = 0; i < removed.size(); i++)
+            fireRemoved(removed.get(i));
+        for (int i = 0; i < added.size(); i++)
+            fireAdded(added.get(i));
+        for (int i = 0; i < changed.size(); i++)
+            fireChanged(changed.get(i)[0], changed.get(i)[1]);
+        release();
+        scheduleReconcile();
+    }
+
+    // applies the messages held while the list was fetched
+    private void release() {
+        List<AsynchMessage> h;
+        synchronized (this) {
+            h = held;
+            held = null;
+        }
+        if (h != null)
+            for (int i = 0; i < h.size(); i++)
+                apply(h.get(i));
+    }
+
+    static boolean differs(DynamicSessionInfo a, DynamicSessionInfo b) {
+        return a.getPerson() != b.getPerson()
+                || a.getWorkingConference() != b.getWorkingConference()
+                || !Arrays.equals(a.getWhatAmIDoing(), b.getWhatAmIDoing());
+    }
+
+    public void asynchMessage(AsynchMessage m) {
+        synchronized (this) {
+            if (held != null) {
+                held.add(m);
+                return;
+            }
+        }
+        apply(m);
+    }
+
+    void apply(AsynchMessage m) {
+        KomToken[] p = m.getParameters();
+        switch (m.getNumber()) {
+        case Asynch.login: {
+            // login: pers-no, session-no
+            DynamicSessionInfo s = new DynamicSessionInfo(p[1].intValue(),
+                    p[0].intValue(), 0, 0, new Bitstring("00000000"),
+                    new byte[0]);
+            if (!wanted(s))
+                break;
+            if (put(s) == null)
+                fireAdded(s);
+            break;
+        }
+        case Asynch.logout: {
+            // logout: pers-no, session-no
+            DynamicSessionInfo s;
+            synchronized (this) {
+                s = sessions.remove(Integer.valueOf(p[1].intValue()));
+            }
+            if (s != null)
+                fireRemoved(s);
+            break;
+        }
+        case Asynch.i_am_on: {
+            // i-am-on: person, working-conference, session-no,
+            // what-am-i-doing, username
+            DynamicSessionInfo old;
+            synchronized (this) {
+                old = sessions.get(Integer.valueOf(p[2].intValue()));
+            }
+            if (old == null && p[0].intValue() == 0)
+                break; // not logged in
+            DynamicSessionInfo s = new DynamicSessionInfo(p[2].intValue(),
+                    p[0].intValue(), p[1].intValue(), 0,
+                    old != null ? old.getFlags() : new Bitstring("00000000"),
+                    p[3].getContents());
+            if (old == null && !wanted(s))
+                break;
+            old = put(s);
+            if (old == null)
+                fireAdded(s);
+            else
+                fireChanged(old, s);
+            break;
+        }
+        case Asynch.new_name: {
+            // the session's caches have forgotten the old name already
+            int confNo = p[0].intValue();
+            for (DynamicSessionInfo s : getSessions())
+                if (s.getPerson() == confNo
+                        || s.getWorkingConference() == confNo)
+                    fireChanged(s, s);
+            break;
+        }
+        }
+    }
+
+    // whether start() asked for sessions like this one
+    private synchronized boolean wanted(DynamicSessionInfo s) {
+        return s.getFlags().getBitAt(0) ? wantInvisible : wantVisible;
+    }
+
+    private synchronized DynamicSessionInfo put(DynamicSessionInfo s) {
+        return sessions.put(Integer.valueOf(s.getSession()), s);
+    }
+
+    private void fireAdded(DynamicSessionInfo s) {
+        for (WhoIsOnListener l : listeners)
+            l.sessionAdded(s);
+    }
+
+    private void fireChanged(DynamicSessionInfo old, DynamicSessionInfo s) {
+        for (WhoIsOnListener l : listeners)
+            l.sessionChanged(old, s);
+    }
+
+    private void fireRemoved(DynamicSessionInfo s) {
+        for (WhoIsOnListener l : listeners)
+            l.sessionRemoved(s);
+    }
+
+    /**
+     * Returns the sessions that are logged in, by session number.
+     */
+    public synchronized DynamicSessionInfo[] getSessions() {
+        return sessions.values().toArray(
+                new DynamicSessionInfo[sessions.size()]);
+    }
+
+    /**
+     * Returns a session, or null if it is not logged in.
+     */
+    public synchronized DynamicSessionInfo getSession(int sessionNo) {
+        return sessions.get(Integer.valueOf(sessionNo));
+    }
+
+    /**
+     * Returns the sessions a person is logged in to.
+     */
+    public synchronized DynamicSessionInfo[] getSessionsOf(int persNo) {
+        List<DynamicSessionInfo> l = new ArrayList<DynamicSessionInfo>();
+        for (DynamicSessionInfo s : sessions.values())
+            if (s.getPerson() == persNo)
+                l.add(s);
+        return l.toArray(new DynamicSessionInfo[l.size()]);
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the number of times the list has been fetched.
+     */
+    public synchronized int getReconciles() {
+        return reconciles;
+    }
+}
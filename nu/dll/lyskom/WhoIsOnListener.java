@@ -0,0 +1,35 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+/**
+ * Interface to be implemented by classes that want to be told when
+ * sessions log in, log out or change in a <tt>WhoIsOn</tt> registry. The
+ * methods are called in the registry's dispatch thread, or in the thread
+ * that reconciles it with the server.
+ * 
+ * @see nu.dll.lyskom.WhoIsOn#addWhoIsOnListener(WhoIsOnListener)
+ */
+public interface WhoIsOnListener {
+    /**
+     * Called when a session has logged in.
+     */
+    public void sessionAdded(DynamicSessionInfo session);
+
+    /**
+     * Called when a session has changed its working conference or what it
+     * is doing, or when the name of its person or working conference has
+     * changed (in which case <tt>old</tt> and <tt>session</tt> are the same
+     * object).
+     */
+    public void sessionChanged(DynamicSessionInfo old,
+            DynamicSessionInfo session);
+
+    /**
+     * Called when a session has logged out.
+     */
+    public void sessionRemoved(DynamicSessionInfo session);
+}
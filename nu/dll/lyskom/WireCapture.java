@@ -0,0 +1,298 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records the traffic of a connection, in both directions, to a binary
+ * log. Each chunk of data read from or written to the socket is stored as
+ * a frame with its direction and a nanosecond timestamp. The log is
+ * buffered, and is split into files of a maximum size, of which only the
+ * last few are kept:
+ * <tt><i>path</i>.0</tt>, <tt><i>path</i>.1</tt>, and so on.
+ * <br>
+ * A capture is attached to a Session with <tt>Session.setWireCapture()</tt>
+ * before connecting, or by setting the system property
+ * <tt>lattekom.wire-capture</tt> to the path to write to. The log can be
+ * fed back through the token reader with <tt>WireReplay</tt>.
+ * <br>
+ * <b>The capture is taken inside TLS, so it holds the session's traffic in
+ * clear text</b>: texts, messages, names and everything else read or
+ * written. Only passwords are left out: the password strings of the
+ * login, login-old, set-passwd, create-person and create-person-old calls
+ * are recorded as asterisks of the same length. Capture files should be
+ * kept where only those allowed to read the session's traffic can read
+ * them.
+ * <br>
+ * File format: a header of the magic number <tt>LKWC</tt>, a version
+ * number, the wall clock time (milliseconds) and the capture start time
+ * (<tt>System.nanoTime()</tt>), followed by frames of a direction byte
+ * (<tt>&lt;</tt> for data from the server, <tt>&gt;</tt> for data to it),
+ * the time since the capture started (nanoseconds) and the data length,
+ * both as variable-length numbers, and the data.
+ *
+ * @see nu.dll.lyskom.WireReplay
+ * @see nu.dll.lyskom.Session#setWireCapture(WireCapture)
+ */
+public class WireCapture {
+
+    final static int MAGIC = 0x4c4b5743; // "LKWC"
+    final static int VERSION = 1;
+    final static int HEADER_SIZE = 24;
+
+    public final static byte IN = '<';
+    public final static byte OUT = '>';
+
+    String path;
+    long maxFileSize;
+    int maxFiles;
+
+    long start = System.nanoTime();
+    long startMillis = System.currentTimeMillis();
+
+    DataOutputStream out = null;
+    long fileSize = 0;
+    int fileIndex = -1;
+    boolean closed = false;
+
+    /**
+     * Creates a capture writing to files of at most 16 MB each, keeping the
+     * last four.
+     */
+    public WireCapture(String path) throws IOException {
+        this(path, 16 << 20, 4);
+    }
+
+    /**
+     * Creates a capture writing to files of at most <tt>maxFileSize</tt>
+     * bytes each, keeping the last <tt>maxFiles</tt> files (all of them, if
+     * zero).
+     */
+    public WireCapture(String path, long maxFileSize, int maxFiles)
+            throws IOException {
+        this.path = path;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        rotate();
+    }
+
+    /**
+     * Returns the name of the file with the given index.
+     */
+    public static File getFile(String path, int index) {
+        return new File(path + "." + index);
+    }
+
+    private void rotate() throws IOException {
+        if (out != null)
+            out.close();
+        fileIndex++;
+        if (maxFiles > 0 && fileIndex >= maxFiles)
+            getFile(path, fileIndex - maxFiles).delete();
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getFile(path, fileIndex)), 65536));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(startMillis);
+        out.writeLong(start);
+        fileSize = out.size();
+    }
+
+    /**
+     * Records a frame of data. If the capture cannot be written, it is
+     * closed, without disturbing the connection.
+     *
+     * @param direction
+     *            <tt>IN</tt> or <tt>OUT</tt>
+     */
+    public synchronized void record(byte direction, byte[] b, int off, int len) {
+        if (closed || len <= 0)
+            return;
+        long time = System.nanoTime() - start;
+        try {
+            if (fileSize + len > maxFileSize && fileSize > HEADER_SIZE)
+                rotate();
+            out.write(direction);
+            RpcTrace.writeVarLong(out, time);
+            RpcTrace.writeVarLong(out, len);
+            out.write(b, off, len);
+            fileSize = out.size();
+        } catch (IOException ex1) {
+            Debug.println("Wire capture to " + path + " failed: " + ex1);
+            closed = true;
+        }
+    }
+
+    /**
+     * Writes all buffered frames to the current file.
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed)
+            out.flush();
+    }
+
+    /**
+     * Flushes and closes the current file. Data recorded after this is
+     * discarded.
+     */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        out.close();
+    }
+
+    /**
+     * Returns a stream that records everything read from <tt>in</tt>.
+     */
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                int b = in.read();
+                if (b != -1)
+                    record(IN, new byte[] { (byte) b }, 0, 1);
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0)
+                    record(IN, b, off, n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that records everything written to <tt>out</tt>,
+     * with passwords masked.
+     */
+    OutputStream wrap(OutputStream out) {
+        final Redactor redactor = new Redactor();
+        return new FilterOutputStream(out) {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                byte[] masked = redactor.redact(b, off, len);
+                if (masked != null)
+                    record(OUT, masked, 0, len);
+                else
+                    record(OUT, b, off, len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Follows the calls written to the server, token by token, and finds
+     * the contents of the strings that are passwords. The calls may be
+     * split across writes in any way.
+     */
+    static class Redactor {
+        // calls not in Rpc, that applications may still send
+        final static int C_login_old = 0;
+        final static int C_create_person_old = 5;
+
+        // the tokens of the current call: reference number, call number,
+        // and parameters
+        int tokenIndex = 0;
+        int op = -1;
+
+        boolean inToken = false;
+        int tokenLength = 0;
+        int value = 0;
+        boolean digits = true;
+
+        // the bytes left of a string's contents, and whether to mask them
+        int remaining = 0;
+        boolean mask = false;
+
+        static boolean isPassword(int op, int tokenIndex) {
+            switch (op) {
+            case Rpc.C_login:
+            case C_login_old:
+            case Rpc.C_create_person:
+            case C_create_person_old:
+                return tokenIndex == 3;
+            case Rpc.C_set_passwd:
+                return tokenIndex == 3 || tokenIndex == 4;
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Returns a copy of the data with the passwords in it masked, or
+         * null if there was nothing to mask.
+         */
+        byte[] redact(byte[] b, int off, int len) {
+            byte[] copy = null;
+            for (int i = 0; i < len; i++) {
+                byte c = b[off + i];
+                if (remaining > 0) {
+                    if (mask) {
+                        if (copy == null) {
+                            copy = new byte[len];
+                            System.arraycopy(b, off, copy, 0, len);
+                        }
+                        copy[i] = '*';
+                    }
+                    if (--remaining == 0)
+                        tokenIndex++;
+                } else if (c == ' ' || c == '\n' || c == '\r') {
+                    if (inToken)
+                        endToken();
+                    if (c == '\n') {
+                        tokenIndex = 0;
+                        op = -1;
+                    }
+                } else if (c == 'H' && inToken && digits
+                        && tokenLength > 0) {
+                    // a string of value bytes follows
+                    inToken = false;
+                    remaining = value;
+                    mask = isPassword(op, tokenIndex);
+                    if (remaining == 0)
+                        tokenIndex++;
+                } else {
+                    if (!inToken) {
+                        inToken = true;
+                        tokenLength = 0;
+                        value = 0;
+                        digits = true;
+                        // the handshake: A followed by a string
+                        if (c == 'A' && tokenIndex == 0)
+                            continue;
+                    }
+                    if (c >= '0' && c <= '9' && value < 100000000)
+                        value = value * 10 + (c - '0');
+                    else
+                        digits = false;
+                    tokenLength++;
+                }
+            }
+            return copy;
+        }
+
+        private void endToken() {
+            if (tokenIndex == 1 && digits)
+                op = value;
+            tokenIndex++;
+            inToken = false;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Feeds traffic recorded by a WireCapture back through a KomTokenReader and
+ * a MessageListener, as if it came from a server, either at the recorded
+ * pace or as fast as possible. This makes it possible to reproduce a slow
+ * session offline, and to benchmark the parser on real traffic.
+ * <br>
+ * The calls sent by the client are read from the capture as well, so that
+ * the replies are decoded the same way as in the live session. Replies and
+ * asynchronous messages are counted, but not acted upon.
+ * <br>
+ * Usage: <tt>WireReplay [-realtime] [-repeat <i>n</i>] <i>path</i></tt>,
+ * where <i>path</i> is a capture file, or the path given to the
+ * WireCapture, in which case all of its files are replayed in order.
+ *
+ * @see nu.dll.lyskom.WireCapture
+ */
+public class WireReplay implements RpcReplyReceiver, AsynchMessageReceiver {
+
+    List<File> files;
+    boolean realTime = false;
+
+    Session session;
+    long framesIn, framesOut, bytesIn, bytesOut;
+    long replies, errors, asynchMessages;
+    long elapsed;
+
+    public WireReplay(List<File> files) {
+        this.files = files;
+    }
+
+    /**
+     * Returns the files of a capture: <tt>path</tt> itself if it is a file,
+     * otherwise <tt><i>path</i>.<i>n</i></tt> for all <i>n</i> that exist
+     * (the older ones may have been removed).
+     */
+    public static List<File> getFiles(String path) {
+        List<File> files = new ArrayList<File>();
+        File f = new File(path);
+        if (f.isFile()) {
+            files.add(f);
+            return files;
+        }
+        int missing = 0;
+        for (int i = 0; missing < 1000; i++) {
+            f = WireCapture.getFile(path, i);
+            if (f.isFile()) {
+                files.add(f);
+                missing = 0;
+            } else if (!files.isEmpty()) {
+                break;
+            } else {
+                missing++;
+            }
+        }
+        return files;
+    }
+
+    /**
+     * If <tt>true</tt>, data is delivered at the pace it was recorded;
+     * otherwise as fast as the reader takes it.
+     */
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    /**
+     * Replays the capture. Returns when all of it has been read.
+     */
+    public void run() throws IOException {
+        session = new Session();
+        ReplayStream stream = new ReplayStream();
+        session.reader = new KomTokenReader(stream, session);
+        MessageListener listener = new MessageListener(session);
+        session.listener = listener;
+        stream.listener = listener;
+        listener.addRpcReplyReceiver(this);
+        listener.addAsynchMessageReceiver(this);
+
+        long start = System.nanoTime();
+        // run the listener loop in this thread
+        listener.asynch = true;
+        listener.run();
+        elapsed = System.nanoTime() - start;
+        stream.close();
+        if (!stream.finished && listener.getException() != null)
+            throw new IOException("Replay failed: " + listener.getException());
+    }
+
+    public void rpcReply(RpcReply r) {
+        if (r == null)
+            return;
+        replies++;
+        if (!r.getSuccess())
+            errors++;
+        session.rpcHeap.purgeRpcCall(r.getId());
+    }
+
+    public void asynchMessage(AsynchMessage m) {
+        asynchMessages++;
+    }
+
+    public long getReplies() {
+        return replies;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getAsynchMessages() {
+        return asynchMessages;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Returns the time the last replay took, in nanoseconds.
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Returns the data received from the server, frame by frame; the data
+     * sent to it is used to register the calls the replies belong to.
+     */
+    class ReplayStream extends InputStream {
+        MessageListener listener;
+        int fileIndex = 0;
+        DataInputStream in = null;
+        byte[] frame = new byte[0];
+        int pos = 0, length = 0;
+        boolean finished = false;
+
+        long replayStart = System.nanoTime();
+        long captureStart = -1;
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+
+        /**
+         * Reads frames until there is one from the server. Returns false at
+         * the end of the capture.
+         */
+        boolean nextFrame() throws IOException {
+            while (true) {
+                if (in == null) {
+                    if (fileIndex >= files.size())
+                        return false;
+                    in = open(files.get(fileIndex++));
+                }
+                int direction = in.read();
+                if (direction == -1) {
+                    in.close();
+                    in = null;
+                    continue;
+                }
+                long time = RpcTrace.readVarLong(in);
+                int len = (int) RpcTrace.readVarLong(in);
+                if (frame.length < len)
+                    frame = new byte[Math.max(len, frame.length * 2)];
+                in.readFully(frame, 0, len);
+                if (direction == WireCapture.OUT) {
+                    framesOut++;
+                    bytesOut += len;
+                    sent(frame, len);
+                    continue;
+                }
+                framesIn++;
+                bytesIn += len;
+                if (realTime)
+                    await(time);
+                pos = 0;
+                length = len;
+                return true;
+            }
+        }
+
+        DataInputStream open(File f) throws IOException {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f), 65536));
+            if (is.readInt() != WireCapture.MAGIC) {
+                is.close();
+                throw new IOException(f + " is not a wire capture");
+            }
+            int version = is.readInt();
+            if (version != WireCapture.VERSION) {
+                is.close();
+                throw new IOException(f + ": unsupported version " + version);
+            }
+            is.readLong(); // wall clock time
+            is.readLong(); // nanoTime at start
+            return is;
+        }
+
+        void await(long time) {
+            if (captureStart < 0) {
+                captureStart = time;
+                replayStart = System.nanoTime();
+            }
+            long wait = (time - captureStart)
+                    - (System.nanoTime() - replayStart);
+            if (wait > 1000000) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException ex1) {
+                }
+            }
+        }
+
+        /**
+         * Registers the calls in data sent to the server: every line that
+         * starts with two numbers is taken to be a call with that reference
+         * number and op, and the numbers following them as its parameters. (A string parameter containing a newline followed
+         * by two numbers could be mistaken for a call; that does not matter
+         * unless a reply with that number follows.)
+         */
+        void sent(byte[] data, int len) {
+            for (int i = 0; i < len; i++) {
+                if (data[i] != '\n') {
+                    line.write(data[i]);
+                    continue;
+                }
+                String[] words = line.toString().trim().split(" ");
+                line.reset();
+                if (words.length < 2)
+                    continue;
+                RpcCall call;
+                try {
+                    call = new RpcCall(Integer.parseInt(words[0]), Integer
+                            .parseInt(words[1]));
+                } catch (NumberFormatException ex1) {
+                    continue;
+                }
+                // the decoders only look at leading number parameters
+                try {
+                    for (int j = 2; j < words.length; j++)
+                        call.add(new KomToken(Integer.parseInt(words[j])));
+                } catch (NumberFormatException ex1) {
+                }
+                session.rpcHeap.addRpcCall(call);
+            }
+        }
+
+        public int read() throws IOException {
+            if (pos == length && !nextFrame()) {
+                end();
+                return -1;
+            }
+            return frame[pos++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (pos == length && !nextFrame()) {
+                end();
+                return -1;
+            }
+            int n = Math.min(len, length - pos);
+            System.arraycopy(frame, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        // tell the listener to stop before the reader hits the end
+        void end() {
+            finished = true;
+            listener.disconnect = true;
+        }
+
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
+            in = null;
+        }
+    }
+
+    public static void main(String[] argv) throws IOException {
+        boolean realTime = false;
+        int repeat = 1;
+        String path = null;
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("-realtime"))
+                realTime = true;
+            else if (argv[i].equals("-repeat"))
+                repeat = Integer.parseInt(argv[++i]);
+            else
+                path = argv[i];
+        }
+        if (path == null) {
+            System.err.println("Usage: WireReplay [-realtime] [-repeat n] "
+                    + "<capture file or path>");
+            System.exit(1);
+        }
+        List<File> files = getFiles(path);
+        if (files.isEmpty()) {
+            System.err.println("No capture files found at " + path);
+            System.exit(1);
+        }
+        for (int i = 0; i < repeat; i++) {
+            WireReplay replay = new WireReplay(files);
+            replay.setRealTime(realTime);
+            replay.run();
+            double seconds = replay.elapsed / 1e9;
+            System.out.println(files.size() + " file(s), " + replay.framesIn
+                    + " frames in, " + replay.framesOut + " frames out, "
+                    + replay.bytesIn + " bytes in: " + replay.replies
+                    + " replies (" + replay.errors + " errors), "
+                    + replay.asynchMessages + " asynch messages in "
+                    + Math.round(seconds * 1000) + " ms ("
+                    + Math.round(replay.bytesIn / seconds / 1024)
+                    + " kB/s, " + Math.round(replay.replies / seconds)
+                    + " replies/s)");
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.AsynchInbox;
+import nu.dll.lyskom.AsynchMessage;
+import nu.dll.lyskom.DispatchQueue;
+import nu.dll.lyskom.Session;
+
+/**
+ * Checks the bounded AsynchInbox, and the AsynchPublisher built on it,
+ * with messages sent by a FakeServer.
+ */
+public class AsynchInboxTest extends TestCase {
+    FakeServer server;
+    Session session;
+
+    public AsynchInboxTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        server = new FakeServer();
+        server.start();
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(1, "", false, false));
+    }
+
+    protected void tearDown() throws IOException {
+        session.disconnect(true);
+        server.stop();
+    }
+
+    void send(int count) throws IOException {
+        for (int i = 1; i <= count; i++)
+            server.sendMessage(1, 2, "m" + i);
+    }
+
+    static String text(AsynchMessage m) {
+        return new String(m.getParameters()[2].getContents());
+    }
+
+    // waits until the inbox has received count messages
+    static void await(AsynchInbox inbox, int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (inbox.getReceived() < count && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertEquals(count, inbox.getReceived());
+    }
+
+    public void testDropOldest() throws Exception {
+        AsynchInbox inbox = new AsynchInbox(4);
+        session.addAsynchMessageReceiver(inbox, DispatchQueue.SYNCHRONOUS, 0);
+        send(10);
+        await(inbox, 10);
+        assertEquals(4, inbox.size());
+        assertEquals(6, inbox.getDropped());
+        for (int i = 7; i <= 10; i++)
+            assertEquals("m" + i, text(inbox.poll()));
+        assertNull(inbox.poll());
+    }
+
+    public void testPollAndDrain() throws Exception {
+        AsynchInbox inbox = new AsynchInbox(100);
+        session.addAsynchMessageReceiver(inbox, DispatchQueue.SYNCHRONOUS, 0);
+        assertNull(inbox.poll(100, TimeUnit.MILLISECONDS));
+        send(5);
+        assertEquals("m1", text(inbox.poll(5, TimeUnit.SECONDS)));
+        await(inbox, 5);
+        List<AsynchMessage> l = new ArrayList<AsynchMessage>();
+        assertEquals(3, inbox.drainTo(l, 3));
+        assertEquals("m2", text(l.get(0)));
+        assertEquals("m4", text(l.get(2)));
+        assertEquals(1, inbox.drainTo(l, 10));
+        assertEquals(0, inbox.size());
+    }
+
+    public void testCloseWakesTake() throws Exception {
+        final AsynchInbox inbox = new AsynchInbox(10);
+        final CountDownLatch returned = new CountDownLatch(1);
+        final Object[] got = { "none" };
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    got[0] = inbox.take();
+                } catch (InterruptedException ex1) {
+                }
+                returned.countDown();
+            }
+        };
+        t.start();
+        Thread.sleep(100);
+        assertEquals(1, returned.getCount());
+        inbox.close();
+        assertTrue(returned.await(5, TimeUnit.SECONDS));
+        assertNull(got[0]);
+    }
+
+    public void testSessionInbox() throws Exception {
+        assertNull(session.getAsynchMessage(50));
+        send(3);
+        // storing started with the call above
+        for (int i = 1; i <= 3; i++)
+            assertEquals("m" + i, text(session.getAsynchMessage(5000)));
+    }
+
+    static class Subscriber implements Flow.Subscriber<AsynchMessage> {
+        Flow.Subscription subscription;
+        List<String> got = new ArrayList<String>();
+        CountDownLatch done = new CountDownLatch(1);
+        Throwable error = null;
+        boolean completed = false;
+
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+
+        public synchronized void onNext(AsynchMessage m) {
+            got.add(text(m));
+            notifyAll();
+        }
+
+        public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        public void onComplete() {
+            completed = true;
+            done.countDown();
+        }
+
+        synchronized List<String> await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (got.size() < count && System.currentTimeMillis() < end)
+                wait(100);
+            return new ArrayList<String>(got);
+        }
+    }
+
+    public void testPublisherDemand() throws Exception {
+        Subscriber s = new Subscriber();
+        session.getAsynchPublisher(100).subscribe(s);
+        send(5);
+        Thread.sleep(200);
+        assertEquals(0, s.await(0).size());
+        s.subscription.request(2);
+        assertEquals(2, s.await(2).size());
+        Thread.sleep(100);
+        assertEquals(2, s.await(0).size());
+        s.subscription.request(Long.MAX_VALUE);
+        List<String> got = s.await(5);
+        assertEquals(5, got.size());
+        assertEquals("m5", got.get(4));
+    }
+
+    public void testPublisherCompletes() throws Exception {
+        Subscriber s = new Subscriber();
+        session.getAsynchPublisher(100).subscribe(s);
+        s.subscription.request(1);
+        session.disconnect(true);
+        assertTrue(s.done.await(5, TimeUnit.SECONDS));
+        assertTrue(s.completed);
+        assertNull(s.error);
+    }
+
+    public void testPublisherBadRequest() throws Exception {
+        Subscriber s = new Subscriber();
+        session.getAsynchPublisher(100).subscribe(s);
+        s.subscription.request(1);
+        // the delivery thread is waiting for a message now
+        Thread.sleep(100);
+        s.subscription.request(0);
+        assertTrue(s.done.await(5, TimeUnit.SECONDS));
+        assertTrue(s.error instanceof IllegalArgumentException);
+    }
+
+    public void testPublisherConnectionLost() throws Exception {
+        Subscriber s = new Subscriber();
+        session.getAsynchPublisher(100).subscribe(s);
+        s.subscription.request(1);
+        server.stop();
+        assertTrue(s.done.await(5, TimeUnit.SECONDS));
+        assertTrue(s.error instanceof IOException);
+    }
+}
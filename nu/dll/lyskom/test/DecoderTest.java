@@ -0,0 +1,181 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.Asynch;
+import nu.dll.lyskom.AsynchInbox;
+import nu.dll.lyskom.AsynchMessage;
+import nu.dll.lyskom.DispatchQueue;
+import nu.dll.lyskom.Membership;
+import nu.dll.lyskom.Rpc;
+import nu.dll.lyskom.RpcEvent;
+import nu.dll.lyskom.RpcEventListener;
+import nu.dll.lyskom.Session;
+import nu.dll.lyskom.TextMapping;
+import nu.dll.lyskom.TextStat;
+
+/**
+ * Checks that replies decoded straight from the stream are the same as
+ * replies parsed from tokens, that RPC event listeners get the tokens, and
+ * that the protocol 10 forms of the membership calls are used against a
+ * server that does not know the new ones.
+ */
+public class DecoderTest extends TestCase {
+    FakeServer server;
+    Session session;
+
+    public DecoderTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        server = new FakeServer();
+        server.start();
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(1, "", false, false));
+    }
+
+    protected void tearDown() throws IOException {
+        session.disconnect(true);
+        server.stop();
+    }
+
+    static class Events implements RpcEventListener {
+        List<RpcEvent> events = new ArrayList<RpcEvent>();
+
+        public synchronized void rpcEvent(RpcEvent e) {
+            events.add(e);
+            notifyAll();
+        }
+
+        // the listener is called after the caller has been woken up
+        synchronized RpcEvent find(int op) {
+            long end = System.currentTimeMillis() + 5000;
+            while (true) {
+                for (RpcEvent e : events)
+                    if (e.getOp() == op)
+                        return e;
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0)
+                    return null;
+                try {
+                    wait(wait);
+                } catch (InterruptedException ex1) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    static void assertEqual(Membership expected, Membership actual) {
+        assertEquals(expected.getConference(), actual.getConference());
+        assertEquals(expected.getPosition(), actual.getPosition());
+        assertEquals(expected.getPriority(), actual.getPriority());
+        assertEquals(expected.getLastTextRead(), actual.getLastTextRead());
+        assertEquals(expected.getAddedBy(), actual.getAddedBy());
+        int[] e = expected.getReadTexts(), a = actual.getReadTexts();
+        assertEquals(e.length, a.length);
+        for (int i = 0; i < e.length; i++)
+            assertEquals(e[i], a[i]);
+    }
+
+    static void assertEqual(TextStat expected, TextStat actual) {
+        assertEquals(expected.getNo(), actual.getNo());
+        assertEquals(expected.getAuthor(), actual.getAuthor());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getMiscInfoCount(), actual.getMiscInfoCount());
+        for (int g = 0; g < expected.getMiscInfoCount(); g++) {
+            assertEquals(expected.getMiscInfoKey(g), actual.getMiscInfoKey(g));
+            assertEquals(expected.getMiscInfoValue(g), actual
+                    .getMiscInfoValue(g));
+        }
+    }
+
+    public void testMembershipSameAsTokens() throws IOException {
+        Events events = new Events();
+        session.addRpcEventListener(events, DispatchQueue.SYNCHRONOUS, 0);
+        int conf = server.getMemberships(1)[1];
+        Membership[] decoded = session.getMembership(1, 0, 100, true);
+        Membership decodedRead = session.queryReadTexts(1, conf, true);
+
+        Membership[] parsed = Membership.createFromArray(0, events.find(
+                Rpc.C_get_membership).getReply().getParameters(), false);
+        assertEquals(decoded.length, parsed.length);
+        for (int i = 0; i < decoded.length; i++)
+            assertEqual(parsed[i], decoded[i]);
+        assertEqual(Membership.createFrom(0, events.find(
+                Rpc.C_query_read_texts).getReply().getParameters(), false),
+                decodedRead);
+    }
+
+    public void testTextMappingSameAsTokens() throws IOException {
+        Events events = new Events();
+        session.addRpcEventListener(events, DispatchQueue.SYNCHRONOUS, 0);
+        int conf = server.getMemberships(1)[1];
+        TextMapping decoded = session.localToGlobal(conf, 1, 50);
+
+        TextMapping parsed = new TextMapping();
+        parsed.update(0, events.find(Rpc.C_local_to_global).getReply()
+                .getParameters(), false);
+        for (int l = 1; l <= 50; l++)
+            assertEquals(parsed.localToGlobal(l), decoded.localToGlobal(l));
+        assertEquals(parsed.laterTextsExists(), decoded.laterTextsExists());
+    }
+
+    public void testTextStatSameAsTokens() throws Exception {
+        // async-new-text carries the text-stat, which is parsed from tokens
+        AsynchInbox inbox = new AsynchInbox(100);
+        session.addAsynchMessageReceiver(inbox, DispatchQueue.SYNCHRONOUS, 0);
+        int textNo = server.createText(2, "ämne", "kropp\n", new int[] { 5,
+                server.getPersons() + 1 });
+        AsynchMessage m;
+        while ((m = inbox.poll(5, TimeUnit.SECONDS)) != null
+                && m.getNumber() != Asynch.new_text)
+            ;
+        assertNotNull(m);
+        // give the session's own handler time to cache the text-stat
+        Thread.sleep(100);
+        long requests = server.getRequestCount();
+        TextStat parsed = session.getTextStat(textNo);
+        assertEquals(requests, server.getRequestCount());
+        assertEqual(parsed, session.getTextStat(textNo, true));
+    }
+
+    public void testListenerGetsParameters() throws IOException {
+        Events events = new Events();
+        session.addRpcEventListener(events, DispatchQueue.SYNCHRONOUS, 0);
+        session.getTextStat(2 * server.getTextsPerConference() + 3, true);
+        session.getMembership(1, 0, 100, true);
+
+        RpcEvent e = events.find(Rpc.C_get_text_stat);
+        assertNotNull(e);
+        assertNotNull(e.getReply().getParameters());
+        e = events.find(Rpc.C_get_membership);
+        assertNotNull(e);
+        assertNotNull(e.getReply().getParameters());
+    }
+
+    public void testProtocol10() throws IOException {
+        Membership[] expected = session.getMembership(1, 0, 100, true);
+        int conf = server.getMemberships(1)[1];
+        Membership expectedRead = session.queryReadTexts(1, conf, true);
+
+        server.setProtocol10(true);
+        Membership[] old = session.getMembership(1, 0, 100, true);
+        assertEquals(expected.length, old.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEqual(expected[i], old[i]);
+        assertEqual(expectedRead, session.queryReadTexts(1, conf, true));
+    }
+}
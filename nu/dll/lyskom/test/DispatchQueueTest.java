@@ -0,0 +1,202 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.Asynch;
+import nu.dll.lyskom.AsynchMessage;
+import nu.dll.lyskom.AsynchMessageReceiver;
+import nu.dll.lyskom.DispatchQueue;
+import nu.dll.lyskom.Session;
+
+/**
+ * Checks the overflow policies of the DispatchQueues that asynchronous
+ * messages from a FakeServer are passed through.
+ */
+public class DispatchQueueTest extends TestCase {
+    FakeServer server;
+    Session session;
+
+    public DispatchQueueTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        server = new FakeServer();
+        server.start();
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(1, "", false, false));
+    }
+
+    protected void tearDown() throws IOException {
+        session.disconnect(true);
+        server.stop();
+    }
+
+    /**
+     * Keeps the text of the send-message and the new name of the new-name
+     * messages it gets, once let through.
+     */
+    static class Receiver implements AsynchMessageReceiver {
+        final CountDownLatch open;
+        List<String> got = new ArrayList<String>();
+
+        Receiver(boolean open) {
+            this.open = new CountDownLatch(open ? 0 : 1);
+        }
+
+        public void asynchMessage(AsynchMessage m) {
+            try {
+                open.await();
+            } catch (InterruptedException ex1) {
+                return;
+            }
+            // the third parameter of both is the text
+            if (m.getNumber() != Asynch.send_message
+                    && m.getNumber() != Asynch.new_name)
+                return;
+            String s = new String(m.getParameters()[2].getContents());
+            synchronized (this) {
+                got.add(s);
+                notifyAll();
+            }
+        }
+
+        synchronized List<String> await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (got.size() < count && System.currentTimeMillis() < end)
+                wait(100);
+            return new ArrayList<String>(got);
+        }
+    }
+
+    DispatchQueue queueOf(Object receiver) {
+        DispatchQueue[] queues = session.getDispatchQueues();
+        for (int i = 0; i < queues.length; i++)
+            if (queues[i].getReceiver() == receiver)
+                return queues[i];
+        return null;
+    }
+
+    void send(int count) throws IOException {
+        for (int i = 1; i <= count; i++)
+            server.sendMessage(1, 2, "m" + i);
+    }
+
+    public void testBlock() throws Exception {
+        Receiver r = new Receiver(false);
+        session.addAsynchMessageReceiver(r, DispatchQueue.BLOCK, 4);
+        send(20);
+        Thread.sleep(200);
+        r.open.countDown();
+        List<String> got = r.await(20);
+        assertEquals(20, got.size());
+        for (int i = 0; i < got.size(); i++)
+            assertEquals("m" + (i + 1), got.get(i));
+        DispatchQueue q = queueOf(r);
+        assertEquals(0, q.getDropped());
+        assertTrue(q.getBlocked() > 0);
+        assertTrue(q.getMaxDepth() <= 4);
+    }
+
+    public void testDropOldest() throws Exception {
+        Receiver r = new Receiver(false);
+        session.addAsynchMessageReceiver(r, DispatchQueue.DROP_OLDEST, 4);
+        send(20);
+        Thread.sleep(200);
+        DispatchQueue q = queueOf(r);
+        assertTrue(q.getDropped() > 0);
+        r.open.countDown();
+        List<String> got = r.await((int) (20 - q.getDropped()));
+        Thread.sleep(100);
+        assertEquals(20, got.size() + q.getDropped());
+        assertEquals("m20", got.get(got.size() - 1));
+    }
+
+    public void testCoalesce() throws Exception {
+        Receiver r = new Receiver(false);
+        session.addAsynchMessageReceiver(r, DispatchQueue.COALESCE, 100);
+        int conf = server.getPersons() + 1;
+        for (int i = 1; i <= 10; i++)
+            session.changeName(conf, "namn " + i);
+        session.changeName(conf + 1, "annat");
+        Thread.sleep(200);
+        r.open.countDown();
+        Thread.sleep(200);
+        List<String> got = r.await(0);
+        // the first message may have been taken before the rest came
+        assertTrue(got.toString(), got.size() <= 3);
+        assertTrue(got.contains("namn 10"));
+        assertTrue(got.contains("annat"));
+        assertTrue(queueOf(r).getCoalesced() >= 8);
+    }
+
+    public void testCallFromReceiver() throws Exception {
+        final List<Integer> stats = new ArrayList<Integer>();
+        AsynchMessageReceiver r = new AsynchMessageReceiver() {
+            public void asynchMessage(AsynchMessage m) {
+                try {
+                    // the reader thread must keep reading for this
+                    int no = session.getTextStat(5, true).getNo();
+                    synchronized (stats) {
+                        stats.add(Integer.valueOf(no));
+                    }
+                } catch (IOException ex1) {
+                }
+            }
+        };
+        session.addAsynchMessageReceiver(r, DispatchQueue.BLOCK, 2);
+        send(10);
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            synchronized (stats) {
+                if (stats.size() == 10)
+                    break;
+            }
+            Thread.sleep(50);
+        }
+        assertEquals(10, stats.size());
+    }
+
+    public void testDuplicateReceiver() throws Exception {
+        Receiver r = new Receiver(true);
+        session.addAsynchMessageReceiver(r, DispatchQueue.BLOCK, 10);
+        int queues = session.getDispatchQueues().length;
+        session.addAsynchMessageReceiver(r, DispatchQueue.DROP_OLDEST, 10);
+        assertEquals(queues, session.getDispatchQueues().length);
+        assertEquals(DispatchQueue.BLOCK, queueOf(r).getPolicy());
+        send(3);
+        r.await(3);
+        Thread.sleep(200);
+        assertEquals(3, r.await(3).size());
+    }
+
+    public void testErrorInReceiver() throws Exception {
+        final CountDownLatch delivered = new CountDownLatch(3);
+        AsynchMessageReceiver r = new AsynchMessageReceiver() {
+            boolean first = true;
+
+            public void asynchMessage(AsynchMessage m) {
+                delivered.countDown();
+                if (first) {
+                    first = false;
+                    throw new AssertionError("thrown by the receiver");
+                }
+            }
+        };
+        session.addAsynchMessageReceiver(r, DispatchQueue.BLOCK, 10);
+        send(3);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+    }
+}
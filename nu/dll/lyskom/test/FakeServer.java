@@ -0,0 +1,1409 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocketFactory;
+
+import nu.dll.lyskom.Asynch;
+import nu.dll.lyskom.Rpc;
+import nu.dll.lyskom.TextStat;
+
+/**
+ * An embedded LysKOM Protocol A server for tests and benchmarks.
+ *
+ * The server listens on the loopback interface and serves a synthetic data
+ * set generated from a few size parameters: the first <tt>persons</tt>
+ * conferences are persons (letterboxes), the rest ordinary conferences. Every
+ * conference holds <tt>textsPerConference</tt> generated texts, and every
+ * person is a member of <tt>membershipsPerPerson</tt> conferences of which
+ * <tt>readPercent</tt> percent of the texts are read. Texts created by clients
+ * are stored and announced with asynchronous new-text messages.
+ * <p>
+ * Replies can be delayed by a fixed latency, large replies can be written in
+ * small, slow chunks to exercise partially received Holleriths, and
+ * asynchronous messages can be injected, either explicitly or periodically.
+ * Replies to single calls can be scripted with <tt>script()</tt>. The server
+ * can speak TLS, with a self-signed certificate.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * FakeServer server = new FakeServer();
+ * server.setLatency(20);
+ * server.start();
+ * Session session = new Session();
+ * session.connect(&quot;localhost&quot;, server.getPort());
+ * session.login(1, &quot;&quot;, false);
+ * ...
+ * server.stop();
+ * </pre>
+ */
+public class FakeServer implements Runnable {
+
+    public final static String CHARSET = "iso-8859-1";
+
+    public final static int VERSION = 11000;
+
+    // base for the creation times of generated texts
+    final static long EPOCH = new GregorianCalendar(2005, 0, 1).getTimeInMillis();
+
+    int persons = 50;
+    int conferences = 200;
+    int textsPerConference = 100;
+    int membershipsPerPerson = 20;
+    int textSize = 400;
+    int readPercent = 50;
+    String password = null;
+
+    long latency = 0;
+    int slowLimit = -1;
+    int slowChunk = 16;
+    long slowDelay = 5;
+    long asynchInterval = 0;
+    boolean protocol10 = false;
+    boolean ssl = false;
+
+    // made once, since creating the key pair takes a while
+    static SSLServerSocketFactory sslFactory = null;
+
+    ServerSocket serverSocket = null;
+    Thread thread = null;
+    Thread asynchThread = null;
+    volatile boolean running = false;
+
+    List<Client> clients = new LinkedList<Client>();
+    int sessionCount = 0;
+    int asynchCount = 0;
+    Random random = new Random(4711);
+
+    // mutable server state, guarded by this
+    Map<Integer, FakeText> createdTexts = new HashMap<Integer, FakeText>();
+    Map<Integer, List<Integer>> createdLocal = new HashMap<Integer, List<Integer>>();
+    Map<Integer, List<int[]>> extraMisc = new HashMap<Integer, List<int[]>>();
+    Map<Integer, byte[]> names = new HashMap<Integer, byte[]>();
+    Map<Integer, Map<Integer, BitSet>> readTexts = new HashMap<Integer, Map<Integer, BitSet>>();
+    int nextTextNo;
+
+    Map<Integer, String> scripts = new HashMap<Integer, String>();
+
+    long requests = 0;
+
+    public FakeServer() {
+    }
+
+    /**
+     * Creates a server with a data set of the given size.
+     *
+     * @param persons
+     *            number of persons
+     * @param conferences
+     *            total number of conferences, including the persons
+     * @param textsPerConference
+     *            number of generated texts in every conference
+     * @param membershipsPerPerson
+     *            number of conferences every person is a member of, including
+     *            its own letterbox
+     */
+    public FakeServer(int persons, int conferences, int textsPerConference,
+            int membershipsPerPerson) {
+        this.persons = persons;
+        this.conferences = conferences;
+        this.textsPerConference = textsPerConference;
+        this.membershipsPerPerson = membershipsPerPerson;
+    }
+
+    public void setTextSize(int textSize) {
+        this.textSize = textSize;
+    }
+
+    /**
+     * Sets how many percent of the texts in each membership that are read
+     * when the server starts.
+     */
+    public void setReadPercent(int readPercent) {
+        this.readPercent = readPercent;
+    }
+
+    /**
+     * Sets the password all persons must use to log in. If null (the
+     * default), any password is accepted.
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Delays every reply by the given number of milliseconds, counted from
+     * the time the call was received.
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Writes replies larger than <tt>limit</tt> bytes in chunks of
+     * <tt>chunk</tt> bytes, with <tt>delay</tt> milliseconds between each
+     * chunk. A negative limit disables slow replies.
+     */
+    public void setSlowReplies(int limit, int chunk, long delay) {
+        this.slowLimit = limit;
+        this.slowChunk = chunk;
+        this.slowDelay = delay;
+    }
+
+    /**
+     * Makes the server inject an asynchronous message every
+     * <tt>interval</tt> milliseconds, alternating between a broadcast
+     * send-message and a new text in a random conference. Zero disables
+     * injection. Must be called before start().
+     */
+    public void setAsynchInterval(long interval) {
+        this.asynchInterval = interval;
+    }
+
+    /**
+     * If <tt>true</tt>, the server answers get-membership and
+     * query-read-texts with not-implemented, like a server speaking
+     * protocol version 10, and only the protocol 10 forms of the calls
+     * work.
+     */
+    public void setProtocol10(boolean protocol10) {
+        this.protocol10 = protocol10;
+    }
+
+    /**
+     * If <tt>true</tt>, the server speaks TLS with a self-signed
+     * certificate, so clients must connect with certificate level 2. Must be
+     * called before start().
+     */
+    public void setSSL(boolean ssl) {
+        this.ssl = ssl;
+    }
+
+    /**
+     * Returns a factory for TLS server sockets using a self-signed
+     * certificate for localhost, made with the keytool of the running JVM.
+     */
+    static synchronized SSLServerSocketFactory getSSLFactory()
+            throws IOException {
+        if (sslFactory != null)
+            return sslFactory;
+        File file = File.createTempFile("fakeserver", ".p12");
+        file.delete();
+        String password = "fakeserver";
+        try {
+            String keytool = System.getProperty("java.home") + File.separator
+                    + "bin" + File.separator + "keytool";
+            Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias",
+                    "fakeserver", "-keyalg", "RSA", "-keysize", "2048",
+                    "-validity", "30", "-dname", "CN=localhost",
+                    "-storetype", "PKCS12", "-keystore", file.getPath(),
+                    "-storepass", password, "-keypass", password)
+                    .redirectErrorStream(true).start();
+            InputStream out = p.getInputStream();
+            while (out.read() != -1)
+                ;
+            if (p.waitFor() != 0)
+                throw new IOException("keytool failed with exit code "
+                        + p.exitValue());
+
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            FileInputStream in = new FileInputStream(file);
+            try {
+                ks.load(in, password.toCharArray());
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory
+                    .getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, password.toCharArray());
+            SSLContext sc = SSLContext.getInstance("TLS");
+            sc.init(kmf.getKeyManagers(), null, null);
+            return sslFactory = sc.getServerSocketFactory();
+        } catch (IOException ex1) {
+            throw ex1;
+        } catch (Exception ex2) {
+            throw new IOException("Could not make a certificate: " + ex2);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Makes the server answer all calls to <tt>op</tt> with the given reply
+     * data, which is written as is after the reply reference number. A reply
+     * starting with "%" is sent as an error reply, for example "%2 0". A null
+     * reply removes the script.
+     */
+    public void script(int op, String reply) {
+        synchronized (scripts) {
+            if (reply == null)
+                scripts.remove(Integer.valueOf(op));
+            else
+                scripts.put(Integer.valueOf(op), reply);
+        }
+    }
+
+    public int getPersons() {
+        return persons;
+    }
+
+    public int getConferences() {
+        return conferences;
+    }
+
+    public int getTextsPerConference() {
+        return textsPerConference;
+    }
+
+    /**
+     * Returns the conferences the given person is a member of, in membership
+     * order. The first is the person's letterbox.
+     */
+    public int[] getMemberships(int persNo) {
+        int others = conferences - persons;
+        int count = Math.min(membershipsPerPerson, others + 1);
+        int[] confs = new int[count];
+        confs[0] = persNo;
+        for (int i = 1; i < count; i++)
+            confs[i] = persons + 1 + (persNo + i - 1) % others;
+        return confs;
+    }
+
+    /**
+     * Returns the number of calls answered since the server was started.
+     */
+    public synchronized long getRequestCount() {
+        return requests;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts the server on a free port on the loopback interface.
+     *
+     * @see #getPort()
+     */
+    public void start() throws IOException {
+        start(0);
+    }
+
+    public void start(int port) throws IOException {
+        nextTextNo = conferences * textsPerConference + 1;
+        ServerSocketFactory factory = ssl ? getSSLFactory()
+                : ServerSocketFactory.getDefault();
+        serverSocket = factory.createServerSocket(port, 50, InetAddress
+                .getByName("localhost"));
+        running = true;
+        thread = new Thread(this, "FakeServer-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+        if (asynchInterval > 0) {
+            asynchThread = new Thread(new Runnable() {
+                public void run() {
+                    injectAsynch();
+                }
+            }, "FakeServer-asynch");
+            asynchThread.setDaemon(true);
+            asynchThread.start();
+        }
+    }
+
+    /**
+     * Stops the server and closes all client connections.
+     */
+    public void stop() throws IOException {
+        running = false;
+        serverSocket.close();
+        if (asynchThread != null)
+            asynchThread.interrupt();
+        List<Client> all;
+        synchronized (clients) {
+            all = new ArrayList<Client>(clients);
+        }
+        for (Client c : all)
+            c.close();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Client client;
+                synchronized (clients) {
+                    client = new Client(socket, ++sessionCount);
+                    clients.add(client);
+                }
+                client.start();
+            } catch (IOException ex1) {
+                if (running)
+                    ex1.printStackTrace();
+            }
+        }
+    }
+
+    void injectAsynch() {
+        try {
+            while (running) {
+                Thread.sleep(asynchInterval);
+                if (asynchCount++ % 2 == 0) {
+                    sendMessage(0, 1, "Meddelande " + asynchCount);
+                } else {
+                    int conf = persons + 1
+                            + random.nextInt(conferences - persons);
+                    createText(1 + random.nextInt(persons), "Asynkront inl\u00e4gg "
+                            + asynchCount, "Text\n", new int[] { conf });
+                }
+            }
+        } catch (InterruptedException ex1) {
+        } catch (IOException ex2) {
+            ex2.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends an async-send-message to all clients logged in as
+     * <tt>recipient</tt>, or to all clients if <tt>recipient</tt> is zero.
+     */
+    public void sendMessage(int recipient, int sender, String message)
+            throws IOException {
+        Reply r = new Reply();
+        r.add(recipient).add(sender).add(message);
+        for (Client c : clientList()) {
+            if (recipient == 0 || c.person == recipient)
+                c.asynch(Asynch.send_message, 3, r);
+        }
+    }
+
+    /**
+     * Stores a new text and sends async-new-text about it to all clients.
+     *
+     * @return the new text number
+     */
+    public int createText(int author, String subject, String body,
+            int[] recipients) throws IOException {
+        int[] misc = new int[recipients.length * 2];
+        for (int i = 0; i < recipients.length; i++) {
+            misc[i * 2] = TextStat.miscRecpt;
+            misc[i * 2 + 1] = recipients[i];
+        }
+        return createText(author, (subject + "\n" + body).getBytes(CHARSET),
+                misc);
+    }
+
+    int createText(int author, byte[] contents, int[] misc) throws IOException {
+        FakeText t;
+        synchronized (this) {
+            t = new FakeText(nextTextNo++, author, System.currentTimeMillis(),
+                    contents);
+            for (int i = 0; i < misc.length; i += 2) {
+                int tag = misc[i], value = misc[i + 1];
+                t.misc.add(new int[] { tag, value });
+                switch (tag) {
+                case TextStat.miscRecpt:
+                case TextStat.miscCcRecpt:
+                case TextStat.miscBccRecpt:
+                    List<Integer> local = createdLocal.get(Integer
+                            .valueOf(value));
+                    if (local == null)
+                        createdLocal.put(Integer.valueOf(value),
+                                local = new ArrayList<Integer>());
+                    local.add(Integer.valueOf(t.no));
+                    t.misc.add(new int[] { TextStat.miscLocNo,
+                            textsPerConference + local.size() });
+                    break;
+                case TextStat.miscCommTo:
+                    addMisc(value, TextStat.miscCommIn, t.no);
+                    break;
+                case TextStat.miscFootnTo:
+                    addMisc(value, TextStat.miscFootnIn, t.no);
+                    break;
+                }
+            }
+            createdTexts.put(Integer.valueOf(t.no), t);
+        }
+        Reply r = new Reply();
+        r.add(t.no);
+        writeTextStat(r, t);
+        for (Client c : clientList())
+            c.asynch(Asynch.new_text, 2, r);
+        return t.no;
+    }
+
+    void addMisc(int textNo, int tag, int value) {
+        List<int[]> l = extraMisc.get(Integer.valueOf(textNo));
+        if (l == null)
+            extraMisc.put(Integer.valueOf(textNo), l = new ArrayList<int[]>());
+        l.add(new int[] { tag, value });
+    }
+
+    List<Client> clientList() {
+        synchronized (clients) {
+            return new ArrayList<Client>(clients);
+        }
+    }
+
+    boolean isPerson(int confNo) {
+        return confNo >= 1 && confNo <= persons;
+    }
+
+    boolean isConference(int confNo) {
+        return confNo >= 1 && confNo <= conferences;
+    }
+
+    synchronized byte[] getName(int confNo) throws IOException {
+        byte[] name = names.get(Integer.valueOf(confNo));
+        if (name != null)
+            return name;
+        return ((isPerson(confNo) ? "Person " : "M\u00f6te ") + confNo)
+                .getBytes(CHARSET);
+    }
+
+    synchronized int getHighestLocalNo(int confNo) {
+        List<Integer> local = createdLocal.get(Integer.valueOf(confNo));
+        return textsPerConference + (local != null ? local.size() : 0);
+    }
+
+    synchronized int localToGlobal(int confNo, int localNo) {
+        if (localNo <= textsPerConference)
+            return (confNo - 1) * textsPerConference + localNo;
+        List<Integer> local = createdLocal.get(Integer.valueOf(confNo));
+        if (local == null || localNo > textsPerConference + local.size())
+            return 0;
+        return local.get(localNo - textsPerConference - 1).intValue();
+    }
+
+    /**
+     * Returns the text with the given number, generating it if it is not a
+     * created text, or null if there is no such text.
+     */
+    FakeText getText(int textNo) throws IOException {
+        if (textNo <= 0)
+            return null;
+        FakeText t;
+        List<int[]> extra;
+        synchronized (this) {
+            t = createdTexts.get(Integer.valueOf(textNo));
+            extra = extraMisc.get(Integer.valueOf(textNo));
+            if (extra != null)
+                extra = new ArrayList<int[]>(extra);
+        }
+        if (t == null) {
+            if (textNo > conferences * textsPerConference)
+                return null;
+            int conf = (textNo - 1) / textsPerConference + 1;
+            int local = (textNo - 1) % textsPerConference + 1;
+            StringBuffer b = new StringBuffer("Inl\u00e4gg " + textNo + "\n");
+            for (int row = 1; b.length() < textSize; row++)
+                b.append("Rad " + row + " av inl\u00e4gg " + textNo
+                        + " i m\u00f6te " + conf + ".\n");
+            t = new FakeText(textNo, 1 + textNo % persons, EPOCH + textNo
+                    * 60000L, b.toString().getBytes(CHARSET));
+            t.misc.add(new int[] { TextStat.miscRecpt, conf });
+            t.misc.add(new int[] { TextStat.miscLocNo, local });
+            if (local % 3 == 0)
+                t.misc.add(new int[] { TextStat.miscCommTo, textNo - 1 });
+            if (local % 3 == 2 && local < textsPerConference)
+                t.misc.add(new int[] { TextStat.miscCommIn, textNo + 1 });
+        }
+        if (extra != null) {
+            FakeText c = new FakeText(t.no, t.author, t.created, t.contents);
+            c.misc.addAll(t.misc);
+            c.misc.addAll(extra);
+            t = c;
+        }
+        return t;
+    }
+
+    /**
+     * Returns the set of read local text numbers for the given membership.
+     */
+    synchronized BitSet getReadTexts(int persNo, int confNo) {
+        Map<Integer, BitSet> m = readTexts.get(Integer.valueOf(persNo));
+        if (m == null)
+            readTexts.put(Integer.valueOf(persNo),
+                    m = new HashMap<Integer, BitSet>());
+        BitSet read = m.get(Integer.valueOf(confNo));
+        if (read == null) {
+            read = new BitSet();
+            read.set(1, textsPerConference * readPercent / 100 + 1);
+            m.put(Integer.valueOf(confNo), read);
+        }
+        return read;
+    }
+
+    synchronized boolean hasUnreads(int persNo, int confNo) {
+        return getReadTexts(persNo, confNo).nextClearBit(1) <= getHighestLocalNo(confNo);
+    }
+
+    int getMembershipPosition(int persNo, int confNo) {
+        int[] confs = getMemberships(persNo);
+        for (int i = 0; i < confs.length; i++)
+            if (confs[i] == confNo)
+                return i;
+        return -1;
+    }
+
+    int countMembers(int confNo) {
+        if (isPerson(confNo))
+            return 1;
+        int count = 0;
+        for (int p = 1; p <= persons; p++)
+            if (getMembershipPosition(p, confNo) != -1)
+                count++;
+        return count;
+    }
+
+    void writeTextStat(Reply r, FakeText t) {
+        r.time(t.created).add(t.author).add(t.lines).add(t.contents.length)
+                .add(0);
+        r.arrayStart(t.misc.size());
+        for (int[] misc : t.misc)
+            r.add(misc[0]).add(misc[1]);
+        r.arrayEnd();
+        r.add(0).emptyArray();
+    }
+
+    synchronized void writeMembership(Reply r, int persNo, int position,
+            int confNo, boolean wantReadTexts, boolean proto10) {
+        BitSet read = getReadTexts(persNo, confNo);
+        int lastTextRead = read.nextClearBit(1) - 1;
+        r.add(position).time(EPOCH).add(confNo).add(position == 0 ? 255 : 100);
+        if (proto10) {
+            r.add(lastTextRead);
+            if (wantReadTexts) {
+                r.arrayStart(read.cardinality() - lastTextRead);
+                for (int i = read.nextSetBit(lastTextRead + 1); i >= 0; i = read
+                        .nextSetBit(i + 1))
+                    r.add(i);
+                r.arrayEnd();
+            } else {
+                r.add(0).emptyArray();
+            }
+        } else {
+            if (wantReadTexts) {
+                List<int[]> ranges = new ArrayList<int[]>();
+                for (int i = read.nextSetBit(1); i >= 0; i = read
+                        .nextSetBit(i))
+                {
+                    int end = read.nextClearBit(i);
+                    ranges.add(new int[] { i, end - 1 });
+                    i = end;
+                }
+                r.arrayStart(ranges.size());
+                for (int[] range : ranges)
+                    r.add(range[0]).add(range[1]);
+                r.arrayEnd();
+            } else {
+                r.add(0).emptyArray();
+            }
+        }
+        r.add(persNo).time(EPOCH).bits("00000000");
+    }
+
+    /**
+     * The data of a reply or asynchronous message under construction.
+     */
+    static class Reply {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean emptyArray = false;
+
+        Reply raw(String s) {
+            out.write(' ');
+            for (int i = 0; i < s.length(); i++)
+                out.write(s.charAt(i));
+            return this;
+        }
+
+        Reply add(int i) {
+            return raw(Integer.toString(i));
+        }
+
+        Reply add(byte[] b) {
+            raw(b.length + "H");
+            out.write(b, 0, b.length);
+            return this;
+        }
+
+        Reply add(String s) {
+            try {
+                return add(s.getBytes(CHARSET));
+            } catch (UnsupportedEncodingException ex1) {
+                throw new RuntimeException(ex1);
+            }
+        }
+
+        Reply bits(String s) {
+            return raw(s);
+        }
+
+        Reply time(long millis) {
+            Calendar cal = new GregorianCalendar();
+            cal.setTimeInMillis(millis);
+            add(cal.get(Calendar.SECOND)).add(cal.get(Calendar.MINUTE));
+            add(cal.get(Calendar.HOUR_OF_DAY)).add(cal.get(Calendar.DAY_OF_MONTH));
+            add(cal.get(Calendar.MONTH)).add(cal.get(Calendar.YEAR) - 1900);
+            add(cal.get(Calendar.DAY_OF_WEEK) - 1);
+            add(cal.get(Calendar.DAY_OF_YEAR) - 1);
+            return add(cal.get(Calendar.DST_OFFSET) != 0 ? 1 : 0);
+        }
+
+        /**
+         * Writes the length and start of an array. Empty arrays are written
+         * as "0 *", and the matching arrayEnd() writes nothing.
+         */
+        Reply arrayStart(int length) {
+            add(length);
+            emptyArray = length == 0;
+            return raw(emptyArray ? "*" : "{");
+        }
+
+        Reply arrayEnd() {
+            if (emptyArray) {
+                emptyArray = false;
+                return this;
+            }
+            return raw("}");
+        }
+
+        Reply emptyArray() {
+            return raw("*");
+        }
+
+        /**
+         * Returns the reply as a line starting with <tt>prefix</tt>.
+         */
+        byte[] toByteArray(String prefix) {
+            byte[] data = out.toByteArray();
+            byte[] b = new byte[prefix.length() + data.length + 1];
+            for (int i = 0; i < prefix.length(); i++)
+                b[i] = (byte) prefix.charAt(i);
+            System.arraycopy(data, 0, b, prefix.length(), data.length);
+            b[b.length - 1] = '\n';
+            return b;
+        }
+    }
+
+    /**
+     * A text, generated or created by a client.
+     */
+    static class FakeText {
+        int no;
+        int author;
+        long created;
+        byte[] contents;
+        int lines;
+        List<int[]> misc = new ArrayList<int[]>(4);
+
+        FakeText(int no, int author, long created, byte[] contents) {
+            this.no = no;
+            this.author = author;
+            this.created = created;
+            this.contents = contents;
+            for (int i = 0; i < contents.length; i++)
+                if (contents[i] == '\n')
+                    lines++;
+        }
+    }
+
+    /**
+     * The parameters of a call, parsed into Strings and Holleriths (byte
+     * arrays).
+     */
+    static class Request {
+        List<Object> tokens = new ArrayList<Object>();
+        int pos = 0;
+        // when the first byte of the call was read
+        long received = 0;
+
+        String next() throws IOException {
+            if (pos >= tokens.size())
+                throw new IOException("Too few parameters");
+            Object o = tokens.get(pos++);
+            if (o instanceof byte[])
+                return new String((byte[]) o, CHARSET);
+            return (String) o;
+        }
+
+        int nextInt() throws IOException {
+            try {
+                return Integer.parseInt(next());
+            } catch (NumberFormatException ex1) {
+                throw new IOException("Bad integer: " + ex1.getMessage());
+            }
+        }
+
+        boolean nextBoolean() throws IOException {
+            return nextInt() != 0;
+        }
+
+        byte[] nextHollerith() throws IOException {
+            if (pos >= tokens.size() || !(tokens.get(pos) instanceof byte[]))
+                throw new IOException("Expected Hollerith");
+            return (byte[]) tokens.get(pos++);
+        }
+
+        /**
+         * Reads an array of <tt>width</tt>-element structures and returns
+         * its elements as ints. Non-integer elements are returned as 0.
+         */
+        int[] nextArray(int width) throws IOException {
+            int length = nextInt();
+            int[] a = new int[length * width];
+            String start = next();
+            if (start.equals("*"))
+                return new int[0];
+            for (int i = 0; i < a.length; i++) {
+                Object o = tokens.get(pos++);
+                if (o instanceof String)
+                    try {
+                        a[i] = Integer.parseInt((String) o);
+                    } catch (NumberFormatException ex1) {
+                    }
+            }
+            next(); // "}"
+            return a;
+        }
+    }
+
+    /**
+     * Reads calls from and writes replies to a single client connection.
+     */
+    class Client implements Runnable {
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+        int sessionNo;
+        int person = 0;
+        int workingConference = 0;
+        byte[] whatAmIDoing = new byte[0];
+        byte[] user = new byte[0];
+        long connected = System.currentTimeMillis();
+        long lastActive = connected;
+        boolean closed = false;
+
+        // pending output: Long due time, byte[] data
+        LinkedList<Object[]> queue = new LinkedList<Object[]>();
+
+        Client(Socket socket, int sessionNo) throws IOException {
+            this.socket = socket;
+            this.sessionNo = sessionNo;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        void start() {
+            Thread reader = new Thread(this, "FakeServer-session-" + sessionNo);
+            reader.setDaemon(true);
+            reader.start();
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            }, "FakeServer-writer-" + sessionNo);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void close() {
+            synchronized (queue) {
+                closed = true;
+                queue.notifyAll();
+            }
+            try {
+                socket.close();
+            } catch (IOException ex1) {
+            }
+            boolean removed;
+            synchronized (clients) {
+                removed = clients.remove(this);
+            }
+            if (removed)
+                announceLogout();
+        }
+
+        void announceLogout() {
+            if (person == 0)
+                return;
+            Reply a = new Reply();
+            a.add(person).add(sessionNo);
+            for (Client c : clientList())
+                if (c != this)
+                    c.asynch(Asynch.logout, 2, a);
+        }
+
+        void announceIAmOn() {
+            Reply a = new Reply();
+            a.add(person).add(workingConference).add(sessionNo).add(
+                    whatAmIDoing).add(user);
+            for (Client c : clientList())
+                if (c != this)
+                    c.asynch(Asynch.i_am_on, 5, a);
+        }
+
+        void send(long due, byte[] data) {
+            synchronized (queue) {
+                queue.addLast(new Object[] { Long.valueOf(due), data });
+                queue.notifyAll();
+            }
+        }
+
+        void asynch(int number, int fields, Reply params) {
+            if (person == 0)
+                return;
+            send(0, params.toByteArray(":" + fields + " " + number));
+        }
+
+        void writeLoop() {
+            try {
+                while (true) {
+                    Object[] item;
+                    synchronized (queue) {
+                        while (queue.isEmpty() && !closed)
+                            queue.wait();
+                        if (closed)
+                            return;
+                        item = queue.removeFirst();
+                    }
+                    long wait = ((Long) item[0]).longValue()
+                            - System.currentTimeMillis();
+                    if (wait > 0)
+                        Thread.sleep(wait);
+                    byte[] data = (byte[]) item[1];
+                    if (slowLimit >= 0 && data.length > slowLimit) {
+                        for (int i = 0; i < data.length; i += slowChunk) {
+                            out.write(data, i, Math.min(slowChunk, data.length
+                                    - i));
+                            out.flush();
+                            Thread.sleep(slowDelay);
+                        }
+                    } else {
+                        out.write(data);
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException ex1) {
+            } catch (IOException ex2) {
+                close();
+            }
+        }
+
+        public void run() {
+            try {
+                handshake();
+                Request req;
+                while ((req = readRequest()) != null) {
+                    if (req.tokens.size() < 2)
+                        continue;
+                    int id = Integer.parseInt(req.next());
+                    int op = req.nextInt();
+                    byte[] reply;
+                    try {
+                        reply = handle(id, op, req);
+                    } catch (IOException ex1) {
+                        reply = ("%%" + ex1.getMessage() + "\n")
+                                .getBytes(CHARSET);
+                    }
+                    synchronized (FakeServer.this) {
+                        requests++;
+                    }
+                    send(req.received + latency, reply);
+                    if (op == Rpc.C_disconnect && reply[0] == '=') {
+                        close();
+                        return;
+                    }
+                }
+            } catch (SocketException ex1) {
+            } catch (IOException ex2) {
+                if (running)
+                    ex2.printStackTrace();
+            } finally {
+                close();
+            }
+        }
+
+        void handshake() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1)
+                    throw new SocketException("EOF during handshake");
+                line.write(b);
+            }
+            byte[] data = line.toByteArray();
+            if (data.length == 0 || data[0] != 'A')
+                throw new IOException("Bad handshake");
+            int h = 1;
+            while (h < data.length && data[h] != 'H')
+                h++;
+            if (h + 1 < data.length) {
+                user = new byte[data.length - h - 1];
+                System.arraycopy(data, h + 1, user, 0, user.length);
+            }
+            send(0, "LysKOM\n".getBytes(CHARSET));
+        }
+
+        /**
+         * Reads the tokens of one call, or returns null at end of stream.
+         */
+        Request readRequest() throws IOException {
+            Request req = new Request();
+            StringBuffer token = new StringBuffer();
+            int b;
+            while (true) {
+                b = in.read();
+                if (b == -1)
+                    return null;
+                if (b == ' ' || b == '\n' || b == '\r') {
+                    if (token.length() > 0)
+                        req.tokens.add(token.toString());
+                    token.setLength(0);
+                    if (b == '\n' && req.tokens.size() > 0)
+                        return req;
+                    continue;
+                }
+                if (req.received == 0)
+                    req.received = System.currentTimeMillis();
+                if (b == 'H' && token.length() > 0 && isDigits(token)) {
+                    byte[] data = new byte[Integer.parseInt(token.toString())];
+                    int offset = 0;
+                    while (offset < data.length) {
+                        int r = in.read(data, offset, data.length - offset);
+                        if (r == -1)
+                            return null;
+                        offset += r;
+                    }
+                    req.tokens.add(data);
+                    token.setLength(0);
+                    continue;
+                }
+                token.append((char) b);
+            }
+        }
+
+        boolean isDigits(StringBuffer s) {
+            for (int i = 0; i < s.length(); i++)
+                if (!Character.isDigit(s.charAt(i)))
+                    return false;
+            return true;
+        }
+
+        byte[] error(int id, int error, int status) throws IOException {
+            return ("%" + id + " " + error + " " + status + "\n")
+                    .getBytes(CHARSET);
+        }
+
+        byte[] handle(int id, int op, Request req) throws IOException {
+            String script;
+            synchronized (scripts) {
+                script = scripts.get(Integer.valueOf(op));
+            }
+            if (script != null) {
+                if (script.startsWith("%"))
+                    return ("%" + id + " " + script.substring(1) + "\n")
+                            .getBytes(CHARSET);
+                return ("=" + id + (script.length() > 0 ? " " : "") + script + "\n")
+                        .getBytes(CHARSET);
+            }
+
+            if (protocol10
+                    && (op == Rpc.C_get_membership || op == Rpc.C_query_read_texts))
+                return error(id, Rpc.E_not_implemented, 0);
+
+            lastActive = req.received;
+            Reply r = new Reply();
+            switch (op) {
+            case Rpc.C_login: {
+                int persNo = req.nextInt();
+                byte[] passwd = req.nextHollerith();
+                if (!isPerson(persNo))
+                    return error(id, Rpc.E_undefined_person, persNo);
+                if (password != null
+                        && !password.equals(new String(passwd, CHARSET)))
+                    return error(id, Rpc.E_invalid_password, 0);
+                person = persNo;
+                Reply a = new Reply();
+                a.add(persNo).add(sessionNo);
+                for (Client c : clientList())
+                    if (c != this)
+                        c.asynch(Asynch.login, 2, a);
+                break;
+            }
+            case Rpc.C_logout:
+                announceLogout();
+                person = 0;
+                workingConference = 0;
+                break;
+            case Rpc.C_disconnect: {
+                int s = req.nextInt();
+                if (s != 0 && s != sessionNo)
+                    return error(id, Rpc.E_permission_denied, s);
+                break;
+            }
+            case Rpc.C_accept_async:
+            case Rpc.C_user_active:
+            case Rpc.C_set_client_version:
+                break;
+            case Rpc.C_change_what_i_am_doing:
+                whatAmIDoing = req.nextHollerith();
+                announceIAmOn();
+                break;
+            case Rpc.C_who_am_i:
+                r.add(sessionNo);
+                break;
+            case Rpc.C_get_time:
+                r.time(System.currentTimeMillis());
+                break;
+            case Rpc.C_get_info:
+                r.add(VERSION).add(0).add(0).add(0).add(0).add(0).add(0)
+                        .emptyArray();
+                break;
+            case Rpc.C_change_conference: {
+                int confNo = req.nextInt();
+                if (confNo != 0 && !isConference(confNo))
+                    return error(id, Rpc.E_undefined_conference, confNo);
+                workingConference = confNo;
+                announceIAmOn();
+                break;
+            }
+            case Rpc.C_change_name: {
+                int confNo = req.nextInt();
+                byte[] name = req.nextHollerith();
+                if (!isConference(confNo))
+                    return error(id, Rpc.E_undefined_conference, confNo);
+                byte[] oldName = getName(confNo);
+                synchronized (FakeServer.this) {
+                    names.put(Integer.valueOf(confNo), name);
+                }
+                Reply a = new Reply();
+                a.add(confNo).add(oldName).add(name);
+                for (Client c : clientList())
+                    c.asynch(Asynch.new_name, 3, a);
+                break;
+            }
+            case Rpc.C_lookup_z_name: {
+                String name = new String(req.nextHollerith(), CHARSET)
+                        .toLowerCase();
+                boolean wantPersons = req.nextBoolean();
+                boolean wantConfs = req.nextBoolean();
+                List<Integer> matches = new ArrayList<Integer>();
+                List<Integer> exact = new ArrayList<Integer>();
+                for (int c = 1; c <= conferences; c++) {
+                    if (isPerson(c) ? !wantPersons : !wantConfs)
+                        continue;
+                    String n = new String(getName(c), CHARSET).toLowerCase();
+                    if (n.equals(name))
+                        exact.add(Integer.valueOf(c));
+                    else if (n.startsWith(name))
+                        matches.add(Integer.valueOf(c));
+                }
+                if (!exact.isEmpty())
+                    matches = exact;
+                r.arrayStart(matches.size());
+                for (Integer c : matches)
+                    r.add(getName(c.intValue())).bits(
+                            isPerson(c.intValue()) ? "0001" : "0000").add(
+                            c.intValue());
+                r.arrayEnd();
+                break;
+            }
+            case Rpc.C_get_person_stat: {
+                int persNo = req.nextInt();
+                if (!isPerson(persNo))
+                    return error(id, Rpc.E_undefined_person, persNo);
+                r.add(("person" + persNo + "@localhost").getBytes(CHARSET));
+                r.bits("0000000000000000").bits("00000000").time(EPOCH);
+                r.add(0).add(3600).add(1).add(0).add(0).add(0).add(0).add(0)
+                        .add(0).add(0).add(0).add(0);
+                r.add(getMemberships(persNo).length);
+                break;
+            }
+            case Rpc.C_get_uconf_stat: {
+                int confNo = req.nextInt();
+                if (!isConference(confNo))
+                    return error(id, Rpc.E_undefined_conference, confNo);
+                r.add(getName(confNo)).bits(
+                        isPerson(confNo) ? "00010000" : "00000000").add(
+                        getHighestLocalNo(confNo)).add(77);
+                break;
+            }
+            case Rpc.C_get_conf_stat: {
+                int confNo = req.nextInt();
+                if (!isConference(confNo))
+                    return error(id, Rpc.E_undefined_conference, confNo);
+                r.add(getName(confNo)).bits(
+                        isPerson(confNo) ? "00010000" : "00000000");
+                r.time(EPOCH).time(System.currentTimeMillis());
+                r.add(1).add(0).add(1).add(0).add(0).add(0).add(77).add(77);
+                r.add(countMembers(confNo)).add(1).add(getHighestLocalNo(confNo))
+                        .add(0);
+                r.add(0).emptyArray();
+                break;
+            }
+            case Rpc.C_get_membership:
+            case Rpc.C_get_membership_10: {
+                int persNo = req.nextInt();
+                int first = req.nextInt();
+                int no = req.nextInt();
+                boolean wantReadTexts = req.nextBoolean();
+                if (!isPerson(persNo))
+                    return error(id, Rpc.E_undefined_person, persNo);
+                int[] confs = getMemberships(persNo);
+                if (first > confs.length)
+                    return error(id, Rpc.E_index_out_of_range, first);
+                int last = Math.min(confs.length, first + no);
+                r.arrayStart(last - first);
+                for (int i = first; i < last; i++)
+                    writeMembership(r, persNo, i, confs[i], wantReadTexts,
+                            op == Rpc.C_get_membership_10);
+                r.arrayEnd();
+                break;
+            }
+            case Rpc.C_query_read_texts:
+            case Rpc.C_query_read_texts_10: {
+                int persNo = req.nextInt();
+                int confNo = req.nextInt();
+                boolean wantReadTexts = op == Rpc.C_query_read_texts_10
+                        || req.nextBoolean();
+                int position = getMembershipPosition(persNo, confNo);
+                if (position == -1)
+                    return error(id, Rpc.E_not_member, confNo);
+                writeMembership(r, persNo, position, confNo, wantReadTexts,
+                        op == Rpc.C_query_read_texts_10);
+                break;
+            }
+            case Rpc.C_get_unread_confs: {
+                int persNo = req.nextInt();
+                if (!isPerson(persNo))
+                    return error(id, Rpc.E_undefined_person, persNo);
+                List<Integer> unread = new ArrayList<Integer>();
+                int[] confs = getMemberships(persNo);
+                for (int i = 0; i < confs.length; i++)
+                    if (hasUnreads(persNo, confs[i]))
+                        unread.add(Integer.valueOf(confs[i]));
+                r.arrayStart(unread.size());
+                for (Integer c : unread)
+                    r.add(c.intValue());
+                r.arrayEnd();
+                break;
+            }
+            case Rpc.C_local_to_global: {
+                int confNo = req.nextInt();
+                int firstLocal = req.nextInt();
+                int count = req.nextInt();
+                if (!isConference(confNo))
+                    return error(id, Rpc.E_undefined_conference, confNo);
+                if (firstLocal == 0)
+                    return error(id, Rpc.E_local_text_zero, 0);
+                int highest = getHighestLocalNo(confNo);
+                int begin = Math.max(firstLocal, 1);
+                int end = Math.min(begin + count, highest + 1);
+                if (begin > highest)
+                    end = begin;
+                r.add(begin).add(end).add(end <= highest ? 1 : 0);
+                r.add(1).add(begin).arrayStart(end - begin);
+                for (int l = begin; l < end; l++)
+                    r.add(localToGlobal(confNo, l));
+                r.arrayEnd();
+                break;
+            }
+            case Rpc.C_get_text_stat: {
+                int textNo = req.nextInt();
+                FakeText t = getText(textNo);
+                if (t == null)
+                    return error(id, Rpc.E_no_such_text, textNo);
+                writeTextStat(r, t);
+                break;
+            }
+            case Rpc.C_get_text: {
+                int textNo = req.nextInt();
+                int start = req.nextInt();
+                int end = req.nextInt();
+                FakeText t = getText(textNo);
+                if (t == null)
+                    return error(id, Rpc.E_no_such_text, textNo);
+                if (start > t.contents.length)
+                    return error(id, Rpc.E_index_out_of_range, start);
+                end = Math.min(end, t.contents.length - 1);
+                byte[] data = new byte[Math.max(0, end - start + 1)];
+                System.arraycopy(t.contents, start, data, 0, data.length);
+                r.add(data);
+                break;
+            }
+            case Rpc.C_mark_as_read: {
+                int confNo = req.nextInt();
+                int[] locals = req.nextArray(1);
+                if (getMembershipPosition(person, confNo) == -1)
+                    return error(id, Rpc.E_not_member, confNo);
+                synchronized (FakeServer.this) {
+                    BitSet read = getReadTexts(person, confNo);
+                    for (int i = 0; i < locals.length; i++)
+                        read.set(locals[i]);
+                }
+                break;
+            }
+            case Rpc.C_set_last_read: {
+                int confNo = req.nextInt();
+                int last = req.nextInt();
+                if (getMembershipPosition(person, confNo) == -1)
+                    return error(id, Rpc.E_not_member, confNo);
+                synchronized (FakeServer.this) {
+                    BitSet read = getReadTexts(person, confNo);
+                    read.clear(last + 1, Math.max(last + 1, read.length()));
+                    read.set(1, last + 1);
+                }
+                break;
+            }
+            case Rpc.C_create_text: {
+                if (person == 0)
+                    return error(id, Rpc.E_login_first, 0);
+                byte[] contents = req.nextHollerith();
+                int[] misc = req.nextArray(2);
+                for (int i = 0; i < misc.length; i += 2) {
+                    switch (misc[i]) {
+                    case TextStat.miscRecpt:
+                    case TextStat.miscCcRecpt:
+                    case TextStat.miscBccRecpt:
+                        if (!isConference(misc[i + 1]))
+                            return error(id, Rpc.E_undefined_conference,
+                                    misc[i + 1]);
+                        break;
+                    case TextStat.miscCommTo:
+                    case TextStat.miscFootnTo:
+                        if (getText(misc[i + 1]) == null)
+                            return error(id, Rpc.E_no_such_text, misc[i + 1]);
+                        break;
+                    default:
+                        return error(id, Rpc.E_illegal_misc, i / 2);
+                    }
+                }
+                r.add(createText(person, contents, misc));
+                break;
+            }
+            case Rpc.C_add_member: {
+                // the membership lists are generated and do not change, but
+                // the person is told of the new membership
+                int confNo = req.nextInt();
+                int persNo = req.nextInt();
+                if (!isConference(confNo))
+                    return error(id, Rpc.E_undefined_conference, confNo);
+                if (!isPerson(persNo))
+                    return error(id, Rpc.E_undefined_person, persNo);
+                Reply a = new Reply();
+                a.add(persNo).add(confNo);
+                for (Client c : clientList())
+                    if (c.person == persNo)
+                        c.asynch(Asynch.new_membership, 2, a);
+                break;
+            }
+            case Rpc.C_send_message: {
+                if (person == 0)
+                    return error(id, Rpc.E_login_first, 0);
+                int recipient = req.nextInt();
+                String message = new String(req.nextHollerith(), CHARSET);
+                if (recipient != 0 && !isConference(recipient))
+                    return error(id, Rpc.E_undefined_conference, recipient);
+                sendMessage(recipient, person, message);
+                break;
+            }
+            case Rpc.C_who_is_on_dynamic: {
+                List<Client> all = clientList();
+                List<Client> on = new ArrayList<Client>();
+                for (Client c : all)
+                    if (c.person != 0)
+                        on.add(c);
+                r.arrayStart(on.size());
+                for (Client c : on)
+                    r.add(c.sessionNo).add(c.person).add(c.workingConference)
+                            .add((int) ((req.received - c.lastActive) / 1000))
+                            .bits("00000000").add(c.whatAmIDoing);
+                r.arrayEnd();
+                break;
+            }
+            case Rpc.C_get_static_session_info: {
+                int s = req.nextInt();
+                Client session = null;
+                for (Client c : clientList())
+                    if (c.sessionNo == s)
+                        session = c;
+                if (session == null)
+                    return error(id, Rpc.E_undefined_session, s);
+                r.add(session.user).add("localhost").add("unknown").time(
+                        session.connected);
+                break;
+            }
+            default:
+                return error(id, Rpc.E_not_implemented, 0);
+            }
+            return r.toByteArray("=" + id);
+        }
+    }
+
+    /**
+     * Runs a server from the command line.
+     *
+     * Usage: FakeServer [-port n] [-persons n] [-confs n] [-texts n]
+     * [-memberships n] [-latency ms] [-asynch ms]
+     */
+    public static void main(String[] argv) throws Exception {
+        FakeServer server = new FakeServer();
+        int port = 4894;
+        for (int i = 0; i + 1 < argv.length; i += 2) {
+            int value = Integer.parseInt(argv[i + 1]);
+            if (argv[i].equals("-port"))
+                port = value;
+            else if (argv[i].equals("-persons"))
+                server.persons = value;
+            else if (argv[i].equals("-confs"))
+                server.conferences = value;
+            else if (argv[i].equals("-texts"))
+                server.textsPerConference = value;
+            else if (argv[i].equals("-memberships"))
+                server.membershipsPerPerson = value;
+            else if (argv[i].equals("-latency"))
+                server.latency = value;
+            else if (argv[i].equals("-asynch"))
+                server.asynchInterval = value;
+            else
+                throw new IllegalArgumentException(argv[i]);
+        }
+        server.start(port);
+        System.out.println("FakeServer listening on port " + server.getPort()
+                + ": " + server.persons + " persons, " + server.conferences
+                + " conferences, " + server.textsPerConference
+                + " texts per conference");
+        server.thread.join();
+    }
+}
@@ -0,0 +1,574 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import nu.dll.lyskom.LatencyHistogram;
+import nu.dll.lyskom.Session;
+import nu.dll.lyskom.SessionMetrics;
+import nu.dll.lyskom.Text;
+
+/**
+ * Load test: drives many simulated readers against a FakeServer in this JVM
+ * and reports throughput, operation latencies, thread count, heap usage and
+ * allocation rate.
+ * <p>
+ * Every reader is a Session with its own driver thread. It logs in, and then
+ * repeatedly updates its unread conferences, fetches the next unread texts
+ * of a conference, reads and marks them as read, and now and then writes a
+ * comment or sends a message.
+ * <p>
+ * Several configurations can be compared in one run; each is run against a
+ * fresh server. A configuration is a comma-separated list of:
+ * <ul>
+ * <li><tt>latency=ms</tt> server reply latency
+ * <li><tt>slow</tt> write large replies in small, slow chunks
+ * <li><tt>asynch=ms</tt> server asynchronous message interval
+ * <li><tt>prefetch</tt> enable text prefetching
+ * <li><tt>nocache</tt> clear the session caches after every text read
+ * <li><tt>bigtext</tt> enable BigText
+ * <li><tt>warmstart</tt> call <tt>Session.warmUp()</tt> after login
+ * <li><tt>ssl</tt> connect over TLS
+ * <li><tt>vthreads</tt> set <tt>lattekom.virtual-threads</tt>, so that the
+ * library threads are virtual threads if the JVM has them
+ * </ul>
+ * Usage: LoadTest [-sessions n] [-duration s] [-warmup s] [-think ms]
+ * [configuration ...]
+ */
+public class LoadTest {
+
+    int sessions = 100;
+    int duration = 20;
+    int warmup = 5;
+    int think = 0;
+
+    // percentages of iterations that also write a comment or a message
+    int writePercent = 5;
+    int messagePercent = 2;
+
+    static class Config {
+        String name;
+        long latency = 0;
+        boolean slow = false;
+        long asynch = 0;
+        boolean prefetch = false;
+        boolean nocache = false;
+        boolean bigtext = false;
+        boolean warmstart = false;
+        boolean ssl = false;
+        boolean vthreads = false;
+
+        Config(String spec) {
+            name = spec;
+            if (spec.equals("default"))
+                return;
+            String[] options = spec.split(",");
+            for (int i = 0; i < options.length; i++) {
+                String[] kv = options[i].split("=", 2);
+                if (kv[0].equals("latency"))
+                    latency = Long.parseLong(kv[1]);
+                else if (kv[0].equals("slow"))
+                    slow = true;
+                else if (kv[0].equals("asynch"))
+                    asynch = Long.parseLong(kv[1]);
+                else if (kv[0].equals("prefetch"))
+                    prefetch = true;
+                else if (kv[0].equals("nocache"))
+                    nocache = true;
+                else if (kv[0].equals("bigtext"))
+                    bigtext = true;
+                else if (kv[0].equals("warmstart"))
+                    warmstart = true;
+                else if (kv[0].equals("ssl"))
+                    ssl = true;
+                else if (kv[0].equals("vthreads"))
+                    vthreads = true;
+                else
+                    throw new IllegalArgumentException("Unknown option: "
+                            + options[i]);
+            }
+        }
+    }
+
+    /**
+     * Latency samples for one operation, in nanoseconds.
+     */
+    static class Samples {
+        long[] values = new long[1024];
+        int count = 0;
+        int errors = 0;
+
+        void add(long value) {
+            if (count == values.length)
+                values = Arrays.copyOf(values, count * 2);
+            values[count++] = value;
+        }
+
+        void addAll(Samples s) {
+            for (int i = 0; i < s.count; i++)
+                add(s.values[i]);
+            errors += s.errors;
+        }
+
+        /**
+         * Returns the given percentile in milliseconds. Sorts the samples.
+         */
+        double percentile(double p) {
+            if (count == 0)
+                return 0;
+            Arrays.sort(values, 0, count);
+            int i = (int) Math.ceil(p / 100.0 * count) - 1;
+            return values[Math.max(0, Math.min(i, count - 1))] / 1000000.0;
+        }
+    }
+
+    /**
+     * The result of running one configuration.
+     */
+    static class Result {
+        Config config;
+        Map<String, Samples> samples = new TreeMap<String, Samples>();
+        double seconds;
+        long operations;
+        long rpcs;
+        int threads;
+        int peakThreads;
+        long heapUsed;
+        long allocated;
+        SessionMetrics metrics = new SessionMetrics();
+
+        double opsPerSecond() {
+            return operations / seconds;
+        }
+
+        double rpcsPerSecond() {
+            return rpcs / seconds;
+        }
+
+        Samples all() {
+            Samples all = new Samples();
+            for (Samples s : samples.values())
+                all.addAll(s);
+            return all;
+        }
+    }
+
+    /**
+     * One simulated reader.
+     */
+    class Reader implements Runnable {
+        Config config;
+        FakeServer server;
+        int person;
+        Random random;
+        volatile Session session;
+        volatile boolean measuring = false;
+        volatile boolean running = true;
+        Map<String, Samples> samples = new HashMap<String, Samples>();
+        Exception failure = null;
+        boolean loggedIn = false;
+
+        Reader(Config config, FakeServer server, int person) {
+            this.config = config;
+            this.server = server;
+            this.person = person;
+            this.random = new Random(person);
+        }
+
+        synchronized void record(String op, long start, boolean ok) {
+            if (!measuring)
+                return;
+            Samples s = samples.get(op);
+            if (s == null)
+                samples.put(op, s = new Samples());
+            if (ok)
+                s.add(System.nanoTime() - start);
+            else
+                s.errors++;
+        }
+
+        public void run() {
+            try {
+                long start = System.nanoTime();
+                session = new Session();
+                session.setBigTextEnabled(config.bigtext);
+                if (config.ssl)
+                    session.connect("localhost", server.getPort(), true, 2,
+                            null);
+                else
+                    session.connect("localhost", server.getPort());
+                loggedIn = session.login(person, "", false);
+                record("login", start, loggedIn);
+                if (!loggedIn)
+                    return;
+                if (config.warmstart) {
+                    start = System.nanoTime();
+                    session.warmUp();
+                    record("warmUp", start, true);
+                }
+                while (running) {
+                    iteration();
+                    if (think > 0)
+                        Thread.sleep(think);
+                }
+            } catch (Exception ex1) {
+                if (running)
+                    failure = ex1;
+            } finally {
+                if (session != null) {
+                    try {
+                        session.logout(false);
+                    } catch (Exception ex1) {
+                    }
+                    session.shutdown();
+                }
+            }
+        }
+
+        void iteration() throws IOException {
+            long start = System.nanoTime();
+            session.updateUnreads();
+            record("updateUnreads", start, true);
+
+            List<Integer> confs = session.getUnreadConfsListCached();
+            if (confs.isEmpty()) {
+                // everything read; poll like an idle client would
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ex1) {
+                }
+                return;
+            }
+            int conf = confs.get(random.nextInt(confs.size())).intValue();
+
+            start = System.nanoTime();
+            List<Integer> texts = session.nextUnreadTexts(conf, false, 10);
+            record("nextUnreadTexts", start, true);
+
+            for (Iterator<Integer> i = texts.iterator(); i.hasNext() && running;) {
+                int textNo = i.next().intValue();
+                start = System.nanoTime();
+                Text text = session.getText(textNo);
+                record("getText", start, text != null);
+
+                start = System.nanoTime();
+                session.markAsRead(textNo);
+                record("markAsRead", start, true);
+
+                if (config.nocache)
+                    session.clearCaches();
+            }
+            if (!texts.isEmpty() && random.nextInt(100) < writePercent)
+                write(conf, texts.get(0).intValue());
+            if (random.nextInt(100) < messagePercent)
+                send();
+        }
+
+        void write(int conf, int commented) throws IOException {
+            Text t = new Text("Lasttest " + person, "Skrivet av "
+                    + Thread.currentThread().getName() + "\n");
+            t.addRecipient(conf);
+            if (commented > 0)
+                t.addCommented(commented);
+            long start = System.nanoTime();
+            int no = session.createText(t);
+            record("createText", start, no > 0);
+        }
+
+        void send() throws IOException {
+            long start = System.nanoTime();
+            boolean ok = session.sendMessage(1 + random.nextInt(server
+                    .getPersons()), "Hej fr\u00e5n " + person);
+            record("sendMessage", start, ok);
+        }
+    }
+
+    Result run(Config config) throws Exception {
+        FakeServer server = new FakeServer(Math.max(sessions, 50), Math.max(
+                sessions, 50) + 200, 200, 10);
+        server.setLatency(config.latency);
+        if (config.slow)
+            server.setSlowReplies(256, 64, 1);
+        server.setAsynchInterval(config.asynch);
+        server.setSSL(config.ssl);
+        server.start();
+
+        // read by the Session constructor
+        System.setProperty("lattekom.enable-prefetch", String
+                .valueOf(config.prefetch));
+        // read whenever the library creates a thread
+        System.setProperty("lattekom.virtual-threads", String
+                .valueOf(config.vthreads));
+        if (config.vthreads && !hasVirtualThreads())
+            System.out.println(config.name
+                    + ": no virtual threads in this JVM, using platform threads");
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+        List<Reader> readers = new ArrayList<Reader>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < sessions; i++) {
+            Reader r = new Reader(config, server, i + 1);
+            Thread t = new Thread(r, "LoadTest-reader-" + (i + 1));
+            t.setDaemon(true);
+            readers.add(r);
+            threads.add(t);
+        }
+        for (Reader r : readers)
+            r.measuring = true; // logins (and warm-ups) are measured during ramp-up
+        for (Thread t : threads)
+            t.start();
+
+        Thread.sleep(warmup * 1000L);
+
+        Result result = new Result();
+        result.config = config;
+        for (Reader r : readers)
+            r.measuring = false;
+        List<Map<String, Samples>> rampUp = new ArrayList<Map<String, Samples>>();
+        for (Reader r : readers) {
+            synchronized (r) {
+                rampUp.add(r.samples);
+                r.samples = new HashMap<String, Samples>();
+            }
+        }
+
+        System.gc();
+        threadBean.resetPeakThreadCount();
+        long allocatedStart = allocatedBytes(threadBean);
+        long rpcStart = server.getRequestCount();
+        long start = System.nanoTime();
+        for (Reader r : readers) {
+            if (r.session != null)
+                r.session.getMetrics().reset();
+            r.measuring = true;
+        }
+
+        long heapUsed = 0;
+        for (int i = 0; i < duration; i++) {
+            Thread.sleep(1000);
+            heapUsed = Math.max(heapUsed, memoryBean.getHeapMemoryUsage()
+                    .getUsed());
+        }
+
+        for (Reader r : readers) {
+            r.measuring = false;
+            if (r.session != null)
+                result.metrics.add(r.session.getMetrics());
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        result.rpcs = server.getRequestCount() - rpcStart;
+        result.allocated = allocatedBytes(threadBean) - allocatedStart;
+        result.threads = threadBean.getThreadCount();
+        result.peakThreads = threadBean.getPeakThreadCount();
+        result.heapUsed = heapUsed;
+
+        for (Reader r : readers)
+            r.running = false;
+        for (Thread t : threads)
+            t.join(5000);
+        server.stop();
+
+        int failures = 0, notLoggedIn = 0;
+        System.clearProperty("lattekom.enable-prefetch");
+        System.clearProperty("lattekom.virtual-threads");
+
+        for (int i = 0; i < readers.size(); i++) {
+            Reader r = readers.get(i);
+            if (r.failure != null && failures++ == 0)
+                r.failure.printStackTrace();
+            if (!r.loggedIn)
+                notLoggedIn++;
+            merge(result, r.samples);
+            Map<String, Samples> m = new HashMap<String, Samples>();
+            String[] startup = { "login", "warmUp" };
+            for (int j = 0; j < startup.length; j++) {
+                Samples s = rampUp.get(i).get(startup[j]);
+                if (s != null)
+                    m.put(startup[j], s);
+            }
+            merge(result, m);
+        }
+        for (Map.Entry<String, Samples> e : result.samples.entrySet())
+            if (!e.getKey().equals("login") && !e.getKey().equals("warmUp"))
+                result.operations += e.getValue().count;
+        if (failures > 0 || notLoggedIn > 0)
+            System.out.println(config.name + ": " + failures
+                    + " readers failed, " + notLoggedIn + " not logged in");
+        return result;
+    }
+
+    /**
+     * Returns <tt>true</tt> if this JVM can create virtual threads.
+     */
+    static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException ex1) {
+            return false;
+        }
+    }
+
+    void merge(Result result, Map<String, Samples> samples) {
+        for (Map.Entry<String, Samples> e : samples.entrySet()) {
+            Samples s = result.samples.get(e.getKey());
+            if (s == null)
+                result.samples.put(e.getKey(), s = new Samples());
+            s.addAll(e.getValue());
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated by all live threads, or -1 if
+     * the JVM cannot tell.
+     */
+    static long allocatedBytes(ThreadMXBean bean) {
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+        if (!b.isThreadAllocatedMemorySupported())
+            return -1;
+        long total = 0;
+        long[] allocated = b.getThreadAllocatedBytes(b.getAllThreadIds());
+        for (int i = 0; i < allocated.length; i++)
+            if (allocated[i] > 0)
+                total += allocated[i];
+        return total;
+    }
+
+    void report(Result r) {
+        System.out.println();
+        System.out.println("== " + r.config.name + ": " + sessions
+                + " sessions, " + format(r.seconds) + " s");
+        System.out.println(pad("operation", 16) + pad("count", 10)
+                + pad("errors", 8) + pad("p50 ms", 10) + pad("p99 ms", 10)
+                + pad("p999 ms", 10));
+        for (Map.Entry<String, Samples> e : r.samples.entrySet()) {
+            Samples s = e.getValue();
+            System.out.println(pad(e.getKey(), 16) + pad("" + s.count, 10)
+                    + pad("" + s.errors, 8) + pad(format(s.percentile(50)), 10)
+                    + pad(format(s.percentile(99)), 10)
+                    + pad(format(s.percentile(99.9)), 10));
+        }
+        System.out.println(pad("server call", 28) + pad("count", 10)
+                + pad("errors", 8) + pad("p50 ms", 10) + pad("p99 ms", 10)
+                + pad("p999 ms", 10));
+        SessionMetrics m = r.metrics;
+        for (int op = 0; op < 128; op++) {
+            LatencyHistogram h = m.getLatencyHistogram(op);
+            if (h == null || h.getCount() == 0)
+                continue;
+            System.out.println(pad(SessionMetrics.getOpName(op), 28)
+                    + pad("" + h.getCount(), 10) + pad("" + m.getErrors(op), 8)
+                    + pad(format(h.getPercentile(50) / 1e6), 10)
+                    + pad(format(h.getPercentile(99) / 1e6), 10)
+                    + pad(format(h.getPercentile(99.9) / 1e6), 10));
+        }
+        System.out.println("bytes in/s: " + format(m.getBytesIn() / r.seconds)
+                + ", bytes out/s: " + format(m.getBytesOut() / r.seconds)
+                + ", asynch messages/s: "
+                + format(m.getAsynchMessages() / r.seconds));
+        String[] caches = m.getCacheSummaries();
+        for (int i = 0; i < caches.length; i++)
+            System.out.println("cache " + caches[i]);
+        System.out.println("operations/s: " + format(r.opsPerSecond())
+                + ", server calls/s: " + format(r.rpcsPerSecond()));
+        System.out.println("threads: " + r.threads + " (peak "
+                + r.peakThreads + "), peak heap used: "
+                + (r.heapUsed >> 20) + " MB, allocation rate: "
+                + (r.allocated < 0 ? "n/a" : format(r.allocated / r.seconds
+                        / (1 << 20))
+                        + " MB/s"));
+    }
+
+    void compare(List<Result> results) {
+        System.out.println();
+        System.out.println("== comparison");
+        int width = "configuration".length();
+        for (Result r : results)
+            width = Math.max(width, r.config.name.length());
+        width += 2;
+        System.out.println(pad("configuration", width) + pad("ops/s", 10)
+                + pad("calls/s", 10) + pad("p50 ms", 10) + pad("p99 ms", 10)
+                + pad("p999 ms", 10) + pad("threads", 9) + pad("MB/s", 10));
+        for (Result r : results) {
+            Samples all = r.all();
+            System.out.println(pad(r.config.name, width)
+                    + pad(format(r.opsPerSecond()), 10)
+                    + pad(format(r.rpcsPerSecond()), 10)
+                    + pad(format(all.percentile(50)), 10)
+                    + pad(format(all.percentile(99)), 10)
+                    + pad(format(all.percentile(99.9)), 10)
+                    + pad("" + r.peakThreads, 9)
+                    + pad(r.allocated < 0 ? "n/a" : format(r.allocated
+                            / r.seconds / (1 << 20)), 10));
+        }
+    }
+
+    static String format(double d) {
+        if (d >= 100)
+            return Long.toString(Math.round(d));
+        return String.valueOf(Math.round(d * 100) / 100.0);
+    }
+
+    static String pad(String s, int width) {
+        StringBuffer b = new StringBuffer(s);
+        while (b.length() < width)
+            b.append(' ');
+        return b.toString();
+    }
+
+    public static void main(String[] argv) throws Exception {
+        LoadTest test = new LoadTest();
+        Map<String, Config> configs = new LinkedHashMap<String, Config>();
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equals("-sessions"))
+                test.sessions = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("-duration"))
+                test.duration = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("-warmup"))
+                test.warmup = Integer.parseInt(argv[++i]);
+            else if (argv[i].equals("-think"))
+                test.think = Integer.parseInt(argv[++i]);
+            else
+                configs.put(argv[i], new Config(argv[i]));
+        }
+        if (configs.isEmpty()) {
+            configs.put("default", new Config("default"));
+            configs.put("latency=5", new Config("latency=5"));
+            configs.put("latency=5,nocache", new Config("latency=5,nocache"));
+            configs.put("ssl", new Config("ssl"));
+            configs.put("vthreads", new Config("vthreads"));
+            configs.put("latency=5,ssl,vthreads", new Config(
+                    "latency=5,ssl,vthreads"));
+        }
+
+        List<Result> results = new ArrayList<Result>();
+        for (Config config : configs.values()) {
+            Result r = test.run(config);
+            test.report(r);
+            results.add(r);
+        }
+        if (results.size() > 1)
+            test.compare(results);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,154 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import nu.dll.app.komspy.MembershipLog;
+
+/**
+ * Checks that Spy's membership log keeps its records across compaction,
+ * restarts and a log record cut short by a crash.
+ */
+public class MembershipLogTest extends TestCase {
+    File dir;
+    String name;
+    MembershipLog log;
+
+    public MembershipLogTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("spy", "");
+        dir.delete();
+        dir.mkdir();
+        name = new File(dir, "memberships").getPath();
+    }
+
+    protected void tearDown() throws IOException {
+        if (log != null)
+            log.close();
+        System.getProperties().remove("spy.compact");
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++)
+            files[i].delete();
+        dir.delete();
+    }
+
+    MembershipLog reopen() throws IOException {
+        if (log != null)
+            log.close();
+        return log = new MembershipLog(name);
+    }
+
+    static void assertArray(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], actual[i]);
+    }
+
+    public void testAdd() throws IOException {
+        reopen();
+        assertTrue(log.add(20, 3));
+        assertTrue(log.add(10, 2));
+        assertTrue(log.add(20, 1));
+        assertFalse(log.add(20, 3));
+        assertTrue(log.contains(20, 1));
+        assertFalse(log.contains(10, 1));
+        assertArray(new int[] { 3, 1 }, log.getMembers(20));
+        assertArray(new int[] { 10, 20 }, log.getConferences());
+        assertEquals(3, log.size());
+    }
+
+    public void testCompact() throws IOException {
+        System.setProperty("spy.compact", "5");
+        reopen();
+        for (int i = 12; i >= 1; i--)
+            log.add(100 + i % 3, i);
+        // every fifth record compacts the log into the snapshot
+        assertEquals(2 * 16, new File(name + ".log").length());
+        log.compact();
+        assertEquals(0, new File(name + ".log").length());
+        assertArray(new int[] { 3, 6, 9, 12 }, log.getMembers(100));
+        assertArray(new int[] { 100, 101, 102 }, log.getConferences());
+        assertEquals(12, log.size());
+        for (int i = 1; i <= 12; i++)
+            assertTrue(log.contains(100 + i % 3, i));
+    }
+
+    public void testRestart() throws Exception {
+        reopen();
+        log.add(5, 1);
+        log.compact();
+        log.add(7, 2);
+        log.add(5, 3);
+        long since = System.currentTimeMillis();
+
+        reopen();
+        assertEquals(3, log.size());
+        assertTrue(log.contains(5, 1));
+        assertTrue(log.contains(7, 2));
+        assertArray(new int[] { 1, 3 }, log.getMembers(5));
+        assertFalse(log.add(7, 2));
+        Thread.sleep(5);
+        log.add(9, 4);
+        int[][] added = log.getAddedSince(since);
+        assertEquals(1, added.length);
+        assertEquals(9, added[0][0]);
+        assertEquals(4, added[0][1]);
+    }
+
+    public void testTornRecord() throws IOException {
+        reopen();
+        log.compact();
+        log.add(5, 1);
+        log.add(5, 2);
+        log.close();
+
+        // a crash in the middle of writing a record
+        FileOutputStream out = new FileOutputStream(name + ".log", true);
+        out.write(new byte[] { 0, 0, 0, 6, 0, 0, 0 });
+        out.close();
+
+        reopen();
+        assertEquals(2, log.size());
+        assertArray(new int[] { 1, 2 }, log.getMembers(5));
+        log.add(6, 3);
+        reopen();
+        assertEquals(3, log.size());
+        assertTrue(log.contains(6, 3));
+    }
+
+    public void testImportOld() throws IOException {
+        Map<Integer, List<Integer>> old = new HashMap<Integer, List<Integer>>();
+        List<Integer> members = new ArrayList<Integer>();
+        members.add(Integer.valueOf(4));
+        members.add(Integer.valueOf(2));
+        old.put(Integer.valueOf(30), members);
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(
+                name));
+        out.writeObject(old);
+        out.close();
+
+        reopen();
+        assertArray(new int[] { 2, 4 }, log.getMembers(30));
+        assertTrue(new File(name + ".snap").exists());
+        // once there is a snapshot, the old map is not read again
+        new File(name).delete();
+        reopen();
+        assertEquals(2, log.size());
+    }
+}
@@ -0,0 +1,191 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.Rpc;
+import nu.dll.lyskom.RpcFailure;
+import nu.dll.lyskom.Session;
+
+/**
+ * Checks that failed conference and text lookups are remembered for the
+ * configured time, and forgotten when an asynchronous message or a new
+ * membership shows that the object is there after all.
+ */
+public class NegativeCacheTest extends TestCase {
+    FakeServer server;
+    Session session;
+    int missingConf, missingText;
+
+    public NegativeCacheTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        server = new FakeServer();
+        server.start();
+        missingConf = server.getConferences() + 1;
+        missingText = server.getConferences()
+                * server.getTextsPerConference() + 1000;
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(1, "", false, false));
+    }
+
+    protected void tearDown() throws IOException {
+        session.disconnect(true);
+        server.stop();
+    }
+
+    // asks for the conference, and returns the number of server calls made
+    long confStat(int confNo, int expectedError) throws IOException {
+        long requests = server.getRequestCount();
+        try {
+            session.getConfStat(confNo);
+            fail("conference " + confNo + " found");
+        } catch (RpcFailure ex1) {
+            assertEquals(expectedError, ex1.getError());
+        }
+        return server.getRequestCount() - requests;
+    }
+
+    long textStat(int textNo) throws IOException {
+        long requests = server.getRequestCount();
+        try {
+            session.getTextStat(textNo);
+            fail("text " + textNo + " found");
+        } catch (RpcFailure ex1) {
+            assertEquals(Rpc.E_no_such_text, ex1.getError());
+        }
+        return server.getRequestCount() - requests;
+    }
+
+    public void testRemembered() throws IOException {
+        assertEquals(1, confStat(missingConf, Rpc.E_undefined_conference));
+        assertEquals(0, confStat(missingConf, Rpc.E_undefined_conference));
+        assertEquals(1, textStat(missingText));
+        assertEquals(0, textStat(missingText));
+        // other objects are still asked for
+        assertEquals(1, confStat(missingConf + 1, Rpc.E_undefined_conference));
+    }
+
+    public void testTtl() throws Exception {
+        session.setNegativeCacheTTL(1);
+        assertEquals(1, confStat(missingConf, Rpc.E_undefined_conference));
+        assertEquals(0, confStat(missingConf, Rpc.E_undefined_conference));
+        Thread.sleep(1100);
+        assertEquals(1, confStat(missingConf, Rpc.E_undefined_conference));
+
+        session.setNegativeCacheTTL(0);
+        assertEquals(1, confStat(missingConf, Rpc.E_undefined_conference));
+        assertEquals(1, confStat(missingConf, Rpc.E_undefined_conference));
+    }
+
+    public void testRefreshAsks() throws IOException {
+        assertEquals(1, confStat(missingConf, Rpc.E_undefined_conference));
+        long requests = server.getRequestCount();
+        try {
+            session.getConfStat(missingConf, true);
+            fail("conference found");
+        } catch (RpcFailure ex1) {
+        }
+        assertEquals(requests + 1, server.getRequestCount());
+    }
+
+    public void testNewTextInvalidates() throws Exception {
+        int conf = server.getPersons() + 1;
+        server.script(Rpc.C_get_conf_stat, "%" + Rpc.E_access_denied + " "
+                + conf);
+        assertEquals(1, confStat(conf, Rpc.E_access_denied));
+        assertEquals(0, confStat(conf, Rpc.E_access_denied));
+        server.script(Rpc.C_get_conf_stat, null);
+
+        // a text to the conference shows it can be seen after all
+        server.createText(2, "ämne", "kropp\n", new int[] { conf });
+        long end = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                assertEquals(conf, session.getConfStat(conf).getNo());
+                break;
+            } catch (RpcFailure ex1) {
+                assertTrue(System.currentTimeMillis() < end);
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    public void testJoinInvalidates() throws Exception {
+        int conf = server.getPersons() + 3;
+        server.script(Rpc.C_get_conf_stat, "%" + Rpc.E_access_denied + " "
+                + conf);
+        assertEquals(1, confStat(conf, Rpc.E_access_denied));
+        server.script(Rpc.C_get_conf_stat, null);
+
+        session.joinConference(conf);
+        assertEquals(conf, session.getConfStat(conf).getNo());
+    }
+
+    public void testNewMembershipInvalidates() throws Exception {
+        int conf = server.getPersons() + 4;
+        int textNo = (conf - 1) * server.getTextsPerConference() + 1;
+        server.script(Rpc.C_get_conf_stat, "%" + Rpc.E_access_denied + " "
+                + conf);
+        server.script(Rpc.C_get_text_stat, "%" + Rpc.E_access_denied + " "
+                + textNo);
+        assertEquals(1, confStat(conf, Rpc.E_access_denied));
+        try {
+            session.getTextStat(textNo);
+            fail("text found");
+        } catch (RpcFailure ex1) {
+        }
+        server.script(Rpc.C_get_conf_stat, null);
+        server.script(Rpc.C_get_text_stat, null);
+
+        // someone else adds us to the conference
+        Session other = new Session();
+        other.connect("localhost", server.getPort());
+        try {
+            assertTrue(other.login(2, "", false, false));
+            other.addMember(conf, 1, 100, 1, false, false, false);
+        } finally {
+            other.disconnect(true);
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                assertEquals(conf, session.getConfStat(conf).getNo());
+                break;
+            } catch (RpcFailure ex1) {
+                assertTrue(System.currentTimeMillis() < end);
+                Thread.sleep(20);
+            }
+        }
+        assertEquals(textNo, session.getTextStat(textNo).getNo());
+    }
+
+    public void testNewNameInvalidates() throws Exception {
+        int conf = server.getPersons() + 2;
+        server.script(Rpc.C_get_conf_stat, "%" + Rpc.E_undefined_conference
+                + " " + conf);
+        assertEquals(1, confStat(conf, Rpc.E_undefined_conference));
+        server.script(Rpc.C_get_conf_stat, null);
+
+        session.changeName(conf, "nytt namn");
+        long end = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                assertEquals(conf, session.getConfStat(conf).getNo());
+                break;
+            } catch (RpcFailure ex1) {
+                assertTrue(System.currentTimeMillis() < end);
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+import java.net.BindException;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.Session;
+
+/**
+ * Checks that a session with automatic reconnection gets its connection to
+ * a restarted FakeServer back, and what happens to calls meanwhile.
+ */
+public class ReconnectTest extends TestCase {
+    FakeServer server;
+    Session session;
+    int port;
+
+    public ReconnectTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        System.setProperty("lattekom.reconnect-attempts", "3");
+        server = new FakeServer();
+        server.setPassword("hemligt");
+        server.start();
+        port = server.getPort();
+        session = new Session();
+        session.setAutoReconnect(true);
+        session.connect("localhost", port);
+        assertTrue(session.login(1, "hemligt", false, false));
+    }
+
+    protected void tearDown() throws IOException {
+        System.getProperties().remove("lattekom.reconnect-attempts");
+        session.disconnect(true);
+        server.stop();
+    }
+
+    // the port may be held for a moment after the server was stopped
+    void restart() throws Exception {
+        long end = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                server.start(port);
+                return;
+            } catch (BindException ex1) {
+                if (System.currentTimeMillis() > end)
+                    throw ex1;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    void awaitReconnecting(boolean reconnecting) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (session.isReconnecting() != reconnecting
+                && System.currentTimeMillis() < end)
+            Thread.sleep(20);
+        assertEquals(reconnecting, session.isReconnecting());
+    }
+
+    public void testReconnect() throws Exception {
+        server.stop();
+        awaitReconnecting(true);
+        restart();
+        awaitReconnecting(false);
+        assertEquals(1, session.getReconnectCount());
+        assertTrue(session.getLoggedIn());
+        assertEquals(5, session.getTextStat(5, true).getNo());
+    }
+
+    public void testCallWaitsForReconnect() throws Exception {
+        server.stop();
+        awaitReconnecting(true);
+        final Object[] result = new Object[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result[0] = Integer.valueOf(session.getTextStat(5, true)
+                            .getNo());
+                } catch (IOException ex1) {
+                    result[0] = ex1;
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(300);
+        restart();
+        t.join(10000);
+        assertEquals(Integer.valueOf(5), result[0]);
+    }
+
+    public void testUnsentCallFails() throws Exception {
+        server.stop();
+        awaitReconnecting(true);
+        // user-active is not stored, so it cannot be sent later
+        try {
+            session.doUserActive();
+            fail("call accepted while reconnecting");
+        } catch (IOException ex1) {
+        }
+        restart();
+        awaitReconnecting(false);
+    }
+
+    public void testGiveUp() throws Exception {
+        server.stop();
+        awaitReconnecting(true);
+        awaitReconnecting(false);
+        assertEquals(0, session.getReconnectCount());
+        try {
+            session.getTextStat(5, true);
+            fail("call made without a connection");
+        } catch (IOException ex1) {
+        }
+    }
+
+    public void testWrongPassword() throws Exception {
+        server.stop();
+        awaitReconnecting(true);
+        server.setPassword("annat");
+        restart();
+        awaitReconnecting(false);
+        assertEquals(0, session.getReconnectCount());
+    }
+
+    public void testNoReconnectAfterDisconnect() throws Exception {
+        session.disconnect(false);
+        Thread.sleep(100);
+        assertFalse(session.isReconnecting());
+    }
+}
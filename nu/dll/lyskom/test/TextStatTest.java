@@ -0,0 +1,177 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.Selection;
+import nu.dll.lyskom.Session;
+import nu.dll.lyskom.TextStat;
+
+/**
+ * Checks the packed Misc-Info of TextStat and the Selection views over it,
+ * for text-stats decoded from a FakeServer and built locally.
+ */
+public class TextStatTest extends TestCase {
+    FakeServer server;
+    Session session;
+
+    public TextStatTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        server = new FakeServer();
+        server.start();
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(1, "", false, false));
+    }
+
+    protected void tearDown() throws IOException {
+        session.disconnect(true);
+        server.stop();
+    }
+
+    // the generated text with the given local number in conference 3
+    int textNo(int local) {
+        return 2 * server.getTextsPerConference() + local;
+    }
+
+    public void testDecoded() throws IOException {
+        // local 3 comments local 2, which is commented by local 3
+        TextStat commented = session.getTextStat(textNo(2));
+        TextStat comment = session.getTextStat(textNo(3));
+
+        assertEquals(textNo(3), comment.getNo());
+        assertEquals(2, comment.getMiscInfoCount());
+        assertEquals(TextStat.miscRecpt, comment.getMiscInfoKey(0));
+        assertEquals(3, comment.getMiscInfoValue(0));
+        assertTrue(comment.isRecipientGroup(0));
+        assertEquals(3, comment.getMiscInfoInt(0, TextStat.miscLocNo));
+        assertEquals(-1, comment.getMiscInfoInt(0, TextStat.miscSentBy));
+
+        assertEquals(1, comment.getStatInts(TextStat.miscRecpt).length);
+        assertEquals(textNo(2), comment.getCommented()[0]);
+        assertEquals(textNo(3), commented.getComments()[0]);
+        assertEquals(0, comment.getComments().length);
+    }
+
+    public void testViews() throws IOException {
+        TextStat ts = session.getTextStat(textNo(3));
+        List<Selection> misc = ts.getMiscInfo();
+        assertEquals(ts.getMiscInfoCount(), misc.size());
+        Selection recipient = misc.get(0);
+        assertTrue(recipient.contains(TextStat.miscRecpt));
+        assertEquals(3, recipient.getIntValue(TextStat.miscRecpt));
+        assertEquals(3, recipient.getIntValue(TextStat.miscLocNo));
+
+        List<Selection> recipients = ts
+                .getMiscInfoSelections(TextStat.miscRecpt);
+        assertEquals(1, recipients.size());
+        assertEquals(1, ts.getMiscInfoSelections(TextStat.miscLocNo).size());
+
+        // arrays handed out are copies
+        ts.getStatInts(TextStat.miscRecpt)[0] = 4711;
+        assertEquals(3, ts.getStatInts(TextStat.miscRecpt)[0]);
+    }
+
+    public void testModify() {
+        TextStat ts = new TextStat();
+        ts.addMiscInfoEntry(TextStat.miscRecpt, 10);
+        ts.addMiscInfoEntry(TextStat.miscCcRecpt, 11);
+        ts.addMiscInfoEntry(TextStat.miscRecpt, 12);
+        ts.addMiscInfoEntry(TextStat.miscCommTo, 100);
+        assertEquals(4, ts.getMiscInfoCount());
+        assertEquals(3, ts.getAllRecipients().size());
+
+        ts.removeMiscInfoEntry(TextStat.miscRecpt, 10);
+        assertEquals(1, ts.getStatInts(TextStat.miscRecpt).length);
+        assertEquals(12, ts.getStatInts(TextStat.miscRecpt)[0]);
+
+        ts.clearMiscInfoEntry(TextStat.miscCcRecpt);
+        assertEquals(2, ts.getMiscInfoCount());
+        assertEquals(0, ts.getStatInts(TextStat.miscCcRecpt).length);
+        assertEquals(100, ts.getCommented()[0]);
+    }
+
+    public void testSerialization() throws Exception {
+        TextStat ts = session.getTextStat(textNo(3));
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(b);
+        out.writeObject(ts);
+        out.close();
+        TextStat copy = (TextStat) new ObjectInputStream(
+                new ByteArrayInputStream(b.toByteArray())).readObject();
+
+        assertEquals(ts.getNo(), copy.getNo());
+        assertEquals(ts.getMiscInfoCount(), copy.getMiscInfoCount());
+        for (int g = 0; g < ts.getMiscInfoCount(); g++) {
+            assertEquals(ts.getMiscInfoKey(g), copy.getMiscInfoKey(g));
+            assertEquals(ts.getMiscInfoValue(g), copy.getMiscInfoValue(g));
+        }
+        assertEquals(ts.getMiscInfo().size(), copy.getMiscInfo().size());
+        assertEquals(textNo(2), copy.getCommented()[0]);
+    }
+
+    /**
+     * A TextStat with two Misc-Info groups, a recipient with a local number
+     * and a comment, serialized before Misc-Info was packed.
+     */
+    static final String OLD_FORM =
+            "aced0005737200166e752e646c6c2e6c79736b6f6d2e5465787453746174892e"
+            + "ecafc27084f702000a490006617574686f7249000c6175784974656d436f756e"
+            + "7449000563686172734900056c696e65734900056d61726b734900026e6f5b00"
+            + "086175784974656d737400185b4c6e752f646c6c2f6c79736b6f6d2f41757849"
+            + "74656d3b4c000c6372656174696f6e54696d657400174c6e752f646c6c2f6c79"
+            + "736b6f6d2f4b6f6d54696d653b4c00086c6f63616c4d617074000f4c6a617661"
+            + "2f7574696c2f4d61703b4c00086d697363496e666f7400104c6a6176612f7574"
+            + "696c2f4c6973743b787000000007000000000000002a00000003000000010000"
+            + "1267757200185b4c6e752e646c6c2e6c79736b6f6d2e4175784974656d3b3826"
+            + "80932d6ffce4020000787000000000737200156e752e646c6c2e6c79736b6f6d"
+            + "2e4b6f6d54696d65867799f541d08fa4020009490005686f7572734900056973"
+            + "6473744900046d6461794900076d696e757465734900056d6f6e746849000773"
+            + "65636f6e64734900077765656b64617949000479656172490007796561726461"
+            + "7978700000000300000000000000040000000200000005000000010000000600"
+            + "00006900000007737200116a6176612e7574696c2e486173684d61700507dac1"
+            + "c31660d103000246000a6c6f6164466163746f724900097468726573686f6c64"
+            + "78703f400000000000007708000000100000000078737200146a6176612e7574"
+            + "696c2e4c696e6b65644c6973740c29535d4a6088220300007870770400000002"
+            + "737200176e752e646c6c2e6c79736b6f6d2e53656c656374696f6e6ac2226ac4"
+            + "ab05690200024c00076b65794c6973747400164c6a6176612f7574696c2f4c69"
+            + "6e6b65644c6973743b4c000676616c75657371007e000378707371007e000c77"
+            + "0400000002737200116a6176612e6c616e672e496e746567657212e2a0a4f781"
+            + "873802000149000576616c7565787200106a6176612e6c616e672e4e756d6265"
+            + "7286ac951d0b94e08b0200007870000000007371007e00120000000678737100"
+            + "7e000a3f4000000000000c770800000010000000027371007e00120000000073"
+            + "71007e0012000000057371007e0012000000067371007e00120000000c787371"
+            + "007e000e7371007e000c7704000000017371007e001200000003787371007e00"
+            + "0a3f4000000000000c770800000010000000017371007e001200000003737100"
+            + "7e0012000012c07878";
+
+    public void testOldSerialForm() throws Exception {
+        byte[] b = new byte[OLD_FORM.length() / 2];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) Integer.parseInt(
+                    OLD_FORM.substring(i * 2, i * 2 + 2), 16);
+        TextStat ts = (TextStat) new ObjectInputStream(
+                new ByteArrayInputStream(b)).readObject();
+
+        assertEquals(4711, ts.getNo());
+        assertEquals(7, ts.getAuthor());
+        assertEquals(2, ts.getMiscInfoCount());
+        assertEquals(5, ts.getRecipients()[0]);
+        assertEquals(12, ts.getLocal(5));
+        assertEquals(4800, ts.getComments()[0]);
+    }
+}
@@ -0,0 +1,105 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.Session;
+import nu.dll.lyskom.Text;
+
+/**
+ * Checks the subject, body and row views of texts, fetched from a
+ * FakeServer and built locally.
+ */
+public class TextTest extends TestCase {
+    FakeServer server;
+    Session session;
+
+    public TextTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        server = new FakeServer();
+        server.start();
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(1, "", false, false));
+    }
+
+    protected void tearDown() throws IOException {
+        session.disconnect(true);
+        server.stop();
+    }
+
+    public void testFetchedText() throws IOException {
+        int textNo = 2 * server.getTextsPerConference() + 5;
+        Text t = session.getText(textNo);
+        assertEquals("Inlägg " + textNo, t.getSubjectString());
+        assertEquals(t.getSubjectString(), t.getSubjectChars().toString());
+
+        List<CharSequence> rows = t.getBodyRows();
+        assertEquals("Rad 1 av inlägg " + textNo + " i möte 3.", rows
+                .get(0).toString());
+        assertEquals(t.getRows() - 1, rows.size());
+        assertEquals(t.getBodyString(), t.getBodyChars().toString());
+        assertEquals(t.getBodyList().size(), rows.size());
+        assertEquals(new String(t.getBody(), "iso-8859-1"), t.getBodyString());
+    }
+
+    public void testCreatedText() throws IOException {
+        Text t = new Text("Ämne", "rad ett\nrad två\r\nrad tre");
+        assertEquals("Ämne", t.getSubjectString());
+        List<CharSequence> rows = t.getBodyRows();
+        assertEquals(3, rows.size());
+        assertEquals("rad två", rows.get(1).toString());
+        assertEquals(Text.getRows(t.getBodyString()).size(), rows.size());
+
+        t.addRecipient(5);
+        int textNo = session.createText(t);
+        assertTrue(textNo > 0);
+        Text fetched = session.getText(textNo);
+        assertEquals(t.getSubjectString(), fetched.getSubjectString());
+        assertEquals(t.getBodyString(), fetched.getBodyString());
+    }
+
+    public void testIndexFollowsContents() throws IOException {
+        Text t = new Text("första", "kropp");
+        assertEquals("första", t.getSubjectString());
+        assertEquals(1, t.getRows());
+
+        // new contents must not be seen through the old index
+        t.setContents("andra\nen\ntvå\n".getBytes("iso-8859-1"));
+        assertEquals("andra", t.getSubjectString());
+        assertEquals(3, t.getRows());
+        assertEquals(2, t.getBodyRows().size());
+
+        // nor must changes to the arrays handed out
+        t.getSubject()[0] = 'X';
+        t.getBody()[0] = 'X';
+        assertEquals("andra", t.getSubjectString());
+        assertEquals("en", t.getBodyRows().get(0).toString());
+    }
+
+    public void testNoSubject() throws IOException {
+        Text t = new Text("bara en rad".getBytes("iso-8859-1"));
+        assertEquals(0, t.getRows());
+        assertEquals("", t.getSubjectString());
+        assertEquals(0, t.getSubject().length);
+    }
+
+    public void testTrimContents() throws IOException {
+        Text t = new Text("ämne", "kropp\n\n  ");
+        t.trimContents();
+        assertEquals("kropp", t.getBodyString());
+        byte[] contents = t.getContents();
+        t.trimContents();
+        assertSame(contents, t.getContents());
+    }
+}
@@ -0,0 +1,162 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.Session;
+
+/**
+ * Checks that calls the server does not answer in time are expired by the
+ * timing wheel, that their late replies do no harm, and that replies nobody
+ * collects are not kept for long.
+ */
+public class TimeoutTest extends TestCase {
+    FakeServer server;
+    Session session;
+    int oldTimeout;
+
+    public TimeoutTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        oldTimeout = Session.rpcTimeout;
+        Session.rpcTimeout = 500;
+        server = new FakeServer();
+        server.start();
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(1, "", false, false));
+    }
+
+    protected void tearDown() throws IOException {
+        Session.rpcTimeout = oldTimeout;
+        System.getProperties().remove("lattekom.reply-keep");
+        System.getProperties().remove("lattekom.rpc-heap-size");
+        session.disconnect(true);
+        server.stop();
+    }
+
+    public void testExpiry() throws Exception {
+        server.setLatency(2000);
+        long start = System.currentTimeMillis();
+        try {
+            session.getTextStat(5, true);
+            fail("no timeout");
+        } catch (IOException ex1) {
+            assertTrue(ex1.getMessage(), ex1.getMessage().startsWith(
+                    "Timeout waiting for RPC reply"));
+        }
+        long waited = System.currentTimeMillis() - start;
+        // a timeout fires up to one tick (100 ms) late
+        assertTrue("waited " + waited, waited >= 500 && waited < 1500);
+        // the waiting thread may time out before the wheel gets to the call
+        long end = System.currentTimeMillis() + 1000;
+        while (session.getMetrics().getExpiredCalls() == 0
+                && System.currentTimeMillis() < end)
+            Thread.sleep(20);
+        assertEquals(1, session.getMetrics().getExpiredCalls());
+
+        // the late reply is dropped, and the session goes on
+        Thread.sleep(2000);
+        server.setLatency(0);
+        assertEquals(5, session.getTextStat(5, true).getNo());
+        assertEquals(1, session.getMetrics().getLateReplies());
+    }
+
+    public void testNoExpiryInTime() throws IOException {
+        server.setLatency(200);
+        for (int i = 1; i <= 5; i++)
+            assertEquals(i, session.getTextStat(i, true).getNo());
+        assertEquals(0, session.getMetrics().getExpiredCalls());
+    }
+
+    public void testManyExpire() throws Exception {
+        server.setLatency(1500);
+        int[] ids = new int[20];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = session.doGetTextStat(i + 1).getId();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < ids.length; i++) {
+            try {
+                session.waitFor(ids[i]);
+                fail("no timeout for call " + ids[i]);
+            } catch (IOException ex1) {
+            }
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(ids.length, session.getMetrics().getExpiredCalls());
+    }
+
+    // a new session, reading the properties set by the test
+    Session reconnect() throws IOException {
+        session.disconnect(true);
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(1, "", false, false));
+        return session;
+    }
+
+    void awaitPending(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (session.getPendingCallCount() != count
+                && System.currentTimeMillis() < end)
+            Thread.sleep(20);
+        assertEquals(count, session.getPendingCallCount());
+    }
+
+    public void testUncollectedDropped() throws Exception {
+        Session.rpcTimeout = 5000;
+        System.setProperty("lattekom.reply-keep", "1");
+        reconnect();
+        for (int i = 1; i <= 5; i++)
+            session.doGetTextStat(i);
+        Thread.sleep(300);
+        assertEquals(5, session.getPendingCallCount());
+        // dropped a second after the replies came, not at the RPC timeout
+        awaitPending(0);
+        assertEquals(5, session.getMetrics().getUncollectedReplies());
+        assertEquals(0, session.getMetrics().getExpiredCalls());
+    }
+
+    public void testBoundedByCount() throws Exception {
+        System.setProperty("lattekom.rpc-heap-size", "10");
+        reconnect();
+        for (int i = 1; i <= 30; i++) {
+            session.doGetTextStat(i);
+            // a full table of calls without replies would expire them
+            if (i % 10 == 0)
+                Thread.sleep(300);
+        }
+        // the oldest replies were dropped to make room
+        assertEquals(10, session.getPendingCallCount());
+        assertEquals(20, session.getMetrics().getUncollectedReplies());
+        assertEquals(0, session.getMetrics().getExpiredCalls());
+    }
+
+    public void testFullOfPendingCalls() throws Exception {
+        System.setProperty("lattekom.rpc-heap-size", "5");
+        reconnect();
+        server.setLatency(300);
+        int[] ids = new int[8];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = session.doGetTextStat(i + 1).getId();
+        // the oldest calls expire at once to make room
+        assertEquals(5, session.getPendingCallCount());
+        assertEquals(3, session.getMetrics().getExpiredCalls());
+        long start = System.currentTimeMillis();
+        try {
+            session.waitFor(ids[0]);
+            fail("call kept in a full table");
+        } catch (IOException ex1) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 200);
+        assertEquals(ids[7], session.waitFor(ids[7]).getId());
+    }
+}
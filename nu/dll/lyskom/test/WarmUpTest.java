@@ -0,0 +1,89 @@
+/**! -*- Mode: Java; c-basic-offset: 4 -*-
+ *
+ * Copyright (c) 1999 by Rasmus Sten <rasmus@sno.pp.se>
+ *
+ */
+package nu.dll.lyskom.test;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import nu.dll.lyskom.Membership;
+import nu.dll.lyskom.Session;
+import nu.dll.lyskom.WarmUp;
+
+/**
+ * Runs Session.warmUp() against a FakeServer, with and without the
+ * protocol 10 fallback of get-membership and query-read-texts.
+ */
+public class WarmUpTest extends TestCase {
+    FakeServer server;
+    Session session;
+
+    public WarmUpTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws IOException {
+        server = new FakeServer();
+        server.start();
+    }
+
+    protected void tearDown() throws IOException {
+        if (session != null)
+            session.disconnect(true);
+        server.stop();
+    }
+
+    private Session login(int persNo) throws IOException {
+        session = new Session();
+        session.connect("localhost", server.getPort());
+        assertTrue(session.login(persNo, "", false, false));
+        return session;
+    }
+
+    private void checkWarm(int persNo) {
+        int[] confs = server.getMemberships(persNo);
+        for (int i = 0; i < confs.length; i++) {
+            Membership m = session.queryReadTextsCached(confs[i]);
+            assertNotNull("membership of " + confs[i], m);
+            assertEquals(confs[i], m.getNo());
+        }
+        assertNotNull(session.getUnreadConfsListCached());
+        assertEquals(session.getUnreadConfsListCached().size(), session
+                .getUnreadMembership().length);
+        assertTrue(session.getUnreadMembership().length > 0);
+    }
+
+    public void testWarmUp() throws IOException {
+        login(1);
+        WarmUp w = session.warmUp();
+        checkWarm(1);
+        assertTrue(w.getFirstUnreadConference() > 0);
+    }
+
+    public void testProtocol10Fallback() throws IOException {
+        server.setProtocol10(true);
+        login(2);
+        WarmUp w = session.warmUp();
+        checkWarm(2);
+        assertTrue(w.getFirstUnreadConference() > 0);
+        assertEquals(server.getMemberships(2).length,
+                session.getMembership(2, 0, 100, false).length);
+    }
+
+    public void testSameResultAsProtocol11() throws IOException {
+        login(3);
+        session.warmUp();
+        int unreads = session.getUnreadMembership().length;
+        session.disconnect(true);
+
+        server.setProtocol10(true);
+        login(3);
+        WarmUp w = session.warmUp();
+        assertEquals(unreads, session.getUnreadMembership().length);
+        assertEquals(unreads, session.getUnreadConfsListCached().size());
+        assertTrue(w.getCalls() > unreads);
+    }
+}